@@ -14,15 +14,22 @@ import static kerbefake.common.Logger.commonLogger;
 public class Main {
 
     private static Scanner userInputScanner = new Scanner(System.in);
+
+    /**
+     * The servers started by this process, stopped when the process exits.
+     */
+    private static volatile AuthServer authServer;
+    private static volatile MessageServer msgServer;
+
     private static final String menu = "Please select mode of operation:\n1) Client mode\n2) Auth Server\n3) Messaging Server";
 
     public static void main(String[] args) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            for (Thread t : Thread.getAllStackTraces().keySet()) {
-                String name = t.getName();
-                if (name.equals("AuthServerThread") || name.equals("MessageServerThread"))
-                    t.interrupt();
-            }
+            // Stop accepting new connections and let the open ones finish.
+            if (authServer != null)
+                authServer.stop();
+            if (msgServer != null)
+                msgServer.stop();
         }));
 
 
@@ -55,11 +62,13 @@ public class Main {
                 new Client(true).run();
                 return;
             case Constants.MODE_AUTH:
-                new AuthServer(true).start();
+                authServer = new AuthServer(true);
+                authServer.start();
                 return;
             case Constants.MODE_SERVER:
                 try {
-                    new MessageServer(true).start();
+                    msgServer = new MessageServer(true);
+                    msgServer.start();
                 } catch (IOException e) {
                     commonLogger.error("Failed to start message server due to: %s", e);
                 }
@@ -91,7 +100,7 @@ public class Main {
                             commonLogger.error("Auth server is already running.");
                             break;
                         }
-                        AuthServer authServer = new AuthServer();
+                        authServer = new AuthServer();
                         authServerThread = new Thread(authServer::start);
                         authServerThread.setName("AuthServerThread");
                         authServerThread.start();
@@ -102,7 +111,7 @@ public class Main {
                             break;
                         }
                         try {
-                            MessageServer msgServer = new MessageServer();
+                            msgServer = new MessageServer();
                             msgServerThread = new Thread(msgServer::start);
                             msgServerThread.setName("MessageServerThread");
                             msgServerThread.start();
@@ -117,10 +126,10 @@ public class Main {
                 }
             } while (true);
         } finally {
-            if (authServerThread != null)
-                authServerThread.interrupt();
-            if (msgServerThread != null)
-                msgServerThread.interrupt();
+            if (authServer != null)
+                authServer.stop();
+            if (msgServer != null)
+                msgServer.stop();
         }
     }
 
@@ -1,25 +1,23 @@
 package kerbefake.auth_server;
 
 import kerbefake.common.Logger;
+import kerbefake.common.NetworkServer;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.ServerConfig;
 
-import javax.net.ServerSocketFactory;
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import static kerbefake.common.Constants.DEFAULT_PORT_AUTH_SERVER;
+import static kerbefake.common.PreparedKeyCache.KeyType.CLIENT;
+import static kerbefake.common.PreparedKeyCache.KeyType.SERVER;
 
 /**
  * A class which handles all the functionality of the authentication server.
  */
 public class AuthServer {
 
-    private final ArrayList<Thread> connectionHandles = new ArrayList<>();
+    private volatile NetworkServer server;
 
     public static final Logger authLogger = Logger.getLogger(Logger.LoggerType.AUTH_SERVER_LOGGER);
 
@@ -28,69 +26,35 @@ public class AuthServer {
     }
 
     public AuthServer(boolean fullDebug) {
-        authLogger.updateMinimalLogLevel(Logger.LogLevel.DEBUG,Logger.LogLevel.DEBUG);
-
+        if (fullDebug)
+            authLogger.updateMinimalLogLevel(Logger.LogLevel.DEBUG, Logger.LogLevel.DEBUG);
     }
 
     /**
-     * Starts the authentication server
+     * Starts the authentication server, this blocks until the server is stopped or the calling thread is interrupted.
      */
     public void start() {
         int port = loadPort();
         // Just to get it to load all the needed data before we start serving requests
         KnownPeers.getInstance();
-        ServerSocket socket;
-        try {
-            socket = ServerSocketFactory.getDefault().createServerSocket();
-            socket.bind(new InetSocketAddress("127.0.0.1", port));
-            socket.setSoTimeout(1000); // 1 second timeout
-        } catch (IOException e) {
-            authLogger.error("Failed to create or bind socket to default port (%d), due to: %s", port, e);
-            return;
-        }
-
-        Timer connCleanupTimer = new Timer();
-        connCleanupTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ArrayList<Thread> connsToDelete = new ArrayList<>();
-                for (int i = 0; i < connectionHandles.size(); i++) {
-                    Thread handle = connectionHandles.get(i);
-                    if (handle.isInterrupted() || !handle.isAlive()) {
-                        connsToDelete.add(handle);
-                    }
-                }
-                for (Thread t : connsToDelete) {
-                    connectionHandles.remove(t);
-                }
-            }
-        }, 60 * 1000); // Every minute, cleanup arraylist of thread handles.
-
-        while (!Thread.currentThread().isInterrupted()) {
-            Socket conn = null;
-            try {
-                conn = socket.accept();
-            } catch (SocketTimeoutException e) {
-                continue;
-            } catch (IOException e) {
-                authLogger.error("Failed to accept new connection due to: %s", e);
-            }
-
-            Thread threadHandle = new Thread(new AuthServerConnectionHandler(conn, Thread.currentThread()));
-            threadHandle.start();
-            connectionHandles.add(threadHandle);
-        }
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        server = ServerConfig.createServer(authLogger, new AuthServerRequestProcessor(), address, "AuthServerConnection-");
+        server.run();
+    }
 
-        connCleanupTimer.cancel();
-        try {
-            socket.close();
-        } catch (IOException e) {
-            authLogger.error("Failed to close socket due to: %s", e);
-            throw new RuntimeException(e);
+    /**
+     * Stops the authentication server, waiting for open connections to finish.
+     */
+    public void stop() {
+        NetworkServer currentServer = server;
+        if (currentServer != null) {
+            currentServer.stop();
+            KnownPeers.getInstance().flushLastSeen();
+            PreparedKeyCache.getInstance(CLIENT).logStats(authLogger);
+            PreparedKeyCache.getInstance(SERVER).logStats(authLogger);
         }
     }
 
-
     /**
      * Loads the port from the file port.info
      *
@@ -0,0 +1,25 @@
+package kerbefake.auth_server;
+
+import kerbefake.common.RequestProcessor;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerRequest;
+
+import java.util.EnumSet;
+
+import static kerbefake.auth_server.AuthServer.authLogger;
+
+/**
+ * A request processor that handles requests for the auth server.
+ */
+public class AuthServerRequestProcessor extends RequestProcessor {
+
+    public AuthServerRequestProcessor() {
+        super(authLogger, EnumSet.of(MessageCode.REGISTER_CLIENT, MessageCode.REQUEST_SYMMETRIC_KEY));
+    }
+
+    @Override
+    public <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message) {
+        return message;
+    }
+}
@@ -0,0 +1,213 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.auth_server.errors.InvalidClientDataException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static kerbefake.common.Constants.CLIENTS_LOADER_CHUNK_SIZE;
+
+/**
+ * Reads a text clients file (see {@link TextClientsStore}) in parallel.
+ * <p>
+ * The file is split into chunks at line boundaries and each chunk is memory mapped on its own, so the size of the file
+ * isn't limited by the size of a single mapping. The chunks are parsed on a fork join pool and their records are then
+ * returned in the order they appear in the file, so the last record of a client is still the current one.
+ */
+final class ClientsFileLoader {
+
+    /**
+     * How much of the file is read at once while looking for the end of a chunk.
+     */
+    private static final int LINE_SEARCH_WINDOW = 4096;
+
+    private final Path path;
+
+    private final int parallelism;
+
+    /**
+     * @param path        - the clients file
+     * @param parallelism - how many threads parse the file
+     */
+    ClientsFileLoader(Path path, int parallelism) {
+        this.path = path;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Reads all the records of the file.
+     *
+     * @return the records in the order they appear in the file
+     * @throws java.nio.file.NoSuchFileException - in case the file doesn't exist.
+     * @throws IOException                       - in case the file could not be read.
+     * @throws InvalidClientDataException        - in case any of the records is invalid, the file is then considered corrupted.
+     */
+    List<ClientEntry> load() throws IOException, InvalidClientDataException {
+        Chunk[] chunks;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Long> boundaries = splitAtLines(channel);
+            chunks = new Chunk[boundaries.size() - 1];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = boundaries.get(i);
+                long size = boundaries.get(i + 1) - start;
+                if (size > Integer.MAX_VALUE) {
+                    // No valid record comes close to this, it is a single line without a line break.
+                    throw new InvalidClientDataException("Entry");
+                }
+                chunks[i] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, start, size));
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ParseChunks(chunks, 0, chunks.length));
+        } finally {
+            pool.shutdown();
+        }
+
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.failure != null) {
+                throw chunk.failure;
+            }
+            total += chunk.records.size();
+        }
+        List<ClientEntry> records = new ArrayList<>(total);
+        for (Chunk chunk : chunks) {
+            records.addAll(chunk.records);
+        }
+        return records;
+    }
+
+    /**
+     * Splits the file into chunks of about {@link kerbefake.common.Constants#CLIENTS_LOADER_CHUNK_SIZE} bytes, every
+     * chunk ends right after a line break (or at the end of the file).
+     *
+     * @return the offsets at which the chunks start, followed by the size of the file.
+     */
+    private static List<Long> splitAtLines(FileChannel channel) throws IOException {
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer window = ByteBuffer.allocate(LINE_SEARCH_WINDOW);
+        while (offset < size) {
+            long end = Math.min(offset + CLIENTS_LOADER_CHUNK_SIZE, size);
+            if (end < size) {
+                end = nextLineStart(channel, end - 1, size, window);
+            }
+            boundaries.add(end);
+            offset = end;
+        }
+        if (boundaries.size() == 1) {
+            boundaries.add(0L);
+        }
+        return boundaries;
+    }
+
+    /**
+     * @return the offset right after the first line break at or after the given offset, or the size of the file.
+     */
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer window) throws IOException {
+        long position = from;
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (window.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * A part of the file along with the records parsed from it.
+     */
+    private static final class Chunk {
+
+        private final MappedByteBuffer data;
+
+        private final List<ClientEntry> records = new ArrayList<>();
+
+        private InvalidClientDataException failure;
+
+        Chunk(MappedByteBuffer data) {
+            this.data = data;
+        }
+
+        /**
+         * Parses every line of the chunk, like {@link java.io.BufferedReader#readLine()} a line may also end with "\r\n"
+         * and the last line of the file doesn't have to end with a line break.
+         */
+        void parse() {
+            Charset charset = Charset.defaultCharset();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            int lineStart = 0;
+            try {
+                while (lineStart < bytes.length) {
+                    int lineEnd = lineStart;
+                    while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    int next = lineEnd + 1;
+                    if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                        lineEnd--;
+                    }
+                    records.add(ClientEntry.parseClient(new String(bytes, lineStart, lineEnd - lineStart, charset)));
+                    lineStart = next;
+                }
+            } catch (InvalidClientDataException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in half until a single chunk is left.
+     */
+    private static final class ParseChunks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk[] chunks;
+
+        private final int from;
+
+        private final int to;
+
+        ParseChunks(Chunk[] chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    chunks[from].parse();
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ParseChunks(chunks, from, middle), new ParseChunks(chunks, middle, to));
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.common.Logger;
+import kerbefake.common.ServerConfig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static kerbefake.common.Constants.CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS;
+
+/**
+ * The clients file, kept as an append-only journal with a single record (a line, see {@link ClientEntry#toString()}) for
+ * every change to a client, the last record of a client is the current one.
+ * <p>
+ * Appends are group committed: a record is queued and a dedicated writer thread writes every queued record with a single
+ * write and a single fsync, so concurrent registrations share the cost of the fsync instead of waiting for one each.
+ * A record is only reported as appended once it was synced to the disk. The journal is only written by the writer and
+ * the compactor, never by the threads of requests, since interrupting a thread which writes to a {@link FileChannel}
+ * closes the channel for everyone (see {@link java.nio.channels.ClosedByInterruptException}).
+ * <p>
+ * Once the journal holds many more records than there are clients, it is compacted in the background into a snapshot
+ * with one record per client, which then replaces the journal.
+ */
+public final class ClientsJournal implements Closeable {
+
+    private final Path path;
+
+    private final Path snapshotPath;
+
+    private final Supplier<Collection<ClientEntry>> liveClients;
+
+    private final Logger logger;
+
+    /**
+     * Records waiting to be committed.
+     */
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Commits the queued records, it is never interrupted (see {@link #close()}).
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(ServerConfig.daemonThreadFactory("ClientsJournalWriter-"));
+
+    /**
+     * Taken while committing, the fields below are guarded by it.
+     */
+    private final Object commitLock = new Object();
+
+    private FileChannel channel;
+
+    /**
+     * Only written with {@link #commitLock} held, it is volatile so checking whether to compact doesn't wait for a commit.
+     */
+    private volatile int records;
+
+    private long commits = 0;
+
+    private long committedRecords = 0;
+
+    /**
+     * The records committed since the running compaction took its snapshot, null when not compacting.
+     */
+    private List<Record> sinceSnapshot = null;
+
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(ServerConfig.daemonThreadFactory("ClientsJournalCompactor-"));
+
+    /**
+     * Opens a journal for appending.
+     *
+     * @param path        - the journal file, created in case it doesn't exist
+     * @param records     - how many records the journal already holds
+     * @param liveClients - supplies the current clients, which are written to the snapshot when compacting
+     * @param logger      - the logger to use
+     * @throws IOException - in case the journal could not be opened.
+     */
+    public ClientsJournal(Path path, int records, Supplier<Collection<ClientEntry>> liveClients, Logger logger) throws IOException {
+        this.path = path;
+        this.snapshotPath = Paths.get(path + ".snapshot");
+        this.liveClients = liveClients;
+        this.logger = logger;
+        this.records = records;
+        this.channel = openForAppend(path);
+        compactIfNeeded();
+    }
+
+    /**
+     * Appends a record for the client and waits for it to be synced to the disk, along with any records appended
+     * concurrently.
+     *
+     * @param entry - the client to write
+     * @return true if the record was synced to the disk, false otherwise.
+     */
+    public boolean append(ClientEntry entry) {
+        return append(Collections.singletonList(entry));
+    }
+
+    /**
+     * Appends a record for each of the clients and waits for them to be synced to the disk, along with any records
+     * appended concurrently. The records are written together, so either all of them are appended or none.
+     *
+     * @param entries - the clients to write
+     * @return true if the records were synced to the disk, false otherwise.
+     */
+    public boolean append(Collection<ClientEntry> entries) {
+        StringBuilder lines = new StringBuilder();
+        for (ClientEntry entry : entries) {
+            lines.append(entry).append('\n');
+        }
+        Record record = new Record(lines.toString().getBytes(), entries.size());
+        pending.add(record);
+        try {
+            writer.execute(this::commitPending);
+        } catch (RejectedExecutionException e) {
+            pending.remove(record);
+            logger.error("Failed to write %d client records, the clients journal is closed.", entries.size());
+            return false;
+        }
+        record.awaitDone();
+        compactIfNeeded();
+        return record.success;
+    }
+
+    /**
+     * Commits the queued records on the writer thread, in case an earlier commit already wrote them there is nothing to do.
+     */
+    private void commitPending() {
+        synchronized (commitLock) {
+            if (!pending.isEmpty()) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs every queued record, must be called with {@link #commitLock} held.
+     */
+    private void commit() {
+        List<Record> batch = new ArrayList<>();
+        int size = 0;
+        int lines = 0;
+        Record record;
+        while ((record = pending.poll()) != null) {
+            batch.add(record);
+            size += record.data.length;
+            lines += record.lines;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Record r : batch) {
+            buffer.put(r.data);
+        }
+        buffer.flip();
+
+        boolean success = false;
+        long start = -1;
+        try {
+            start = channel.size();
+            writeFully(channel, buffer);
+            channel.force(false);
+            success = true;
+            records += lines;
+            commits++;
+            committedRecords += lines;
+            if (sinceSnapshot != null) {
+                sinceSnapshot.addAll(batch);
+            }
+        } catch (IOException e) {
+            logger.error(e);
+            logger.error("Failed to write %d client records due to: %s", lines, e.getMessage());
+            truncate(start);
+        }
+        for (Record r : batch) {
+            r.complete(success);
+        }
+    }
+
+    /**
+     * Drops a partially written batch, so the journal doesn't end with a partial record.
+     */
+    private void truncate(long size) {
+        if (size < 0) {
+            return;
+        }
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            logger.error("Failed to truncate the clients journal after a failed write due to: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Schedules a compaction in case the journal holds too many stale records and no compaction is running.
+     */
+    private void compactIfNeeded() {
+        int current = records;
+        if (current <= CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS || current <= 2 * liveClients.get().size()) {
+            return;
+        }
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            // We are closing.
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current clients, appends the records committed while it was written and replaces the
+     * journal with it. Appends only wait for the final step.
+     */
+    private void compact() {
+        try {
+            synchronized (commitLock) {
+                sinceSnapshot = new ArrayList<>();
+            }
+            Collection<ClientEntry> clients = liveClients.get();
+            int snapshotRecords = 0;
+            try (FileChannel snapshot = FileChannel.open(snapshotPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                StringBuilder builder = new StringBuilder();
+                for (ClientEntry client : clients) {
+                    builder.append(client).append('\n');
+                    snapshotRecords++;
+                }
+                writeFully(snapshot, ByteBuffer.wrap(builder.toString().getBytes()));
+
+                synchronized (commitLock) {
+                    for (Record record : sinceSnapshot) {
+                        writeFully(snapshot, ByteBuffer.wrap(record.data));
+                    }
+                    snapshot.force(false);
+                    channel.close();
+                    Files.move(snapshotPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    channel = openForAppend(path);
+                    int sinceSnapshotRecords = 0;
+                    for (Record record : sinceSnapshot) {
+                        sinceSnapshotRecords += record.lines;
+                    }
+                    logger.info("Compacted the clients journal from %d to %d records.", records, snapshotRecords + sinceSnapshotRecords);
+                    records = snapshotRecords + sinceSnapshotRecords;
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e);
+            logger.error("Failed to compact the clients journal due to: %s", e.getMessage());
+            synchronized (commitLock) {
+                if (!channel.isOpen()) {
+                    // We failed after closing the journal, the move either happened or not so reopen whichever is in place.
+                    try {
+                        channel = openForAppend(path);
+                    } catch (IOException reopenFailure) {
+                        throw new RuntimeException(reopenFailure);
+                    }
+                }
+            }
+        } finally {
+            synchronized (commitLock) {
+                sinceSnapshot = null;
+            }
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * @return how many records the journal holds.
+     */
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the average amount of records written by a single commit, i.e. with a single fsync.
+     */
+    public double getAverageBatchSize() {
+        synchronized (commitLock) {
+            return commits == 0 ? 0 : (double) committedRecords / commits;
+        }
+    }
+
+    /**
+     * Stops compacting, waits for the records that were already appended to be committed and closes the journal, records
+     * that are appended afterward fail. The writer is shut down without interrupting it, so it never closes the journal
+     * in the middle of a write.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.error("Timed out waiting for the clients journal writer to finish.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (commitLock) {
+            channel.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static FileChannel openForAppend(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static final class Record {
+
+        private final byte[] data;
+
+        /**
+         * How many client records (lines) the data holds.
+         */
+        private final int lines;
+
+        /**
+         * Both are guarded by this.
+         */
+        private boolean done = false;
+
+        private boolean success = false;
+
+        Record(byte[] data, int lines) {
+            this.data = data;
+            this.lines = lines;
+        }
+
+        synchronized void complete(boolean success) {
+            this.success = success;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the writer to commit the record, an interrupt doesn't stop the wait since the record is written
+         * regardless, the interrupt is kept for the caller.
+         */
+        synchronized void awaitDone() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.common.entities.PrincipalId;
+
+import java.io.Closeable;
+import java.util.Collection;
+
+/**
+ * The persistent store of the registered clients, see {@link TextClientsStore} and {@link MappedClientsStore}.
+ * Implementations are safe to use from many threads at once.
+ */
+public interface ClientsStore extends Closeable {
+
+    /**
+     * @param clientId - the ID of the client
+     * @return the client with the given ID, null if there isn't one.
+     */
+    ClientEntry get(PrincipalId clientId);
+
+    /**
+     * @param name - the name of the client
+     * @return the client with the given name, null if there isn't one.
+     */
+    ClientEntry getByName(String name);
+
+    /**
+     * Adds and persists a new client, the client is only added once it was persisted.
+     *
+     * @param entry - the client to add
+     * @return true if the client was added, false if its name is taken or it could not be persisted.
+     * @throws RuntimeException - in case a client with the same ID already exists
+     */
+    boolean add(ClientEntry entry);
+
+    /**
+     * Persists the last seen time of existing clients, clients which are not in the store are ignored.
+     *
+     * @param clients - the clients whose {@link ClientEntry#getLastSeen()} to persist
+     * @return true if the times were persisted, false otherwise.
+     */
+    boolean updateLastSeen(Collection<ClientEntry> clients);
+
+    /**
+     * @return how many clients are registered.
+     */
+    int size();
+}
@@ -4,216 +4,129 @@ import kerbefake.auth_server.entities.ClientEntry;
 import kerbefake.auth_server.entities.MessageServerEntry;
 import kerbefake.auth_server.errors.InvalidClientDataException;
 import kerbefake.common.Logger;
-import kerbefake.msg_server.errors.InvalidMessageServerDataException;
+import kerbefake.common.ServerConfig;
+import kerbefake.common.entities.PrincipalId;
 
-import java.io.*;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import static kerbefake.auth_server.AuthServer.authLogger;
+import static kerbefake.common.Constants.CLIENTS_DB_FILE_NAME;
 import static kerbefake.common.Constants.CLIENTS_FILE_NAME;
+import static kerbefake.common.Constants.SERVERS_DIRECTORY_NAME;
 import static kerbefake.common.Constants.SERVER_CONFIG_FILE_NAME;
 
+/**
+ * The clients and message servers known to the authentication server, the clients are kept in a {@link ClientsStore}
+ * selected by {@link ServerConfig#CLIENTS_STORE_PROPERTY} and the servers in a {@link MessageServerDirectory}.
+ */
 public final class KnownPeers {
 
     private static KnownPeers instance;
 
-    private final Map<String, ClientEntry> clients;
+    private final ClientsStore clients;
 
-    private final Map<String, MessageServerEntry> servers;
+    private final MessageServerDirectory servers;
+
+    private final LastSeenTracker lastSeen;
 
     private Logger logger = authLogger;
 
     private KnownPeers() {
-        clients = Collections.synchronizedMap(new HashMap<>());
-        servers = Collections.synchronizedMap(new HashMap<>());
-        readAllClients();
-        if (clients.size() == 0) {
-            try {
-                new BufferedWriter(new FileWriter(CLIENTS_FILE_NAME, false)).close();
-            } catch (IOException e) {
-                logger.error("Couldn't reset client file.");
-                throw new RuntimeException(e);
-            }
-        }
-        readMsgServerData();
+        clients = openClientsStore();
+        lastSeen = new LastSeenTracker(clients, logger);
+        servers = new MessageServerDirectory(Paths.get(SERVER_CONFIG_FILE_NAME), Paths.get(SERVERS_DIRECTORY_NAME), logger);
         instance = this;
     }
 
     /**
-     * Reads and parses all the clients from the ./clients file.
-     * In case of an error the {@link KnownPeers#clients} field will be cleared and then flushed (i.e. the clients will be reset)
-     * The data is stored with the following structure:
-     * ID:Name:PasswordHash:LastSeen
-     * <p>
-     * In order the size of the field is (bytes): 16,<=255,32,19
-     * <p>
-     * ID is 16 bytes.
-     * Name is less than equals to 255 bytes (255 characters)
-     * PasswordHash is 32 bytes
-     * LastSeen is 19 bytes, format is (hh.mm.ss DD/MM/YYYY).
+     * Opens the clients store, the binary store is converted from the text clients file the first time it is used.
      *
-     * @return An HashMap of clients if such data exists in persistent storage, if not an empty HashMap.
+     * @return the clients store
      */
-    private void readAllClients() {
-        BufferedReader clientReader;
-        try {
-            clientReader = new BufferedReader(new FileReader(CLIENTS_FILE_NAME));
-        } catch (FileNotFoundException e) {
-            logger.info("No clients file found.");
-            return;
+    private ClientsStore openClientsStore() {
+        if (ServerConfig.getClientsStoreType() == ServerConfig.ClientsStoreType.TEXT) {
+            return new TextClientsStore(Paths.get(CLIENTS_FILE_NAME), logger);
         }
-        String clientLine;
-        while (true) {
-            try {
-                clientLine = clientReader.readLine();
-            } catch (IOException e) {
-                logger.error("Failed to read line from file: %s", e);
-                // We assume that if there was a read issue we can assume the file is corrupted therefore we won't be using the data in the file.
-                clients.clear();
-                return;
-            }
-
-            if (clientLine == null) {
-                break;
-            }
-
-            try {
-                ClientEntry client = ClientEntry.parseClient(clientLine);
-                clients.put(client.getId(), client);
-            } catch (InvalidClientDataException e) {
-                logger.error("Failed to parse client data, assuming corrupted file and returning no clients registered, due to: %s", e);
-                clients.clear();
-                return;
+        Path binaryPath = Paths.get(CLIENTS_DB_FILE_NAME);
+        Path textPath = Paths.get(CLIENTS_FILE_NAME);
+        try {
+            if (!Files.exists(binaryPath) && Files.exists(textPath)) {
+                MappedClientsStore.convert(textPath, binaryPath, logger);
             }
+            return new MappedClientsStore(binaryPath, logger);
+        } catch (IOException | InvalidClientDataException e) {
+            logger.error("Failed to open the binary clients store due to: %s", e.getMessage());
+            throw new RuntimeException(e);
         }
     }
 
-
     /**
-     * Reads the msg.info file and returns an arraylist with all the registered message servers.
+     * Tries to add a new client entry to the known clients, the entry is persisted before it is added.
      *
-     * @return an ArrayList of all the message server entries.
+     * @param entry - the entry to add
+     * @return - false if failed, true if successful
+     * @throws RuntimeException - in case of a UUID collision
      */
-    private void readMsgServerData() {
-        BufferedReader serverReader;
-        try {
-            serverReader = new BufferedReader(new FileReader(SERVER_CONFIG_FILE_NAME));
-        } catch (FileNotFoundException e) {
-            logger.error("Unable to find msg.info file, no messaging server provided.");
-            throw new RuntimeException(e);
-        }
-
-        String ipAddr, name, id, b64SymKey;
-        try {
-            ipAddr = serverReader.readLine();
-            name = serverReader.readLine();
-            id = serverReader.readLine();
-            b64SymKey = serverReader.readLine();
-        } catch (IOException e) {
-            logger.error("Failed to read line from msg.info file, must have 4 lines in the following order:\nIP:port\nName\nId (hex)\nBase64 Symmetric key\nFailure happened due to: %s", e);
-            throw new RuntimeException(e);
-        }
-
-        try {
-            servers.put(id, MessageServerEntry.parseMessageEntryData(ipAddr, name, id, b64SymKey));
-        } catch (InvalidMessageServerDataException e) {
-            logger.error("Failed to parse message server entry due to %e", e);
-            throw new RuntimeException(e);
-        }
+    public boolean tryAddClientEntry(ClientEntry entry) {
+        logger.debug("Trying to adding client entry: %s %s", entry.getId(), entry.getName());
+        return clients.add(entry);
     }
 
     /**
-     * Tries to flush the entire known client list to a file (resets the file)
+     * @param clientID - the ID of the client
+     * @return the client with the given ID, null if there isn't one.
      */
-    private void flushClientsFile() {
-        logger.debug("Flushing known clients to file");
-        BufferedWriter writer;
-        try {
-            writer = new BufferedWriter(new FileWriter(CLIENTS_FILE_NAME, false));
-        } catch (IOException e) {
-            logger.error("Failed to open file to write clients due to: %s", e);
-            return;
-        }
-        synchronized (clients) {
-            clients.values().forEach(v -> {
-                try {
-                    writer.write(v.toString() + "\n");
-                } catch (IOException e) {
-                    logger.error("Failed to write client to file due to: %s", e);
-                }
-            });
-            try {
-                writer.flush();
-            } catch (IOException e) {
-                logger.error("Failed to flush client file");
-            }
-        }
+    public ClientEntry getClient(PrincipalId clientID) {
+        return clients.get(clientID);
     }
 
     /**
-     * Tries to add a new client entry to the known clients map.
-     * The method is synchronized and since the class is a singleton it will synchronize on the object for all callers / users of the class
-     * The method will also persist the data
+     * Records that a client made a request, its last seen time is persisted in the background.
      *
-     * @param entry - the entry to add
-     * @return - false if failed, true if successful
-     * @throws RuntimeException - in case of a UUID collision
+     * @param client - the client, as returned by {@link #getClient(PrincipalId)}
      */
-    public synchronized boolean tryAddClientEntry(ClientEntry entry) {
-        logger.debug("Trying to adding client entry: %s %s", entry.getId(), entry.getName());
-
-        if (clients.values().stream().anyMatch(v -> v.getName().equals(entry.getName()))) {
-            logger.warn("Client with the same name already found.");
-            return false;
-        }
-
-        BufferedWriter writer;
-        try {
-            writer = new BufferedWriter(new FileWriter(CLIENTS_FILE_NAME, true));
-        } catch (IOException e) {
-            logger.error("Failed to open file to write clients due to: %s", e);
-            return false;
-        }
-        if (clients.containsKey(entry.getId())) {
-            // This shouldn't happen as UUID is very unlikely to yield a collision
-            throw new RuntimeException("Duplicate client ID detected!");
-        }
-        clients.put(entry.getId(), entry);
-
-        try {
-            writer.write(entry + "\n");
-            writer.flush();
-        } catch (IOException e) {
-            logger.error("Failed to write client to file due to: %s", e);
-            return false;
-        }
+    public void markSeen(ClientEntry client) {
+        lastSeen.markSeen(client);
+    }
 
+    /**
+     * Persists the last seen time of the clients seen since it was last persisted.
+     */
+    public void flushLastSeen() {
+        lastSeen.flush();
+    }
 
-        return true;
+    /**
+     * @param name - the name of the client
+     * @return the client with the given name, null if there isn't one.
+     */
+    public ClientEntry getClientByName(String name) {
+        return clients.getByName(name);
     }
 
-    // TODO: Code duplication cleanup
-    public synchronized ClientEntry getClient(String clientID) {
-        logger.debug("Trying to fetch client: %s", clientID);
-        List<ClientEntry> matchingClients = clients.values().stream().filter(v -> v.getId().equals(clientID)).collect(Collectors.toList());
-        if (matchingClients.size() > 1) {
-            throw new RuntimeException("More than a single client with the same ID found!");
-        }
-        return matchingClients.size() == 0 ? null : matchingClients.get(0);
+    /**
+     * @return how many clients are registered.
+     */
+    public int getClientCount() {
+        return clients.size();
     }
 
-    public synchronized MessageServerEntry getSever(String serverId) {
-        logger.debug("Trying to fetch server for ID: %s", serverId);
-        List<MessageServerEntry> matchingServers = servers.values().stream().filter(v -> v.getId().equals(serverId)).collect(Collectors.toList());
-        if (matchingServers.size() > 1) {
-            throw new RuntimeException("More than a single server with the same ID found!");
-        }
+    /**
+     * @param serverId - the ID of the server
+     * @return the server with the given ID, null if there isn't one.
+     */
+    public MessageServerEntry getSever(PrincipalId serverId) {
+        return servers.get(serverId);
+    }
 
-        return matchingServers.size() == 0 ? null : matchingServers.get(0);
+    /**
+     * @return how many message servers are known.
+     */
+    public int getServerCount() {
+        return servers.size();
     }
 
     public static KnownPeers getInstance() {
@@ -0,0 +1,130 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.common.Logger;
+import kerbefake.common.ServerConfig;
+import kerbefake.common.entities.PrincipalId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static kerbefake.common.Constants.LAST_SEEN_FLUSH_INTERVAL_MS;
+
+/**
+ * Tracks when clients were last seen and persists it to the {@link ClientsStore} in the background.
+ * <p>
+ * A request only updates the last seen time of its client in memory and, in case the client isn't already waiting to
+ * be persisted, queues it in a concurrent map by client ID. Every {@link kerbefake.common.Constants#LAST_SEEN_FLUSH_INTERVAL_MS}
+ * a background writer drains the map and persists all the queued clients with a single store update, so a client seen
+ * many times between flushes is written once. Clients are queued by ID since a store may hand out a new
+ * {@link ClientEntry} for every lookup (see {@link MappedClientsStore}), in which case the time is recorded on the entry
+ * that is already queued.
+ */
+public final class LastSeenTracker {
+
+    private final ClientsStore store;
+
+    private final Logger logger;
+
+    private final ConcurrentHashMap<PrincipalId, ClientEntry> queued = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(ServerConfig.daemonThreadFactory("LastSeenWriter-"));
+
+    /**
+     * Guarded by this.
+     */
+    private long flushes = 0;
+
+    /**
+     * Guarded by this.
+     */
+    private long written = 0;
+
+    /**
+     * Creates the tracker and starts its background writer.
+     *
+     * @param store  - the store to persist to
+     * @param logger - the logger to use
+     */
+    public LastSeenTracker(ClientsStore store, Logger logger) {
+        this.store = store;
+        this.logger = logger;
+        writer.scheduleWithFixedDelay(this::flush, LAST_SEEN_FLUSH_INTERVAL_MS, LAST_SEEN_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that the client was seen now, the time is persisted by the background writer. Takes no locks and does no I/O.
+     *
+     * @param client - the client, as returned by the store
+     */
+    public void markSeen(ClientEntry client) {
+        long now = System.currentTimeMillis();
+        client.updateLastSeen(now);
+        PrincipalId id = client.getId();
+        // Only look the client up on the request path, putting a client which is already queued would lock its bin.
+        ClientEntry queuedEntry = queued.get(id);
+        if (queuedEntry == null) {
+            queuedEntry = queued.putIfAbsent(id, client);
+        }
+        if (queuedEntry != null && queuedEntry != client) {
+            queuedEntry.updateLastSeen(now);
+        }
+    }
+
+    /**
+     * Persists the last seen time of all the queued clients, called periodically by the background writer and once more
+     * when the server stops.
+     */
+    public synchronized void flush() {
+        List<ClientEntry> clients = new ArrayList<>();
+        for (PrincipalId id : queued.keySet()) {
+            ClientEntry client = queued.remove(id);
+            if (client != null) {
+                clients.add(client);
+            }
+        }
+        if (clients.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (!store.updateLastSeen(clients)) {
+                // The next request of each of these clients queues it again.
+                logger.error("Failed to persist the last seen time of %d clients.", clients.size());
+                return;
+            }
+        } catch (RuntimeException e) {
+            // Don't let a single failure stop the writer.
+            logger.error("Failed to persist the last seen time of %d clients due to: %s", clients.size(), e.getMessage());
+            return;
+        }
+        flushes++;
+        written += clients.size();
+    }
+
+    /**
+     * @return how many times the background writer persisted clients.
+     */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return how many clients are waiting to be persisted.
+     */
+    public int getQueuedCount() {
+        return queued.size();
+    }
+
+    /**
+     * @return how many client records the background writer persisted, a client seen between every flush counts once
+     * per flush.
+     */
+    public synchronized long getWritten() {
+        return written;
+    }
+}
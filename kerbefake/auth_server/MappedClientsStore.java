@@ -0,0 +1,491 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.auth_server.errors.InvalidClientDataException;
+import kerbefake.common.Logger;
+import kerbefake.common.entities.PrincipalId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Clients kept in a binary file of fixed size records, which is memory mapped so clients can be looked up right after
+ * the file is opened, without reading or parsing all of them.
+ * <p>
+ * The file starts with a header, followed by two open addressing hash indexes (by ID and by name) and the records:
+ * <pre>
+ * Header:  magic (8) | version (4) | count (4) | capacity (4) | slots (4) | reserved (8)
+ * Indexes: slots * record number + 1 (4), 0 for an empty slot, once by ID and once by name
+ * Records: capacity * (ID (16) | name length (1) | name (255) | password hash (32) | last seen epoch millis (8))
+ * </pre>
+ * All values are little endian. A record and its index slots are written before the count is, so slots pointing at a
+ * record past the count (e.g. after a crash) are considered empty. Once full, the file is rewritten with twice the
+ * capacity and replaces the old one.
+ * <p>
+ * A single mapping is limited to 2GB, so the store holds up to {@link #MAX_CAPACITY} clients.
+ */
+public final class MappedClientsStore implements ClientsStore {
+
+    private static final long MAGIC = 0x4244544e4c43464bL; // "KFCLNTDB"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int COUNT_OFFSET = 12;
+
+    private static final int ID_SIZE = 16;
+
+    private static final int MAX_NAME_SIZE = ClientEntry.MAX_NAME_SIZE;
+
+    private static final int HASH_SIZE = 32;
+
+    private static final int NAME_OFFSET = ID_SIZE + 1;
+
+    private static final int HASH_OFFSET = NAME_OFFSET + MAX_NAME_SIZE;
+
+    private static final int LAST_SEEN_OFFSET = HASH_OFFSET + HASH_SIZE;
+
+    private static final int RECORD_SIZE = LAST_SEEN_OFFSET + Long.BYTES;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public static final int MAX_CAPACITY = 1 << 22;
+
+    private final Path path;
+
+    private final Logger logger;
+
+    /**
+     * Lookups take the read lock, adding a client takes the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int count;
+
+    private int capacity;
+
+    private int slots;
+
+    /**
+     * Opens the store, creating an empty one in case the file doesn't exist.
+     *
+     * @param path   - the store file
+     * @param logger - the logger to use
+     * @throws IOException - in case the file could not be mapped or is not a valid store.
+     */
+    public MappedClientsStore(Path path, Logger logger) throws IOException {
+        this.path = path;
+        this.logger = logger;
+        if (!Files.exists(path)) {
+            create(path, INITIAL_CAPACITY).close();
+        }
+        map(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Converts a text clients file (see {@link TextClientsStore}) to a binary store, in case a client appears more than
+     * once the last record is used.
+     *
+     * @param textPath   - the text clients file
+     * @param binaryPath - the binary store to create, it must not exist
+     * @param logger     - the logger to use
+     * @return how many clients were converted.
+     * @throws IOException                - in case either file could not be read or written, or a client can't be stored
+     *                                    in the binary store.
+     * @throws InvalidClientDataException - in case the text file holds an invalid record.
+     */
+    public static int convert(Path textPath, Path binaryPath, Logger logger) throws IOException, InvalidClientDataException {
+        Map<PrincipalId, ClientEntry> clients = new LinkedHashMap<>();
+        for (ClientEntry client : new ClientsFileLoader(textPath, Runtime.getRuntime().availableProcessors()).load()) {
+            clients.put(client.getId(), client);
+        }
+        for (ClientEntry client : clients.values()) {
+            // Clients registered before names were limited may have longer names, which the text store accepts.
+            if (!ClientEntry.isNameSizeValid(client.getName())) {
+                throw new IOException(String.format("Can't convert client %s, its name is longer than the %d bytes the binary store holds, rename it in %s or keep using the text store.",
+                        client.getId(), MAX_NAME_SIZE, textPath));
+            }
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < clients.size()) {
+            capacity <<= 1;
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IOException(String.format("Can't store %d clients, at most %d are supported.", clients.size(), MAX_CAPACITY));
+        }
+        Path temp = Paths.get(binaryPath + ".tmp");
+        create(temp, capacity).close();
+        try (MappedClientsStore store = new MappedClientsStore(temp, logger)) {
+            for (ClientEntry client : clients.values()) {
+                if (!store.insert(client)) {
+                    throw new IOException(String.format("Failed to convert client %s.", client.getId()));
+                }
+            }
+            store.buffer.force();
+        }
+        Files.move(temp, binaryPath, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Converted %d clients from %s to %s", clients.size(), textPath, binaryPath);
+        return clients.size();
+    }
+
+    @Override
+    public ClientEntry get(PrincipalId clientId) {
+        if (clientId == null) {
+            return null;
+        }
+        byte[] id = clientId.toByteArray();
+        lock.readLock().lock();
+        try {
+            int record = findById(id);
+            return record < 0 ? null : readRecord(record, clientId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ClientEntry getByName(String name) {
+        byte[] nameBytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes == null || nameBytes.length > MAX_NAME_SIZE) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            int record = findByName(nameBytes);
+            return record < 0 ? null : readRecord(record, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a new client and forces it to the disk, registrations are serialized.
+     *
+     * @param entry - the client to add
+     * @return true if the client was added, false if its name is taken or it could not be persisted.
+     * @throws RuntimeException - in case of a UUID collision
+     */
+    @Override
+    public boolean add(ClientEntry entry) {
+        lock.writeLock().lock();
+        try {
+            if (!insert(entry)) {
+                return false;
+            }
+            buffer.force();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the last seen time of each of the clients into its record and forces them to the disk at once, a time older
+     * than the one already stored is ignored.
+     *
+     * @param clients - the clients whose {@link ClientEntry#getLastSeen()} to persist
+     * @return true if the times were persisted, false otherwise.
+     */
+    @Override
+    public boolean updateLastSeen(Collection<ClientEntry> clients) {
+        lock.writeLock().lock();
+        try {
+            for (ClientEntry client : clients) {
+                int record = findById(client.getId().toByteArray());
+                if (record < 0) {
+                    continue;
+                }
+                int offset = recordOffset(record) + LAST_SEEN_OFFSET;
+                long lastSeen = client.getLastSeen().getTime();
+                if (lastSeen > buffer.getLong(offset)) {
+                    buffer.putLong(offset, lastSeen);
+                }
+            }
+            buffer.force();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a new client without forcing it to the disk, must be called with the write lock held (or before the store
+     * is shared).
+     */
+    private boolean insert(ClientEntry entry) {
+        byte[] id = entry.getId().toByteArray();
+        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_SIZE) {
+            logger.error("Client name is longer than %d bytes.", MAX_NAME_SIZE);
+            return false;
+        }
+        if (findByName(name) >= 0) {
+            logger.warn("Client with the same name already found.");
+            return false;
+        }
+        if (findById(id) >= 0) {
+            // This shouldn't happen as UUID is very unlikely to yield a collision
+            throw new RuntimeException("Duplicate client ID detected!");
+        }
+        if (count == capacity) {
+            try {
+                grow();
+            } catch (IOException e) {
+                logger.error(e);
+                logger.error("Failed to grow the clients store due to: %s", e.getMessage());
+                return false;
+            }
+        }
+
+        int record = count;
+        int offset = recordOffset(record);
+        buffer.position(offset);
+        buffer.put(id);
+        buffer.put((byte) name.length);
+        buffer.put(name);
+        buffer.position(offset + HASH_OFFSET);
+        buffer.put(entry.getPasswordHash());
+        buffer.putLong(entry.getLastSeen().getTime());
+        putSlot(idIndexOffset(), hashBytes(id), record);
+        putSlot(nameIndexOffset(), hashBytes(name), record);
+        count++;
+        buffer.putInt(COUNT_OFFSET, count);
+        return true;
+    }
+
+    /**
+     * Rewrites the store with twice the capacity and replaces the current file with it.
+     */
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IOException(String.format("The clients store is full, at most %d clients are supported.", MAX_CAPACITY));
+        }
+        Path temp = Paths.get(path + ".grow");
+        FileChannel grown = create(temp, capacity * 2);
+        MappedByteBuffer source = buffer;
+        int records = count;
+        int sourceRecords = recordOffset(0);
+
+        map(grown);
+        // The records keep their numbers, so they are copied as is and only the indexes are rebuilt.
+        count = records;
+        ByteBuffer copied = source.duplicate();
+        copied.position(sourceRecords).limit(sourceRecords + records * RECORD_SIZE);
+        buffer.position(recordOffset(0));
+        buffer.put(copied);
+        for (int record = 0; record < records; record++) {
+            int offset = recordOffset(record);
+            putSlot(idIndexOffset(), hashBytes(bufferSlice(offset, ID_SIZE)), record);
+            putSlot(nameIndexOffset(), hashBytes(bufferSlice(offset + NAME_OFFSET, buffer.get(offset + ID_SIZE) & 0xff)), record);
+        }
+        buffer.putInt(COUNT_OFFSET, count);
+        buffer.force();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Grew the clients store to %d clients.", capacity);
+    }
+
+    /**
+     * Creates an empty store file.
+     */
+    private static FileChannel create(Path path, int capacity) throws IOException {
+        int slots = capacity * 2;
+        FileChannel created = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = created.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity, slots));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(0).putInt(capacity).putInt(slots);
+        header.force();
+        return created;
+    }
+
+    /**
+     * Maps a store file and replaces the current mapping with it, validating its header.
+     */
+    private void map(FileChannel newChannel) throws IOException {
+        MappedByteBuffer mapped = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, newChannel.size());
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (newChannel.size() < HEADER_SIZE || mapped.getLong(0) != MAGIC || mapped.getInt(8) != VERSION) {
+            newChannel.close();
+            throw new IOException("Not a clients store file.");
+        }
+        int newCount = mapped.getInt(COUNT_OFFSET);
+        int newCapacity = mapped.getInt(16);
+        int newSlots = mapped.getInt(20);
+        if (newCapacity <= 0 || newCapacity > MAX_CAPACITY || newSlots != newCapacity * 2 || newCount < 0 || newCount > newCapacity
+                || newChannel.size() != fileSize(newCapacity, newSlots)) {
+            newChannel.close();
+            throw new IOException("Clients store file is corrupted.");
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        channel = newChannel;
+        buffer = mapped;
+        count = newCount;
+        capacity = newCapacity;
+        slots = newSlots;
+    }
+
+    private int findById(byte[] id) {
+        int index = idIndexOffset();
+        for (int slot = hashBytes(id) & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+            int record = buffer.getInt(index + slot * Integer.BYTES) - 1;
+            if (record < 0 || record >= count) {
+                return -1;
+            }
+            if (idMatches(record, id)) {
+                return record;
+            }
+        }
+    }
+
+    private int findByName(byte[] name) {
+        int index = nameIndexOffset();
+        for (int slot = hashBytes(name) & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+            int record = buffer.getInt(index + slot * Integer.BYTES) - 1;
+            if (record < 0 || record >= count) {
+                return -1;
+            }
+            if (nameMatches(record, name)) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Points the first free slot starting at the hash at the record.
+     */
+    private void putSlot(int index, int hash, int record) {
+        for (int slot = hash & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+            int offset = index + slot * Integer.BYTES;
+            int existing = buffer.getInt(offset) - 1;
+            if (existing < 0 || existing >= count) {
+                buffer.putInt(offset, record + 1);
+                return;
+            }
+        }
+    }
+
+    private boolean idMatches(int record, byte[] id) {
+        int offset = recordOffset(record);
+        for (int i = 0; i < ID_SIZE; i++) {
+            if (buffer.get(offset + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameMatches(int record, byte[] name) {
+        int offset = recordOffset(record);
+        if ((buffer.get(offset + ID_SIZE) & 0xff) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(offset + NAME_OFFSET + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param id - the ID of the record in case the caller already has it, null to read it from the record
+     */
+    private ClientEntry readRecord(int record, PrincipalId id) {
+        int offset = recordOffset(record);
+        if (id == null) {
+            id = PrincipalId.fromBytes(bufferSlice(offset, ID_SIZE));
+        }
+        byte[] name = bufferSlice(offset + NAME_OFFSET, buffer.get(offset + ID_SIZE) & 0xff);
+        byte[] passwordHash = bufferSlice(offset + HASH_OFFSET, HASH_SIZE);
+        long lastSeen = buffer.getLong(offset + LAST_SEEN_OFFSET);
+        try {
+            return new ClientEntry(id, new String(name, StandardCharsets.UTF_8), passwordHash, new Date(lastSeen));
+        } catch (InvalidClientDataException e) {
+            throw new RuntimeException(String.format("Clients store record %d is corrupted.", record), e);
+        }
+    }
+
+    private byte[] bufferSlice(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private int idIndexOffset() {
+        return HEADER_SIZE;
+    }
+
+    private int nameIndexOffset() {
+        return HEADER_SIZE + slots * Integer.BYTES;
+    }
+
+    private int recordOffset(int record) {
+        return HEADER_SIZE + 2 * slots * Integer.BYTES + record * RECORD_SIZE;
+    }
+
+    private static long fileSize(int capacity, int slots) {
+        return HEADER_SIZE + 2L * slots * Integer.BYTES + (long) capacity * RECORD_SIZE;
+    }
+
+    /**
+     * Hashes an ID or a name, the hash is stored on the disk through the indexes so it must never change.
+     * The bits are spread so neighbouring values don't land in neighbouring slots.
+     */
+    private static int hashBytes(byte[] bytes) {
+        long hash = 0;
+        for (byte b : bytes) {
+            hash = hash * 31 + (b & 0xff);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+}
@@ -0,0 +1,250 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.MessageServerEntry;
+import kerbefake.common.Logger;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.ServerConfig;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.msg_server.errors.InvalidMessageServerDataException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static kerbefake.common.Constants.SERVERS_DIRECTORY_RELOAD_DELAY_MS;
+import static kerbefake.common.PreparedKeyCache.KeyType.SERVER;
+
+/**
+ * The message servers known to the authentication server, by server ID.
+ * <p>
+ * Servers are read from the msg.info file and from every "*.info" file in the servers directory, each file holds one or
+ * more records in the msg.info format (4 lines: IP:port, name, ID (hex) and the base64 symmetric key), records may be
+ * separated by blank lines.
+ * <p>
+ * The servers directory is watched, whenever a file in it changes all the files are read again into a new map which
+ * then replaces the current one (copy on write), so lookups never wait for a reload and always see either the old or
+ * the new servers, never a mix. In case the files can't be read or any record is invalid the current servers are kept.
+ * Server files should be replaced at once (written elsewhere and then moved into the directory), a half written file
+ * is invalid and is only picked up on the next change.
+ */
+public final class MessageServerDirectory implements Closeable {
+
+    private static final String SERVER_FILE_SUFFIX = ".info";
+
+    private final Path serverFile;
+
+    private final Path directory;
+
+    private final Logger logger;
+
+    private volatile Map<PrincipalId, MessageServerEntry> servers;
+
+    private final WatchService watcher;
+
+    private final Thread watcherThread;
+
+    private long reloads = 0;
+
+    /**
+     * Reads the servers and starts watching the servers directory, in case it exists.
+     *
+     * @param serverFile - the msg.info file, it may be missing in case the servers directory lists the servers
+     * @param directory  - the servers directory, it may be missing in case msg.info lists the server
+     * @param logger     - the logger to log to
+     * @throws RuntimeException - in case no servers could be read.
+     */
+    public MessageServerDirectory(Path serverFile, Path directory, Logger logger) {
+        this.serverFile = serverFile;
+        this.directory = directory;
+        this.logger = logger;
+
+        try {
+            servers = readServers();
+        } catch (IOException | InvalidMessageServerDataException e) {
+            logger.error("Failed to read message servers due to: %s", e.getMessage());
+            throw new RuntimeException(e);
+        }
+        if (servers.isEmpty()) {
+            logger.error("Unable to find msg.info file or any servers in %s, no messaging server provided.", directory);
+            throw new RuntimeException("No messaging server provided.");
+        }
+        logger.info("Loaded %d message servers.", servers.size());
+
+        if (!Files.isDirectory(directory)) {
+            watcher = null;
+            watcherThread = null;
+            return;
+        }
+        try {
+            watcher = directory.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.error("Failed to watch %s due to: %s", directory, e.getMessage());
+            throw new RuntimeException(e);
+        }
+        watcherThread = ServerConfig.daemonThreadFactory("MessageServerDirectoryWatcher-").newThread(this::watch);
+        watcherThread.start();
+    }
+
+    /**
+     * @param serverId - the ID of the server
+     * @return the server with the given ID, null if there isn't one.
+     */
+    public MessageServerEntry get(PrincipalId serverId) {
+        return serverId == null ? null : servers.get(serverId);
+    }
+
+    /**
+     * @return how many servers are known.
+     */
+    public int size() {
+        return servers.size();
+    }
+
+    /**
+     * @return how many times the servers were read again since startup.
+     */
+    public synchronized long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Reads the servers again and replaces the current ones, the current servers are kept in case the read fails.
+     * Called whenever the servers directory changes.
+     *
+     * @return true if the servers were replaced, false otherwise.
+     */
+    public synchronized boolean reload() {
+        Map<PrincipalId, MessageServerEntry> read;
+        try {
+            read = readServers();
+        } catch (IOException | InvalidMessageServerDataException e) {
+            logger.error("Failed to reload message servers, keeping the current %d servers, due to: %s", servers.size(), e.getMessage());
+            return false;
+        }
+
+        Map<PrincipalId, MessageServerEntry> previous = servers;
+        servers = read;
+        reloads++;
+
+        // Prepared keys of servers which were removed or whose key was rotated are no longer needed.
+        PreparedKeyCache keys = PreparedKeyCache.getInstance(SERVER);
+        for (MessageServerEntry server : previous.values()) {
+            MessageServerEntry current = read.get(server.getId());
+            if (current == null || !Arrays.equals(current.getSymmetricKey(), server.getSymmetricKey())) {
+                keys.invalidate(server.getId());
+            }
+        }
+        logger.info("Reloaded message servers, %d servers (previously %d).", read.size(), previous.size());
+        return true;
+    }
+
+    /**
+     * Stops watching the servers directory.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher == null) {
+            return;
+        }
+        watcher.close();
+        watcherThread.interrupt();
+    }
+
+    /**
+     * Reads msg.info and the server files of the servers directory into a new map.
+     *
+     * @return the servers by ID, unmodifiable.
+     * @throws IOException                       - in case a file could not be read.
+     * @throws InvalidMessageServerDataException - in case any record is invalid or a server ID appears more than once.
+     */
+    private Map<PrincipalId, MessageServerEntry> readServers() throws IOException, InvalidMessageServerDataException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isRegularFile(serverFile)) {
+            files.add(serverFile);
+        }
+        if (Files.isDirectory(directory)) {
+            List<Path> serverFiles = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SERVER_FILE_SUFFIX)) {
+                for (Path file : stream) {
+                    if (Files.isRegularFile(file)) {
+                        serverFiles.add(file);
+                    }
+                }
+            }
+            Collections.sort(serverFiles);
+            files.addAll(serverFiles);
+        }
+
+        Map<PrincipalId, MessageServerEntry> read = new HashMap<>();
+        for (Path file : files) {
+            for (MessageServerEntry server : readServerFile(file)) {
+                if (read.put(server.getId(), server) != null) {
+                    throw new InvalidMessageServerDataException(String.format("Id (%s appears more than once)", server.getId()));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(read);
+    }
+
+    /**
+     * Reads the records of a single server file.
+     *
+     * @param file - the file to read
+     * @return the servers in the file
+     */
+    private static List<MessageServerEntry> readServerFile(Path file) throws IOException, InvalidMessageServerDataException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        if (lines.size() % 4 != 0) {
+            throw new InvalidMessageServerDataException(String.format("number of lines in %s", file));
+        }
+
+        List<MessageServerEntry> servers = new ArrayList<>(lines.size() / 4);
+        for (int i = 0; i < lines.size(); i += 4) {
+            servers.add(MessageServerEntry.parseMessageEntryData(lines.get(i), lines.get(i + 1), lines.get(i + 2), lines.get(i + 3)));
+        }
+        return servers;
+    }
+
+    /**
+     * Reloads the servers whenever the servers directory changes, until the watcher is closed.
+     * Editors and copies may change a file a few times in a row, so once a change is seen we wait a little and reload
+     * once for all the changes seen by then.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Thread.sleep(SERVERS_DIRECTORY_RELOAD_DELAY_MS);
+                for (; key != null; key = watcher.poll()) {
+                    key.pollEvents();
+                    if (!key.reset()) {
+                        logger.error("%s is no longer accessible, no longer watching it.", directory);
+                        return;
+                    }
+                }
+                reload();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // We were closed.
+        }
+    }
+}
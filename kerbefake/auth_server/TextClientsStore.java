@@ -0,0 +1,190 @@
+package kerbefake.auth_server;
+
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.auth_server.errors.InvalidClientDataException;
+import kerbefake.common.Logger;
+import kerbefake.common.entities.PrincipalId;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Clients kept in the text clients file, which is fully read into memory at startup and appended to through a
+ * {@link ClientsJournal}.
+ * <p>
+ * Clients are indexed by ID and by name, both on concurrent maps so lookups never take a lock. A registration first
+ * reserves its name in the name index, so only registrations of the same name contend with each other, and only the
+ * appends to the clients file are serialized.
+ */
+public final class TextClientsStore implements ClientsStore {
+
+    private final Path path;
+
+    private final Logger logger;
+
+    private final ConcurrentMap<PrincipalId, ClientEntry> clients = new ConcurrentHashMap<>();
+
+    /**
+     * The ID of every client by its name, a name is reserved here before its client is added to {@link #clients}.
+     */
+    private final ConcurrentMap<String, PrincipalId> clientIdsByName = new ConcurrentHashMap<>();
+
+    private final ClientsJournal journal;
+
+    /**
+     * How many records were read from the clients file, a client might have more than one.
+     */
+    private int recordsRead = 0;
+
+    /**
+     * Reads all the clients from the file and opens it for appending, the file is created in case it doesn't exist.
+     *
+     * @param path   - the clients file
+     * @param logger - the logger to use
+     * @throws RuntimeException - in case the file exists but could not be read, so it is never overwritten.
+     */
+    public TextClientsStore(Path path, Logger logger) {
+        this.path = path;
+        this.logger = logger;
+        readAllClients();
+        try {
+            journal = new ClientsJournal(path, recordsRead, clients::values, logger);
+        } catch (IOException e) {
+            logger.error("Couldn't open client file for appending.");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads and parses all the clients from the clients file in parallel (see {@link ClientsFileLoader}), a client might
+     * appear more than once (see {@link ClientsJournal}) in which case the last record is the current one.
+     * In case the file is corrupted it is moved aside (see {@link #moveAside()}) and no clients are read, in case it can't
+     * be read at all the server doesn't start, the file is never reset.
+     * The data is stored with the following structure:
+     * ID:Name:PasswordHash:LastSeen
+     * <p>
+     * In order the size of the field is (bytes): 16,<=255,32,19
+     * <p>
+     * ID is 16 bytes.
+     * Name is less than equals to 255 bytes (255 characters)
+     * PasswordHash is 32 bytes
+     * LastSeen is 19 bytes, format is (hh.mm.ss DD/MM/YYYY).
+     */
+    private void readAllClients() {
+        List<ClientEntry> records;
+        try {
+            records = new ClientsFileLoader(path, Runtime.getRuntime().availableProcessors()).load();
+        } catch (NoSuchFileException e) {
+            logger.info("No clients file found.");
+            return;
+        } catch (IOException e) {
+            // The clients might still be fine, don't start rather than lose them.
+            logger.error("Failed to read clients file: %s", e);
+            throw new RuntimeException(e);
+        } catch (InvalidClientDataException e) {
+            logger.error("Failed to parse client data, assuming corrupted file and returning no clients registered, due to: %s", e);
+            moveAside();
+            return;
+        }
+
+        for (ClientEntry client : records) {
+            clients.put(client.getId(), client);
+            clientIdsByName.put(client.getName(), client.getId());
+        }
+        recordsRead = records.size();
+    }
+
+    /**
+     * Moves a corrupted clients file aside, so the server starts with no clients without destroying the file.
+     */
+    private void moveAside() {
+        Path aside = Paths.get(path + ".corrupted." + System.currentTimeMillis());
+        try {
+            Files.move(path, aside, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failed to move the corrupted clients file aside.");
+            throw new RuntimeException(e);
+        }
+        logger.warn("Moved the corrupted clients file to %s.", aside);
+    }
+
+    @Override
+    public ClientEntry get(PrincipalId clientId) {
+        return clientId == null ? null : clients.get(clientId);
+    }
+
+    @Override
+    public ClientEntry getByName(String name) {
+        PrincipalId id = name == null ? null : clientIdsByName.get(name);
+        return id == null ? null : clients.get(id);
+    }
+
+    /**
+     * Adds a new client, the name of the client is reserved first so concurrent registrations only wait for each other if
+     * they use the same name. The client is then appended to the clients file, waiting for it to be synced to the disk
+     * along with concurrent registrations, in case it can't the client is removed.
+     *
+     * @param entry - the client to add
+     * @return true if the client was added, false if its name is taken or it could not be persisted.
+     * @throws RuntimeException - in case of a UUID collision
+     */
+    @Override
+    public boolean add(ClientEntry entry) {
+        if (clientIdsByName.putIfAbsent(entry.getName(), entry.getId()) != null) {
+            logger.warn("Client with the same name already found.");
+            return false;
+        }
+
+        if (clients.putIfAbsent(entry.getId(), entry) != null) {
+            clientIdsByName.remove(entry.getName(), entry.getId());
+            // This shouldn't happen as UUID is very unlikely to yield a collision
+            throw new RuntimeException("Duplicate client ID detected!");
+        }
+
+        if (!journal.append(entry)) {
+            clients.remove(entry.getId(), entry);
+            clientIdsByName.remove(entry.getName(), entry.getId());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Appends a record with the current last seen time of each of the clients to the clients file, in a single write.
+     *
+     * @param clients - the clients whose {@link ClientEntry#getLastSeen()} to persist
+     * @return true if the records were synced to the disk, false otherwise.
+     */
+    @Override
+    public boolean updateLastSeen(Collection<ClientEntry> clients) {
+        List<ClientEntry> known = new ArrayList<>(clients.size());
+        for (ClientEntry client : clients) {
+            ClientEntry current = this.clients.get(client.getId());
+            // The clients we hand out are the ones we hold, so their last seen time is already the current one.
+            if (current != null) {
+                known.add(current);
+            }
+        }
+        return known.isEmpty() || journal.append(known);
+    }
+
+    @Override
+    public int size() {
+        return clients.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -1,27 +1,36 @@
 package kerbefake.auth_server.entities;
 
 import kerbefake.auth_server.errors.InvalidClientDataException;
+import kerbefake.common.Utils;
+import kerbefake.common.entities.PrincipalId;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
 import java.util.Base64;
 import java.util.Date;
 
 import static kerbefake.auth_server.AuthServer.authLogger;
-import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
 
 /**
  * Defines a
  */
 public class ClientEntry {
 
-    private String id;
+    /**
+     * The longest name a client may register with, in UTF-8 bytes, the size of the name field of the binary clients store.
+     */
+    public static final int MAX_NAME_SIZE = 255;
+
+    private PrincipalId id;
     private String name;
     private byte[] passwordHash;
-    private Date lastSeen;
+    /**
+     * Epoch millis, updated on every request of the client and persisted in the background, see {@link #updateLastSeen(long)}.
+     */
+    private volatile long lastSeen;
 
-    public ClientEntry(String id, String name, byte[] passwordHash, Date lastSeen) throws InvalidClientDataException {
-        if (id.length() != ID_HEX_LENGTH_CHARS || !id.matches("^[0-9a-f]{32}$")) {
+    public ClientEntry(PrincipalId id, String name, byte[] passwordHash, Date lastSeen) throws InvalidClientDataException {
+        if (id == null) {
             throw new InvalidClientDataException("Id");
         }
         if (passwordHash.length != 32) {
@@ -31,10 +40,10 @@ public class ClientEntry {
         this.id = id;
         this.name = name;
         this.passwordHash = passwordHash;
-        this.lastSeen = lastSeen;
+        this.lastSeen = lastSeen.getTime();
     }
 
-    public String getId() {
+    public PrincipalId getId() {
         return id;
     }
 
@@ -47,7 +56,26 @@ public class ClientEntry {
     }
 
     public Date getLastSeen() {
-        return lastSeen;
+        return new Date(lastSeen);
+    }
+
+    /**
+     * Records that the client was seen, in memory only. Takes no locks so it can be called on every request.
+     *
+     * @param now - the current time in epoch millis
+     */
+    public void updateLastSeen(long now) {
+        if (now > lastSeen) {
+            lastSeen = now;
+        }
+    }
+
+    /**
+     * @param name - the name of a client
+     * @return true if the name fits in {@link #MAX_NAME_SIZE} bytes, false otherwise.
+     */
+    public static boolean isNameSizeValid(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_SIZE;
     }
 
 
@@ -65,12 +93,17 @@ public class ClientEntry {
             throw new InvalidClientDataException("Entry");
         }
 
-        String id = clientLineParts[0];
+        PrincipalId id = PrincipalId.fromHex(clientLineParts[0]);
         String name = clientLineParts[1];
-        byte[] passHash = Base64.getDecoder().decode(clientLineParts[2]);
+        byte[] passHash;
+        try {
+            passHash = Base64.getDecoder().decode(clientLineParts[2]);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidClientDataException("Password Hash");
+        }
         String lastSeen = clientLineParts[3];
 
-        if (id.length() != 32)
+        if (id == null)
             throw new InvalidClientDataException("Id");
         if (name.length() > 255)
             throw new InvalidClientDataException("Name");
@@ -81,8 +114,8 @@ public class ClientEntry {
             throw new InvalidClientDataException("Last Seen");
         Date lastSeenDate;
         try {
-            lastSeenDate = new SimpleDateFormat("hh.mm.ss dd/MM/yyyy").parse(lastSeen);
-        } catch (ParseException e) {
+            lastSeenDate = Utils.parseFormattedDate(lastSeen);
+        } catch (DateTimeParseException e) {
             throw new InvalidClientDataException("Date");
         }
 
@@ -92,6 +125,6 @@ public class ClientEntry {
 
     @Override
     public String toString() {
-        return String.format("%s:%s:%s:%s", id, name, new String(Base64.getEncoder().encode(passwordHash)), new SimpleDateFormat("hh.mm.ss dd/MM/yyyy").format(lastSeen));
+        return String.format("%s:%s:%s:%s", id, name, new String(Base64.getEncoder().encode(passwordHash)), Utils.getFormattedDate(new Date(lastSeen)));
     }
 }
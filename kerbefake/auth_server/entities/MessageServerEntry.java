@@ -1,5 +1,6 @@
 package kerbefake.auth_server.entities;
 
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.msg_server.errors.InvalidMessageServerDataException;
 
 import java.util.Base64;
@@ -8,10 +9,10 @@ public class MessageServerEntry {
 
     private String addr;
     private String name;
-    private String id;
+    private PrincipalId id;
     private byte[] symmetricKey;
 
-    public MessageServerEntry(String ipAddr, String name, String id, byte[] symKey) {
+    public MessageServerEntry(String ipAddr, String name, PrincipalId id, byte[] symKey) {
         this.addr = ipAddr;
         this.name = name;
         this.id = id;
@@ -26,7 +27,7 @@ public class MessageServerEntry {
         return name;
     }
 
-    public String getId() {
+    public PrincipalId getId() {
         return id;
     }
 
@@ -62,9 +63,8 @@ public class MessageServerEntry {
         if (name == null)
             throw new InvalidMessageServerDataException("Name");
 
-        if (id == null)
-            throw new InvalidMessageServerDataException("Id");
-        if (!id.matches("^[a-fA-F0-9]+$"))
+        PrincipalId parsedId = PrincipalId.fromHex(id);
+        if (parsedId == null)
             throw new InvalidMessageServerDataException("Id");
 
         if (b64SymKey == null)
@@ -77,6 +77,6 @@ public class MessageServerEntry {
             throw new InvalidMessageServerDataException("Symmetric Key");
         }
 
-        return new MessageServerEntry(addr, name, id, symKey);
+        return new MessageServerEntry(addr, name, parsedId, symKey);
     }
 }
@@ -2,6 +2,7 @@ package kerbefake.auth_server.entities.requests.get_sym_key;
 
 import kerbefake.common.entities.MessageCode;
 import kerbefake.common.entities.MessageFactory;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.ServerMessageHeader;
 import kerbefake.common.errors.InvalidMessageException;
 
@@ -37,11 +38,15 @@ public class CreateSymmetricKeyRequestFactory extends MessageFactory<GetSymmetri
             if (serverId == null || serverId.isEmpty()) {
                 throw new InvalidMessageException("Missing server ID from request.");
             }
+            PrincipalId parsedServerId = PrincipalId.fromHex(serverId);
+            if (parsedServerId == null) {
+                throw new InvalidMessageException("Server ID is not a hex string.");
+            }
             if (!assertNonZeroedByteArrayOfLengthN(nonce, NONCE_SIZE)) {
                 throw new InvalidMessageException("Missing nonce from request or is all 0.");
             }
             ServerMessageHeader header = new ServerMessageHeader(clientId, SERVER_VERSION, MessageCode.REQUEST_SYMMETRIC_KEY, payloadSize);
-            return new GetSymmetricKeyRequest(header, new GetSymmetricKeyRequestBody(serverId, nonce));
+            return new GetSymmetricKeyRequest(header, new GetSymmetricKeyRequestBody(parsedServerId, nonce));
         } finally {
             setNonce(null).setServerId(null).setClientId(null);
         }
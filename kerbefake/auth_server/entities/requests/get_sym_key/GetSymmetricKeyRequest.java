@@ -3,9 +3,8 @@ package kerbefake.auth_server.entities.requests.get_sym_key;
 import kerbefake.auth_server.KnownPeers;
 import kerbefake.auth_server.entities.ClientEntry;
 import kerbefake.auth_server.entities.MessageServerEntry;
-import kerbefake.auth_server.entities.responses.FailureResponse;
-import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponse;
 import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponseBody;
+import kerbefake.common.PreparedKeyCache;
 import kerbefake.common.entities.*;
 import kerbefake.common.errors.InvalidMessageException;
 
@@ -13,6 +12,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import static kerbefake.auth_server.AuthServer.authLogger;
+import static kerbefake.common.Constants.TICKET_LIFETIME_MS;
+import static kerbefake.common.PreparedKeyCache.KeyType.CLIENT;
+import static kerbefake.common.PreparedKeyCache.KeyType.SERVER;
 import static kerbefake.common.CryptoUtils.getIv;
 import static kerbefake.common.CryptoUtils.getSecureRandomBytes;
 
@@ -23,26 +25,26 @@ public class GetSymmetricKeyRequest extends ServerMessage implements ServerReque
 
     @Override
     public ServerMessage execute() throws InvalidMessageException {
-        FailureResponse failure = new FailureResponse(this.header.toResponseHeader(MessageCode.UNKNOWN_FAILURE, 0));
         KnownPeers peers = KnownPeers.getInstance();
         ClientEntry client;
         MessageServerEntry server;
-        if ((client = peers.getClient(header.getClientID())) == null) {
+        if ((client = peers.getClient(header.getClientId())) == null) {
             authLogger.error("Client ID is not known!");
-            return failure;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
+        peers.markSeen(client);
 
         if (this.header == null || this.body == null) {
             authLogger.error("No header or body detected for get symmetric key request.");
-            return failure;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
 
         GetSymmetricKeyRequestBody body = (GetSymmetricKeyRequestBody) this.body;
 
-        String serverId = body.getServerId();
+        PrincipalId serverId = body.getServerId();
         if ((server = peers.getSever(serverId)) == null) {
             authLogger.error("Server ID is not known!");
-            return failure;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
 
 
@@ -52,29 +54,39 @@ public class GetSymmetricKeyRequest extends ServerMessage implements ServerReque
         ;
 
         long time = System.currentTimeMillis();
-        long expTime = time + 10 * 60 * 1000; // 10 minutes
+        long expTime = time + TICKET_LIFETIME_MS;
          authLogger.debug("Exp time: %d", expTime);
 
         byte[] creationTimeArr = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(time).array();
         byte[] expTimeArr = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(expTime).array();
 
         EncryptedKey key = new EncryptedKey().setAesKey(aesKey).setNonce(body.getNonce()).setIv(clientIv);
-        Ticket ticket = new Ticket().setTicketIv(ticketIv).setClientId(header.getClientID()).setServerId(serverId).setCreationTime(creationTimeArr).setAesKey(aesKey).setExpTime(expTimeArr);
-
-        if (!key.encrypt(client.getPasswordHash())) {
-            authLogger.error("Failed to encrypt EncryptedKey field for response");
-            return failure;
+        Ticket ticket = new Ticket().setTicketIv(ticketIv).setClientId(header.getClientId()).setServerId(serverId).setCreationTime(creationTimeArr).setAesKey(aesKey).setExpTime(expTimeArr);
+
+        PreparedKeyCache.PreparedKey clientKey = PreparedKeyCache.getInstance(CLIENT).acquire(client.getId(), client.getPasswordHash());
+        try {
+            if (!key.encrypt(clientKey)) {
+                authLogger.error("Failed to encrypt EncryptedKey field for response");
+                return respond(MessageCode.UNKNOWN_FAILURE);
+            }
+        } finally {
+            clientKey.release();
         }
 
-        if (!ticket.encrypt(server.getSymmetricKey())) {
-            authLogger.error("Failed to encrypt Ticket field for response");
-            return failure;
+        PreparedKeyCache.PreparedKey serverKey = PreparedKeyCache.getInstance(SERVER).acquire(serverId, server.getSymmetricKey());
+        try {
+            if (!ticket.encrypt(serverKey)) {
+                authLogger.error("Failed to encrypt Ticket field for response");
+                return respond(MessageCode.UNKNOWN_FAILURE);
+            }
+        } finally {
+            serverKey.release();
         }
 
-        GetSymmetricKeyResponseBody respBody = new GetSymmetricKeyResponseBody(header.getClientID(), key, ticket);
+        GetSymmetricKeyResponseBody respBody = new GetSymmetricKeyResponseBody(header.getClientId(), key, ticket);
 
         // First is client id (16 bytes) then enc key, and ticket with their respective sizes
-        return new GetSymmetricKeyResponse(header.toResponseHeader(MessageCode.REQUEST_SYMMETRIC_KEY_SUCCESS, respBody.toLEByteArray().length), respBody);
+        return respond(MessageCode.REQUEST_SYMMETRIC_KEY_SUCCESS, respBody);
 
     }
 }
@@ -2,11 +2,10 @@ package kerbefake.auth_server.entities.requests.register_client;
 
 import kerbefake.auth_server.KnownPeers;
 import kerbefake.auth_server.entities.ClientEntry;
-import kerbefake.auth_server.entities.responses.FailureResponse;
-import kerbefake.auth_server.entities.responses.register_client.RegisterClientResponse;
 import kerbefake.auth_server.entities.responses.register_client.RegisterClientResponseBody;
 import kerbefake.auth_server.errors.InvalidClientDataException;
 import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.ServerMessage;
 import kerbefake.common.entities.ServerMessageHeader;
 import kerbefake.common.entities.ServerRequest;
@@ -14,9 +13,9 @@ import kerbefake.common.entities.ServerRequest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.Date;
-import java.util.UUID;
 
 import static kerbefake.auth_server.AuthServer.authLogger;
+import static kerbefake.common.CryptoUtils.generateClientId;
 import static kerbefake.common.CryptoUtils.performSha256;
 
 public class RegisterClientRequest extends ServerMessage implements ServerRequest {
@@ -31,9 +30,6 @@ public class RegisterClientRequest extends ServerMessage implements ServerReques
         RegisterClientRequestBody body = (RegisterClientRequestBody) this.body;
         KnownPeers clients = KnownPeers.getInstance();
 
-        FailureResponse failedResponse = new FailureResponse(this.header.toResponseHeader(MessageCode.REGISTER_CLIENT_FAILED, 0));
-
-
         authLogger.info("Trying to execute register client request.");
         byte[] passwordHash;
         try {
@@ -41,9 +37,13 @@ public class RegisterClientRequest extends ServerMessage implements ServerReques
         } catch (NoSuchAlgorithmException e) {
             authLogger.error(e);
             authLogger.error("No SHA-256 digest on this machine, can't proceed.");
-            return failedResponse;
+            return respond(MessageCode.REGISTER_CLIENT_FAILED);
+        }
+        if (!ClientEntry.isNameSizeValid(body.getName())) {
+            authLogger.error("Client name is longer than %d bytes.", ClientEntry.MAX_NAME_SIZE);
+            return respond(MessageCode.REGISTER_CLIENT_FAILED);
         }
-        String id = UUID.randomUUID().toString().replace("-", "");
+        PrincipalId id = generateClientId();
         boolean addedClient;
         try {
             addedClient = clients.tryAddClientEntry(new ClientEntry(
@@ -55,14 +55,14 @@ public class RegisterClientRequest extends ServerMessage implements ServerReques
         } catch (InvalidClientDataException e) {
             authLogger.error(e);
             authLogger.error("Failed to create new client entry due to: %s", e);
-            return failedResponse;
+            return respond(MessageCode.REGISTER_CLIENT_FAILED);
         }
 
         if (!addedClient) {
             authLogger.error("Client addition failed.");
-            return failedResponse;
+            return respond(MessageCode.REGISTER_CLIENT_FAILED);
         }
 
-        return new RegisterClientResponse(this.header.toResponseHeader(MessageCode.REGISTER_CLIENT_SUCCESS, 16), new RegisterClientResponseBody(id));
+        return respond(MessageCode.REGISTER_CLIENT_SUCCESS, new RegisterClientResponseBody(id));
     }
 }
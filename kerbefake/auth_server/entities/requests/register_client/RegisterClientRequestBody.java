@@ -1,10 +1,11 @@
 package kerbefake.auth_server.entities.requests.register_client;
 
-import kerbefake.common.Utils;
 import kerbefake.common.errors.InvalidMessageCodeException;
 import kerbefake.common.entities.ServerMessageBody;
 
-import static kerbefake.common.Utils.getNullTerminatedStringFromByteArray;
+import java.nio.ByteBuffer;
+
+import static kerbefake.common.Utils.getNullTerminatedCharArray;
 
 public class RegisterClientRequestBody extends ServerMessageBody {
 
@@ -14,6 +15,11 @@ public class RegisterClientRequestBody extends ServerMessageBody {
 
     private char[] password;
 
+    /**
+     * Whether the fields were parsed from a request, in which case they don't hold their null terminators.
+     */
+    private boolean parsed = false;
+
     public RegisterClientRequestBody() {
     }
 
@@ -51,22 +57,26 @@ public class RegisterClientRequestBody extends ServerMessageBody {
     }
 
     @Override
-    public ServerMessageBody parse(byte[] bytes) throws InvalidMessageCodeException {
-        if (bytes == null || bytes.length > 255 * 2) {
+    public ServerMessageBody parse(ByteBuffer body) throws InvalidMessageCodeException {
+        if (body == null || body.remaining() > 255 * 2) {
             throw new InvalidMessageCodeException("Body Size");
         }
 
-        String name = getNullTerminatedStringFromByteArray(bytes);
+        // The fields are read straight from the frame, the raw body is only built again in case the body is encoded.
+        this.rawBody = null;
+        this.parsed = true;
+        char[] nameChars = getNullTerminatedCharArray(body);
+        String name = nameChars == null ? null : new String(nameChars);
         if (name == null || name.isEmpty()) {
             throw new InvalidMessageCodeException("Register Client Name");
         }
-        char[] password = Utils.getNullTerminatedCharArrayFromByteArray(bytes, name.length() + 1);
+        char[] password = getNullTerminatedCharArray(body);
 
         if (password == null || password.length == 0) {
             throw new InvalidMessageCodeException("Register Client Password");
         }
 
-        return new RegisterClientRequestBody().setRawBody(bytes).setName(name).setPassword(password);
+        return this.setName(name).setPassword(password);
     }
 
     @Override
@@ -75,16 +85,28 @@ public class RegisterClientRequestBody extends ServerMessageBody {
             return this.rawBody;
         }
 
-        this.rawBody = new byte[this.name.length() + this.password.length];
         byte[] name = this.name.getBytes();
         byte[] pass = new byte[password.length];
         for (int i = 0; i < pass.length; i++) {
             pass[i] = (byte) password[i];
         }
 
+        // Parsed fields are written back with the null terminators they were read with.
+        int terminator = parsed ? 1 : 0;
+        this.rawBody = new byte[name.length + pass.length + 2 * terminator];
         System.arraycopy(name, 0, this.rawBody, 0, name.length);
-        System.arraycopy(pass, 0, this.rawBody, name.length, pass.length);
+        System.arraycopy(pass, 0, this.rawBody, name.length + terminator, pass.length);
 
         return this.rawBody;
     }
+
+    @Override
+    public int getEncodedSize() {
+        return this.toLEByteArray().length;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
+        out.put(this.toLEByteArray());
+    }
 }
@@ -2,12 +2,11 @@ package kerbefake.auth_server.entities.requests.register_client;
 
 import kerbefake.common.entities.MessageCode;
 import kerbefake.common.entities.MessageFactory;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.ServerMessageHeader;
 import kerbefake.common.errors.InvalidMessageException;
 
-import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
 import static kerbefake.common.Constants.SERVER_VERSION;
-import static kerbefake.common.Utils.bytesToHexString;
 
 /**
  * A class used to create {@link RegisterClientRequest}s
@@ -74,8 +73,12 @@ public final class RegisterClientRequestFactory extends MessageFactory<RegisterC
     @Override
     public RegisterClientRequest build() throws InvalidMessageException {
         if (clientId == null)
-            clientId = bytesToHexString(new byte[ID_HEX_LENGTH_CHARS / 2]);
-        return internalBuild();
+            clientId = new PrincipalId(0, 0);
+        try {
+            return internalBuild();
+        } finally {
+            payloadSize = 0;
+        }
     }
 
     private static RegisterClientRequestFactory instance;
@@ -86,6 +89,6 @@ public final class RegisterClientRequestFactory extends MessageFactory<RegisterC
 
     private RegisterClientRequestFactory() {
         instance = this;
-        clientId = bytesToHexString(new byte[ID_HEX_LENGTH_CHARS / 2]);
+        clientId = new PrincipalId(0, 0);
     }
 }
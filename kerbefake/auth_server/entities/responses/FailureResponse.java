@@ -18,6 +18,10 @@ public class FailureResponse extends ServerMessage {
         return new FailureResponse(new ServerMessageHeader(SERVER_VERSION, MessageCode.UNKNOWN_FAILURE, 0));
     }
 
+    public static FailureResponse createUnknownSessionResponse() {
+        return new FailureResponse(new ServerMessageHeader(SERVER_VERSION, MessageCode.UNKNOWN_SESSION, 0));
+    }
+
     @Override
     public byte[] toLEByteArray() {
         try {
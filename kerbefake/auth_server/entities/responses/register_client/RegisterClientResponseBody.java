@@ -1,46 +1,45 @@
 package kerbefake.auth_server.entities.responses.register_client;
 
 import kerbefake.auth_server.errors.InvalidResponseDataException;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.ServerMessageBody;
 import kerbefake.common.errors.InvalidMessageException;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
-import static kerbefake.common.Utils.*;
 
 public class RegisterClientResponseBody extends ServerMessageBody {
 
-    private String id;
+    private PrincipalId id;
 
     public RegisterClientResponseBody() {
     }
 
-    public RegisterClientResponseBody(String id) {
+    public RegisterClientResponseBody(PrincipalId id) {
         this.id = id;
     }
 
-    public String getId() {
+    public PrincipalId getId() {
         return id;
     }
 
     @Override
-    public ServerMessageBody parse(byte[] bodyBytes) throws Exception {
-        if (bodyBytes.length != 16) {
+    public ServerMessageBody parse(ByteBuffer body) throws Exception {
+        if (body.remaining() != 16) {
             throw new InvalidResponseDataException("Id");
         }
 
-        this.id = bytesToHexString(ByteBuffer.wrap(bodyBytes).order(ByteOrder.LITTLE_ENDIAN).array());
+        this.id = PrincipalId.read(body);
         return this;
     }
 
     @Override
-    public byte[] toLEByteArray() throws InvalidMessageException {
-        byte[] clientId = hexStringToByteArray(this.id);
-        if (clientId == null) {
-            throw new InvalidMessageException("Client ID is not a hex string.");
-        }
-        return byteArrayToLEByteBuffer(clientId).array();
+    public int getEncodedSize() {
+        return PrincipalId.SIZE;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        this.id.writeTo(out);
     }
 
     @Override
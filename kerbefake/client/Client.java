@@ -5,8 +5,6 @@ import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyRespo
 import kerbefake.client.errors.InvalidClientConfigException;
 import kerbefake.client.operations.GetSymKeyOperation;
 import kerbefake.client.operations.RegisterOperation;
-import kerbefake.client.operations.SendMessageOperation;
-import kerbefake.client.operations.SubmitTicketOperation;
 import kerbefake.common.Constants;
 import kerbefake.common.Logger;
 import kerbefake.common.entities.EmptyResponse;
@@ -21,6 +19,7 @@ import static kerbefake.client.Client.ClientState.*;
 import static kerbefake.client.UserInputOutputHandler.*;
 import static kerbefake.common.Constants.ClientConstants.*;
 import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
+import static kerbefake.common.Constants.TICKET_LIFETIME_MS;
 import static kerbefake.common.Logger.LoggerType;
 
 public class Client implements Runnable {
@@ -28,6 +27,7 @@ public class Client implements Runnable {
     private ClientConfig clientConfig;
     private NetworkManager networkManager;
     private SessionManager sessionManager;
+    private MessageSender messageSender;
     private ClientState clientState;
 
     public static final Logger clientLogger = Logger.getLogger(LoggerType.CLIENT_LOGGER);
@@ -56,6 +56,7 @@ public class Client implements Runnable {
         }
         networkManager = NetworkManager.getInstance();
         sessionManager = SessionManager.getInstance();
+        sessionManager.setRenewer(this::renewSession);
     }
 
     private int getOperationToPerform() {
@@ -137,31 +138,78 @@ public class Client implements Runnable {
         }
         String serverId = getServerId();
 
+        Session session = requestSession(authServerConn, serverId);
+        if (session == null) {
+            return false;
+        }
+
+        ClientConnection msgServerConn = networkManager.openConnectionToUserProvidedServer(NetworkManager.ServerType.MESSAGE, Constants.ClientConstants.DEFAULT_MESSAGE_SERVER_IP, Constants.ClientConstants.DEFAULT_MESSAGE_SERVER_PORT);
+        if (msgServerConn == null) {
+            clientLogger.error("Failed to open connection to message server, please check you provided the correct IP and port.");
+            return false;
+        }
+        if (!getMessageSender().submitTicket(msgServerConn, session)) {
+            return false;
+        }
+
+        if (!sessionManager.createNewSession(session)) {
+            clientLogger.error("Failed to store session key");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets a ticket and a session key for a message server from the auth server.
+     *
+     * @param authServerConn - the connection to the auth server
+     * @param serverId       - the message server to get the ticket for
+     * @return the session, null in case of a failure.
+     */
+    private Session requestSession(ClientConnection authServerConn, String serverId) {
+        // The expiration time is encrypted in the ticket, counting from before the request we never assume the ticket lives
+        // longer than it does.
+        long requestedAt = System.currentTimeMillis();
         GetSymKeyOperation operation = new GetSymKeyOperation(authServerConn, serverId, this.clientConfig.getClientIdHex());
         GetSymmetricKeyResponse response = operation.perform();
         if (response == null) { // If we get null from the operation it failed and printed an error before returning value.
-            return false;
+            return null;
         }
         EncryptedKey encKey = ((GetSymmetricKeyResponseBody) response.getBody()).getEncKey();
         if (!encKey.decrypt(this.clientConfig.getHashedPassword())) {
             clientLogger.error("Failed to decrypt encrypted key received from server.");
-            return false;
+            return null;
         }
         Ticket ticket = ((GetSymmetricKeyResponseBody) response.getBody()).getTicket();
+        return new Session(encKey, ticket, serverId, requestedAt + TICKET_LIFETIME_MS);
+    }
 
-        if (!sessionManager.createNewSession(serverId, encKey, ticket)) {
-            clientLogger.error("Failed to store session key");
-            return false;
+    /**
+     * Renews a session before it expires, called by the {@link SessionManager} on its renewal thread. The new ticket is
+     * requested from the auth server over the connection the user opened before, which is opened again in case it was
+     * closed, so the user isn't asked for anything. The ticket is submitted by the {@link MessageSender} with the next
+     * message, the message server keeps the previous session until then.
+     *
+     * @param expiring - the session to renew
+     * @return the new session, null in case of a failure.
+     */
+    private Session renewSession(Session expiring) {
+        ClientConnection authServerConn = networkManager.getConnectionForServer(NetworkManager.ServerType.AUTH);
+        if (authServerConn == null) {
+            clientLogger.error("Failed to connect to the auth server to renew the session.");
+            return null;
         }
+        return requestSession(authServerConn, expiring.getServerId());
+    }
 
-        Session session = sessionManager.getSession(serverId);
-
-        ClientConnection msgServerConn = networkManager.openConnectionToUserProvidedServer(NetworkManager.ServerType.MESSAGE, Constants.ClientConstants.DEFAULT_MESSAGE_SERVER_IP, Constants.ClientConstants.DEFAULT_MESSAGE_SERVER_PORT);
-        if (msgServerConn == null) {
-            clientLogger.error("Failed to open connection to message server, please check you provided the correct IP and port.");
-            return false;
+    /**
+     * The client ID is only known once the client is registered, so the sender is created on first use.
+     */
+    private MessageSender getMessageSender() {
+        if (messageSender == null) {
+            messageSender = new MessageSender(sessionManager, this.clientConfig.getClientIdHex());
         }
-        return new SubmitTicketOperation(msgServerConn, session, this.clientConfig.getClientIdHex()).perform();
+        return messageSender;
     }
 
 
@@ -180,11 +228,14 @@ public class Client implements Runnable {
             return false;
         }
         String serverId = getServerId();
-        Session session = sessionManager.getSession(serverId);
-
-        boolean sendMessageSuccessful = new SendMessageOperation(msgServerConn, session, this.clientConfig.getClientIdHex()).perform();
+        if (sessionManager.getSession(serverId) == null) {
+            clientLogger.error("No live session with the message server, please connect to it again.");
+            clientState = AFTER_REGISTER;
+            return false;
+        }
 
-        if (!sendMessageSuccessful) {
+        String message = promptLongString("Please provide the message to send to the server");
+        if (!getMessageSender().send(msgServerConn, serverId, message)) {
             clientLogger.error("Failed to send message to the message server");
             return false;
         }
@@ -208,6 +259,7 @@ public class Client implements Runnable {
             // then get a ticket, then submit the ticket and send a message to the message server (combined into one as per protocol spec).
             if (operation == 2) {
                 networkManager.terminate();
+                sessionManager.terminate();
                 clientLogger.info("Exiting.");
                 break;
             }
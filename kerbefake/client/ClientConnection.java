@@ -4,25 +4,76 @@ import kerbefake.common.MessageStream;
 import kerbefake.common.entities.ServerMessage;
 import kerbefake.common.errors.InvalidMessageException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import static kerbefake.client.Client.clientLogger;
+import static kerbefake.common.Constants.ClientConstants.DEFAULT_PIPELINE_WINDOW;
 
 /**
  * A class that represents a single connection that the client has/
  * We assume that the connection is to either a kerberos server or to some message server.
  * This class is responsible for sending and receiving data to and from the connected server.
+ * <p>
+ * Requests are pipelined, up to a window of requests can be sent before their responses arrive. The server handles the
+ * requests of a connection in order, so a reader thread matches every response to the oldest request still waiting.
  */
 public class ClientConnection {
     private final String serverAddress;
     private final int serverPort;
+
+    /**
+     * How many requests can be in flight at once, sending more blocks until a response arrives.
+     */
+    private final Semaphore window;
+
+    private final int windowSize;
+
+    /**
+     * The requests waiting for a response, in the order they were sent.
+     */
+    private final Queue<CompletableFuture<ServerMessage>> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Taken while sending so requests are written in the same order they are added to {@link #pending}.
+     */
+    private final Object sendLock = new Object();
+
     private Socket socket;
     private MessageStream messageStream;
+    private Thread reader;
+    private volatile boolean closed = false;
+
+    /**
+     * The session whose ticket was submitted over this connection and accepted by the server, null if there is none.
+     */
+    private volatile Session acceptedSession;
 
     public ClientConnection(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, DEFAULT_PIPELINE_WINDOW);
+    }
+
+    /**
+     * Creates a new connection, the connection is only opened with {@link #open()}.
+     *
+     * @param serverAddress - the address of the server
+     * @param serverPort    - the port of the server
+     * @param windowSize    - how many requests may be in flight at once
+     */
+    public ClientConnection(String serverAddress, int serverPort, int windowSize) {
+        if (windowSize <= 0) {
+            throw new RuntimeException("Window size must be positive.");
+        }
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize, true);
     }
 
     /**
@@ -33,7 +84,10 @@ public class ClientConnection {
     public boolean open() {
         try {
             socket = new Socket(serverAddress, serverPort);
-            messageStream = new MessageStream(socket, false, Thread.currentThread(), clientLogger);
+            reader = new Thread(this::readResponses, String.format("ClientConnection-%s:%d", serverAddress, serverPort));
+            reader.setDaemon(true);
+            messageStream = new MessageStream(socket, false, reader, clientLogger);
+            reader.start();
             return true;
         } catch (IOException e) {
             clientLogger.error(e);
@@ -48,7 +102,7 @@ public class ClientConnection {
      * @return - true if the underlying socket is still open, false otherwise.
      */
     public boolean isOpen() {
-        return socket.isConnected();
+        return socket.isConnected() && !closed;
     }
 
     /**
@@ -60,17 +114,140 @@ public class ClientConnection {
         return String.format("%s:%d", socket.getInetAddress().getHostAddress(), socket.getPort());
     }
 
+    /**
+     * Marks the ticket of a session as accepted by the server over this connection, so messages of the session can be sent
+     * without submitting the ticket first.
+     *
+     * @param session - the session whose ticket was accepted
+     */
+    public void setAcceptedSession(Session session) {
+        this.acceptedSession = session;
+    }
+
+    /**
+     * @param session - the session to check
+     * @return true if the ticket of the session was accepted by the server over this connection, false otherwise.
+     */
+    public boolean hasAccepted(Session session) {
+        return session != null && acceptedSession == session;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return how many requests were sent and are still waiting for their response.
+     */
+    public int getInFlight() {
+        return windowSize - window.availablePermits();
+    }
+
+    /**
+     * Sends a message and waits for its response.
+     *
+     * @param message - the message to send
+     * @return the response from the server, null if the response could not be decoded.
+     */
     public ServerMessage send(ServerMessage message) throws InvalidMessageException, IOException, InterruptedException {
         clientLogger.info("Sending message to server.");
-        messageStream.sendMessage(message);
+        CompletableFuture<ServerMessage> response = sendAsync(message);
         clientLogger.info("Waiting for server response.");
-        return messageStream.readNextMessage();
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InvalidMessageException) {
+                throw (InvalidMessageException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Sends a message without waiting for its response, in case the window is full this blocks until a response arrives.
+     *
+     * @param message - the message to send
+     * @return a future completed with the response from the server (null if it could not be decoded), or completed
+     * exceptionally in case the connection failed before the response arrived.
+     * @throws InterruptedException - in case we were interrupted while waiting for room in the window.
+     */
+    public CompletableFuture<ServerMessage> sendAsync(ServerMessage message) throws InterruptedException {
+        CompletableFuture<ServerMessage> response = new CompletableFuture<>();
+        window.acquire();
+        synchronized (sendLock) {
+            if (closed) {
+                window.release();
+                response.completeExceptionally(new IOException(String.format("Connection to server %s:%d is closed.", serverAddress, serverPort)));
+                return response;
+            }
+            pending.add(response);
+            if (closed) {
+                // The reader failed after we checked, make sure our request isn't left waiting.
+                failPending(new IOException(String.format("Connection to server %s:%d is closed.", serverAddress, serverPort)));
+            } else if (!messageStream.sendMessage(message)) {
+                // We can't tell how much of the request was written, so the stream can no longer be trusted.
+                failPending(new IOException("Failed to send message to server."));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Runs on the reader thread, completes the pending requests in order as their responses arrive.
+     */
+    private void readResponses() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                ServerMessage response = messageStream.readNextMessage();
+                CompletableFuture<ServerMessage> request = pending.poll();
+                if (request == null) {
+                    clientLogger.error("Received a response from %s:%d without a pending request, dropping it.", serverAddress, serverPort);
+                    continue;
+                }
+                window.release();
+                request.complete(response);
+            }
+            failPending(new IOException("Connection closed."));
+        } catch (InterruptedException e) {
+            failPending(new IOException("Connection closed."));
+        } catch (EOFException e) {
+            clientLogger.debug("Server %s:%d closed the connection.", serverAddress, serverPort);
+            failPending(e);
+        } catch (IOException | InvalidMessageException e) {
+            if (!closed) {
+                clientLogger.error("Failed to read a response from %s:%d due to: %s", serverAddress, serverPort, e.getMessage());
+            }
+            failPending(e);
+        }
+    }
+
+    /**
+     * Marks the connection as closed and fails every request that is still waiting for a response.
+     *
+     * @param cause - why the requests failed
+     */
+    private void failPending(Exception cause) {
+        closed = true;
+        CompletableFuture<ServerMessage> request;
+        while ((request = pending.poll()) != null) {
+            window.release();
+            request.completeExceptionally(cause);
+        }
     }
 
     public void close() {
         try {
+            closed = true;
+            if (reader != null) {
+                reader.interrupt();
+            }
             messageStream.close();
             socket.close();
+            failPending(new IOException("Connection closed."));
             clientLogger.info("Connection to server %s:%d closed.", serverAddress, serverPort);
         } catch (IOException e) {
             clientLogger.error(e);
@@ -0,0 +1,92 @@
+package kerbefake.client;
+
+import kerbefake.client.operations.SendMessageOperation;
+import kerbefake.client.operations.SubmitTicketOperation;
+
+import static kerbefake.client.Client.clientLogger;
+import static kerbefake.common.Constants.ClientConstants.SEND_TICKET_WITH_MESSAGES_PROPERTY;
+import static kerbefake.common.Constants.ResponseCodes.UNKNOWN_SESSION_CODE;
+
+/**
+ * Sends messages of a client to a message server using its current session from the {@link SessionManager}.
+ * <p>
+ * A renewed session only replaces the previous one on the client, its ticket is submitted here right before the first
+ * message that uses it, over the connection the message is sent on. The server keeps accepting messages with the previous
+ * key until then, so a message is never encrypted with a key the server no longer holds.
+ */
+public final class MessageSender {
+
+    private final SessionManager sessionManager;
+
+    private final String clientId;
+
+    private final boolean sendTicket;
+
+    /**
+     * @param sessionManager - where the sessions of the client are kept
+     * @param clientId       - the ID of the client, as a hex string
+     */
+    public MessageSender(SessionManager sessionManager, String clientId) {
+        this.sessionManager = sessionManager;
+        this.clientId = clientId;
+        this.sendTicket = Boolean.getBoolean(SEND_TICKET_WITH_MESSAGES_PROPERTY);
+    }
+
+    /**
+     * Submits the ticket of a session to the message server and marks it as accepted by the connection.
+     *
+     * @param msgServerConn - the connection to the message server
+     * @param session       - the session whose ticket to submit
+     * @return true if the server accepted the ticket, false otherwise.
+     */
+    public synchronized boolean submitTicket(ClientConnection msgServerConn, Session session) {
+        if (!Boolean.TRUE.equals(new SubmitTicketOperation(msgServerConn, session, clientId).perform())) {
+            return false;
+        }
+        msgServerConn.setAcceptedSession(session);
+        return true;
+    }
+
+    /**
+     * Sends a message with the current session of a server. Messages are sent one at a time so the ticket submitted for
+     * a message is the one its key belongs to.
+     *
+     * @param msgServerConn - the connection to the message server
+     * @param serverId      - the ID of the message server, as a hex string
+     * @param message       - the message to send
+     * @return true if the server accepted the message, false otherwise.
+     */
+    public synchronized boolean send(ClientConnection msgServerConn, String serverId, String message) {
+        Session session = sessionManager.getSession(serverId);
+        if (session == null) {
+            clientLogger.error("No live session with the message server, please connect to it again.");
+            return false;
+        }
+
+        // The ticket is only submitted in case this connection didn't accept it yet (e.g. the connection was opened again
+        // or the session was renewed), otherwise the message is sent directly and the ticket is submitted again only if
+        // the server lost the session.
+        if (!sendTicket && !msgServerConn.hasAccepted(session) && !submitTicket(msgServerConn, session)) {
+            clientLogger.error("Failed to submit the ticket to the message server");
+            return false;
+        }
+
+        SendMessageOperation operation = new SendMessageOperation(msgServerConn, session, clientId, message, sendTicket);
+        if (Boolean.TRUE.equals(operation.perform())) {
+            return true;
+        }
+        if (operation.getFailureCode() != UNKNOWN_SESSION_CODE) {
+            return false;
+        }
+
+        // The session may have been renewed while the message was sent, submit the current one rather than the one we used.
+        session = sessionManager.getSession(serverId);
+        if (session == null) {
+            clientLogger.error("Message server lost the session and it expired, please connect to it again.");
+            return false;
+        }
+        clientLogger.info("Message server lost the session, submitting the ticket again.");
+        return submitTicket(msgServerConn, session)
+                && Boolean.TRUE.equals(new SendMessageOperation(msgServerConn, session, clientId, message, sendTicket).perform());
+    }
+}
@@ -11,6 +11,9 @@ import static kerbefake.client.UserInputOutputHandler.getServerAddress;
 /**
  * This class is responsible for handling all the connections and sessions that a client creates.
  * This acts as sort of a cache
+ * <p>
+ * Connections are also used by the session renewal thread (see {@link SessionManager}), so they are opened and looked up
+ * while holding the manager's lock.
  */
 public final class NetworkManager {
 
@@ -69,7 +72,7 @@ public final class NetworkManager {
      * @param timeTillClose - how long in seconds until we close the connection.
      * @return - a {@link ClientConnection} for the connection to the server.
      */
-    public ClientConnection openConnection(ServerType type, String ip, int port, int timeTillClose) {
+    public synchronized ClientConnection openConnection(ServerType type, String ip, int port, int timeTillClose) {
         // I don't like to put so many if statements nested, but it doesn't make sense to pull this to a separate method.
         if (connections.containsKey(type)) {
             ConnectionDetails existingConnectionDetails = connections.get(type);
@@ -118,7 +121,7 @@ public final class NetworkManager {
      * @param serverType - the server type to check for
      * @return a {@link ClientConnection} for the server type if such exists, null otherwise.
      */
-    public ClientConnection getConnectionForServer(ServerType serverType) {
+    public synchronized ClientConnection getConnectionForServer(ServerType serverType) {
         ConnectionDetails connDetails = connections.get(serverType);
         if (connDetails == null) {
             return null;
@@ -2,62 +2,75 @@ package kerbefake.client;
 
 import kerbefake.common.entities.Authenticator;
 import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.Ticket;
 import kerbefake.common.errors.InvalidMessageException;
 
-import java.security.SecureRandom;
-
-import static kerbefake.common.Constants.IV_SIZE;
+import static kerbefake.common.CryptoUtils.getIv;
 
 /**
  * A class that represents a single session with a given server.
  * This holds the encrypted key and the ticket to send to the server.
  * This also allows for the creation of any needed objects to communicate with the server.
+ * <p>
+ * Immutable, a renewed session is a new object which replaces this one in the {@link SessionManager}.
  */
 public final class Session {
 
-    private EncryptedKey key;
+    private final EncryptedKey key;
+
+    private final Ticket ticket;
 
-    private Ticket ticket;
+    private final String serverId;
 
-    private String serverId;
+    private final long expiresAt;
 
-    public Session(EncryptedKey key, Ticket ticket, String serverId) {
+    /**
+     * @param key       - the decrypted session key
+     * @param ticket    - the ticket to send to the server
+     * @param serverId  - the server the ticket was issued for
+     * @param expiresAt - when the ticket expires in epoch millis by the clock of the client, the ticket itself holds its
+     *                  expiration time encrypted so the client counts from the time it requested the ticket
+     */
+    public Session(EncryptedKey key, Ticket ticket, String serverId, long expiresAt) {
         this.key = key;
         this.ticket = ticket;
         this.serverId = serverId;
+        this.expiresAt = expiresAt;
     }
 
     public EncryptedKey getKey() {
         return key;
     }
 
-    public void setKey(EncryptedKey key) {
-        this.key = key;
-    }
-
     public Ticket getTicket() {
         return ticket;
     }
 
-    public void setTicket(Ticket ticket) {
-        this.ticket = ticket;
-    }
-
     public String getServerId() {
         return serverId;
     }
 
-    public void setServerId(String serverId) {
-        this.serverId = serverId;
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return true if the ticket of this session expired.
+     */
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
     }
 
     public Authenticator createAuthenticator(String clientId) throws InvalidMessageException {
-        SecureRandom srand = new SecureRandom();
-        byte[] iv = new byte[IV_SIZE];
-        srand.nextBytes(iv);
+        byte[] iv = getIv();
         long creationTime = System.currentTimeMillis();
-        return new Authenticator(iv, clientId, serverId, creationTime);
+        PrincipalId parsedClientId = PrincipalId.fromHex(clientId);
+        PrincipalId parsedServerId = PrincipalId.fromHex(serverId);
+        if (parsedClientId == null || parsedServerId == null) {
+            throw new InvalidMessageException("Client or server ID is not a hex string.");
+        }
+        return new Authenticator(iv, parsedClientId, parsedServerId, creationTime);
     }
 
     public byte[] getSessionKey() {
@@ -1,20 +1,34 @@
 package kerbefake.client;
 
-import kerbefake.common.entities.EncryptedKey;
-import kerbefake.common.entities.Ticket;
+import kerbefake.common.ServerConfig;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static kerbefake.client.Client.clientLogger;
+import static kerbefake.common.Constants.ClientConstants.SESSION_RENEW_BEFORE_MS;
+import static kerbefake.common.Constants.ClientConstants.SESSION_RENEW_RETRY_MS;
 
 /**
  * A class that manages sessions that the client creates.
  * Since we didn't add the bonus, there is only a single session that needs to be managed thus a single session key.
+ * <p>
+ * Each session is renewed in the background {@link kerbefake.common.Constants.ClientConstants#SESSION_RENEW_BEFORE_MS}
+ * before its ticket expires, using the {@link SessionRenewer} the client provides, and a failed renewal is tried again
+ * every {@link kerbefake.common.Constants.ClientConstants#SESSION_RENEW_RETRY_MS}. The renewed session replaces the
+ * previous one atomically, so {@link #getSession(String)} never waits on the auth server.
  */
 public final class SessionManager {
 
     private final Map<String, Session> serverIdToSessionMapping;
+
+    private final ScheduledExecutorService renewals = Executors.newSingleThreadScheduledExecutor(ServerConfig.daemonThreadFactory("SessionRenewer-"));
+
+    private volatile SessionRenewer renewer;
+
     private static SessionManager instance;
 
     public static SessionManager getInstance() {
@@ -23,24 +37,51 @@ public final class SessionManager {
 
     private SessionManager() {
         instance = this;
-        serverIdToSessionMapping = new HashMap<>();
+        serverIdToSessionMapping = new ConcurrentHashMap<>();
 
     }
 
-    public boolean createNewSession(String serverId, EncryptedKey encKey, Ticket ticket) {
-        Session existingSession = serverIdToSessionMapping.get(serverId);
-        if (existingSession != null) {
-            clientLogger.error("Session already exists with this server, please restart the client to clear it.");
-            return false;
-        }
+    /**
+     * Gets a new session for a server in place of one that is about to expire.
+     */
+    @FunctionalInterface
+    public interface SessionRenewer {
+        /**
+         * Gets a new ticket and session key for the server of a session, called on the renewal thread. The ticket is
+         * submitted to the server when the session is first used, see {@link MessageSender}.
+         *
+         * @param expiring - the session to renew
+         * @return the new session, null in case the renewal failed.
+         */
+        Session renew(Session expiring);
+    }
 
-        if (encKey.isEncrypted()) {
+    /**
+     * Sets how sessions are renewed, sessions aren't renewed until one is set.
+     *
+     * @param renewer - the renewer to use
+     */
+    public void setRenewer(SessionRenewer renewer) {
+        this.renewer = renewer;
+    }
+
+    /**
+     * Adds the session of a server, replacing the previous session with the server, and schedules its renewal.
+     *
+     * @param session - the session to add
+     * @return true if the session was added, false otherwise.
+     */
+    public boolean createNewSession(Session session) {
+        if (session.getKey().isEncrypted()) {
             clientLogger.error("Encrypted key was not decrypted before creating the session.");
             return false;
         }
 
-        Session newSession = new Session(encKey, ticket, serverId);
-        serverIdToSessionMapping.put(serverId, newSession);
+        Session existingSession = serverIdToSessionMapping.put(session.getServerId(), session);
+        if (existingSession != null) {
+            clientLogger.info("Replaced the session with server %s.", session.getServerId());
+        }
+        scheduleRenewal(session, session.getExpiresAt() - SESSION_RENEW_BEFORE_MS - System.currentTimeMillis());
         return true;
     }
 
@@ -48,9 +89,59 @@ public final class SessionManager {
      * Gets the session used for this server Id if one exists.
      *
      * @param serverId - the server ID to look for
-     * @return - the {@link Session} object if such exists, null otherwise
+     * @return - the {@link Session} object if such exists and didn't expire, null otherwise
      */
     public Session getSession(String serverId) {
-        return serverIdToSessionMapping.getOrDefault(serverId, null);
+        Session session = serverIdToSessionMapping.get(serverId);
+        if (session == null) {
+            return null;
+        }
+        if (session.isExpired()) {
+            clientLogger.warn("Session with server %s expired and wasn't renewed yet.", serverId);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Stops renewing sessions.
+     */
+    public void terminate() {
+        renewals.shutdownNow();
+    }
+
+    private void scheduleRenewal(Session session, long delayMs) {
+        renewals.schedule(() -> renew(session), Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Renews a session in case it is still the session of its server, i.e. it wasn't replaced meanwhile.
+     */
+    private void renew(Session expiring) {
+        String serverId = expiring.getServerId();
+        SessionRenewer currentRenewer = renewer;
+        if (serverIdToSessionMapping.get(serverId) != expiring || currentRenewer == null) {
+            return;
+        }
+
+        Session renewed;
+        try {
+            renewed = currentRenewer.renew(expiring);
+        } catch (RuntimeException e) {
+            clientLogger.error(e);
+            renewed = null;
+        }
+        if (renewed == null || renewed.getKey().isEncrypted()) {
+            clientLogger.error("Failed to renew the session with server %s, trying again in %d seconds.", serverId, SESSION_RENEW_RETRY_MS / 1000);
+            scheduleRenewal(expiring, SESSION_RENEW_RETRY_MS);
+            return;
+        }
+
+        if (!serverIdToSessionMapping.replace(serverId, expiring, renewed)) {
+            // The user connected to the server again meanwhile, that session is renewed on its own.
+            return;
+        }
+        clientLogger.debug("Renewed the session with server %s.", serverId);
+        scheduleRenewal(renewed, renewed.getExpiresAt() - SESSION_RENEW_BEFORE_MS - System.currentTimeMillis());
     }
 }
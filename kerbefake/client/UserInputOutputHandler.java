@@ -1,11 +1,12 @@
 package kerbefake.client;
 
+import kerbefake.common.entities.PrincipalId;
+
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
 import static kerbefake.client.Client.clientLogger;
 import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
-import static kerbefake.common.Utils.hexStringToByteArray;
 
 /**
  * A class containing static methods that are responsible for showing text to the user and getting input from the user.
@@ -189,7 +190,7 @@ public final class UserInputOutputHandler {
         String serverId = promptString("Please provide the server ID to connect to;", true);
         do {
             if (serverId.length() == ID_HEX_LENGTH_CHARS) {
-                if (hexStringToByteArray(serverId) == null)
+                if (PrincipalId.fromHex(serverId) == null)
                     clientLogger.error("Provided server ID is not a 32 byte hex string, please try again.");
                 else
                     break;
@@ -11,6 +11,7 @@ import static kerbefake.client.Client.clientLogger;
 import static kerbefake.common.Constants.ClientConstants.REQUEST_FAILED;
 import static kerbefake.common.Constants.ResponseCodes.REGISTER_CLIENT_FAILURE_CODE;
 import static kerbefake.common.Constants.ResponseCodes.UNKNOWN_FAILURE_CODE;
+import static kerbefake.common.Constants.ResponseCodes.UNKNOWN_SESSION_CODE;
 
 /**
  * An abstract class that indicates something is an operation performed by the client.
@@ -29,6 +30,11 @@ public abstract class ClientOperation<REQ extends ServerMessage, RES extends Ser
 
     protected final String clientId;
 
+    /**
+     * The code of the failure response of the last {@link #perform()}, 0 if the server didn't respond with a failure.
+     */
+    private short failureCode = 0;
+
     protected ClientOperation(ClientConnection connection, Class<RES> responseClass, String clientId) {
         this.conn = connection;
         this.responseClass = responseClass;
@@ -57,6 +63,7 @@ public abstract class ClientOperation<REQ extends ServerMessage, RES extends Ser
      * @return the result of the operation or null if failed
      */
     public RET perform() {
+        failureCode = 0;
         try {
             REQ request = generateRequest();
             if (request == null) { // Some failure happened when we generated the request thus we got null.
@@ -77,6 +84,7 @@ public abstract class ClientOperation<REQ extends ServerMessage, RES extends Ser
 
             if (response instanceof FailureResponse) {
                 short responseCode = response.getHeader().getMessageCode().getCode();
+                failureCode = responseCode;
                 switch (responseCode) {
                     case UNKNOWN_FAILURE_CODE:
                         clientLogger.error(REQUEST_FAILED);
@@ -84,6 +92,9 @@ public abstract class ClientOperation<REQ extends ServerMessage, RES extends Ser
                     case REGISTER_CLIENT_FAILURE_CODE:
                         clientLogger.error("Client registration failed on server.");
                         return null;
+                    case UNKNOWN_SESSION_CODE:
+                        clientLogger.error("Message server has no session for the client.");
+                        return null;
                     default:
                         clientLogger.error("Received unknown response code: %d - can't proceed.", response.getHeader().getMessageCode().getCode());
                         return null;
@@ -109,4 +120,11 @@ public abstract class ClientOperation<REQ extends ServerMessage, RES extends Ser
 
         return null;
     }
+
+    /**
+     * @return the code of the failure response to the last {@link #perform()}, 0 if the server didn't respond with a failure.
+     */
+    public short getFailureCode() {
+        return failureCode;
+    }
 }
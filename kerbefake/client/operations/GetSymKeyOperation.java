@@ -6,13 +6,13 @@ import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyRespo
 import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponseBody;
 import kerbefake.client.ClientConnection;
 import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.Ticket;
 import kerbefake.common.errors.InvalidMessageException;
 
 import static kerbefake.client.Client.clientLogger;
 import static kerbefake.common.Constants.NONCE_SIZE;
 import static kerbefake.common.CryptoUtils.getSecureRandomBytes;
-import static kerbefake.common.Utils.hexStringToByteArray;
 
 public class GetSymKeyOperation extends ClientOperation<GetSymmetricKeyRequest, GetSymmetricKeyResponse, GetSymmetricKeyResponse> {
 
@@ -25,7 +25,7 @@ public class GetSymKeyOperation extends ClientOperation<GetSymmetricKeyRequest,
 
     @Override
     protected GetSymmetricKeyRequest generateRequest() throws InvalidMessageException {
-        if (hexStringToByteArray(serverId) == null) {
+        if (PrincipalId.fromHex(serverId) == null) {
             throw new InvalidMessageException("Server ID is not a hex string.");
         }
 
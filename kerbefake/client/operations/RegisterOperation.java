@@ -5,11 +5,10 @@ import kerbefake.auth_server.entities.requests.register_client.RegisterClientReq
 import kerbefake.auth_server.entities.responses.register_client.RegisterClientResponse;
 import kerbefake.auth_server.entities.responses.register_client.RegisterClientResponseBody;
 import kerbefake.client.ClientConnection;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.errors.InvalidMessageException;
 
 import static kerbefake.client.Client.clientLogger;
-import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
-
 /**
  * This class
  */
@@ -39,13 +38,14 @@ public final class RegisterOperation extends ClientOperation<RegisterClientReque
         }
 
         RegisterClientResponseBody responseBody = (RegisterClientResponseBody) response.getBody();
-        String clientId = responseBody.getId();
+        PrincipalId clientId = responseBody.getId();
 
-        if (clientId == null || clientId.length() != ID_HEX_LENGTH_CHARS) {
-            clientLogger.error("Invalid client ID received in the response, can't proceed, received: %s", clientId);
+        if (clientId == null) {
+            clientLogger.error("Missing client ID in the response, can't proceed.");
             return null;
         }
 
-        return clientId;
+        // The client ID is kept in hex in the client configuration file.
+        return clientId.toString();
     }
 }
@@ -7,24 +7,33 @@ import kerbefake.common.errors.InvalidMessageException;
 import kerbefake.msg_server.entities.SendMessageRequest;
 import kerbefake.msg_server.entities.SendMessageRequestFactory;
 
-import static kerbefake.client.Client.clientLogger;
-import static kerbefake.client.UserInputOutputHandler.promptLongString;
-import static kerbefake.client.UserInputOutputHandler.promptString;
-
 public class SendMessageOperation extends ClientOperation<SendMessageRequest, EmptyResponse, Boolean> {
 
     private final Session session;
 
-    public SendMessageOperation(ClientConnection connection, Session session, String clientId) {
+    private final boolean sendTicket;
+
+    private final String message;
+
+    public SendMessageOperation(ClientConnection connection, Session session, String clientId, String message) {
+        this(connection, session, clientId, message, false);
+    }
+
+    /**
+     * @param message    - the message to send, the operation may be performed again to send it again
+     * @param sendTicket - whether to send the ticket along with the message, so any message server can handle it
+     */
+    public SendMessageOperation(ClientConnection connection, Session session, String clientId, String message, boolean sendTicket) {
         super(connection, EmptyResponse.class, clientId);
         this.session = session;
+        this.message = message;
+        this.sendTicket = sendTicket;
     }
 
     @Override
     protected SendMessageRequest generateRequest() throws InvalidMessageException {
-        String message = promptLongString("Please provide the message to send to the server");
-
-        return SendMessageRequestFactory.getInstance().setMessage(message).encrypt(session.getSessionKey()).setClientId(clientId).build();
+        return SendMessageRequestFactory.getInstance().setMessage(message).setTicket(sendTicket ? session.getTicket() : null)
+                .encrypt(session.getSessionKey()).setClientId(clientId).build();
     }
 
     @Override
@@ -0,0 +1,189 @@
+package kerbefake.common;
+
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.ServerMessage;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Executes the requests of a multiplexed connection, a connection which carries the requests of many clients at once
+ * (e.g. from a gateway), see {@link ServerConfig#MULTIPLEX_PROPERTY}.
+ * <p>
+ * Requests are split into lanes by the client ID in their header. The requests of a single client are executed one at a
+ * time in the order they arrived, while the requests of different clients are executed concurrently on the worker pool.
+ * A lane executes a single request and then goes to the back of the worker pool's queue, so a busy client does not
+ * starve the others.
+ * <p>
+ * Responses carry no client ID, so they are handed to the sink in the order the requests arrived on the connection,
+ * regardless of the order in which they were executed.
+ */
+public final class ClientLanes {
+
+    private final Executor workers;
+
+    private final RequestProcessor processor;
+
+    private final Consumer<ServerMessage> sink;
+
+    private final Object lanesLock = new Object();
+
+    /**
+     * The lanes of the clients which have requests waiting, a lane is removed once it has nothing left to execute.
+     */
+    private final Map<PrincipalId, Lane> lanes = new HashMap<>();
+
+    private long nextSequence = 0;
+
+    private final Object sinkLock = new Object();
+
+    /**
+     * Responses which are ready but wait for the responses of earlier requests, by their request's sequence.
+     */
+    private final Map<Long, ServerMessage> completed = new HashMap<>();
+
+    private long nextToSend = 0;
+
+    /**
+     * Creates the lanes of a single connection.
+     *
+     * @param workers   - the pool which executes the requests
+     * @param processor - the processor which executes the requests
+     * @param sink      - receives the responses in the order the requests arrived, it is never called concurrently
+     */
+    public ClientLanes(Executor workers, RequestProcessor processor, Consumer<ServerMessage> sink) {
+        this.workers = workers;
+        this.processor = processor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues a request to be executed after all the previous requests of the same client.
+     *
+     * @param message - the request, or {@link RequestProcessor#getUnknownFailure()} for a request that could not be
+     *                read, which is sent as is once the previous responses are sent.
+     */
+    public void dispatch(ServerMessage message) {
+        Lane toSchedule = null;
+        long sequence;
+        synchronized (lanesLock) {
+            sequence = nextSequence++;
+            if (message != processor.getUnknownFailure()) {
+                PrincipalId clientId = message.getHeader().getClientId();
+                Lane lane = lanes.get(clientId);
+                if (lane == null) {
+                    lane = new Lane(clientId);
+                    lanes.put(clientId, lane);
+                }
+                lane.requests.add(new Request(sequence, message));
+                if (!lane.scheduled) {
+                    lane.scheduled = true;
+                    toSchedule = lane;
+                }
+            }
+        }
+
+        if (message == processor.getUnknownFailure()) {
+            complete(sequence, message);
+        } else if (toSchedule != null) {
+            schedule(toSchedule);
+        }
+    }
+
+    /**
+     * @return how many clients currently have requests waiting or executing.
+     */
+    public int getActiveLanes() {
+        synchronized (lanesLock) {
+            return lanes.size();
+        }
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            workers.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // The server is shutting down, the remaining requests of this lane will not be answered.
+            synchronized (lanesLock) {
+                lanes.remove(lane.clientId);
+            }
+        }
+    }
+
+    /**
+     * Hands the response to the sink along with any responses which were waiting for it.
+     *
+     * @param sequence - the sequence of the request this response is for
+     * @param response - the response
+     */
+    private void complete(long sequence, ServerMessage response) {
+        synchronized (sinkLock) {
+            completed.put(sequence, response);
+            ServerMessage next;
+            while ((next = completed.remove(nextToSend)) != null) {
+                nextToSend++;
+                sink.accept(next);
+            }
+        }
+    }
+
+    private static final class Request {
+
+        private final long sequence;
+
+        private final ServerMessage message;
+
+        Request(long sequence, ServerMessage message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The requests of a single client, all fields are guarded by {@link #lanesLock}.
+     */
+    private final class Lane implements Runnable {
+
+        private final PrincipalId clientId;
+
+        private final Queue<Request> requests = new ArrayDeque<>();
+
+        /**
+         * Whether a worker is currently scheduled to execute a request of this lane.
+         */
+        private boolean scheduled = false;
+
+        Lane(PrincipalId clientId) {
+            this.clientId = clientId;
+        }
+
+        /**
+         * Executes a single request of this lane and schedules the lane again if it has more.
+         */
+        @Override
+        public void run() {
+            Request request;
+            synchronized (lanesLock) {
+                request = requests.poll();
+            }
+            if (request != null) {
+                ServerMessage response = processor.process(request.message);
+                complete(request.sequence, response == null ? processor.getUnknownFailure() : response);
+            }
+
+            synchronized (lanesLock) {
+                if (requests.isEmpty()) {
+                    scheduled = false;
+                    lanes.remove(clientId);
+                    return;
+                }
+            }
+            schedule(this);
+        }
+    }
+}
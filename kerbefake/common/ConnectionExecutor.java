@@ -0,0 +1,185 @@
+package kerbefake.common;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs each connection of a server on its own thread, keeping the simple blocking model of {@link ConnectionHandler}.
+ * <p>
+ * Virtual threads are used when the JVM supports them, so holding many connections open is cheap, otherwise we fall
+ * back to platform threads. The number of concurrent connections is limited, and every connection is tracked so
+ * {@link #shutdown(long)} can stop them and wait for them to finish.
+ */
+public final class ConnectionExecutor {
+
+    private final Logger logger;
+
+    private final ThreadFactory threadFactory;
+
+    private final int maxConnections;
+
+    private final Semaphore permits;
+
+    private final Set<Thread> liveThreads = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger liveConnections = new AtomicInteger();
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+
+    private final AtomicLong rejectedConnections = new AtomicLong();
+
+    private volatile boolean shuttingDown = false;
+
+    public ConnectionExecutor(Logger logger, String threadNamePrefix) {
+        this(logger, threadNamePrefix, ServerConfig.getMaxConnections());
+    }
+
+    /**
+     * Creates a new connection executor.
+     *
+     * @param logger           - the logger of the server
+     * @param threadNamePrefix - the prefix of the names of the connection threads
+     * @param maxConnections   - how many connections may be served at once, additional connections are closed
+     */
+    public ConnectionExecutor(Logger logger, String threadNamePrefix, int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new RuntimeException("Max connections must be positive.");
+        }
+        this.logger = logger;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+        ThreadFactory virtualFactory = createVirtualThreadFactory(threadNamePrefix);
+        if (virtualFactory != null) {
+            this.threadFactory = virtualFactory;
+            logger.debug("Using virtual threads for connections.");
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            this.threadFactory = r -> new Thread(r, threadNamePrefix + counter.getAndIncrement());
+            logger.debug("Virtual threads are not available, using platform threads for connections.");
+        }
+    }
+
+    /**
+     * Uses {@code Thread.ofVirtual()} when available, this is done with reflection so we can still run on older JVMs.
+     *
+     * @param threadNamePrefix - the prefix of the names of the threads
+     * @return a factory of virtual threads, or null if virtual threads are not supported.
+     */
+    private static ThreadFactory createVirtualThreadFactory(String threadNamePrefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            // Preview builds expose the API but fail when creating a thread, make sure it actually works.
+            factory.newThread(() -> {
+            });
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts serving a connection on a new thread.
+     * In case we are shutting down or the max amount of connections was reached, the connection is closed.
+     *
+     * @param conn    - the connection to serve
+     * @param handler - the handler of the connection
+     * @return true if the connection is served, false if it was rejected.
+     */
+    public boolean submit(Socket conn, Runnable handler) {
+        if (shuttingDown || !permits.tryAcquire()) {
+            rejectedConnections.incrementAndGet();
+            logger.error("Rejecting connection from %s, %s", conn.getRemoteSocketAddress(), shuttingDown ? "server is shutting down" : "too many open connections");
+            try {
+                conn.close();
+            } catch (IOException e) {
+                logger.error("Failed to close socket due to: %s", e);
+            }
+            return false;
+        }
+
+        acceptedConnections.incrementAndGet();
+        liveConnections.incrementAndGet();
+        Thread t = threadFactory.newThread(() -> {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                logger.error("Connection handler failed due to: %s", e);
+                logger.error(e);
+            } finally {
+                liveThreads.remove(Thread.currentThread());
+                liveConnections.decrementAndGet();
+                permits.release();
+            }
+        });
+        liveThreads.add(t);
+        t.start();
+        return true;
+    }
+
+    /**
+     * Stops accepting connections, interrupts all connection threads and waits for them to finish.
+     * A connection thread finishes the request it is currently executing before it exits.
+     *
+     * @param timeoutMs - how long to wait for all connections to finish
+     * @return true if all connections finished in time, false otherwise.
+     */
+    public boolean shutdown(long timeoutMs) {
+        shuttingDown = true;
+        for (Thread t : liveThreads) {
+            t.interrupt();
+        }
+
+        // We might be shutting down because the calling thread was interrupted, clear it so we can wait.
+        boolean wasInterrupted = Thread.interrupted();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            for (Thread t : liveThreads) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                t.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            wasInterrupted = true;
+        } finally {
+            if (wasInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int remainingConnections = liveConnections.get();
+        if (remainingConnections > 0) {
+            logger.error("%d connections did not finish in time.", remainingConnections);
+        }
+        logger.info("Connections shut down, accepted=%d rejected=%d", acceptedConnections.get(), rejectedConnections.get());
+        return remainingConnections == 0;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getLiveConnections() {
+        return liveConnections.get();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+}
@@ -1,118 +1,140 @@
 package kerbefake.common;
 
-import kerbefake.auth_server.entities.responses.FailureResponse;
-import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.MessagePool;
 import kerbefake.common.entities.ServerMessage;
-import kerbefake.common.entities.ServerRequest;
 import kerbefake.common.errors.InvalidMessageException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-public abstract class ConnectionHandler implements Runnable {
+import static kerbefake.common.Constants.SERVER_SHUTDOWN_TIMEOUT_MS;
+
+/**
+ * Handles a single connection on its own thread, reading one request at a time and passing it to the server's {@link RequestProcessor}.
+ * <p>
+ * A multiplexed connection is read the same way, but its requests are executed on a worker pool through {@link ClientLanes}
+ * so the requests of one client don't wait for those of another.
+ */
+public final class ConnectionHandler implements Runnable {
 
     private final Socket conn;
 
-    private final Thread parentThread;
-    
+    private final RequestProcessor processor;
+
     private final Logger logger;
 
     /**
-     * Which messages this connection accepts.
+     * The pool which executes the requests of a multiplexed connection, null if the connection isn't multiplexed.
+     */
+    private final Executor workers;
+
+    private final int maxInFlight;
+
+    private MessageStream messageStream;
+
+    private ClientLanes lanes;
+
+    /**
+     * Limits how many requests of a multiplexed connection wait for a response, we stop reading once there are too many.
      */
-    private final MessageCode[] acceptedMessages;
+    private Semaphore inFlight;
+
+    public ConnectionHandler(Socket conn, RequestProcessor processor) {
+        this(conn, processor, null, 0);
+    }
 
-    public ConnectionHandler(Socket conn, Thread parentThread, Logger logger, MessageCode[] acceptedMessages) {
+    /**
+     * Creates a handler for a connection.
+     *
+     * @param conn        - the connection
+     * @param processor   - the processor which executes the requests
+     * @param workers     - the pool which executes requests in case the connection is multiplexed, null otherwise
+     * @param maxInFlight - how many requests of a multiplexed connection may wait for a response
+     */
+    public ConnectionHandler(Socket conn, RequestProcessor processor, Executor workers, int maxInFlight) {
         if (conn == null || !conn.isConnected() || conn.isClosed()) {
             throw new RuntimeException("No socket provided or disconnected socket.");
         }
-        if (parentThread == null || !parentThread.isAlive() || parentThread.isInterrupted()) {
-            throw new RuntimeException("Parent thread is either dead or was interrupted.");
-        }
-        if(logger == null){
-            throw new RuntimeException("No logger provided!");
+        if (processor == null) {
+            throw new RuntimeException("No request processor provided!");
         }
-        if(acceptedMessages == null){
-            throw new RuntimeException("Connection handles must specify which messages they accept");
+        if (workers != null && maxInFlight <= 0) {
+            throw new RuntimeException("Max in flight requests must be positive.");
         }
         this.conn = conn;
-        this.parentThread = parentThread;
-        this.logger = logger;
-        this.acceptedMessages = acceptedMessages;
+        this.processor = processor;
+        this.logger = processor.getLogger();
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
     }
 
     /**
-     * Process the message before we execute the request provided
-     *
-     * @param message - the message to process before execution.
-     * @param <T>     - Some type that is a server message and is a server request that can be executed.
-     * @return - an object after processing.
+     * Serves the connection until the other side closes it or the current thread is interrupted, see {@link ConnectionExecutor#shutdown(long)}.
      */
-    public abstract <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message);
-
     @Override
     public void run() {
-        MessageStream messageStream;
+        Thread currentThread = Thread.currentThread();
         try {
-            messageStream = new MessageStream(conn, true, parentThread, logger, this.acceptedMessages);
+            messageStream = new MessageStream(conn, true, currentThread, logger, processor.getAcceptedMessages());
         } catch (IOException e) {
             logger.error("Failed to initialize streams: %s", e.getMessage());
             logger.error(e);
             return;
         }
+        if (workers != null) {
+            inFlight = new Semaphore(maxInFlight);
+            lanes = new ClientLanes(workers, processor, response -> {
+                if (!messageStream.sendMessage(response)) {
+                    logger.error("Failed to send message to user.");
+                }
+                inFlight.release();
+            });
+        } else if (ServerConfig.isMessagePooling()) {
+            // Each request is answered before the next one is read, so the same objects can be used for all of them.
+            messageStream.setMessagePool(new MessagePool());
+        }
 
-
-        FailureResponse unknownFailure = FailureResponse.createUnknownFailureResponse();
-        while (!parentThread.isInterrupted()) {
+        ServerMessage unknownFailure = processor.getUnknownFailure();
+        while (!currentThread.isInterrupted()) {
             ServerMessage nextMessage;
-            ServerMessage response;
 
             try {
                 nextMessage = messageStream.readNextMessage();
+            } catch (EOFException e) {
+                logger.debug("Connection closed by the other side: %s", e.getMessage());
+                break;
             } catch (IOException | InvalidMessageException e) {
                 logger.error(e instanceof IOException ? "Encountered IO Error when reading the next message: %s" : "Failed to read the next message provided due to: %s", e.getMessage());
                 logger.error(e);
-                boolean sentResponse = messageStream.sendMessage(unknownFailure);
+                boolean sentResponse = respond(unknownFailure);
                 if (!sentResponse && e instanceof IOException) {
                     // Seems like there's some deeper issue with IO, we can't send the message back.
                     logger.error("Unable to receive and failed to send message, considering socket as broken, closing connection.");
                     break;
                 }
                 continue;
-            } catch (InterruptedException e){
-                continue;
+            } catch (InterruptedException e) {
+                break;
             }
             if (nextMessage == null) {
 //                debug("No message to read.");
-                messageStream.sendMessage(unknownFailure);
-                continue;
-            }
-            if (!ServerRequest.class.isAssignableFrom(nextMessage.getClass())) {
-                logger.error("Got a non server request message, can't handle.");
-                messageStream.sendMessage(unknownFailure);
-                continue;
-            }
-
-            try {
-                nextMessage = processMessageBeforeExecution((ServerMessage & ServerRequest) nextMessage);
-                if (nextMessage == null) {
-                    logger.error("Failure processing request before execution, can't proceed.");
-                    messageStream.sendMessage(unknownFailure);
-                    continue;
-                }
-                response = ((ServerRequest) nextMessage).execute();
-            } catch (InvalidMessageException e) {
-                logger.error(e);
-                logger.error("Failed to execute server request due to: %s", e.getMessage());
-                messageStream.sendMessage(unknownFailure);
+                respond(unknownFailure);
                 continue;
             }
 
-            if (!messageStream.sendMessage(response)) {
+            if (!respond(nextMessage)) {
                 logger.error("Failed to send message to user.");
             }
         }
 
+        if (lanes != null && currentThread.isInterrupted()) {
+            awaitInFlight();
+        }
+
         try {
             conn.close();
         } catch (IOException e) {
@@ -121,4 +143,44 @@ public abstract class ConnectionHandler implements Runnable {
         }
     }
 
+    /**
+     * Executes a request and sends its response, for a multiplexed connection the request is only queued and its
+     * response is sent once it is executed, see {@link ClientLanes}.
+     *
+     * @param message - the request, or {@link RequestProcessor#getUnknownFailure()} to send it as the response
+     * @return true if the response was sent or queued, false otherwise.
+     */
+    private boolean respond(ServerMessage message) {
+        if (lanes == null) {
+            return messageStream.sendMessage(message == processor.getUnknownFailure() ? message : processor.process(message));
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        lanes.dispatch(message);
+        return true;
+    }
+
+    /**
+     * Waits for the queued requests of a multiplexed connection to be answered before the connection is closed, we are
+     * shutting down so the wait is bounded.
+     */
+    private void awaitInFlight() {
+        boolean wasInterrupted = Thread.interrupted();
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, SERVER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.error("Closing connection with %d requests still in flight.", maxInFlight - inFlight.availablePermits());
+            }
+        } catch (InterruptedException e) {
+            wasInterrupted = true;
+        } finally {
+            if (wasInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
 }
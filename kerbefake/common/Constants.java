@@ -35,9 +35,85 @@ public final class Constants {
      * The response header size.
      */
     public static final int RESPONSE_HEADER_SIZE = 7;
+
+    /**
+     * How long (in milliseconds) a blocking read on a socket waits before checking whether it should stop waiting.
+     */
+    public static final int SOCKET_READ_TIMEOUT_MS = 1000;
+
+    /**
+     * The largest frame body (in bytes) that is read into a connection's reused buffer, larger bodies get their own buffer.
+     */
+    public static final int MAX_POOLED_FRAME_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How many connections a server serves at once unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 10_000;
+
+    /**
+     * How many requests of a connection may wait for their response to be written unless configured otherwise, see
+     * {@link ServerConfig#MAX_IN_FLIGHT_PROPERTY}.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+
+    /**
+     * How many keys of each kind are kept prepared for use unless configured otherwise.
+     */
+    public static final int DEFAULT_KEY_CACHE_SIZE = 10_000;
+
+    /**
+     * How many random bytes each stripe of the {@link SecureRandomPool} keeps ready.
+     */
+    public static final int RANDOM_POOL_STRIPE_SIZE = 4096;
+
+    /**
+     * The clients journal is compacted once it holds more than this many records and more than twice the amount of clients.
+     */
+    public static final int CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS = 1000;
+
+    /**
+     * The size of the chunks the clients file is split into when it is loaded in parallel.
+     */
+    public static final int CLIENTS_LOADER_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How long (in milliseconds) a ticket issued by the auth server is valid for.
+     */
+    public static final long TICKET_LIFETIME_MS = 10 * 60 * 1000;
+
+    /**
+     * The resolution (in milliseconds) at which the message server evicts expired sessions.
+     */
+    public static final int SESSION_EXPIRY_TICK_MS = 1000;
+
+    /**
+     * How often (in milliseconds) the message server writes its sessions to the sessions snapshot.
+     */
+    public static final int SESSIONS_SNAPSHOT_INTERVAL_MS = 60_000;
+
+    /**
+     * How often (in milliseconds) the auth server persists the last seen time of the clients seen since the previous time.
+     */
+    public static final int LAST_SEEN_FLUSH_INTERVAL_MS = 5000;
+
+    /**
+     * How long (in milliseconds) the auth server waits after seeing a change in the servers directory before reloading it,
+     * so a few changes in a row are reloaded once.
+     */
+    public static final int SERVERS_DIRECTORY_RELOAD_DELAY_MS = 200;
+
+    /**
+     * How long (in milliseconds) a server waits for its open connections to finish when shutting down.
+     */
+    public static final int SERVER_SHUTDOWN_TIMEOUT_MS = 5000;
+
     public static final String CLIENTS_FILE_NAME = "./clients";
+    public static final String CLIENTS_DB_FILE_NAME = "./clients.db";
     public static final String CLIENT_CONFIG_FILE_NAME = "./me.info";
     public static final String SERVER_CONFIG_FILE_NAME = "./msg.info";
+    public static final String SERVERS_DIRECTORY_NAME = "./msg.d";
+    public static final String SESSIONS_SNAPSHOT_FILE_NAME = "./sessions.snapshot";
 
     public static final String DATE_FORMAT = "hh.mm.ss dd/MM/yyyy";
 
@@ -55,6 +131,11 @@ public final class Constants {
         public static final short SUBMIT_TICKET = 1028;
 
         public static final short SEND_MESSAGE = 1029;
+
+        /**
+         * Request code for sending a message along with the ticket, so it can be handled by any message server.
+         */
+        public static final short SEND_MESSAGE_WITH_TICKET = 1030;
     }
 
 
@@ -70,6 +151,12 @@ public final class Constants {
         public static final short SEND_MESSAGE_SUCCESS = 1605;
 
         public static final short UNKNOWN_FAILURE_CODE = 1609;
+
+        /**
+         * Response code for a message the message server has no session to decrypt with, i.e. the client should submit
+         * its ticket again.
+         */
+        public static final short UNKNOWN_SESSION_CODE = 1610;
     }
 
     public static final class ClientConstants {
@@ -92,6 +179,27 @@ public final class Constants {
         public static final String DEFAULT_MESSAGE_SERVER_IP = "127.0.0.1";
         public static final int DEFAULT_MESSAGE_SERVER_PORT = 1235;
 
+        /**
+         * How many requests a connection can send before it has to wait for a response.
+         */
+        public static final int DEFAULT_PIPELINE_WINDOW = 16;
+
+        /**
+         * Whether messages are sent along with the ticket (e.g. {@code -Dkerbefake.client.sendTicketWithMessages=true}),
+         * so they can be handled by any message server behind a load balancer, not only the one the ticket was submitted to.
+         */
+        public static final String SEND_TICKET_WITH_MESSAGES_PROPERTY = "kerbefake.client.sendTicketWithMessages";
+
+        /**
+         * How long (in milliseconds) before a session expires the client gets a new ticket for it.
+         */
+        public static final long SESSION_RENEW_BEFORE_MS = 60 * 1000;
+
+        /**
+         * How long (in milliseconds) the client waits before trying again to renew a session after a failed attempt.
+         */
+        public static final long SESSION_RENEW_RETRY_MS = 10 * 1000;
+
     }
 
 }
@@ -1,20 +1,60 @@
 package kerbefake.common;
 
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.errors.CryptographicException;
 
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.*;
+import java.util.Arrays;
 
 import static kerbefake.common.Logger.commonLogger;
 
 /**
  * A class containing cryptographic utility functions
+ * <p>
+ * Getting a {@link Cipher} or a {@link MessageDigest} goes through the provider lookup every time, so each thread keeps
+ * its own instances and reuses them, these are not thread safe so they are never shared.
  */
 public final class CryptoUtils {
 
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final ThreadLocal<CipherState> CIPHER = new ThreadLocal<>();
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<>();
+
+    /**
+     * The cipher of a thread along with the last key it was used with, requests usually use the same key more than once
+     * (e.g. a ticket and the encrypted key of a response) so we don't build a new key spec for them.
+     */
+    private static final class CipherState {
+
+        private final Cipher cipher;
+
+        private byte[] lastKey;
+
+        private SecretKeySpec lastKeySpec;
+
+        CipherState(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        SecretKeySpec keySpecFor(byte[] key) {
+            if (lastKeySpec == null || !Arrays.equals(lastKey, key)) {
+                if (lastKey != null) {
+                    Arrays.fill(lastKey, (byte) 0);
+                }
+                // A copy, so the caller can still clear their key.
+                lastKey = key.clone();
+                lastKeySpec = new SecretKeySpec(key, "AES");
+            }
+            return lastKeySpec;
+        }
+    }
 
     /**
      * Given a key an IV encrypt a value provided.
@@ -25,6 +65,18 @@ public final class CryptoUtils {
      * @return - a byte array of the value encrypted.
      */
     public static byte[] encrypt(byte[] key, byte[] iv, byte[] valueToEncrypt) {
+        return performCryptoOp(getKeySpec(key), iv, valueToEncrypt, true);
+    }
+
+    /**
+     * Given a prepared key (see {@link PreparedKeyCache}) and an IV encrypt a value provided.
+     *
+     * @param key            - the key to use for encryption
+     * @param iv             - the IV to use for encryption
+     * @param valueToEncrypt - the value to encrypt
+     * @return - a byte array of the value encrypted.
+     */
+    public static byte[] encrypt(SecretKey key, byte[] iv, byte[] valueToEncrypt) {
         return performCryptoOp(key, iv, valueToEncrypt, true);
     }
 
@@ -37,9 +89,71 @@ public final class CryptoUtils {
      * @return - a byte array of the decrypted value.
      */
     public static byte[] decrypt(byte[] key, byte[] iv, byte[] valueToDecrypt) {
+        return performCryptoOp(getKeySpec(key), iv, valueToDecrypt, false);
+    }
+
+    /**
+     * Given a prepared key (see {@link PreparedKeyCache}) and an IV decrypt a value provided.
+     *
+     * @param key            - the key to use for decryption
+     * @param iv             - the IV to use for decryption
+     * @param valueToDecrypt - the value to decrypt
+     * @return - a byte array of the decrypted value.
+     */
+    public static byte[] decrypt(SecretKey key, byte[] iv, byte[] valueToDecrypt) {
         return performCryptoOp(key, iv, valueToDecrypt, false);
     }
 
+    /**
+     * Gets a key object for the given key bytes, the key object of the last key used on this thread is reused.
+     *
+     * @param key - the key bytes, these are copied so the caller can clear them
+     * @return - the key object
+     */
+    public static SecretKey getKeySpec(byte[] key) {
+        return getCipherState().keySpecFor(key);
+    }
+
+    /**
+     * Given a key and an IV encrypt a value into a buffer provided by the caller, so no array is allocated for the result.
+     *
+     * @param key          - the key to use for encryption
+     * @param iv           - the IV to use for encryption
+     * @param input        - the buffer holding the value to encrypt
+     * @param inputOffset  - where the value starts in the input
+     * @param inputLength  - the length of the value
+     * @param output       - the buffer to write the encrypted value to, must have room for {@link #getEncryptedSize(int)} bytes
+     * @param outputOffset - where to start writing in the output
+     * @return - how many bytes were written to the output.
+     */
+    public static int encrypt(byte[] key, byte[] iv, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) {
+        return performCryptoOp(getKeySpec(key), iv, input, inputOffset, inputLength, output, outputOffset, true);
+    }
+
+    /**
+     * Given a key and an IV decrypt a value into a buffer provided by the caller, so no array is allocated for the result.
+     *
+     * @param key          - the key to use for decryption
+     * @param iv           - the IV to use for decryption
+     * @param input        - the buffer holding the value to decrypt
+     * @param inputOffset  - where the value starts in the input
+     * @param inputLength  - the length of the value
+     * @param output       - the buffer to write the decrypted value to, must have room for {@code inputLength} bytes
+     * @param outputOffset - where to start writing in the output
+     * @return - how many bytes were written to the output, the padding is not included.
+     */
+    public static int decrypt(byte[] key, byte[] iv, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) {
+        return performCryptoOp(getKeySpec(key), iv, input, inputOffset, inputLength, output, outputOffset, false);
+    }
+
+    /**
+     * @param plainLength - the length of a value before encryption
+     * @return the length of the value after encryption, including the padding.
+     */
+    public static int getEncryptedSize(int plainLength) {
+        return (plainLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+    }
+
     /**
      * Performs an encryption or decryption on a given value using the provided key and IV.
      *
@@ -49,20 +163,56 @@ public final class CryptoUtils {
      * @param enc   - a flag to mark encryption, if false will decrypt
      * @return - a byte array with the relevant value.
      */
-    private static byte[] performCryptoOp(byte[] key, byte[] iv, byte[] value, boolean enc) {
-        SecretKey secret = new SecretKeySpec(key, "AES");
-        Cipher cipher;
+    private static byte[] performCryptoOp(SecretKey key, byte[] iv, byte[] value, boolean enc) {
         try {
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(enc ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
-            return cipher.doFinal(value);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
-                 InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+            return initCipher(key, iv, enc).doFinal(value);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException |
+                 IllegalStateException e) {
             commonLogger.errorToFileOnly("Failed to perform crypto operation, this can be because this PC does not support the needed ciphers (AES/CBC/PKCS5Padding) or that the wrong key was used for decryption");
             throw new CryptographicException(e);
         }
     }
 
+    /**
+     * Same as {@link #performCryptoOp(SecretKey, byte[], byte[], boolean)} but with the value and the result in buffers provided by the caller.
+     *
+     * @return - how many bytes were written to the output.
+     */
+    private static int performCryptoOp(SecretKey key, byte[] iv, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset, boolean enc) {
+        try {
+            return initCipher(key, iv, enc).doFinal(input, inputOffset, inputLength, output, outputOffset);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException |
+                 ShortBufferException | IllegalStateException e) {
+            commonLogger.errorToFileOnly("Failed to perform crypto operation, this can be because this PC does not support the needed ciphers (AES/CBC/PKCS5Padding), that the wrong key was used for decryption or that the output buffer is too small");
+            throw new CryptographicException(e);
+        }
+    }
+
+    /**
+     * Gets the cipher of the current thread, ready to be used with the given key and IV.
+     * A prepared key which was destroyed (see {@link PreparedKeyCache}) fails with an {@link IllegalStateException}.
+     */
+    private static Cipher initCipher(SecretKey key, byte[] iv, boolean enc) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher cipher = getCipherState().cipher;
+        // Every call re-initializes the cipher, so a failed operation does not affect the next one.
+        cipher.init(enc ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private static CipherState getCipherState() {
+        CipherState state = CIPHER.get();
+        if (state == null) {
+            try {
+                state = new CipherState(Cipher.getInstance(CIPHER_TRANSFORMATION));
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                commonLogger.errorToFileOnly("Failed to create cipher, this PC does not support the needed ciphers (AES/CBC/PKCS5Padding)");
+                throw new CryptographicException(e);
+            }
+            CIPHER.set(state);
+        }
+        return state;
+    }
+
 
     /**
      * Performs SHA-256 on a given value and returns the result.
@@ -81,12 +231,29 @@ public final class CryptoUtils {
      * @return the byte array of the resulting hash
      */
     public static byte[] performSha256(char[] value) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
         byte[] bytes = new byte[value.length];
         for (int i = 0; i < value.length; i++) {
             bytes[i] = (byte) value[i];
         }
-        return digest.digest(bytes);
+        byte[] hash = performSha256(bytes);
+        // The value is usually a password, don't leave a copy of it around.
+        Arrays.fill(bytes, (byte) 0);
+        return hash;
+    }
+
+    /**
+     * Performs SHA-256 on a given value and returns the result.
+     *
+     * @param value - the value to perform a hash on.
+     * @return the byte array of the resulting hash
+     */
+    public static byte[] performSha256(byte[] value) throws NoSuchAlgorithmException {
+        MessageDigest digest = SHA_256.get();
+        if (digest == null) {
+            digest = MessageDigest.getInstance("SHA-256");
+            SHA_256.set(digest);
+        }
+        return digest.digest(value);
     }
 
     /**
@@ -110,9 +277,22 @@ public final class CryptoUtils {
         }
 
         byte[] bytes = new byte[size];
-        SECURE_RANDOM.nextBytes(bytes);
+        SecureRandomPool.getInstance().nextBytes(bytes);
         return bytes;
     }
 
+    /**
+     * Generates a random ID for a new client, shaped like a random (version 4) UUID without dashes.
+     * {@link java.util.UUID#randomUUID()} draws from a single shared {@link SecureRandom}, so we draw from the pool instead.
+     *
+     * @return the new ID
+     */
+    public static PrincipalId generateClientId() {
+        byte[] id = getSecureRandomBytes(PrincipalId.SIZE);
+        id[6] = (byte) ((id[6] & 0x0f) | 0x40);
+        id[8] = (byte) ((id[8] & 0x3f) | 0x80);
+        return PrincipalId.fromBytes(id);
+    }
+
 
 }
@@ -0,0 +1,42 @@
+package kerbefake.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static kerbefake.common.Constants.MAX_POOLED_FRAME_BUFFER_SIZE;
+
+/**
+ * A buffer owned by a single connection that the bodies of its frames are read into, so reading a frame does not
+ * allocate a new array every time. Bodies parse directly from it, see {@link kerbefake.common.entities.ServerMessageBody#parse(ByteBuffer)}.
+ * The same is used for outgoing frames, which are encoded into it with {@link kerbefake.common.entities.ServerMessage#writeTo(ByteBuffer)}.
+ */
+final class FrameBuffer {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private ByteBuffer pooled = ByteBuffer.allocate(INITIAL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Gets a buffer for a frame of a given size, the previous frame must no longer be in use.
+     * Frames larger than {@link Constants#MAX_POOLED_FRAME_BUFFER_SIZE} get a buffer of their own so a single large
+     * message doesn't keep a large buffer alive for the rest of the connection.
+     *
+     * @param size - the size of the frame
+     * @return a LE buffer with its position at 0 and its limit at {@code size}
+     */
+    ByteBuffer forSize(int size) {
+        if (size > pooled.capacity()) {
+            if (size > MAX_POOLED_FRAME_BUFFER_SIZE) {
+                return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int capacity = pooled.capacity();
+            while (capacity < size) {
+                capacity <<= 1;
+            }
+            pooled = ByteBuffer.allocate(Math.min(capacity, MAX_POOLED_FRAME_BUFFER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        pooled.clear();
+        pooled.limit(size);
+        return pooled;
+    }
+}
@@ -0,0 +1,123 @@
+package kerbefake.common;
+
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.MessagePool;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerMessageHeader;
+import kerbefake.common.errors.InvalidMessageCodeException;
+import kerbefake.common.errors.InvalidMessageException;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import static kerbefake.common.Utils.bytesToHexString;
+
+/**
+ * Turns the raw bytes of a frame (header + body) into a {@link ServerMessage}.
+ * This is independent of how the bytes were read, so it is shared between {@link MessageStream} and {@link ReactorServer}.
+ */
+public final class FrameDecoder {
+
+    private final Logger logger;
+
+    /**
+     * Which messages are accepted, null if all messages are accepted.
+     */
+    private final EnumSet<MessageCode> acceptedMessages;
+
+    public FrameDecoder(Logger logger, EnumSet<MessageCode> acceptedMessages) {
+        this.logger = logger;
+        this.acceptedMessages = acceptedMessages;
+    }
+
+    /**
+     * Parses the header of a frame.
+     *
+     * @param headerBytes - a buffer holding exactly the header bytes
+     * @return the parsed header
+     * @throws InvalidMessageException - in case the header is invalid.
+     */
+    public ServerMessageHeader decodeHeader(ByteBuffer headerBytes) throws InvalidMessageException {
+        return decodeHeader(headerBytes, null);
+    }
+
+    /**
+     * Parses the header of a frame, into the pooled header in case a pool is given.
+     *
+     * @param headerBytes - a buffer holding exactly the header bytes
+     * @param pool        - the pool of the connection, null to parse into a new header
+     * @return the parsed header
+     * @throws InvalidMessageException - in case the header is invalid.
+     */
+    public ServerMessageHeader decodeHeader(ByteBuffer headerBytes, MessagePool pool) throws InvalidMessageException {
+        try {
+            return pool != null ? pool.readHeader(headerBytes) : ServerMessageHeader.parseHeader(headerBytes);
+        } catch (InvalidMessageCodeException e) {
+            logger.error(e);
+            throw new InvalidMessageException("Invalid message code provided.");
+        }
+    }
+
+    /**
+     * Checks whether a message with the given header should be decoded, if not its payload should be skipped.
+     *
+     * @param header - the header of the message
+     * @return true if we accept this message, false otherwise.
+     */
+    public boolean accepts(ServerMessageHeader header) {
+        if (acceptedMessages == null || acceptedMessages.contains(header.getMessageCode())) {
+            return true;
+        }
+        logger.info("Received a message that should not accept: %s", header.getMessageCode().getMessageClass().getCanonicalName());
+        return false;
+    }
+
+    /**
+     * Builds a message from its header and body bytes.
+     *
+     * @param messageHeader - the header of the message
+     * @param body          - a buffer holding the body, empty if there is no payload. It may be reused once this returns.
+     * @return the message, or null in case the body could not be parsed.
+     * @throws InvalidMessageException - in case the parsed message can't be serialized for logging.
+     */
+    public ServerMessage decode(ServerMessageHeader messageHeader, ByteBuffer body) throws InvalidMessageException {
+        return decode(messageHeader, body, null);
+    }
+
+    /**
+     * Builds a message from its header and body bytes, into the pooled message of its code in case a pool is given.
+     *
+     * @param messageHeader - the header of the message, returned by {@link #decodeHeader(ByteBuffer, MessagePool)} with the same pool
+     * @param body          - a buffer holding the body, empty if there is no payload. It may be reused once this returns.
+     * @param pool          - the pool of the connection, null to build a new message
+     * @return the message, or null in case the body could not be parsed.
+     * @throws InvalidMessageException - in case the parsed message can't be serialized for logging.
+     */
+    public ServerMessage decode(ServerMessageHeader messageHeader, ByteBuffer body, MessagePool pool) throws InvalidMessageException {
+        MessageCode messageCode = messageHeader.getMessageCode();
+        logger.debug("Trying to parse message body for code: %d ", messageCode.getCode());
+
+        ServerMessage receivedMessage;
+        try {
+            if (pool != null && (!messageCode.hasBody() || body.hasRemaining())) {
+                receivedMessage = pool.parse(messageHeader, body);
+            } else if (messageCode.hasBody() && body.hasRemaining()) {
+                receivedMessage = messageCode.createMessage(messageHeader, messageCode.parseBody(body));
+            } else if (messageCode.hasBody()) {
+                logger.error("Provided body type however no payload provided as part of the message.");
+                return null;
+            } else {
+                receivedMessage = messageCode.createMessage(messageHeader, null);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to parse message body due to: %s", e);
+            logger.error(e);
+            return null;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received following message (%s):\n%s", receivedMessage.getClass().getCanonicalName(), bytesToHexString(receivedMessage.toLEByteArray()));
+        }
+        return receivedMessage;
+    }
+}
@@ -69,6 +69,7 @@ public final class Logger {
         MESSAGE_SERVER_LOGGER("[MSG   ]", "msg_server.log"),
         CLIENT_LOGGER("[CLIENT]", "client_server.log"),
         TEST_LOGGER("[TEST  ]", "test.log"),
+        BENCHMARK_LOGGER("[BENCH ]", "benchmark.log"),
         COMMON_LOGGER("[COMMON]", "common.log");
 
         private final String logPrefix;
@@ -141,7 +142,24 @@ public final class Logger {
         log(logLevel, false, message, args);
     }
 
+    /**
+     * Checks if debug messages are logged anywhere, use it to avoid building expensive debug messages that are dropped.
+     *
+     * @return true if debug messages are logged to the console or to the file.
+     */
+    public boolean isDebugEnabled() {
+        return isLogged(LogLevel.DEBUG, false);
+    }
+
+    private boolean isLogged(LogLevel logLevel, boolean fileOnly) {
+        return (logToConsole && logLevel.ordinal() >= minimalLevelToConsole.ordinal())
+                || (logToFile && logWriter != null && (fileOnly || logLevel.ordinal() >= minimalLevelToFile.ordinal()));
+    }
+
     private void log(LogLevel logLevel, boolean fileOnly, String message, Object... args) {
+        if (!isLogged(logLevel, fileOnly)) {
+            return;
+        }
         String fullMessage = String.format("%7s:%7s: %s%n", type.getLogPrefix(), logLevel.getLevel(), String.format(message, args));
         if (logToConsole)
             if (logLevel.ordinal() >= minimalLevelToConsole.ordinal())
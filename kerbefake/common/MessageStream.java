@@ -1,21 +1,24 @@
 package kerbefake.common;
 
 import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.MessagePool;
 import kerbefake.common.entities.ServerMessage;
-import kerbefake.common.entities.ServerMessageBody;
 import kerbefake.common.entities.ServerMessageHeader;
-import kerbefake.common.errors.InvalidMessageCodeException;
 import kerbefake.common.errors.InvalidMessageException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
 
+import static kerbefake.common.Constants.MAX_POOLED_FRAME_BUFFER_SIZE;
 import static kerbefake.common.Constants.RESPONSE_HEADER_SIZE;
-import static kerbefake.common.Utils.byteArrayToLEByteBuffer;
-import static kerbefake.common.Utils.bytesToHexString;
+import static kerbefake.common.Constants.SOCKET_READ_TIMEOUT_MS;
 
 /**
  * This class is meant to wrap around the {@link java.io.InputStream} and {@link java.io.OutputStream} and provide
@@ -33,153 +36,187 @@ public final class MessageStream {
 
     private final Logger logger;
 
+    private final FrameDecoder decoder;
+
+    /**
+     * The header of every frame is read into this buffer.
+     */
+    private final ByteBuffer headerBuffer;
+
+    /**
+     * The body of every frame is read into this buffer.
+     */
+    private final FrameBuffer bodyBuffer = new FrameBuffer();
+
+    /**
+     * Outgoing messages are encoded into this buffer before being written to the socket.
+     */
+    private final FrameBuffer sendBuffer = new FrameBuffer();
+
+    private final ReadMode readMode;
+
     /**
-     * Which messages this server accepts.
+     * The pool messages are read into, null if every message is read into new objects.
      */
-    private final MessageCode[] acceptedMessages;
+    private MessagePool pool;
+
+    /**
+     * How the stream waits for the next message to arrive.
+     */
+    public enum ReadMode {
+        /**
+         * Spins on {@link InputStream#available()} until data arrives, this keeps a core busy for every idle connection.
+         */
+        POLLING,
+        /**
+         * Blocks on the socket until data arrives, waking up every {@link Constants#SOCKET_READ_TIMEOUT_MS} to check
+         * whether the parent thread was interrupted.
+         */
+        BLOCKING
+    }
 
     public MessageStream(Socket connectionSocket, boolean isServer, Thread parentThread, Logger logger) throws IOException {
         this(connectionSocket, isServer, parentThread, logger, null);
     }
 
+    public MessageStream(Socket connectionSocket, boolean isServer, Thread parentThread, Logger logger, EnumSet<MessageCode> acceptedMessages) throws IOException {
+        this(connectionSocket, isServer, parentThread, logger, acceptedMessages, ReadMode.BLOCKING);
+    }
+
     /**
      * Creates a new MessageStream.
      *
      * @param connectionSocket - the socket used for communication.
      * @param isServer         - whether whoever is creating this stream is a server, if it is behavior is slightly different
+     * @param readMode         - how to wait for incoming data, see {@link ReadMode}
      * @throws IOException - in case of a problem getting the streams from the socket.
      */
-    public MessageStream(Socket connectionSocket, boolean isServer, Thread parentThread, Logger logger, MessageCode[] acceptedMessages) throws IOException {
+    public MessageStream(Socket connectionSocket, boolean isServer, Thread parentThread, Logger logger, EnumSet<MessageCode> acceptedMessages, ReadMode readMode) throws IOException {
         this.inputStream = connectionSocket.getInputStream();
         this.outputStream = connectionSocket.getOutputStream();
         this.HEADER_SIZE = isServer ? Constants.REQUEST_HEADER_SIZE : RESPONSE_HEADER_SIZE;
+        this.headerBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
         this.parentThread = parentThread;
         this.logger = logger;
-        this.acceptedMessages = acceptedMessages;
+        this.decoder = new FrameDecoder(logger, acceptedMessages);
+        this.readMode = readMode;
+        if (readMode == ReadMode.BLOCKING) {
+            connectionSocket.setSoTimeout(SOCKET_READ_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Reads every following message into the given pool instead of new objects, so a message is only valid until the
+     * next one is read. Only for streams whose messages are handled one at a time.
+     *
+     * @param pool - the pool to read into, null to stop pooling
+     */
+    public void setMessagePool(MessagePool pool) {
+        this.pool = pool;
     }
 
     /**
      * A blocking call that will read from the socket's underlying stream to get the next message.
-     * We first examine the state of the stream to see if we have some data to read.
-     * If we do, we check how many bytes. If we have x>23 bytes waiting we are good to go and start reading.
-     * If we have 0<x<=9 bytes waiting, we wait for 100 more reads in case some data is still on the way.
+     * Depending on the {@link ReadMode} we either block on the socket until data arrives or spin until some data is available.
      * <p>
-     * Once done, we read the header data.
-     * We know if the data is a response by the first byte - if it's a 24 decimal and the next two bytes are one of the possible codes, it's a response,
+     * Once data arrives, we read the full header and then the full body, a single read from the socket might return only
+     * part of a message so we keep reading until we have all the bytes the header specified.
+     * Both are read into buffers owned by this stream, so the returned message must not depend on them.
      *
      * @return - A {@link ServerMessage} that was read from the stream.
+     * @throws EOFException         - in case the other side closed the connection.
+     * @throws InterruptedException - in case the parent thread was interrupted while waiting for a message.
      */
     public ServerMessage readNextMessage() throws InvalidMessageException, IOException, InterruptedException {
-        ServerMessageHeader messageHeader;
-        ServerMessageBody messageBody;
-
-        while (!parentThread.isInterrupted()) {
-            if (inputStream.available() > 0) {
-                break;
+        if (readMode == ReadMode.POLLING) {
+            while (!parentThread.isInterrupted()) {
+                if (inputStream.available() > 0) {
+                    break;
+                }
+            }
+            if (parentThread.isInterrupted()) {
+                throw new InterruptedException();
             }
-        }
-        if (parentThread.isInterrupted()) {
-            throw new InterruptedException();
         }
 
         // Read message header
-        byte[] headerBytes = new byte[HEADER_SIZE];
-        int readBytes = inputStream.read(headerBytes);
-
-        // No data is waiting on stream, stopping.
-        if (readBytes == -1) {
-//            logger.debug("No bytes waiting on stream.");
-            return null;
-        }
+        headerBuffer.clear();
+        readFully(headerBuffer);
 
-        if (readBytes != HEADER_SIZE) {
-            logger.error("Failed to read header, expected %d bytes but got %d", HEADER_SIZE, readBytes);
-            throw new InvalidMessageException(String.format("Failed to read header, expected %d bytes but got %d", HEADER_SIZE, readBytes));
-        }
-
-        try {
-            messageHeader = ServerMessageHeader.parseHeader(byteArrayToLEByteBuffer(headerBytes).array());
-        } catch (InvalidMessageCodeException e) {
-            logger.error(e);
-            throw new InvalidMessageException("Invalid message code provided.");
-        }
-
-        boolean acceptMessage = acceptedMessages == null;
-        if (acceptedMessages != null)
-            for (MessageCode code : acceptedMessages) {
-                acceptMessage |= messageHeader.getMessageCode().getCode() == code.getCode();
-            }
+        ServerMessageHeader messageHeader = decoder.decodeHeader(headerBuffer, pool);
 
-        if (!acceptMessage) {
+        int payloadSize = messageHeader.getPayloadSize();
+        if (!decoder.accepts(messageHeader)) {
             // Read all remaining data to clear the socket before exiting.
-            if (messageHeader.getPayloadSize() > 0) {
-                byte[] garbage = new byte[messageHeader.getPayloadSize()];
-                int ignored = inputStream.read(garbage);
-            }
-            logger.info("Received a message that should not accept: %s", messageHeader.getMessageCode().getMessageClass().getCanonicalName());
+            skipFully(payloadSize);
             return null;
         }
         // Now we read the body if one exists
-        int payloadSize = messageHeader.getPayloadSize();
-        byte[] bodyBytes = new byte[payloadSize];
+        ByteBuffer body = bodyBuffer.forSize(payloadSize);
         if (payloadSize != 0) {
             logger.debug("Reading payload for %d bytes", payloadSize);
-            readBytes = inputStream.read(bodyBytes);
-            if (readBytes != payloadSize) {
-                logger.error("Failed to read body, expected %d bytes, but got %d", payloadSize, readBytes);
-                return null;
-            }
+            readFully(body);
         }
 
-        MessageCode messageCode = messageHeader.getMessageCode();
-        Class<? extends ServerMessage> messageClass = messageCode.getMessageClass();
-        Class<? extends ServerMessageBody> bodyClass = messageCode.getBodyClass();
-        logger.debug("Trying to parse message body for code: %d ", messageCode.getCode());
-
-        /*
-         * Here we finish building a message according to the specified message class in MessageCode.
-         * We expect there to be a constructor of signature (ServerMessageHeader) or
-         * (ServerMessageHeader header, ServerMessageBody body).
-         */
-        ServerMessage receivedMessage;
-        try {
-            if (bodyClass != null && payloadSize > 0) {
-                messageBody = bodyClass.getConstructor().newInstance().parse(byteArrayToLEByteBuffer(bodyBytes).array());
-                receivedMessage = messageClass.getConstructor(ServerMessageHeader.class, messageCode.getBodyClass()).newInstance(messageHeader, messageCode.getBodyClass().cast(messageBody));
-            } else if (bodyClass != null) {
-                logger.error("Provided body type however no payload provided as part of the message.");
-                return null;
-            } else {
-                receivedMessage = messageClass.getConstructor(ServerMessageHeader.class).newInstance(messageHeader);
-            }
-        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
-            logger.errorToFileOnly("Failed to create new message class (please make sure the body has an empty constructor and the parse function!) due to: %s", e);
-            logger.error(e);
-            throw new InvalidMessageException(messageCode);
+        return decoder.decode(messageHeader, body, pool);
+    }
 
-        } catch (IOException | InvocationTargetException e) {
-            logger.error("Failed to read request body from input stream due to: %s", e);
-            logger.error(e);
-            return null;
-        } catch (Exception e) {
-            logger.error("Unknown error occurred: %s", e.getMessage());
-            logger.error(e);
-            return null;
+    /**
+     * Reads and drops a number of bytes from the stream, using the body buffer so we don't allocate for data we ignore.
+     *
+     * @param length - how many bytes to skip
+     */
+    private void skipFully(int length) throws IOException, InterruptedException {
+        while (length > 0) {
+            ByteBuffer chunk = bodyBuffer.forSize(Math.min(length, MAX_POOLED_FRAME_BUFFER_SIZE));
+            length -= chunk.remaining();
+            readFully(chunk);
         }
+    }
 
-        logger.debug("Received following message (%s):\n%s", receivedMessage.getClass().getCanonicalName(), bytesToHexString(receivedMessage.toLEByteArray()));
-        return receivedMessage;
+    /**
+     * Fills the buffer from its position up to its limit, a single read might return only part of what we need.
+     * The buffer's position is not moved, so once filled it is ready to be parsed.
+     *
+     * @param buffer - the buffer to fill, must be backed by an array.
+     * @throws EOFException         - in case the stream ended before the buffer was filled.
+     * @throws InterruptedException - in case the parent thread was interrupted while we waited for data.
+     */
+    private void readFully(ByteBuffer buffer) throws IOException, InterruptedException {
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int length = buffer.remaining();
+        int offset = 0;
+        while (offset < length) {
+            int readBytes;
+            try {
+                readBytes = inputStream.read(array, start + offset, length - offset);
+            } catch (SocketTimeoutException e) {
+                // Nothing arrived in time, this is our chance to check if we should stop waiting.
+                if (parentThread.isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                continue;
+            }
+            if (readBytes == -1) {
+                throw new EOFException(String.format("Stream closed after reading %d out of %d bytes", offset, length));
+            }
+            offset += readBytes;
+        }
     }
 
     /**
      * Sends a message over the stream.
+     * The message is encoded into a buffer owned by this stream and written with a single call.
      *
      * @param message - the message to send
      * @return - true if it was successfully sent, false otherwise.
      */
     public boolean sendMessage(ServerMessage message) {
         try {
-            outputStream.write(message.toLEByteArray());
+            ByteBuffer encoded = sendBuffer.forSize(message.getEncodedSize());
+            message.writeTo(encoded);
+            outputStream.write(encoded.array(), encoded.arrayOffset(), encoded.position());
             return true;
         } catch (InvalidMessageException e) {
             logger.error(e);
@@ -0,0 +1,18 @@
+package kerbefake.common;
+
+/**
+ * The engine a server uses to serve its connections, see {@link ServerConfig#createServer}.
+ */
+public interface NetworkServer {
+
+    /**
+     * Binds and serves connections until {@link #stop()} is called or the calling thread is interrupted.
+     * Before returning all open connections are closed.
+     */
+    void run();
+
+    /**
+     * Stops serving connections and waits for {@link #run()} to finish shutting down.
+     */
+    void stop();
+}
@@ -0,0 +1,358 @@
+package kerbefake.common;
+
+import kerbefake.common.entities.PrincipalId;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of key objects ready to be used by {@link CryptoUtils}, by the ID of the principal the key belongs to.
+ * <p>
+ * Keys are held in a concurrent map so lookups take no lock. Every key records when it was last used, and once the
+ * cache grows past its capacity the least recently used keys are evicted in a batch (down to
+ * {@link #EVICTION_HEADROOM} of the capacity below it), so the LRU order is approximate but no lookup has to maintain it.
+ * <p>
+ * Keys are leased (see {@link PreparedKey#acquire()}): a key which is evicted, replaced or invalidated is only zeroed
+ * once the last operation using it released it, so an operation never sees its key zeroed midway.
+ * <p>
+ * Lookups are given the current key bytes of the principal, in case they don't match the cached key (the key was
+ * rotated) the cached key is replaced, so a stale key is never returned even if it was not invalidated.
+ */
+public final class PreparedKeyCache {
+
+    /**
+     * The kinds of keys we cache, each has its own cache.
+     */
+    public enum KeyType {
+        /**
+         * The password hash of a client, by client ID.
+         */
+        CLIENT,
+        /**
+         * The symmetric key of a message server, by server ID.
+         */
+        SERVER
+    }
+
+    /**
+     * An eviction pass evicts down to the capacity minus this fraction of it, so passes are rare while keys churn.
+     */
+    private static final double EVICTION_HEADROOM = 0.125;
+
+    private static final Map<KeyType, PreparedKeyCache> instances = new EnumMap<>(KeyType.class);
+
+    static {
+        int capacity = ServerConfig.getKeyCacheSize();
+        for (KeyType type : KeyType.values()) {
+            instances.put(type, new PreparedKeyCache(type.name(), capacity));
+        }
+    }
+
+    public static PreparedKeyCache getInstance(KeyType type) {
+        return instances.get(type);
+    }
+
+    private final String name;
+
+    private final int capacity;
+
+    private final ConcurrentHashMap<PrincipalId, PreparedKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Only one thread evicts at a time, others which find the cache full keep going.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param name     - the name of the cache, used when logging its stats
+     * @param capacity - how many keys to keep
+     */
+    public PreparedKeyCache(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("Key cache capacity must be positive.");
+        }
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the prepared key of a principal, preparing it in case it isn't cached. The key is leased to the caller, which
+     * must {@link PreparedKey#release()} it once done with it.
+     *
+     * @param principalId - the ID of the principal the key belongs to
+     * @param key         - the current key bytes of the principal, these are copied
+     * @return the prepared key
+     */
+    public PreparedKey acquire(PrincipalId principalId, byte[] key) {
+        PreparedKey cached = keys.get(principalId);
+        if (cached != null && cached.matches(key) && cached.acquire()) {
+            cached.touch();
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        PreparedKey prepared = new PreparedKey(key);
+        prepared.acquire();
+        PreparedKey previous = keys.put(principalId, prepared);
+        if (previous != null) {
+            // The key was rotated without invalidating it, or another thread prepared it meanwhile.
+            previous.destroy();
+        }
+        if (keys.size() > capacity) {
+            evict();
+        }
+        return prepared;
+    }
+
+    /**
+     * Prepares a key which isn't cached, for keys that have an owner which zeroes them once they are no longer used
+     * (e.g. the session keys held by {@link kerbefake.msg_server.KnownSessions}).
+     *
+     * @param key - the key bytes, these are copied
+     * @return the prepared key
+     */
+    public static PreparedKey prepare(byte[] key) {
+        return new PreparedKey(key);
+    }
+
+    /**
+     * Removes and zeroes the key of a principal, should be called whenever the key of a principal changes.
+     *
+     * @param principalId - the ID of the principal
+     */
+    public void invalidate(PrincipalId principalId) {
+        PreparedKey removed = keys.remove(principalId);
+        if (removed != null) {
+            removed.destroy();
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Removes and zeroes all keys.
+     */
+    public void clear() {
+        for (PrincipalId principalId : keys.keySet()) {
+            invalidate(principalId);
+        }
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return the fraction of lookups that found the key in the cache, 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Logs the size and hit rate of the cache, so the capacity can be tuned to the amount of principals.
+     *
+     * @param logger - the logger to log to
+     */
+    public void logStats(Logger logger) {
+        logger.info("Prepared %s keys: size=%d/%d hits=%d misses=%d hit rate=%.3f evictions=%d invalidations=%d",
+                name, size(), capacity, getHits(), getMisses(), getHitRate(), getEvictions(), getInvalidations());
+    }
+
+    /**
+     * Evicts the least recently used keys while the cache is over its capacity. A thread which adds a key while another
+     * evicts leaves it to the evicting thread, which checks the size again once done.
+     */
+    private void evict() {
+        while (keys.size() > capacity && evictionLock.tryLock()) {
+            try {
+                evictLeastRecentlyUsed();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used keys until the cache is {@link #EVICTION_HEADROOM} below its capacity, called while
+     * holding the eviction lock.
+     */
+    private void evictLeastRecentlyUsed() {
+        int target = capacity - (int) (capacity * EVICTION_HEADROOM);
+        int excess = keys.size() - target;
+        if (keys.size() <= capacity || excess <= 0) {
+            return;
+        }
+        // Keys keep being used while we look, so take a copy of when each was used and evict by the copy.
+        List<PrincipalId> ids = new ArrayList<>(keys.size());
+        List<PreparedKey> values = new ArrayList<>(keys.size());
+        for (Map.Entry<PrincipalId, PreparedKey> entry : keys.entrySet()) {
+            ids.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        excess = Math.min(excess, values.size());
+        if (excess <= 0) {
+            // Keys were invalidated meanwhile.
+            return;
+        }
+        long[] lastUsed = new long[values.size()];
+        for (int i = 0; i < lastUsed.length; i++) {
+            lastUsed[i] = values.get(i).lastUsed;
+        }
+        long[] sorted = lastUsed.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[excess - 1];
+        for (int i = 0; i < lastUsed.length && excess > 0; i++) {
+            if (lastUsed[i] <= threshold && keys.remove(ids.get(i), values.get(i))) {
+                values.get(i).destroy();
+                evictions.increment();
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * An AES key which can be zeroed, unlike {@link javax.crypto.spec.SecretKeySpec}.
+     * <p>
+     * The owner of the key (the cache, or whoever called {@link #prepare(byte[])}) holds a lease on it from the start, other
+     * users lease it with {@link #acquire()} for the duration of an operation. {@link #destroy()} drops the owner's lease,
+     * and the key is zeroed once the last lease is released. Once zeroed {@link #getEncoded()} throws, so a cipher is never
+     * initialized with a zeroed key.
+     */
+    public static final class PreparedKey implements SecretKey {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+
+        /**
+         * How many leases are held, the key is zeroed once this reaches 0 and is never leased again.
+         */
+        private final AtomicInteger leases = new AtomicInteger(1);
+
+        private final AtomicBoolean destroyed = new AtomicBoolean(false);
+
+        /**
+         * When the key was last returned from the cache, see {@link System#nanoTime()}.
+         */
+        private volatile long lastUsed = System.nanoTime();
+
+        private PreparedKey(byte[] key) {
+            this.key = key.clone();
+        }
+
+        boolean matches(byte[] other) {
+            return !destroyed.get() && Arrays.equals(key, other);
+        }
+
+        void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Leases the key, so it isn't zeroed until the lease is released with {@link #release()}.
+         *
+         * @return true if the key was leased, false if it was already zeroed.
+         */
+        public boolean acquire() {
+            while (true) {
+                int current = leases.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (leases.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Releases a lease taken with {@link #acquire()}, zeroing the key in case it was destroyed and this was the last lease.
+         */
+        public void release() {
+            int remaining = leases.decrementAndGet();
+            if (remaining == 0) {
+                Arrays.fill(key, (byte) 0);
+            } else if (remaining < 0) {
+                throw new RuntimeException("Prepared key released more times than it was acquired.");
+            }
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            byte[] encoded = key.clone();
+            if (leases.get() == 0) {
+                // We might have copied the key while it was being zeroed.
+                Arrays.fill(encoded, (byte) 0);
+                throw new IllegalStateException("Key was destroyed.");
+            }
+            return encoded;
+        }
+
+        /**
+         * Drops the owner's lease, the key is zeroed once no operation is using it. Unlike
+         * {@link javax.security.auth.Destroyable#destroy()} this never fails, and only the first call has any effect.
+         */
+        @Override
+        public void destroy() {
+            if (destroyed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return destroyed.get();
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package kerbefake.common;
+
+import kerbefake.common.entities.MessagePool;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerMessageHeader;
+import kerbefake.common.errors.InvalidMessageException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static kerbefake.common.Constants.REQUEST_HEADER_SIZE;
+import static kerbefake.common.Constants.SERVER_SHUTDOWN_TIMEOUT_MS;
+import static kerbefake.common.Constants.SOCKET_READ_TIMEOUT_MS;
+
+/**
+ * A server engine built on {@link Selector}s, instead of a thread per connection, a small number of event loops frame
+ * the requests of all connections and the requests are executed on a worker pool.
+ * <p>
+ * The calling thread accepts connections and hands them to the event loops in a round-robin manner, the server runs
+ * until it is stopped or the calling thread is interrupted, same as the {@link ThreadedServer}.
+ * <p>
+ * Requests of a single connection are executed one at a time in the order they arrived, so responses are sent in the
+ * same order the requests were sent. Multiplexed connections execute the requests of different clients concurrently,
+ * see {@link ClientLanes}, while still sending the responses in order.
+ */
+public final class ReactorServer implements NetworkServer {
+
+    private final Logger logger;
+
+    private final RequestProcessor processor;
+
+    private final InetSocketAddress address;
+
+    private final FrameDecoder decoder;
+
+    private final EventLoop[] eventLoops;
+
+    private final ExecutorService workers;
+
+    /**
+     * Whether connections are multiplexed, in which case each has its own {@link ClientLanes}.
+     */
+    private final boolean multiplexed;
+
+    private final int maxInFlight;
+
+    /**
+     * Whether connections which aren't multiplexed read their requests into a {@link MessagePool}.
+     */
+    private final boolean pooledMessages;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+
+    private volatile boolean started = false;
+
+    public ReactorServer(Logger logger, RequestProcessor processor, InetSocketAddress address) {
+        this(logger, processor, address, ServerConfig.getEventLoopCount(), ServerConfig.getWorkerCount());
+    }
+
+    /**
+     * Creates a new reactor server, nothing is started until {@link #run()} is called.
+     *
+     * @param logger      - the logger of the server
+     * @param processor   - the processor which executes the requests
+     * @param address     - the address to bind to
+     * @param eventLoops  - how many event loop threads to use
+     * @param workerCount - how many threads to use to execute requests
+     */
+    public ReactorServer(Logger logger, RequestProcessor processor, InetSocketAddress address, int eventLoops, int workerCount) {
+        if (processor == null) {
+            throw new RuntimeException("No request processor provided!");
+        }
+        if (eventLoops <= 0 || workerCount <= 0) {
+            throw new RuntimeException("Reactor server requires at least one event loop and one worker.");
+        }
+        this.logger = logger;
+        this.processor = processor;
+        this.address = address;
+        this.decoder = new FrameDecoder(logger, processor.getAcceptedMessages());
+        this.eventLoops = new EventLoop[eventLoops];
+        this.workers = Executors.newFixedThreadPool(workerCount, ServerConfig.daemonThreadFactory("reactor-worker-"));
+        this.multiplexed = ServerConfig.isMultiplexed();
+        this.maxInFlight = ServerConfig.getMaxInFlight();
+        this.pooledMessages = !multiplexed && ServerConfig.isMessagePooling();
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        try {
+            serve();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (!started) {
+            return;
+        }
+        try {
+            stopped.await(SERVER_SHUTDOWN_TIMEOUT_MS + SOCKET_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        ServerSocketChannel serverChannel;
+        Selector acceptSelector;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            logger.error("Failed to create or bind socket to %s, due to: %s", address, e);
+            workers.shutdownNow();
+            return;
+        }
+
+        ThreadFactory loopThreads = ServerConfig.daemonThreadFactory("reactor-loop-");
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop();
+                loopThreads.newThread(eventLoops[i]).start();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open selector for event loop due to: %s", e);
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Serving on %s with %d event loops%s", address, eventLoops.length, multiplexed ? ", multiplexed" : "");
+
+        int nextLoop = 0;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                // Wakes up every so often to check if we were interrupted.
+                if (acceptSelector.select(SOCKET_READ_TIMEOUT_MS) == 0) {
+                    continue;
+                }
+                acceptSelector.selectedKeys().clear();
+                SocketChannel incoming;
+                while ((incoming = serverChannel.accept()) != null) {
+                    incoming.configureBlocking(false);
+                    eventLoops[nextLoop].register(incoming);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                }
+            } catch (ClosedByInterruptException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("Failed to accept connection due to: %s", e);
+            }
+        }
+
+        // The event loops close their connections once they stop, requests still executing are interrupted.
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+        workers.shutdownNow();
+
+        try {
+            acceptSelector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close socket due to: %s", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A single thread which owns a selector and performs all the reads and writes of the connections registered to it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        /**
+         * Connections waiting to be registered with the selector, registering must happen on the loop's thread.
+         */
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Connections which have responses waiting to be written.
+         */
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean running = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = pendingRegistrations.poll()) != null) {
+                        try {
+                            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                            key.attach(new Connection(this, channel, key));
+                        } catch (IOException e) {
+                            logger.error("Failed to register connection due to: %s", e);
+                            closeQuietly(channel);
+                        }
+                    }
+
+                    Connection writer;
+                    while ((writer = pendingWrites.poll()) != null) {
+                        writer.enableWrites();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            logger.debug("Closing connection due to: %s", e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.error("Event loop failed due to: %s", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error("Failed to close selector due to: %s", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a single connection, reads and writes happen only on the event loop thread, while requests are
+     * executed on the worker pool one at a time.
+     * <p>
+     * Requests are decoded on the event loop as soon as they are read, so the buffers they are read into are reused for
+     * the next request of the connection. We stop reading once {@link ServerConfig#getMaxInFlight()} requests wait for
+     * their response to be written to the socket, so a client which doesn't read its responses can't queue requests or
+     * responses without bound. In case requests are read into a {@link MessagePool} the next request is only read once
+     * the response of the previous one is written, since both share the same objects.
+     */
+    private final class Connection {
+
+        private final EventLoop loop;
+
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        private final ByteBuffer headerBuffer = ByteBuffer.allocate(REQUEST_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final FrameBuffer bodyBuffers = new FrameBuffer();
+
+        /**
+         * The header of the request we are currently reading the body for, null if we are reading a header.
+         */
+        private ServerMessageHeader currentHeader;
+
+        private ByteBuffer bodyBuffer;
+
+        /**
+         * Decoded requests waiting to be executed, requests that failed to decode are queued as the unknown failure
+         * response so the failure is sent in order.
+         */
+        private final Queue<ServerMessage> inbound = new ConcurrentLinkedQueue<>();
+
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Whether a worker is currently scheduled to execute a request of this connection.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /**
+         * Executes the requests of a multiplexed connection, null if the connection isn't multiplexed.
+         */
+        private final ClientLanes lanes;
+
+        /**
+         * The pool requests are read into, null if requests are read into new objects.
+         */
+        private final MessagePool pool;
+
+        /**
+         * How many requests of the connection are waiting for their response to be written, i.e. the requests being
+         * executed along with the responses in {@link #outbound}.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * How many requests may be in flight before we stop reading, a single one for a pooled connection.
+         */
+        private final int inFlightLimit;
+
+        /**
+         * Whether we stopped reading since too many requests are in flight, only accessed on the event loop thread.
+         */
+        private boolean readsPaused = false;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.lanes = multiplexed ? new ClientLanes(workers, processor, this::respond) : null;
+            this.pool = pooledMessages ? new MessagePool() : null;
+            this.inFlightLimit = pool != null ? 1 : maxInFlight;
+        }
+
+        void onReadable() throws IOException {
+            while (!readsPaused) {
+                ByteBuffer target = currentHeader == null ? headerBuffer : bodyBuffer;
+                int read = channel.read(target);
+                if (read == -1) {
+                    logger.debug("Connection closed by the other side.");
+                    close();
+                    return;
+                }
+                if (target.hasRemaining()) {
+                    // Wait for the rest of the frame to arrive.
+                    return;
+                }
+
+                if (currentHeader == null) {
+                    onHeader();
+                } else {
+                    bodyBuffer.flip();
+                    onFrame(currentHeader, bodyBuffer);
+                    currentHeader = null;
+                    bodyBuffer = null;
+                }
+            }
+        }
+
+        private void onHeader() {
+            headerBuffer.flip();
+            ServerMessageHeader header;
+            try {
+                header = decoder.decodeHeader(headerBuffer, pool);
+            } catch (InvalidMessageException e) {
+                logger.error("Failed to read the next message provided due to: %s", e.getMessage());
+                enqueue(processor.getUnknownFailure());
+                return;
+            } finally {
+                headerBuffer.clear();
+            }
+
+            if (header.getPayloadSize() == 0) {
+                onFrame(header, bodyBuffers.forSize(0));
+                return;
+            }
+            logger.debug("Reading payload for %d bytes", header.getPayloadSize());
+            currentHeader = header;
+            bodyBuffer = bodyBuffers.forSize(header.getPayloadSize());
+        }
+
+        private void onFrame(ServerMessageHeader header, ByteBuffer body) {
+            ServerMessage message = null;
+            if (decoder.accepts(header)) {
+                try {
+                    message = decoder.decode(header, body, pool);
+                } catch (InvalidMessageException e) {
+                    logger.error("Failed to read the next message provided due to: %s", e.getMessage());
+                }
+            }
+            enqueue(message == null ? processor.getUnknownFailure() : message);
+        }
+
+        private void enqueue(ServerMessage message) {
+            if (inFlight.incrementAndGet() >= inFlightLimit) {
+                // Stop reading until some responses are written, onWritable resumes reading.
+                readsPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (lanes != null) {
+                lanes.dispatch(message);
+                return;
+            }
+            inbound.add(message);
+            schedule();
+        }
+
+        private void schedule() {
+            if (inbound.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                workers.execute(this::executeNext);
+            } catch (RejectedExecutionException e) {
+                // The server is shutting down.
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * Executes a single request and schedules the next one, so a busy connection does not starve the others.
+         */
+        private void executeNext() {
+            ServerMessage message = inbound.poll();
+            try {
+                if (message != null) {
+                    respond(message == processor.getUnknownFailure() ? message : processor.process(message));
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+
+        private void respond(ServerMessage response) {
+            try {
+                // Encoded straight into the buffer we hand to the socket, sized up front so nothing is copied.
+                ByteBuffer encoded = ByteBuffer.allocate(response.getEncodedSize());
+                response.writeTo(encoded);
+                encoded.flip();
+                outbound.add(encoded);
+            } catch (InvalidMessageException e) {
+                logger.error(e);
+                logger.error("Failed to send message to user.");
+                // Nothing will be written for this request, onWritable still runs and resumes reading if needed.
+                inFlight.decrementAndGet();
+            }
+            loop.requestWrite(this);
+        }
+
+        void enableWrites() {
+            if (!key.isValid()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Writes as many queued responses as the socket takes, a request stops being in flight once its response is fully
+         * written.
+         */
+        void onWritable() throws IOException {
+            ByteBuffer next;
+            while ((next = outbound.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    // The socket's buffer is full, we'll continue once it is writable again.
+                    resumeReadsIfBelowLimit();
+                    return;
+                }
+                outbound.poll();
+                inFlight.decrementAndGet();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            resumeReadsIfBelowLimit();
+        }
+
+        private void resumeReadsIfBelowLimit() {
+            if (readsPaused && inFlight.get() < inFlightLimit) {
+                readsPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+            inbound.clear();
+            outbound.clear();
+        }
+    }
+
+    private void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close socket due to: %s", e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package kerbefake.common;
+
+import kerbefake.auth_server.entities.responses.FailureResponse;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerRequest;
+import kerbefake.common.errors.InvalidMessageException;
+
+import java.util.EnumSet;
+
+/**
+ * Processes the requests a server receives, regardless of the engine used to read them from the network.
+ * Each server provides its own processor which defines which messages it accepts and how a message is prepared before execution.
+ */
+public abstract class RequestProcessor {
+
+    private final Logger logger;
+
+    /**
+     * Which messages this processor accepts.
+     */
+    private final EnumSet<MessageCode> acceptedMessages;
+
+    private final FailureResponse unknownFailure = FailureResponse.createUnknownFailureResponse();
+
+    protected RequestProcessor(Logger logger, EnumSet<MessageCode> acceptedMessages) {
+        if (logger == null) {
+            throw new RuntimeException("No logger provided!");
+        }
+        if (acceptedMessages == null) {
+            throw new RuntimeException("Request processors must specify which messages they accept");
+        }
+        this.logger = logger;
+        this.acceptedMessages = acceptedMessages;
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public EnumSet<MessageCode> getAcceptedMessages() {
+        return acceptedMessages;
+    }
+
+    /**
+     * @return the response sent whenever a request can't be read or processed.
+     */
+    public FailureResponse getUnknownFailure() {
+        return unknownFailure;
+    }
+
+    /**
+     * Process the message before we execute the request provided
+     *
+     * @param message - the message to process before execution.
+     * @param <T>     - Some type that is a server message and is a server request that can be executed.
+     * @return - an object after processing.
+     */
+    public abstract <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message);
+
+    /**
+     * Gets the response to send in case {@link #processMessageBeforeExecution(ServerMessage)} rejected a request, servers
+     * may override this to tell the client why.
+     *
+     * @param message - the rejected request
+     * @return the response to send back to the client.
+     */
+    protected ServerMessage rejectionFor(ServerMessage message) {
+        return unknownFailure;
+    }
+
+    /**
+     * Prepares and executes a single request.
+     *
+     * @param message - the message that was read from the client.
+     * @return the response to send back to the client, {@link #getUnknownFailure()} in case the request could not be executed.
+     */
+    public ServerMessage process(ServerMessage message) {
+        if (!(message instanceof ServerRequest)) {
+            logger.error("Got a non server request message, can't handle.");
+            return unknownFailure;
+        }
+
+        try {
+            ServerMessage processedMessage = processMessageBeforeExecution((ServerMessage & ServerRequest) message);
+            if (processedMessage == null) {
+                logger.error("Failure processing request before execution, can't proceed.");
+                return rejectionFor(message);
+            }
+            return ((ServerRequest) processedMessage).execute();
+        } catch (InvalidMessageException | RuntimeException e) {
+            logger.error(e);
+            logger.error("Failed to execute server request due to: %s", e.getMessage());
+            return unknownFailure;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package kerbefake.common;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static kerbefake.common.Constants.RANDOM_POOL_STRIPE_SIZE;
+import static kerbefake.common.Logger.commonLogger;
+
+/**
+ * A source of secure random bytes that many threads can draw from at once.
+ * <p>
+ * A single {@link SecureRandom} is synchronized, so threads generating keys, IVs and IDs at the same time wait for each
+ * other. Instead, the pool is split into stripes, each with its own generator, and a thread always draws from the stripe
+ * of its thread ID. Every stripe keeps a buffer of bytes ready which a background thread refills once it runs low, so
+ * most draws are a copy. In case a stripe's buffer doesn't have enough bytes the caller generates them directly from the
+ * stripe's generator.
+ * <p>
+ * Bytes are zeroed in the buffer once they are handed out, so no bytes are ever handed out twice.
+ */
+public final class SecureRandomPool {
+
+    private static final SecureRandomPool instance = new SecureRandomPool(Runtime.getRuntime().availableProcessors() * 2, RANDOM_POOL_STRIPE_SIZE);
+
+    public static SecureRandomPool getInstance() {
+        return instance;
+    }
+
+    private final Stripe[] stripes;
+
+    private final int stripeMask;
+
+    /**
+     * The stripes that ran low and wait for the refiller.
+     */
+    private final BlockingQueue<Stripe> refills = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a new pool, its refiller thread is a daemon so it never keeps the process alive.
+     *
+     * @param stripes    - how many stripes to use, rounded up to a power of 2
+     * @param stripeSize - how many bytes each stripe keeps ready
+     */
+    public SecureRandomPool(int stripes, int stripeSize) {
+        if (stripes <= 0 || stripeSize <= 0) {
+            throw new RuntimeException("Random pool stripes and stripe size must be positive.");
+        }
+        int count = Integer.highestOneBit(stripes);
+        if (count < stripes) {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(stripeSize);
+        }
+        this.stripeMask = count - 1;
+        ServerConfig.daemonThreadFactory("SecureRandomPoolRefiller-").newThread(this::refill).start();
+    }
+
+    /**
+     * Fills an array with secure random bytes.
+     *
+     * @param bytes - the array to fill
+     */
+    public void nextBytes(byte[] bytes) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        if (stripe.take(bytes)) {
+            refills.add(stripe);
+        }
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Runs on the refiller thread, refills stripes as they run low.
+     */
+    private void refill() {
+        while (true) {
+            try {
+                refills.take().refill();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Callers still get bytes directly from the stripe's generator, keep refilling the others.
+                commonLogger.error(e);
+                commonLogger.error("Failed to refill random pool due to: %s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the generator of a stripe, each generator has its own state and lock. DRBG is only available from Java 9,
+     * before that SHA1PRNG is the generator that does not share state between instances.
+     */
+    private static SecureRandom newGenerator() {
+        for (String algorithm : new String[]{"DRBG", "SHA1PRNG"}) {
+            try {
+                return SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ignored) {
+            }
+        }
+        return new SecureRandom();
+    }
+
+    /**
+     * A generator with its buffer of ready bytes, the buffer is guarded by the stripe's lock.
+     */
+    private static final class Stripe {
+
+        private final SecureRandom generator = newGenerator();
+
+        private final byte[] buffer;
+
+        /**
+         * The ready bytes are at the start of the buffer, up to this index.
+         */
+        private int available = 0;
+
+        private boolean refillRequested = false;
+
+        Stripe(int size) {
+            this.buffer = new byte[size];
+        }
+
+        /**
+         * Fills an array from the buffer, or from the generator in case the buffer doesn't have enough bytes.
+         *
+         * @param bytes - the array to fill
+         * @return true if the stripe ran low and should be refilled, false otherwise.
+         */
+        synchronized boolean take(byte[] bytes) {
+            if (bytes.length <= available) {
+                available -= bytes.length;
+                System.arraycopy(buffer, available, bytes, 0, bytes.length);
+                Arrays.fill(buffer, available, available + bytes.length, (byte) 0);
+            } else {
+                generator.nextBytes(bytes);
+            }
+            if (!refillRequested && available < buffer.length / 4) {
+                refillRequested = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Tops up the buffer, the bytes are generated without holding the lock so callers aren't blocked meanwhile.
+         */
+        void refill() {
+            int missing;
+            synchronized (this) {
+                missing = buffer.length - available;
+            }
+            byte[] fresh = new byte[missing];
+            generator.nextBytes(fresh);
+            synchronized (this) {
+                // Bytes may only have been taken since we checked, so all the fresh bytes fit.
+                System.arraycopy(fresh, 0, buffer, available, missing);
+                available += missing;
+                refillRequested = false;
+            }
+            Arrays.fill(fresh, (byte) 0);
+        }
+    }
+}
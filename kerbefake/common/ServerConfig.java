@@ -0,0 +1,198 @@
+package kerbefake.common;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static kerbefake.common.Constants.DEFAULT_KEY_CACHE_SIZE;
+import static kerbefake.common.Constants.DEFAULT_MAX_CONNECTIONS;
+import static kerbefake.common.Constants.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+import static kerbefake.common.Logger.commonLogger;
+
+/**
+ * Startup configuration shared by the servers, read from system properties (e.g. {@code -Dkerbefake.server.engine=reactor}).
+ */
+public final class ServerConfig {
+
+    /**
+     * Which engine to use to serve connections, either "threads" (default) or "reactor".
+     */
+    public static final String ENGINE_PROPERTY = "kerbefake.server.engine";
+
+    /**
+     * How many event loop threads the reactor engine uses.
+     */
+    public static final String EVENT_LOOPS_PROPERTY = "kerbefake.server.eventLoops";
+
+    /**
+     * How many worker threads the reactor engine uses to execute requests.
+     */
+    public static final String WORKERS_PROPERTY = "kerbefake.server.workers";
+
+    /**
+     * How many connections the threads engine serves at once.
+     */
+    public static final String MAX_CONNECTIONS_PROPERTY = "kerbefake.server.maxConnections";
+
+    /**
+     * Whether connections are multiplexed, i.e. carry the requests of many clients (e.g. from a gateway), see {@link ClientLanes}.
+     */
+    public static final String MULTIPLEX_PROPERTY = "kerbefake.server.multiplex";
+
+    /**
+     * How many requests of a multiplexed connection, or of any connection of the reactor server, may wait for their
+     * response to be written to the socket before we stop reading from it.
+     */
+    public static final String MAX_IN_FLIGHT_PROPERTY = "kerbefake.server.maxInFlight";
+
+    /**
+     * How many keys of each kind are kept prepared for use, see {@link PreparedKeyCache}.
+     */
+    public static final String KEY_CACHE_SIZE_PROPERTY = "kerbefake.server.keyCacheSize";
+
+    /**
+     * How the auth server stores its clients, either "text" (default) or "binary".
+     */
+    public static final String CLIENTS_STORE_PROPERTY = "kerbefake.server.clientsStore";
+
+    /**
+     * Whether connections which aren't multiplexed read their requests into a {@link kerbefake.common.entities.MessagePool},
+     * reusing the same message objects for every request instead of allocating new ones.
+     */
+    public static final String POOLED_MESSAGES_PROPERTY = "kerbefake.server.pooledMessages";
+
+    /**
+     * The engines a server can use to serve its connections.
+     */
+    public enum Engine {
+        /**
+         * A blocking accept loop with a thread for each connection, see {@link ThreadedServer}.
+         */
+        THREADS,
+        /**
+         * A small number of selector based event loops with requests executed on a worker pool, see {@link ReactorServer}.
+         */
+        REACTOR
+    }
+
+    /**
+     * The formats the auth server can store its clients in.
+     */
+    public enum ClientsStoreType {
+        /**
+         * The text clients file, read fully at startup.
+         */
+        TEXT,
+        /**
+         * A memory mapped binary file, converted from the text clients file in case it doesn't exist yet.
+         */
+        BINARY
+    }
+
+    private ServerConfig() {
+    }
+
+    public static Engine getEngine() {
+        String engine = System.getProperty(ENGINE_PROPERTY);
+        if (engine == null || engine.isEmpty()) {
+            return Engine.THREADS;
+        }
+        for (Engine e : Engine.values()) {
+            if (e.name().equalsIgnoreCase(engine)) {
+                return e;
+            }
+        }
+        commonLogger.error("Unknown server engine %s, using %s", engine, Engine.THREADS);
+        return Engine.THREADS;
+    }
+
+    public static ClientsStoreType getClientsStoreType() {
+        String type = System.getProperty(CLIENTS_STORE_PROPERTY);
+        if (type == null || type.isEmpty()) {
+            return ClientsStoreType.TEXT;
+        }
+        for (ClientsStoreType t : ClientsStoreType.values()) {
+            if (t.name().equalsIgnoreCase(type)) {
+                return t;
+            }
+        }
+        commonLogger.error("Unknown clients store %s, using %s", type, ClientsStoreType.TEXT);
+        return ClientsStoreType.TEXT;
+    }
+
+    /**
+     * Creates the server engine selected at startup.
+     *
+     * @param logger           - the logger of the server
+     * @param processor        - the processor which executes the requests
+     * @param address          - the address to bind to
+     * @param threadNamePrefix - the prefix of the names of the connection threads
+     * @return the engine, which is started by calling {@link NetworkServer#run()}
+     */
+    public static NetworkServer createServer(Logger logger, RequestProcessor processor, InetSocketAddress address, String threadNamePrefix) {
+        if (getEngine() == Engine.REACTOR) {
+            return new ReactorServer(logger, processor, address);
+        }
+        return new ThreadedServer(logger, processor, address, threadNamePrefix);
+    }
+
+    public static int getEventLoopCount() {
+        return getPositiveInt(EVENT_LOOPS_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public static int getWorkerCount() {
+        return getPositiveInt(WORKERS_PROPERTY, Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    public static int getMaxConnections() {
+        return getPositiveInt(MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public static boolean isMultiplexed() {
+        return Boolean.parseBoolean(System.getProperty(MULTIPLEX_PROPERTY));
+    }
+
+    public static boolean isMessagePooling() {
+        return Boolean.parseBoolean(System.getProperty(POOLED_MESSAGES_PROPERTY));
+    }
+
+    public static int getMaxInFlight() {
+        return getPositiveInt(MAX_IN_FLIGHT_PROPERTY, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+    }
+
+    public static int getKeyCacheSize() {
+        return getPositiveInt(KEY_CACHE_SIZE_PROPERTY, DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * Creates daemon threads named with a prefix and a running counter, used for the worker pools and background tasks
+     * of the servers.
+     *
+     * @param prefix - the prefix of the names of the threads
+     * @return the thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static int getPositiveInt(String property, int defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        commonLogger.error("Invalid value for %s (%s), using %d", property, value, defaultValue);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,122 @@
+package kerbefake.common;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static kerbefake.common.Constants.SERVER_SHUTDOWN_TIMEOUT_MS;
+import static kerbefake.common.Constants.SOCKET_READ_TIMEOUT_MS;
+
+/**
+ * A blocking accept loop which serves each connection with a {@link ConnectionHandler} on its own thread, see {@link ConnectionExecutor}.
+ * When connections are multiplexed their requests are executed on a shared worker pool, see {@link ClientLanes}.
+ */
+public final class ThreadedServer implements NetworkServer {
+
+    private final Logger logger;
+
+    private final RequestProcessor processor;
+
+    private final InetSocketAddress address;
+
+    private final ConnectionExecutor executor;
+
+    /**
+     * Executes the requests of multiplexed connections, null if connections aren't multiplexed.
+     */
+    private final ExecutorService workers;
+
+    private final int maxInFlight;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+
+    private volatile boolean started = false;
+
+    public ThreadedServer(Logger logger, RequestProcessor processor, InetSocketAddress address, String threadNamePrefix) {
+        if (processor == null) {
+            throw new RuntimeException("No request processor provided!");
+        }
+        this.logger = logger;
+        this.processor = processor;
+        this.address = address;
+        this.executor = new ConnectionExecutor(logger, threadNamePrefix);
+        this.workers = ServerConfig.isMultiplexed() ? Executors.newFixedThreadPool(ServerConfig.getWorkerCount(), ServerConfig.daemonThreadFactory(threadNamePrefix + "worker-")) : null;
+        this.maxInFlight = ServerConfig.getMaxInFlight();
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        try {
+            serve();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void serve() {
+        ServerSocket socket;
+        try {
+            socket = ServerSocketFactory.getDefault().createServerSocket();
+            socket.bind(address);
+            socket.setSoTimeout(SOCKET_READ_TIMEOUT_MS); // Wake up every so often to check if we should stop.
+        } catch (IOException e) {
+            logger.error("Failed to create or bind socket to %s, due to: %s", address, e);
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            return;
+        }
+
+        while (running && !Thread.currentThread().isInterrupted()) {
+            Socket conn;
+            try {
+                conn = socket.accept();
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                logger.error("Failed to accept new connection due to: %s", e);
+                continue; // We hope this is fixed on its own.
+            }
+
+            executor.submit(conn, new ConnectionHandler(conn, processor, workers, maxInFlight));
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("Failed to close socket due to: %s", e);
+        }
+        // Connections wait for their queued requests before exiting, so the workers are only stopped after them.
+        executor.shutdown(SERVER_SHUTDOWN_TIMEOUT_MS);
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (!started) {
+            return;
+        }
+        try {
+            stopped.await(SERVER_SHUTDOWN_TIMEOUT_MS + SOCKET_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public ConnectionExecutor getExecutor() {
+        return executor;
+    }
+}
@@ -0,0 +1,248 @@
+package kerbefake.common;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel, schedules values to expire at a deadline with a resolution of a single tick.
+ * <p>
+ * Each level has {@link #SLOTS} slots, a slot of the first level covers a single tick and a slot of every following
+ * level covers all the slots of the previous one. A value is placed on the lowest level which reaches its deadline, and
+ * is moved to a lower level whenever the wheel reaches the start of its slot, so scheduling, cancelling and expiring a
+ * value all take constant time, and each value is moved at most once per level. Deadlines beyond the last level are
+ * placed in its farthest slot and placed again once the wheel reaches it.
+ * <p>
+ * Not thread safe, callers must synchronize access to the wheel.
+ *
+ * @param <T> - the type of the scheduled values
+ */
+public final class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    private final long tickMs;
+
+    /**
+     * The last tick that was expired.
+     */
+    private long currentTick;
+
+    /**
+     * The head of each slot's list of timers, by level.
+     */
+    @SuppressWarnings("unchecked")
+    private final Timer<T>[][] slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+
+    /**
+     * How many timers each level holds, so empty levels are skipped when looking for the next tick in which something
+     * happens.
+     */
+    private final int[] levelSizes = new int[LEVELS];
+
+    private int size = 0;
+
+    /**
+     * Creates an empty wheel.
+     *
+     * @param tickMs - the resolution of the wheel in milliseconds, values expire up to a tick after their deadline
+     * @param nowMs  - the current time in epoch millis
+     */
+    public TimingWheel(long tickMs, long nowMs) {
+        if (tickMs <= 0) {
+            throw new RuntimeException("Timing wheel tick must be positive.");
+        }
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+    }
+
+    /**
+     * Schedules a value to expire at a deadline, a deadline which already passed expires on the next call to
+     * {@link #advance(long, Consumer)}.
+     *
+     * @param value      - the value to schedule
+     * @param deadlineMs - when the value expires, in epoch millis
+     * @return the timer of the value, which can be used to cancel it
+     */
+    public Timer<T> schedule(T value, long deadlineMs) {
+        // Round up, a value never expires before its deadline.
+        long deadlineTick = Math.max(currentTick + 1, (deadlineMs + tickMs - 1) / tickMs);
+        Timer<T> timer = new Timer<>(value, deadlineTick);
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Removes a value from the wheel before it expires.
+     *
+     * @param timer - the timer returned when the value was scheduled
+     * @return true if the value was removed, false if it already expired or was cancelled.
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.level < 0) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Expires all values whose deadline passed.
+     *
+     * @param nowMs   - the current time in epoch millis
+     * @param expired - receives every expired value
+     * @return how many values expired.
+     */
+    public int advance(long nowMs, Consumer<T> expired) {
+        long nowTick = nowMs / tickMs;
+        int count = 0;
+        while (currentTick < nowTick) {
+            skipEmptyTicks(nowTick);
+            currentTick++;
+            // Move the values of every level whose slot starts at this tick down, highest level first.
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, slotIndex(currentTick, level));
+                }
+            }
+            int index = slotIndex(currentTick, 0);
+            Timer<T> timer;
+            while ((timer = slots[0][index]) != null) {
+                unlink(timer);
+                size--;
+                count++;
+                expired.accept(timer.value);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return how many values are scheduled.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Moves the wheel right before the next tick in which something happens, i.e. the start of the next slot which holds
+     * timers on any level, instead of going over every tick until then. Looks at up to {@link #SLOTS} slots per level.
+     */
+    private void skipEmptyTicks(long nowTick) {
+        long next = nowTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (levelSizes[level] == 0) {
+                continue;
+            }
+            long span = 1L << (SLOT_BITS * level);
+            for (long k = 1; k <= SLOTS; k++) {
+                long slotStart = (currentTick / span + k) * span;
+                if (slotStart >= next) {
+                    break;
+                }
+                if (slots[level][slotIndex(slotStart, level)] != null) {
+                    next = slotStart;
+                    break;
+                }
+            }
+        }
+        currentTick = next - 1;
+    }
+
+    private void cascade(int level, int index) {
+        Timer<T> timer = slots[level][index];
+        slots[level][index] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            levelSizes[level]--;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Places a timer on the lowest level whose slots reach its deadline.
+     */
+    private void place(Timer<T> timer) {
+        long delta = timer.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        long tick = timer.deadlineTick;
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            // Beyond the last level, wait in its farthest slot.
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int index = slotIndex(tick, level);
+        Timer<T> head = slots[level][index];
+        timer.level = level;
+        timer.index = index;
+        levelSizes[level]++;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[level][index] = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.level][timer.index] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        levelSizes[timer.level]--;
+        timer.level = -1;
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    /**
+     * A value scheduled on the wheel, linked into the list of its slot.
+     *
+     * @param <T> - the type of the value
+     */
+    public static final class Timer<T> {
+
+        private final T value;
+
+        private final long deadlineTick;
+
+        /**
+         * The level of the slot the timer is in, -1 once it expired or was cancelled.
+         */
+        private int level = -1;
+
+        private int index;
+
+        private Timer<T> prev;
+
+        private Timer<T> next;
+
+        private Timer(T value, long deadlineTick) {
+            this.value = value;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getValue() {
+            return value;
+        }
+    }
+}
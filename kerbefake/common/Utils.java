@@ -3,7 +3,12 @@ package kerbefake.common;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -14,6 +19,16 @@ import java.util.List;
  */
 public final class Utils {
 
+    /**
+     * The formatter of {@link Constants#DATE_FORMAT}, unlike {@link java.text.SimpleDateFormat} it is thread safe so a
+     * single instance is shared. The format has no AM/PM marker, so like {@link java.text.SimpleDateFormat} we parse
+     * the hours as AM.
+     */
+    private static final DateTimeFormatter DATE_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern(Constants.DATE_FORMAT)
+            .parseDefaulting(ChronoField.AMPM_OF_DAY, 0)
+            .toFormatter();
+
     /**
      * Returns a LE (Little Endian) byte buffer.
      *
@@ -42,6 +57,19 @@ public final class Utils {
         return ByteBuffer.wrap(bytesToCopy).order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    /**
+     * Reads the next {@code length} bytes of a buffer into a new array, advancing the buffer's position.
+     *
+     * @param buffer - the buffer to read from
+     * @param length - how many bytes to read
+     * @return a new array with the bytes that were read.
+     */
+    public static byte[] readBytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     public static String getNullTerminatedStringFromByteArray(byte[] bytes) {
         char[] chars = getNullTerminatedCharArrayFromByteArray(bytes, 0);
         return chars == null ? null : new String(chars);
@@ -82,7 +110,18 @@ public final class Utils {
      * @return a string representing the date
      */
     public static String getFormattedDate(Date date) {
-        return new SimpleDateFormat(Constants.DATE_FORMAT).format(date);
+        return DATE_FORMATTER.format(LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault()));
+    }
+
+    /**
+     * Parses a date in the server's format, see {@link #getFormattedDate(Date)}.
+     *
+     * @param date - the date to parse
+     * @return the parsed date
+     * @throws DateTimeParseException - in case the date is not in the server's format.
+     */
+    public static Date parseFormattedDate(String date) {
+        return Date.from(LocalDateTime.parse(date, DATE_FORMATTER).atZone(ZoneId.systemDefault()).toInstant());
     }
 
     /**
@@ -155,6 +194,46 @@ public final class Utils {
         return builder.toString();
     }
 
+    /**
+     * Converts a 16 byte ID held as two longs (see {@link kerbefake.common.entities.PrincipalId}) to the same hex string {@link #bytesToHexString(byte[])} returns for its bytes.
+     *
+     * @param high - the first 8 bytes of the ID, big endian
+     * @param low  - the last 8 bytes of the ID, big endian
+     * @return a 32 character hex string
+     */
+    public static String idToHexString(long high, long low) {
+        final String values = "0123456789abcdef";
+        char[] chars = new char[32];
+        for (int i = 0; i < 16; i++) {
+            chars[i] = values.charAt((int) (high >>> (60 - i * 4)) & 0x0f);
+            chars[i + 16] = values.charAt((int) (low >>> (60 - i * 4)) & 0x0f);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads bytes from the buffer until it encounters a null terminator (0x00), advancing the buffer's position past it.
+     *
+     * @param buffer - the buffer to read from
+     * @return the chars that were read, null if no null terminator was found.
+     */
+    public static char[] getNullTerminatedCharArray(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != 0x00) {
+            end++;
+        }
+        if (end == buffer.limit()) {
+            return null;
+        }
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) buffer.get();
+        }
+        buffer.get(); // The null terminator
+        return chars;
+    }
+
     /**
      * Converts a hex string to a byte array (signed)
      *
@@ -171,8 +250,7 @@ public final class Utils {
                     || rightDigit < '0' || (rightDigit > '9' && rightDigit < 'a') || rightDigit > 'f') {
                 return null;
             }
-            byte b = (byte) ((Byte.parseByte(String.valueOf(leftDigit), 16) << 4) + Byte.parseByte(String.valueOf(rightDigit), 16));
-            bytes[i / 2] = b;
+            bytes[i / 2] = (byte) ((Character.digit(leftDigit, 16) << 4) + Character.digit(rightDigit, 16));
         }
         return bytes;
     }
@@ -4,6 +4,7 @@ import kerbefake.common.CryptoUtils;
 import kerbefake.common.Logger;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -22,9 +23,9 @@ public class Authenticator extends EncryptedServerMessageBody {
 
     private byte version;
 
-    private byte[] clientIdBytes;
+    private PrincipalId clientId;
 
-    private byte[] serverIdBytes;
+    private PrincipalId serverId;
 
     private byte[] creationTime;
 
@@ -32,32 +33,40 @@ public class Authenticator extends EncryptedServerMessageBody {
     }
 
 
-    public Authenticator(byte[] iv, String clientId, String serverId, long creationTime) {
-        this(iv, hexStringToByteArray(clientId), hexStringToByteArray(serverId), ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(creationTime).array());
+    public Authenticator(byte[] iv, PrincipalId clientId, PrincipalId serverId, long creationTime) {
+        this(iv, clientId, serverId, ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(creationTime).array());
     }
 
-    public Authenticator(byte[] iv, byte[] clientIdBytes, byte[] serverIdBytes, byte[] creationTime) {
+    public Authenticator(byte[] iv, PrincipalId clientId, PrincipalId serverId, byte[] creationTime) {
         this.version = 24;
         this.iv = iv;
-        this.clientIdBytes = clientIdBytes;
-        this.serverIdBytes = serverIdBytes;
+        this.clientId = clientId;
+        this.serverId = serverId;
         this.creationTime = creationTime;
     }
 
     @Override
     public Authenticator parse(byte[] bodyBytes) throws Exception {
-        if (bodyBytes.length != 16 + DATA_ENCRYPTED_SIZE) {
-            throw new InvalidMessageException(String.format("Message length is not sufficient (%d but should be %d when encrypted).", DATA_ENCRYPTED_SIZE, bodyBytes.length));
+        return parse(ByteBuffer.wrap(bodyBytes).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    public Authenticator parse(ByteBuffer body) throws Exception {
+        if (body.remaining() != 16 + DATA_ENCRYPTED_SIZE) {
+            throw new InvalidMessageException(String.format("Message length is not sufficient (%d but should be %d when encrypted).", DATA_ENCRYPTED_SIZE, body.remaining()));
         }
-        this.iv = new byte[16];
-        System.arraycopy(bodyBytes, 0, iv, 0, 16);
-        this.encryptedData = new byte[48];
-        System.arraycopy(bodyBytes, 16, this.encryptedData, 0, 48);
+        this.iv = readBytes(body, 16);
+        this.encryptedData = readBytes(body, DATA_ENCRYPTED_SIZE);
         return this;
     }
 
     @Override
-    public byte[] toLEByteArray() {
+    public int getEncodedSize() {
+        return 16 + DATA_ENCRYPTED_SIZE;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
         if (this.iv == null || this.iv.length != 16) {
             throw new RuntimeException("IV is missing or is of invalid length");
         }
@@ -66,28 +75,23 @@ public class Authenticator extends EncryptedServerMessageBody {
             throw new RuntimeException("Encrypted data is missing or is of invalid length");
         }
 
-        byte[] bytes = new byte[16 + this.encryptedData.length];
-        System.arraycopy(this.iv, 0, bytes, 0, 16);
-        System.arraycopy(this.encryptedData, 0, bytes, 16, this.encryptedData.length);
-
-        return byteArrayToLEByteBuffer(bytes).array();
+        out.put(this.iv);
+        out.put(this.encryptedData);
     }
 
     @Override
-    public boolean encrypt(byte[] key) {
+    public boolean encrypt(SecretKey key) {
         if (!assertNonZeroedByteArrayOfLengthN(this.iv, 16)) {
             throw new RuntimeException("IV is not initialized or is 0");
         }
 
         try {
             byte[] dataToEncrypt = new byte[DATA_DECRYPTED_SIZE];
-            dataToEncrypt[0] = this.version;
-            int offset = 1;
-            System.arraycopy(this.clientIdBytes, 0, dataToEncrypt, offset, this.clientIdBytes.length);
-            offset += this.clientIdBytes.length;
-            System.arraycopy(this.serverIdBytes, 0, dataToEncrypt, offset, this.serverIdBytes.length);
-            offset += this.serverIdBytes.length;
-            System.arraycopy(this.creationTime, 0, dataToEncrypt, offset, this.creationTime.length);
+            ByteBuffer data = ByteBuffer.wrap(dataToEncrypt);
+            data.put(this.version);
+            this.clientId.writeTo(data);
+            this.serverId.writeTo(data);
+            data.put(this.creationTime);
 
             this.encryptedData = CryptoUtils.encrypt(key, this.iv, dataToEncrypt);
             return true;
@@ -98,7 +102,7 @@ public class Authenticator extends EncryptedServerMessageBody {
     }
 
     @Override
-    public boolean decrypt(byte[] key) throws InvalidMessageException {
+    public boolean decrypt(SecretKey key) throws InvalidMessageException {
         if (!assertNonZeroedByteArrayOfLengthN(this.encryptedData, DATA_ENCRYPTED_SIZE)) {
             throw new RuntimeException("Encrypted data is missing or is of invalid length (at least 64 bytes");
         }
@@ -112,16 +116,11 @@ public class Authenticator extends EncryptedServerMessageBody {
                 commonLogger.error("Invalid decryption size, expected %d got %d", DATA_DECRYPTED_SIZE, decryptedData.length);
                 return false;
             }
-            this.version = decryptedData[0];
-            this.clientIdBytes = new byte[16];
-            this.serverIdBytes = new byte[16];
-            this.creationTime = new byte[8];
-            int offset = 1;
-            System.arraycopy(decryptedData, offset, this.clientIdBytes, 0, clientIdBytes.length);
-            offset += clientIdBytes.length;
-            System.arraycopy(decryptedData, offset, this.serverIdBytes, 0, serverIdBytes.length);
-            offset += serverIdBytes.length;
-            System.arraycopy(decryptedData, offset, this.creationTime, 0, creationTime.length);
+            ByteBuffer data = ByteBuffer.wrap(decryptedData);
+            this.version = data.get();
+            this.clientId = PrincipalId.read(data);
+            this.serverId = PrincipalId.read(data);
+            this.creationTime = readBytes(data, 8);
 
             return true;
         } catch (RuntimeException e) {
@@ -3,10 +3,14 @@ package kerbefake.common.entities;
 import kerbefake.common.CryptoUtils;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static kerbefake.common.Constants.NONCE_SIZE;
 import static kerbefake.common.Logger.commonLogger;
 import static kerbefake.common.Utils.assertNonZeroedByteArrayOfLengthN;
-import static kerbefake.common.Utils.byteArrayToLEByteBuffer;
+import static kerbefake.common.Utils.readBytes;
 
 public class EncryptedKey extends EncryptedServerMessageBody {
 
@@ -40,6 +44,11 @@ public class EncryptedKey extends EncryptedServerMessageBody {
 
     @Override
     public boolean decrypt(byte[] key) {
+        return decrypt(CryptoUtils.getKeySpec(key));
+    }
+
+    @Override
+    public boolean decrypt(SecretKey key) {
         if (!assertNonZeroedByteArrayOfLengthN(this.iv, 16)) {
             return false;
         }
@@ -56,7 +65,7 @@ public class EncryptedKey extends EncryptedServerMessageBody {
     }
 
     @Override
-    public boolean encrypt(byte[] key) {
+    public boolean encrypt(SecretKey key) {
         if (!assertNonZeroedByteArrayOfLengthN(this.iv, 16)) {
             return false;
         }
@@ -88,16 +97,27 @@ public class EncryptedKey extends EncryptedServerMessageBody {
 
     @Override
     public EncryptedKey parse(byte[] bytes) throws InvalidMessageException {
+        return parse(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    public EncryptedKey parse(ByteBuffer body) throws InvalidMessageException {
         // We do not perform size enforcement, we get the first 16 bytes as the IV and then decrypt the message and only then we set all the values.
-        byte[] encKeyIv = byteArrayToLEByteBuffer(bytes, 0, 16).array();
-        byte[] encryptedData = byteArrayToLEByteBuffer(bytes, 16, bytes.length - 16).array();
+        // Copied out of the body since the frame buffer is reused for the next response while the client still decrypts this one.
+        byte[] encKeyIv = readBytes(body, 16);
+        byte[] encryptedData = readBytes(body, body.remaining());
         EncryptedKey encKey = new EncryptedKey().setAesKey(aesKey).setNonce(nonce).setIv(encKeyIv);
         encKey.encryptedData = encryptedData;
         return encKey;
     }
 
     @Override
-    public byte[] toLEByteArray() {
+    public int getEncodedSize() {
+        return 16 + (this.encryptedData == null ? 0 : this.encryptedData.length); // 16 byte IV + encrypted data
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
         if (iv == null || iv.length != 16) {
             throw new RuntimeException("Encrypted key structure is invalid and missing one or more value - make sure to run encrypt before converting to LE byte array.");
         }
@@ -106,11 +126,8 @@ public class EncryptedKey extends EncryptedServerMessageBody {
             throw new RuntimeException("Encrypted key must be encrypted before sending.");
         }
 
-        byte[] bytes = new byte[16 + this.encryptedData.length]; // 16 byte IV  + encrypted data
-        System.arraycopy(iv, 0, bytes, 0, 16);
-        System.arraycopy(this.encryptedData, 0, bytes, 16, this.encryptedData.length);
-
-        return byteArrayToLEByteBuffer(bytes).array();
+        out.put(iv);
+        out.put(this.encryptedData);
     }
 
     public byte[] getNonce() {
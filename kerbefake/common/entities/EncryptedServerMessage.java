@@ -1,14 +1,35 @@
 package kerbefake.common.entities;
 
+import kerbefake.common.CryptoUtils;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
+
 public abstract class EncryptedServerMessage extends ServerMessage {
 
     public EncryptedServerMessage(ServerMessageHeader header, ServerMessageBody body) {
         super(header, body);
     }
 
-    public abstract void encrypt(byte[] key);
+    public void encrypt(byte[] key) {
+        encrypt(CryptoUtils.getKeySpec(key));
+    }
+
+    public void decrypt(byte[] key) throws InvalidMessageException {
+        decrypt(CryptoUtils.getKeySpec(key));
+    }
+
+    /**
+     * Encrypts the message with a prepared key, see {@link kerbefake.common.PreparedKeyCache}.
+     *
+     * @param key - the key to use for encryption
+     */
+    public abstract void encrypt(SecretKey key);
 
-    public abstract void decrypt(byte[] key) throws InvalidMessageException;
+    /**
+     * Decrypts the message with a prepared key, see {@link kerbefake.common.PreparedKeyCache}.
+     *
+     * @param key - the key to use for decryption
+     */
+    public abstract void decrypt(SecretKey key) throws InvalidMessageException;
 }
@@ -1,7 +1,10 @@
 package kerbefake.common.entities;
 
+import kerbefake.common.CryptoUtils;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
+
 import static kerbefake.common.Utils.assertNonZeroedByteArrayOfLengthN;
 
 /**
@@ -20,7 +23,17 @@ public abstract class EncryptedServerMessageBody extends ServerMessageBody {
      * @param key - the key to use for encryption
      * @return - true if successful, false otherwise
      */
-    public abstract boolean encrypt(byte[] key);
+    public boolean encrypt(byte[] key) {
+        return encrypt(CryptoUtils.getKeySpec(key));
+    }
+
+    /**
+     * Encrypts this object with a prepared key, see {@link kerbefake.common.PreparedKeyCache}.
+     *
+     * @param key - the key to use for encryption
+     * @return - true if successful, false otherwise
+     */
+    public abstract boolean encrypt(SecretKey key);
 
     /**
      * Decrypts the object with a provided key
@@ -28,7 +41,17 @@ public abstract class EncryptedServerMessageBody extends ServerMessageBody {
      * @param key - the key to use for decryption
      * @return - true if successful, false otherwise
      */
-    public abstract boolean decrypt(byte[] key) throws InvalidMessageException;
+    public boolean decrypt(byte[] key) throws InvalidMessageException {
+        return decrypt(CryptoUtils.getKeySpec(key));
+    }
+
+    /**
+     * Decrypts the object with a prepared key, see {@link kerbefake.common.PreparedKeyCache}.
+     *
+     * @param key - the key to use for decryption
+     * @return - true if successful, false otherwise
+     */
+    public abstract boolean decrypt(SecretKey key) throws InvalidMessageException;
 
     /**
      * Checks if the body was encrypted or not
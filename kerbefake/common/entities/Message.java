@@ -2,6 +2,8 @@ package kerbefake.common.entities;
 
 import kerbefake.common.errors.InvalidMessageException;
 
+import java.nio.ByteBuffer;
+
 /**
  * General interface for any message sent back and forth.
  */
@@ -13,4 +15,16 @@ public interface Message {
      * @return this message but in a little endian byte array.
      */
     public byte[] toLEByteArray() throws InvalidMessageException;
+
+    /**
+     * @return the exact amount of bytes {@link #writeTo(ByteBuffer)} writes for this message.
+     */
+    public int getEncodedSize();
+
+    /**
+     * Writes a given message to a little endian buffer, the same bytes {@link #toLEByteArray()} returns.
+     *
+     * @param out - the buffer to write to, must have at least {@link #getEncodedSize()} bytes remaining.
+     */
+    public void writeTo(ByteBuffer out) throws InvalidMessageException;
 }
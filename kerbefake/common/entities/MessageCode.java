@@ -1,7 +1,7 @@
 package kerbefake.common.entities;
 
 import kerbefake.common.Constants;
-import kerbefake.auth_server.AuthServerConnectionHandler;
+import kerbefake.common.FrameDecoder;
 import kerbefake.common.errors.InvalidMessageCodeException;
 import kerbefake.auth_server.entities.requests.get_sym_key.GetSymmetricKeyRequest;
 import kerbefake.auth_server.entities.requests.get_sym_key.GetSymmetricKeyRequestBody;
@@ -14,17 +14,14 @@ import kerbefake.auth_server.entities.responses.register_client.RegisterClientRe
 import kerbefake.auth_server.entities.responses.register_client.RegisterClientResponseBody;
 import kerbefake.msg_server.entities.SendMessageRequest;
 import kerbefake.msg_server.entities.SendMessageRequestBody;
+import kerbefake.msg_server.entities.SendMessageWithTicketRequest;
+import kerbefake.msg_server.entities.SendMessageWithTicketRequestBody;
 import kerbefake.msg_server.entities.SubmitTicketRequest;
 import kerbefake.msg_server.entities.SubmitTicketRequestBody;
 
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
-import static kerbefake.common.Utils.byteArrayToLEByteBuffer;
+import java.util.function.Supplier;
 
 /**
  * An enum of all available messages to use or to parse.
@@ -34,36 +31,59 @@ public enum MessageCode {
     /**
      * A request to register a client
      */
-    REGISTER_CLIENT(Constants.RequestCodes.REGISTER_CLIENT_CODE, RegisterClientRequest.class, RegisterClientRequestBody.class, true),
+    REGISTER_CLIENT(Constants.RequestCodes.REGISTER_CLIENT_CODE, RegisterClientRequest.class, RegisterClientRequestBody.class, true,
+            RegisterClientRequestBody::new, (h, b) -> new RegisterClientRequest(h, (RegisterClientRequestBody) b)),
 
     /**
      * Successful response for client registration.
      */
-    REGISTER_CLIENT_SUCCESS(Constants.ResponseCodes.REGISTER_CLIENT_SUCCESS_CODE, RegisterClientResponse.class, RegisterClientResponseBody.class, true),
+    REGISTER_CLIENT_SUCCESS(Constants.ResponseCodes.REGISTER_CLIENT_SUCCESS_CODE, RegisterClientResponse.class, RegisterClientResponseBody.class, true,
+            RegisterClientResponseBody::new, (h, b) -> new RegisterClientResponse(h, (RegisterClientResponseBody) b)),
     /**
      * Failure response for client registration.
      */
-    REGISTER_CLIENT_FAILED(Constants.ResponseCodes.REGISTER_CLIENT_FAILURE_CODE, FailureResponse.class, null, true),
+    REGISTER_CLIENT_FAILED(Constants.ResponseCodes.REGISTER_CLIENT_FAILURE_CODE, FailureResponse.class, null, true,
+            null, (h, b) -> new FailureResponse(h)),
 
     /**
      * A user requests a symmetric key to communicate with a message server.
      */
-    REQUEST_SYMMETRIC_KEY(Constants.RequestCodes.REQ_ENC_SYM_KEY, GetSymmetricKeyRequest.class, GetSymmetricKeyRequestBody.class, true),
+    REQUEST_SYMMETRIC_KEY(Constants.RequestCodes.REQ_ENC_SYM_KEY, GetSymmetricKeyRequest.class, GetSymmetricKeyRequestBody.class, true,
+            GetSymmetricKeyRequestBody::new, (h, b) -> new GetSymmetricKeyRequest(h, (GetSymmetricKeyRequestBody) b)),
 
     /**
      * Success response for getting a symmetric key for communication.
      */
-    REQUEST_SYMMETRIC_KEY_SUCCESS(Constants.ResponseCodes.SEND_ENC_SYM_KEY, GetSymmetricKeyResponse.class, GetSymmetricKeyResponseBody.class, true),
+    REQUEST_SYMMETRIC_KEY_SUCCESS(Constants.ResponseCodes.SEND_ENC_SYM_KEY, GetSymmetricKeyResponse.class, GetSymmetricKeyResponseBody.class, true,
+            GetSymmetricKeyResponseBody::new, (h, b) -> new GetSymmetricKeyResponse(h, (GetSymmetricKeyResponseBody) b)),
+
+    SUBMIT_TICKET(Constants.RequestCodes.SUBMIT_TICKET, SubmitTicketRequest.class, SubmitTicketRequestBody.class, false,
+            SubmitTicketRequestBody::new, (h, b) -> new SubmitTicketRequest(h, (SubmitTicketRequestBody) b)),
 
-    SUBMIT_TICKET(Constants.RequestCodes.SUBMIT_TICKET, SubmitTicketRequest.class, SubmitTicketRequestBody.class, false),
+    SUBMIT_TICKET_SUCCESS(Constants.ResponseCodes.SUBMIT_TICKET_SUCCESS, EmptyResponse.class, null, false,
+            null, (h, b) -> new EmptyResponse(h)),
 
-    SUBMIT_TICKET_SUCCESS(Constants.ResponseCodes.SUBMIT_TICKET_SUCCESS, EmptyResponse.class, null, false),
+    SEND_MESSAGE(Constants.RequestCodes.SEND_MESSAGE, SendMessageRequest.class, SendMessageRequestBody.class, false,
+            SendMessageRequestBody::new, (h, b) -> new SendMessageRequest(h, (SendMessageRequestBody) b)),
 
-    SEND_MESSAGE(Constants.RequestCodes.SEND_MESSAGE, SendMessageRequest.class, SendMessageRequestBody.class, false),
+    /**
+     * A message sent along with the ticket of the client, handled by any message server sharing the server key.
+     */
+    SEND_MESSAGE_WITH_TICKET(Constants.RequestCodes.SEND_MESSAGE_WITH_TICKET, SendMessageWithTicketRequest.class, SendMessageWithTicketRequestBody.class, false,
+            SendMessageWithTicketRequestBody::new, (h, b) -> new SendMessageWithTicketRequest(h, (SendMessageWithTicketRequestBody) b)),
 
-    SEND_MESSAGE_SUCCESS(Constants.ResponseCodes.SEND_MESSAGE_SUCCESS, EmptyResponse.class, null, false),
+    SEND_MESSAGE_SUCCESS(Constants.ResponseCodes.SEND_MESSAGE_SUCCESS, EmptyResponse.class, null, false,
+            null, (h, b) -> new EmptyResponse(h)),
+
+    UNKNOWN_FAILURE(Constants.ResponseCodes.UNKNOWN_FAILURE_CODE, FailureResponse.class, null, true,
+            null, (h, b) -> new FailureResponse(h)),
+
+    /**
+     * Failure response for a message sent without a session on the message server, see {@link Constants.ResponseCodes#UNKNOWN_SESSION_CODE}.
+     */
+    UNKNOWN_SESSION(Constants.ResponseCodes.UNKNOWN_SESSION_CODE, FailureResponse.class, null, false,
+            null, (h, b) -> new FailureResponse(h));
 
-    UNKNOWN_FAILURE(Constants.ResponseCodes.UNKNOWN_FAILURE_CODE, FailureResponse.class, null, true);
     /**
      * The code for a given request
      */
@@ -71,17 +91,14 @@ public enum MessageCode {
 
     /**
      * The class of the message that is used for the given message.
-     * This is used when parsing the message from the input stream in {@link AuthServerConnectionHandler}
-     * or as part of a message parsing in {@link ServerMessage#parse(InputStream)}.
-     * The class must extend {@link ServerMessage} and thus have a constructor matching the signature:
-     * `{@link ServerMessageHeader}, {@link ServerMessageBody}`
+     * Messages are created by the {@link MessageConstructor} of the code when parsing the message in {@link FrameDecoder},
+     * the class is kept for logging and type checks.
      */
     private final Class<? extends ServerMessage> messageClazz;
 
     /**
      * The class of the message's body. This class can be null, for example a failure response has no body, just the header.
-     * If this exists it must extend {@link ServerMessageBody} and implement an empty constructor with the {@link ServerMessageBody#parse(byte[])}
-     * method.
+     * If this exists it must extend {@link ServerMessageBody} and implement the {@link ServerMessageBody#parse(byte[])} method.
      */
     private final Class<? extends ServerMessageBody> bodyClazz;
 
@@ -90,11 +107,62 @@ public enum MessageCode {
      */
     private final boolean forAuthServer;
 
-    MessageCode(short code, Class<? extends ServerMessage> messageClazz, Class<? extends ServerMessageBody> bodyClazz, boolean forAuthServer) {
+    /**
+     * Creates an empty body to parse into, null if the message has no body.
+     */
+    private final Supplier<? extends ServerMessageBody> bodyFactory;
+
+    /**
+     * Creates the message from its header and parsed body, this replaces looking up the constructors of the message
+     * class with reflection on every message.
+     */
+    private final MessageConstructor messageConstructor;
+
+    /**
+     * The smallest code of all messages, used as the offset into {@link #CODES_BY_OFFSET}.
+     */
+    private static final int MIN_CODE;
+
+    /**
+     * A dense table of all messages, indexed by {@code code - MIN_CODE}, unused codes are null.
+     */
+    private static final MessageCode[] CODES_BY_OFFSET;
+
+    static {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (MessageCode messageCode : values()) {
+            min = Math.min(min, messageCode.code);
+            max = Math.max(max, messageCode.code);
+        }
+        MIN_CODE = min;
+        CODES_BY_OFFSET = new MessageCode[max - min + 1];
+        for (MessageCode messageCode : values()) {
+            if (CODES_BY_OFFSET[messageCode.code - min] != null) {
+                throw new RuntimeException(String.format("Duplicate message code %d", messageCode.code));
+            }
+            CODES_BY_OFFSET[messageCode.code - min] = messageCode;
+        }
+    }
+
+    MessageCode(short code, Class<? extends ServerMessage> messageClazz, Class<? extends ServerMessageBody> bodyClazz, boolean forAuthServer,
+                Supplier<? extends ServerMessageBody> bodyFactory, MessageConstructor messageConstructor) {
+        if ((bodyClazz == null) != (bodyFactory == null)) {
+            throw new RuntimeException("A body factory must be provided if and only if the message has a body.");
+        }
         this.code = code;
         this.messageClazz = messageClazz;
         this.bodyClazz = bodyClazz;
         this.forAuthServer = forAuthServer;
+        this.bodyFactory = bodyFactory;
+        this.messageConstructor = messageConstructor;
+    }
+
+    /**
+     * Creates a message from its header and body.
+     */
+    @FunctionalInterface
+    public interface MessageConstructor {
+        ServerMessage create(ServerMessageHeader header, ServerMessageBody body);
     }
 
     /**
@@ -119,6 +187,45 @@ public enum MessageCode {
         return bodyClazz;
     }
 
+    /**
+     * @return true if this message has a body.
+     */
+    public boolean hasBody() {
+        return bodyFactory != null;
+    }
+
+    /**
+     * Parses the body of this message.
+     *
+     * @param body - a LE buffer holding the body, see {@link ServerMessageBody#parse(ByteBuffer)}
+     * @return the parsed body
+     * @throws Exception - whatever {@link ServerMessageBody#parse(ByteBuffer)} throws.
+     */
+    public ServerMessageBody parseBody(ByteBuffer body) throws Exception {
+        if (bodyFactory == null) {
+            throw new InvalidMessageCodeException(String.format("Body of %s", this));
+        }
+        return bodyFactory.get().parse(body);
+    }
+
+    /**
+     * @return a new empty body of this message, to parse into, null if the message has no body.
+     */
+    ServerMessageBody newBody() {
+        return bodyFactory == null ? null : bodyFactory.get();
+    }
+
+    /**
+     * Creates a message of this type.
+     *
+     * @param header - the header of the message
+     * @param body   - the body of the message, null if the message has no body
+     * @return the message
+     */
+    public ServerMessage createMessage(ServerMessageHeader header, ServerMessageBody body) {
+        return messageConstructor.create(header, body);
+    }
+
     /**
      * Parses two bytes as a request code enum
      *
@@ -130,13 +237,23 @@ public enum MessageCode {
         if (requestCodeBytes.length != 2) { // Generally shouldn't happen
             throw new InvalidMessageCodeException("Request Code");
         }
-        short reqCode = byteArrayToLEByteBuffer(requestCodeBytes).getShort();
+        return fromCode((short) ((requestCodeBytes[0] & 0xFF) | (requestCodeBytes[1] & 0xFF) << 8));
+    }
 
-        List<MessageCode> matchingCodes = Arrays.stream(values()).filter(v -> v.code == reqCode).collect(Collectors.toList());
-        if (matchingCodes.size() != 1) {
-            throw new InvalidMessageCodeException(String.format("Request Code - %d", reqCode));
+    /**
+     * Finds the message of a given code.
+     *
+     * @param code - the code of the message
+     * @return the corresponding {@link MessageCode}
+     * @throws InvalidMessageCodeException - in case it is not a known code.
+     */
+    public static MessageCode fromCode(short code) throws InvalidMessageCodeException {
+        int offset = code - MIN_CODE;
+        MessageCode messageCode = offset >= 0 && offset < CODES_BY_OFFSET.length ? CODES_BY_OFFSET[offset] : null;
+        if (messageCode == null) {
+            throw new InvalidMessageCodeException(String.format("Request Code - %d", code));
         }
-        return matchingCodes.get(0);
+        return messageCode;
     }
 
     public boolean isForAuthServer() {
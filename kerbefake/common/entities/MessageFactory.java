@@ -9,11 +9,20 @@ public abstract class MessageFactory<MSG> {
 
     protected int payloadSize;
 
-    protected String clientId;
+    protected PrincipalId clientId;
 
+    /**
+     * Set in case the client ID given to {@link #setClientId(String)} is not the hex string of an ID.
+     */
+    private boolean invalidClientId;
+
+    /**
+     * @param clientId - the client ID as a hex string, as it is kept in the client's config file
+     */
     @SuppressWarnings("unchecked")
     public <T extends MessageFactory<MSG>> T setClientId(String clientId) {
-        this.clientId = clientId;
+        this.clientId = PrincipalId.fromHex(clientId);
+        this.invalidClientId = clientId != null && this.clientId == null;
         return (T) this;
     }
 
@@ -28,7 +37,7 @@ public abstract class MessageFactory<MSG> {
     public MSG build() throws InvalidMessageException {
          try {
             if (this.clientId == null) {
-                throw new InvalidMessageException("Missing Client ID for request.");
+                throw new InvalidMessageException(invalidClientId ? "Client ID is not a hex string." : "Missing Client ID for request.");
             }
             return internalBuild();
         } finally {
@@ -0,0 +1,96 @@
+package kerbefake.common.entities;
+
+import kerbefake.common.errors.InvalidMessageCodeException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The message objects of a single connection, reused for every request it sends instead of allocating a new header, body,
+ * message and response for each request.
+ * <p>
+ * Requests are read into a single header and a message (with its body) per message code, each body is parsed again for
+ * every request so it must parse into itself (see {@link ServerMessageBody#parse(ByteBuffer)}). Responses created with
+ * {@link ServerMessage#respond(MessageCode, ServerMessageBody)} are kept the same way, a response per code whose header is
+ * rewritten for every request.
+ * <p>
+ * A request and its response are only valid until the next request of the connection is read, so a pool can only be used
+ * by connections which read their next request once the response of the previous one was encoded, i.e. connections which
+ * aren't multiplexed. Not thread safe.
+ */
+public final class MessagePool {
+
+    private final ServerMessageHeader header = new ServerMessageHeader(this);
+
+    /**
+     * The request message of each code, by ordinal, created the first time a request with the code is read.
+     */
+    private final ServerMessage[] requests;
+
+    /**
+     * The response message of each code, by ordinal, created the first time a response with the code is sent.
+     */
+    private final ServerMessage[] responses;
+
+    public MessagePool() {
+        int codes = MessageCode.values().length;
+        this.requests = new ServerMessage[codes];
+        this.responses = new ServerMessage[codes];
+    }
+
+    /**
+     * Reads the header of the next request into the pooled header, see {@link ServerMessageHeader#parseHeader(ByteBuffer)}.
+     *
+     * @param rawHeader - a buffer holding exactly the header bytes
+     * @return the pooled header
+     * @throws InvalidMessageCodeException - In case the data provided is invalid.
+     */
+    public ServerMessageHeader readHeader(ByteBuffer rawHeader) throws InvalidMessageCodeException {
+        header.read(rawHeader);
+        return header;
+    }
+
+    /**
+     * Parses the body of the request whose header was just read into the pooled message of its code.
+     *
+     * @param header - the header returned by {@link #readHeader(ByteBuffer)}
+     * @param body   - a LE buffer holding the body, ignored if the message has no body
+     * @return the pooled message of the code
+     * @throws Exception - whatever {@link ServerMessageBody#parse(ByteBuffer)} throws.
+     */
+    public ServerMessage parse(ServerMessageHeader header, ByteBuffer body) throws Exception {
+        if (header != this.header) {
+            throw new RuntimeException("The header was not read into this pool.");
+        }
+        MessageCode code = header.getMessageCode();
+        ServerMessage message = requests[code.ordinal()];
+        if (message == null) {
+            message = code.createMessage(header, code.newBody());
+            requests[code.ordinal()] = message;
+        }
+        if (message.body != null && message.body.parse(body) != message.body) {
+            throw new RuntimeException(String.format("Body of %s does not parse into itself and can't be pooled.", code));
+        }
+        return message;
+    }
+
+    /**
+     * Gets the pooled response of a code for the current request.
+     *
+     * @param request - the header of the request
+     * @param code    - the code of the response
+     * @param body    - the body of the response, null if it has no body
+     * @return the response, valid until the next request is read.
+     */
+    ServerMessage response(ServerMessageHeader request, MessageCode code, ServerMessageBody body) {
+        int payloadSize = body == null ? 0 : body.getEncodedSize();
+        ServerMessage response = responses[code.ordinal()];
+        if (response == null) {
+            response = code.createMessage(request.toResponseHeader(code, payloadSize), body);
+            responses[code.ordinal()] = response;
+            return response;
+        }
+        response.header.resetToResponse(request, code, payloadSize);
+        response.body = body;
+        return response;
+    }
+}
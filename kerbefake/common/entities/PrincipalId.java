@@ -0,0 +1,163 @@
+package kerbefake.common.entities;
+
+import kerbefake.common.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 16 byte ID of a principal, i.e. a client or a message server.
+ * <p>
+ * The ID is held as two longs, the first and last 8 bytes read in order (big endian), so IDs can be compared, hashed and
+ * used as map keys without building strings. Hex strings are only built when an ID is logged or written to a text file
+ * ({@link #toString()}) and parsed when it is read from one or from the user ({@link #fromHex(String)}). Immutable.
+ */
+public final class PrincipalId {
+
+    /**
+     * The size of an ID in bytes.
+     */
+    public static final int SIZE = 16;
+
+    private final long high;
+
+    private final long low;
+
+    /**
+     * Built the first time the ID is logged or written to a text file.
+     */
+    private String hex;
+
+    public PrincipalId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Reads an ID from a buffer, advancing its position past the ID. The order of the buffer is left as is.
+     *
+     * @param buffer - the buffer to read from
+     * @return the ID
+     */
+    public static PrincipalId read(ByteBuffer buffer) {
+        return read(buffer, null);
+    }
+
+    /**
+     * Reads an ID from a buffer, same as {@link #read(ByteBuffer)}, but returns the previous ID in case it is the same
+     * one, so reading the ID of the same client over and over doesn't allocate.
+     *
+     * @param buffer   - the buffer to read from
+     * @param previous - the ID read last time, may be null
+     * @return the ID
+     */
+    public static PrincipalId read(ByteBuffer buffer, PrincipalId previous) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        long high = buffer.getLong();
+        long low = buffer.getLong();
+        buffer.order(order);
+        if (previous != null && previous.high == high && previous.low == low) {
+            return previous;
+        }
+        return new PrincipalId(high, low);
+    }
+
+    /**
+     * @param bytes - the 16 bytes of the ID
+     * @return the ID, null if there aren't exactly 16 bytes.
+     */
+    public static PrincipalId fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length != SIZE) {
+            return null;
+        }
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Parses the hex string of an ID, as written by {@link #toString()}.
+     *
+     * @param hex - 32 hex characters, either case
+     * @return the ID, null if this is not the hex string of an ID.
+     */
+    public static PrincipalId fromHex(String hex) {
+        if (hex == null || hex.length() != SIZE * 2) {
+            return null;
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < SIZE; i++) {
+            int highDigit = Character.digit(hex.charAt(i), 16);
+            int lowDigit = Character.digit(hex.charAt(i + SIZE), 16);
+            if (highDigit < 0 || lowDigit < 0) {
+                return null;
+            }
+            high = high << 4 | highDigit;
+            low = low << 4 | lowDigit;
+        }
+        return new PrincipalId(high, low);
+    }
+
+    /**
+     * @return the first 8 bytes of the ID as a big endian long.
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return the last 8 bytes of the ID as a big endian long.
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Writes the 16 bytes of the ID to a buffer, advancing its position. The order of the buffer is left as is.
+     *
+     * @param out - the buffer to write to
+     */
+    public void writeTo(ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN).putLong(high).putLong(low).order(order);
+    }
+
+    /**
+     * @return the 16 bytes of the ID.
+     */
+    public byte[] toByteArray() {
+        return ByteBuffer.allocate(SIZE).putLong(high).putLong(low).array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PrincipalId)) {
+            return false;
+        }
+        PrincipalId other = (PrincipalId) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        // IDs are random, but mix the halves anyway so IDs which only differ in a few bits don't collide.
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the ID as 32 lowercase hex characters.
+     */
+    @Override
+    public String toString() {
+        String result = hex;
+        if (result == null) {
+            result = Utils.idToHexString(high, low);
+            hex = result;
+        }
+        return result;
+    }
+}
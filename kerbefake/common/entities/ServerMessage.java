@@ -30,20 +30,62 @@ public abstract class ServerMessage {
         return body;
     }
 
+    /**
+     * Creates the response to this message. In case the message was read into a {@link MessagePool} the response is taken
+     * from the same pool, and is only valid until the next message of the connection is read.
+     *
+     * @param code - the code of the response
+     * @param body - the body of the response, null if it has no body
+     * @return the response.
+     */
+    protected ServerMessage respond(MessageCode code, ServerMessageBody body) {
+        MessagePool pool = this.header.getPool();
+        if (pool != null) {
+            return pool.response(this.header, code, body);
+        }
+        return code.createMessage(this.header.toResponseHeader(code, body == null ? 0 : body.getEncodedSize()), body);
+    }
+
+    /**
+     * @param code - the code of the response, which has no body
+     * @return the response.
+     * @see #respond(MessageCode, ServerMessageBody)
+     */
+    protected ServerMessage respond(MessageCode code) {
+        return respond(code, null);
+    }
+
     /**
      * Converts the message to a little endian byte array.
      *
      * @return - the little endian byte array.
      */
     public byte[] toLEByteArray() throws InvalidMessageException {
-        byte[] header = this.header.toLEByteArray();
-        byte[] body = this.body == null ? new byte[0] : this.body.toLEByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        writeTo(buffer);
+        return buffer.array();
+    }
 
-        byte[] byteArr = new byte[header.length + body.length];
-        System.arraycopy(header, 0, byteArr, 0, header.length);
-        System.arraycopy(body, 0, byteArr, header.length, body.length);
+    /**
+     * @return - the exact amount of bytes this message takes on the wire, header included.
+     */
+    public int getEncodedSize() {
+        return this.header.getEncodedSize() + (this.body == null ? 0 : this.body.getEncodedSize());
+    }
 
-        return ByteBuffer.wrap(byteArr).order(ByteOrder.LITTLE_ENDIAN).array();
+    /**
+     * Writes the message (header followed by body) to a buffer, this lets us serialize a message straight into the
+     * buffer that is sent on the socket instead of building and concatenating arrays.
+     *
+     * @param out - the buffer to write to, must have at least {@link #getEncodedSize()} bytes remaining. It is set to little endian.
+     * @throws InvalidMessageException - in case the message data is invalid.
+     */
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        this.header.writeTo(out);
+        if (this.body != null) {
+            this.body.writeTo(out);
+        }
     }
 
 //
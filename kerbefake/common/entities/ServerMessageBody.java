@@ -4,6 +4,9 @@ import kerbefake.auth_server.errors.InvalidResponseDataException;
 import kerbefake.common.errors.InvalidMessageCodeException;
 import kerbefake.common.errors.InvalidMessageException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public abstract class ServerMessageBody {
 
 
@@ -17,7 +20,20 @@ public abstract class ServerMessageBody {
      * @return - a child of {@link ServerMessageBody}
      * @throws Exception - in case of a request parsing it might throw {@link InvalidMessageCodeException}, in case of response parsing it might throw {@link InvalidResponseDataException}
      */
-    public abstract ServerMessageBody parse(byte[] bodyBytes) throws Exception;
+    public ServerMessageBody parse(byte[] bodyBytes) throws Exception {
+        return parse(ByteBuffer.wrap(bodyBytes).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Parses a specific message from the remaining bytes of a little endian buffer, from its position up to its limit.
+     * The buffer is usually reused for the next message, so the body must copy whatever it keeps instead of holding on
+     * to the buffer.
+     *
+     * @param body - the buffer holding the body, its position is advanced past the bytes that were read
+     * @return - a child of {@link ServerMessageBody}
+     * @throws Exception - see {@link #parse(byte[])}
+     */
+    public abstract ServerMessageBody parse(ByteBuffer body) throws Exception;
 
     /**
      * Converts this body to a LE byte array.
@@ -25,7 +41,24 @@ public abstract class ServerMessageBody {
      * @return - the LE byte array representing this response.
      * @throws InvalidMessageException - in case the message data is invalid or there was some problem in the serialization of the message
      */
-    public abstract byte[] toLEByteArray() throws InvalidMessageException;
+    public byte[] toLEByteArray() throws InvalidMessageException {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @return - the exact amount of bytes {@link #writeTo(ByteBuffer)} writes for this body.
+     */
+    public abstract int getEncodedSize();
+
+    /**
+     * Writes this body to a little endian buffer, which must have at least {@link #getEncodedSize()} bytes remaining.
+     *
+     * @param out - the buffer to write to, its position is advanced past the written bytes
+     * @throws InvalidMessageException - in case the message data is invalid or there was some problem in the serialization of the message
+     */
+    public abstract void writeTo(ByteBuffer out) throws InvalidMessageException;
 //
 //    public static ServerMessageBody parse(ServerMessageHeader header, BufferedInputStream stream) throws InvalidMessageException {
 //        int payloadSize = header.getPayloadSize();
@@ -7,8 +7,6 @@ import kerbefake.common.errors.InvalidMessageException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import static kerbefake.common.Utils.*;
-
 /**
  * A model representing the header in the response or request to the authentication server
  * The header has a fixed size of 23 bytes.
@@ -21,23 +19,42 @@ public class ServerMessageHeader implements Message {
 
     private byte[] rawHeader;
 
-    private final String clientID;
+    /**
+     * Null for response headers, which have no client ID.
+     */
+    private PrincipalId clientId;
 
-    private final byte version;
-    private final MessageCode code;
+    private byte version;
+    private MessageCode code;
 
-    private final int payloadSize;
+    private int payloadSize;
+
+    /**
+     * The pool this header was read into, null if it isn't pooled. A pooled header is read again for every request of
+     * its connection, see {@link MessagePool}.
+     */
+    private final MessagePool pool;
 
     public ServerMessageHeader(byte version, MessageCode code, int payloadSize) {
         this(null, version, code, payloadSize);
     }
 
 
-    public ServerMessageHeader(String clientID, byte version, MessageCode code, int payloadSize) {
-        this.clientID = clientID;
+    public ServerMessageHeader(PrincipalId clientId, byte version, MessageCode code, int payloadSize) {
+        this.clientId = clientId;
         this.version = version;
         this.code = code;
         this.payloadSize = payloadSize;
+        this.pool = null;
+    }
+
+    /**
+     * Creates an empty header to read into.
+     *
+     * @param pool - the pool which owns the header, null if it isn't pooled
+     */
+    ServerMessageHeader(MessagePool pool) {
+        this.pool = pool;
     }
 
 
@@ -49,8 +66,11 @@ public class ServerMessageHeader implements Message {
         return rawHeader;
     }
 
-    public String getClientID() {
-        return clientID;
+    /**
+     * @return the client ID, null for response headers.
+     */
+    public PrincipalId getClientId() {
+        return clientId;
     }
 
     public MessageCode getMessageCode() {
@@ -61,6 +81,13 @@ public class ServerMessageHeader implements Message {
         return payloadSize;
     }
 
+    /**
+     * @return the pool this header was read into, null if it isn't pooled.
+     */
+    MessagePool getPool() {
+        return pool;
+    }
+
     /**
      * Clones this header and returns one with altered message code and payload size
      *
@@ -72,6 +99,22 @@ public class ServerMessageHeader implements Message {
         return new ServerMessageHeader(this.version, newCode, payloadSize);
     }
 
+    /**
+     * Turns this header into the response header of a request in place, same as {@link #toResponseHeader}, used to reuse
+     * the response headers of a {@link MessagePool}.
+     *
+     * @param request     - the request header
+     * @param newCode     - the code of the response
+     * @param payloadSize - the payload size of the response
+     */
+    void resetToResponse(ServerMessageHeader request, MessageCode newCode, int payloadSize) {
+        this.rawHeader = null;
+        this.clientId = null;
+        this.version = request.version;
+        this.code = newCode;
+        this.payloadSize = payloadSize;
+    }
+
     /**
      * Parses a byte array as the request header.
      *
@@ -80,20 +123,45 @@ public class ServerMessageHeader implements Message {
      * @throws InvalidMessageCodeException - In case the data provided is invalid.
      */
     public static ServerMessageHeader parseHeader(byte[] rawHeader) throws InvalidMessageCodeException {
-        if (rawHeader == null || (rawHeader.length != Constants.REQUEST_HEADER_SIZE && rawHeader.length != Constants.RESPONSE_HEADER_SIZE)) {
+        if (rawHeader == null) {
             throw new InvalidMessageCodeException("header");
         }
 
-        int offset = 0;
-        String clientId = null;
-        if (rawHeader.length == Constants.REQUEST_HEADER_SIZE) {
-            clientId = bytesToHexString(byteArrayToLEByteBuffer(rawHeader, 0, 16).array());
-            offset += 16;
+        ServerMessageHeader header = parseHeader(ByteBuffer.wrap(rawHeader));
+        header.setRawHeader(rawHeader);
+
+        return header;
+    }
+
+    /**
+     * Parses the remaining bytes of a buffer as the header, without copying them first.
+     * The buffer is read as little endian and its position is advanced past the header.
+     *
+     * @param rawHeader - a buffer holding exactly the header bytes
+     * @return the {@link ServerMessageHeader} for the provided bytes
+     * @throws InvalidMessageCodeException - In case the data provided is invalid.
+     */
+    public static ServerMessageHeader parseHeader(ByteBuffer rawHeader) throws InvalidMessageCodeException {
+        ServerMessageHeader header = new ServerMessageHeader((MessagePool) null);
+        header.read(rawHeader);
+        return header;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer into this header, replacing whatever it held, see {@link #parseHeader(ByteBuffer)}.
+     *
+     * @param rawHeader - a buffer holding exactly the header bytes
+     * @throws InvalidMessageCodeException - In case the data provided is invalid, the header is left as is.
+     */
+    void read(ByteBuffer rawHeader) throws InvalidMessageCodeException {
+        if (rawHeader == null || (rawHeader.remaining() != Constants.REQUEST_HEADER_SIZE && rawHeader.remaining() != Constants.RESPONSE_HEADER_SIZE)) {
+            throw new InvalidMessageCodeException("header");
         }
-        byte version = rawHeader[offset++];
-        byte[] reqCodeBytes = {rawHeader[offset++], rawHeader[offset++]};
-        MessageCode reqCode = MessageCode.parse(reqCodeBytes);
-        int payloadSize = byteArrayToLEByteBuffer(rawHeader, offset, 4).getInt();
+        PrincipalId clientId = rawHeader.remaining() == Constants.REQUEST_HEADER_SIZE ? PrincipalId.read(rawHeader, this.clientId) : null;
+        rawHeader.order(ByteOrder.LITTLE_ENDIAN);
+        byte version = rawHeader.get();
+        MessageCode reqCode = MessageCode.fromCode(rawHeader.getShort());
+        int payloadSize = rawHeader.getInt();
 
         if (payloadSize < 0) {
             throw new InvalidMessageCodeException("Payload Size");
@@ -102,10 +170,11 @@ public class ServerMessageHeader implements Message {
             throw new InvalidMessageCodeException("Version");
         }
 
-        ServerMessageHeader header = new ServerMessageHeader(clientId, version, reqCode, payloadSize);
-        header.setRawHeader(rawHeader);
-
-        return header;
+        this.rawHeader = null;
+        this.clientId = clientId;
+        this.version = version;
+        this.code = reqCode;
+        this.payloadSize = payloadSize;
     }
 
     @Override
@@ -115,27 +184,30 @@ public class ServerMessageHeader implements Message {
             return this.rawHeader;
         }
 
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        writeTo(buffer);
+        this.rawHeader = buffer.array();
+        return this.rawHeader;
+    }
+
+    @Override
+    public int getEncodedSize() {
         // Byte array size is constant
-        byte[] byteArr = new byte[this.clientID == null ? Constants.RESPONSE_HEADER_SIZE : Constants.REQUEST_HEADER_SIZE];
-        byte[] versionByteArray = new byte[]{this.version};
-        byte[] messageCode = this.code.toLEByteArray();
-        byte[] payloadSize = intToLEByteArray(this.payloadSize);
-        int offsetCounter = 0;
-
-        if (this.clientID != null) {
-            byte[] idByteArr = hexStringToByteArray(this.clientID);
-            if (idByteArr == null) {
-                throw new InvalidMessageException("Client ID is not a hex string.");
-            }
-            System.arraycopy(idByteArr, 0, byteArr, offsetCounter, idByteArr.length);
-            offsetCounter += idByteArr.length;
+        return this.clientId != null ? Constants.REQUEST_HEADER_SIZE : Constants.RESPONSE_HEADER_SIZE;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        if (this.rawHeader != null) {
+            out.put(this.rawHeader);
+            return;
         }
-        System.arraycopy(versionByteArray, 0, byteArr, (offsetCounter++), 1);
-        System.arraycopy(messageCode, 0, byteArr, offsetCounter, 2);
-        offsetCounter += 2;
-        System.arraycopy(payloadSize, 0, byteArr, offsetCounter, 4);
 
-        this.rawHeader = ByteBuffer.allocate(byteArr.length).order(ByteOrder.LITTLE_ENDIAN).put(byteArr).array();
-        return this.toLEByteArray();
+        if (this.clientId != null) {
+            this.clientId.writeTo(out);
+        }
+        out.put(this.version);
+        out.putShort(this.code.getCode());
+        out.putInt(this.payloadSize);
     }
 }
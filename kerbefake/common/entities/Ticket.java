@@ -3,7 +3,11 @@ package kerbefake.common.entities;
 import kerbefake.common.CryptoUtils;
 import kerbefake.common.errors.InvalidMessageException;
 
-import static kerbefake.common.Constants.ID_HEX_LENGTH_CHARS;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import static kerbefake.common.Logger.*;
 import static kerbefake.common.Utils.*;
 
@@ -14,9 +18,9 @@ public class Ticket extends EncryptedServerMessageBody {
     public static final int DATA_DECRYPTED_SIZE = 40;
 
     private byte version;
-    private String clientId;
+    private PrincipalId clientId;
 
-    private String serverId;
+    private PrincipalId serverId;
 
     private byte[] creationTime;
 
@@ -34,12 +38,12 @@ public class Ticket extends EncryptedServerMessageBody {
         return this;
     }
 
-    public Ticket setClientId(String clientId) {
+    public Ticket setClientId(PrincipalId clientId) {
         this.clientId = clientId;
         return this;
     }
 
-    public Ticket setServerId(String serverId) {
+    public Ticket setServerId(PrincipalId serverId) {
         this.serverId = serverId;
         return this;
     }
@@ -68,8 +72,28 @@ public class Ticket extends EncryptedServerMessageBody {
         return aesKey;
     }
 
+    public PrincipalId getClientId() {
+        return clientId;
+    }
+
+    public PrincipalId getServerId() {
+        return serverId;
+    }
+
+    /**
+     * Checks whether another ticket is this very ticket as issued by the auth server, by its IV and encrypted data, so it
+     * can be matched to this ticket without decrypting it.
+     *
+     * @param other - the other ticket
+     * @return true if both tickets have the same IV and encrypted data, false otherwise or if either has none.
+     */
+    public boolean isSameTicket(Ticket other) {
+        return other != null && this.ticketIv != null && this.encryptedData != null
+                && Arrays.equals(this.ticketIv, other.ticketIv) && Arrays.equals(this.encryptedData, other.encryptedData);
+    }
+
     @Override
-    public boolean decrypt(byte[] key) throws InvalidMessageException {
+    public boolean decrypt(SecretKey key) throws InvalidMessageException {
         if (!assertNonZeroedByteArrayOfLengthN(this.ticketIv, 16)) {
             return false;
         }
@@ -96,7 +120,7 @@ public class Ticket extends EncryptedServerMessageBody {
     }
 
     @Override
-    public boolean encrypt(byte[] key) {
+    public boolean encrypt(SecretKey key) {
         if (!assertNonZeroedByteArrayOfLengthN(this.ticketIv, 16)) {
             return false;
         }
@@ -125,20 +149,23 @@ public class Ticket extends EncryptedServerMessageBody {
 
     @Override
     public Ticket parse(byte[] bytes) throws InvalidMessageException {
+        return parse(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    public Ticket parse(ByteBuffer body) throws InvalidMessageException {
         // We do not enforce length before decryption
-        int offset = 1;
-        byte[] clientIdBytes = byteArrayToLEByteBuffer(bytes, offset, 16).array();
-        offset += 16;
-        byte[] serverIdBytes = byteArrayToLEByteBuffer(bytes, offset, 16).array();
-        offset += 16;
-        byte[] creationTime = byteArrayToLEByteBuffer(bytes, offset, 8).array();
-        offset += 8;
-        byte[] ticketIv = byteArrayToLEByteBuffer(bytes, offset, 16).array();
-        offset += 16;
-        byte[] encryptedTicket = byteArrayToLEByteBuffer(bytes, offset, bytes.length - offset).array();
-
-        Ticket ticket = new Ticket().setVersion(bytes[0]).setClientId(bytesToHexString(clientIdBytes))
-                .setServerId(bytesToHexString(serverIdBytes))
+        // The fields are copied out of the body, the ticket is kept with the client's session while the frame buffer is
+        // reused for the next request.
+        byte version = body.get();
+        PrincipalId clientId = PrincipalId.read(body);
+        PrincipalId serverId = PrincipalId.read(body);
+        byte[] creationTime = readBytes(body, 8);
+        byte[] ticketIv = readBytes(body, 16);
+        byte[] encryptedTicket = readBytes(body, body.remaining());
+
+        Ticket ticket = new Ticket().setVersion(version).setClientId(clientId)
+                .setServerId(serverId)
                 .setCreationTime(creationTime)
                 .setTicketIv(ticketIv);
         ticket.encryptedData = encryptedTicket;
@@ -146,12 +173,19 @@ public class Ticket extends EncryptedServerMessageBody {
     }
 
 
-    public byte[] toLEByteArray() throws InvalidMessageException {
-        if (clientId == null || clientId.length() != ID_HEX_LENGTH_CHARS) {
-            throw new RuntimeException("Client id is missing or invalid");
+    @Override
+    public int getEncodedSize() {
+        // Version + client ID + server ID + creation time + IV + encrypted data
+        return 1 + 16 + 16 + 8 + 16 + (encryptedData == null ? 0 : encryptedData.length);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        if (clientId == null) {
+            throw new RuntimeException("Client id is missing");
         }
-        if (serverId == null || serverId.length() != ID_HEX_LENGTH_CHARS) {
-            throw new RuntimeException("Server id is missing or invalid");
+        if (serverId == null) {
+            throw new RuntimeException("Server id is missing");
         }
         if (creationTime == null || creationTime.length != 8) {
             throw new RuntimeException("Creation time is missing or invalid");
@@ -164,31 +198,12 @@ public class Ticket extends EncryptedServerMessageBody {
             throw new RuntimeException("Object must be encrypted before sending");
         }
 
-        byte[] clientIdBytes = hexStringToByteArray(clientId);
-        if (clientIdBytes == null) {
-            throw new InvalidMessageException("Client ID is not a hex string.");
-        }
-        byte[] serverIdBytes = hexStringToByteArray(serverId);
-        if (serverIdBytes == null) {
-            throw new InvalidMessageException("Server ID is not a hex string.");
-        }
-        int objectSize = clientIdBytes.length + serverIdBytes.length + 1 /*Version*/ + creationTime.length + 16 /*IV*/ + this.encryptedData.length;
-        byte[] byteArr = new byte[objectSize];
-        byteArr[0] = version;
-        int offset = 1;
-
-        System.arraycopy(clientIdBytes, 0, byteArr, offset, clientIdBytes.length);
-        offset += clientIdBytes.length;
-        System.arraycopy(serverIdBytes, 0, byteArr, offset, serverIdBytes.length);
-        offset += serverIdBytes.length;
-        System.arraycopy(creationTime, 0, byteArr, offset, creationTime.length);
-        offset += creationTime.length;
-        System.arraycopy(ticketIv, 0, byteArr, offset, ticketIv.length);
-        offset += ticketIv.length;
-        System.arraycopy(encryptedData, 0, byteArr, offset, encryptedData.length);
-
-        return byteArrayToLEByteBuffer(byteArr).array();
-
+        out.put(version);
+        clientId.writeTo(out);
+        serverId.writeTo(out);
+        out.put(creationTime);
+        out.put(ticketIv);
+        out.put(encryptedData);
     }
 
     public boolean isEncrypted() {
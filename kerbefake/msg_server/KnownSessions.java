@@ -1,19 +1,69 @@
 package kerbefake.msg_server;
 
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.ServerConfig;
+import kerbefake.common.TimingWheel;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.Ticket;
+import kerbefake.common.errors.InvalidMessageException;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static kerbefake.common.Constants.SESSIONS_SNAPSHOT_INTERVAL_MS;
+import static kerbefake.common.Constants.SESSION_EXPIRY_TICK_MS;
 import static kerbefake.msg_server.MessageServer.msgLogger;
 
 /**
- * A class representing all known sessions and their keys to the message server
+ * A class representing all known sessions and their keys to the message server.
+ * <p>
+ * Every session is scheduled on a {@link TimingWheel} by the expiration time of its ticket, a background task advances
+ * the wheel every {@link kerbefake.common.Constants#SESSION_EXPIRY_TICK_MS} and evicts the sessions that expired, so
+ * memory is bounded by the sessions that are still valid. A session which expired but wasn't evicted yet is not
+ * returned.
+ * <p>
+ * Sessions are indexed by the two longs of the client ID in a {@link SessionIndex}, so the lookup done for every request
+ * takes no lock and allocates nothing. Each session holds its prepared session key, which is zeroed once the session is
+ * evicted or replaced and no request is using it anymore (see {@link Session#acquireKey()}).
+ * <p>
+ * Once {@link #startSnapshots(SessionSnapshot)} is called the sessions are written to a {@link SessionSnapshot} every
+ * {@link kerbefake.common.Constants#SESSIONS_SNAPSHOT_INTERVAL_MS} and when the server stops, and the sessions of the
+ * previous snapshot are restored, so clients don't have to submit their ticket again after a restart. Restored sessions
+ * are kept aside and only become live (scheduled for eviction) on the first request of their client, sessions whose
+ * client never comes back are dropped at once when the last of them expires.
+ * <p>
+ * Clients may also send their encrypted ticket along with each message (see {@link #resumeSession}), in which case the
+ * sessions double as a cache of decrypted tickets: a ticket is only decrypted by the first message which carries it.
  */
 public final class KnownSessions {
 
-    private final Map<String, Ticket> userIdToKeyMapping = Collections.synchronizedMap(new HashMap<>());
+    private final SessionIndex<Session> sessions = new SessionIndex<>();
+
+    /**
+     * The fields below are guarded by this, as are changes to {@link #sessions}.
+     */
+    private final TimingWheel<Session> expiry = new TimingWheel<>(SESSION_EXPIRY_TICK_MS, System.currentTimeMillis());
+
+    private long evicted = 0;
+
+    /**
+     * The sessions restored from the snapshot which weren't used yet, null once there are none. Changes are guarded by
+     * this, same as {@link #sessions}.
+     */
+    private volatile SessionIndex<Session> restored;
+
+    private long restoredUntil = 0;
+
+    private SessionSnapshot snapshot;
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(ServerConfig.daemonThreadFactory("SessionEvictor-"));
 
     private static KnownSessions instance;
 
@@ -23,21 +73,277 @@ public final class KnownSessions {
 
     private KnownSessions() {
         instance = this;
+        evictor.scheduleWithFixedDelay(this::evictExpired, SESSION_EXPIRY_TICK_MS, SESSION_EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
     }
 
-    public synchronized boolean addSession(String clientId, Ticket ticket) {
-        this.userIdToKeyMapping.put(clientId, ticket);
+    /**
+     * Adds the session of a client, replacing its previous session.
+     *
+     * @param clientId - the client the ticket was issued to
+     * @param ticket   - the decrypted ticket
+     * @return true
+     */
+    public boolean addSession(PrincipalId clientId, Ticket ticket) {
+        long expTime = ByteBuffer.wrap(ticket.getExpTime()).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        long high = clientId.getHigh();
+        long low = clientId.getLow();
+        Session session = new Session(clientId, ticket, expTime);
+        synchronized (this) {
+            SessionIndex<Session> pending = restored;
+            if (pending != null) {
+                Session stale = pending.remove(high, low);
+                if (stale != null) {
+                    stale.key.destroy();
+                }
+            }
+            Session previous = sessions.put(high, low, session);
+            if (previous != null) {
+                expiry.cancel(previous.timer);
+                // The client has a new session key, zero the old one.
+                previous.key.destroy();
+            }
+            session.timer = expiry.schedule(session, expTime);
+        }
         return true;
     }
 
     /**
-     * Gets the ticket for a session with a given client.
+     * Gets the live session of a client, without taking a lock or allocating.
      *
-     * @param clientId - the client Id to find in the mapping
-     * @return the ticket for the session, null if there isn't one.
+     * @param clientId - the client ID, see {@link kerbefake.common.entities.ServerMessageHeader#getClientId()}
+     * @return the session, null if there isn't one or it expired.
      */
-    public synchronized Ticket getSession(String clientId) {
-        return this.userIdToKeyMapping.getOrDefault(clientId, null);
+    public Session getSession(PrincipalId clientId) {
+        long high = clientId.getHigh();
+        long low = clientId.getLow();
+        Session session = sessions.get(high, low);
+        if (session == null && (session = restore(high, low)) == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= session.expTime) {
+            msgLogger.warn("Session of %s expired.", session.clientId);
+            return null;
+        }
+        return session;
     }
 
+    /**
+     * Gets the session of a client from the ticket sent along with its message, creating it from the ticket in case the
+     * client has no session or has a session of another ticket (e.g. it submitted its ticket to another message server).
+     * The ticket is only decrypted in case it isn't the ticket of the client's current session.
+     *
+     * @param clientId  - the client ID, see {@link kerbefake.common.entities.ServerMessageHeader#getClientId()}
+     * @param ticket    - the encrypted ticket sent by the client
+     * @param serverKey - the symmetric key of the server, to decrypt the ticket with
+     * @return the session, null if the ticket is invalid, expired or was issued to another client.
+     */
+    public Session resumeSession(PrincipalId clientId, Ticket ticket, SecretKey serverKey) {
+        Session session = getSession(clientId);
+        if (session != null && session.ticket.isSameTicket(ticket)) {
+            return session;
+        }
+
+        if (!clientId.equals(ticket.getClientId())) {
+            msgLogger.error("Ticket of %s was sent by %s.", ticket.getClientId(), clientId);
+            return null;
+        }
+        try {
+            if (!ticket.decrypt(serverKey)) {
+                msgLogger.error("Unable to decrypt ticket of %s", clientId);
+                return null;
+            }
+        } catch (InvalidMessageException e) {
+            msgLogger.error("Unable to decrypt ticket of %s due to: %s", clientId, e.getMessage());
+            return null;
+        }
+        long expTime = ByteBuffer.wrap(ticket.getExpTime()).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        if (System.currentTimeMillis() >= expTime) {
+            msgLogger.error("Ticket of %s expired", clientId);
+            return null;
+        }
+
+        synchronized (this) {
+            // Another message might have carried the same ticket meanwhile, don't replace a session holding the same key
+            // since requests may be using it.
+            session = getSession(clientId);
+            if (session != null && session.expTime == expTime && Arrays.equals(session.ticket.getAesKey(), ticket.getAesKey())) {
+                return session;
+            }
+            addSession(clientId, ticket);
+            return sessions.get(clientId.getHigh(), clientId.getLow());
+        }
+    }
+
+    /**
+     * Evicts all sessions whose ticket expired, called periodically by a background task.
+     *
+     * @return how many sessions were evicted.
+     */
+    public synchronized int evictExpired() {
+        long now = System.currentTimeMillis();
+        if (restored != null && now >= restoredUntil) {
+            restored.forEach(session -> session.key.destroy());
+            restored = null;
+        }
+        return expiry.advance(now, this::evict);
+    }
+
+    /**
+     * Restores the sessions of the snapshot and starts writing the sessions to it periodically, only the first call has
+     * any effect.
+     *
+     * @param snapshot - the snapshot to restore from and write to
+     * @return how many sessions were restored.
+     */
+    public synchronized int startSnapshots(SessionSnapshot snapshot) {
+        if (this.snapshot != null) {
+            return 0;
+        }
+        this.snapshot = snapshot;
+        List<Session> read = snapshot.read();
+        if (!read.isEmpty()) {
+            SessionIndex<Session> pending = new SessionIndex<>();
+            for (Session session : read) {
+                pending.put(session.high, session.low, session);
+                restoredUntil = Math.max(restoredUntil, session.expTime);
+            }
+            restored = pending;
+            msgLogger.info("Restored %d sessions from the sessions snapshot.", read.size());
+        }
+        evictor.scheduleWithFixedDelay(this::writeSnapshot, SESSIONS_SNAPSHOT_INTERVAL_MS, SESSIONS_SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return read.size();
+    }
+
+    /**
+     * Writes all the sessions which didn't expire, including restored sessions which weren't used yet, to the snapshot.
+     * Called periodically once snapshots are started and when the server stops.
+     *
+     * @return true if the snapshot was written, false if it failed or snapshots weren't started.
+     */
+    public boolean writeSnapshot() {
+        SessionSnapshot current;
+        List<Session> live = new ArrayList<>();
+        synchronized (this) {
+            current = snapshot;
+            if (current == null) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            sessions.forEach(session -> {
+                if (session.expTime > now) {
+                    live.add(session);
+                }
+            });
+            if (restored != null) {
+                restored.forEach(session -> {
+                    if (session.expTime > now) {
+                        live.add(session);
+                    }
+                });
+            }
+        }
+        // Don't hold up requests while writing, only a single snapshot is written at a time.
+        synchronized (current) {
+            return current.write(live);
+        }
+    }
+
+    /**
+     * @return how many sessions are currently held.
+     */
+    public int getLiveCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return how many sessions were evicted since startup.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Makes a restored session live on the first request of its client.
+     *
+     * @return the session, null if there isn't a restored session for the client.
+     */
+    private Session restore(long high, long low) {
+        SessionIndex<Session> pending = restored;
+        if (pending == null) {
+            return null;
+        }
+        Session session = pending.get(high, low);
+        if (session == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (!pending.remove(high, low, session)) {
+                // Another request restored it or the client submitted a new ticket meanwhile.
+                return sessions.get(high, low);
+            }
+            sessions.put(high, low, session);
+            session.timer = expiry.schedule(session, session.expTime);
+        }
+        return session;
+    }
+
+    private void evict(Session session) {
+        sessions.remove(session.high, session.low, session);
+        session.key.destroy();
+        evicted++;
+    }
+
+    /**
+     * The session of a client, created once its ticket was submitted.
+     */
+    public static final class Session {
+
+        private final PrincipalId clientId;
+
+        private final long high;
+
+        private final long low;
+
+        private final Ticket ticket;
+
+        private final long expTime;
+
+        private final PreparedKeyCache.PreparedKey key;
+
+        /**
+         * Guarded by the {@link KnownSessions} instance.
+         */
+        private TimingWheel.Timer<Session> timer;
+
+        Session(PrincipalId clientId, Ticket ticket, long expTime) {
+            this.clientId = clientId;
+            this.high = clientId.getHigh();
+            this.low = clientId.getLow();
+            this.ticket = ticket;
+            this.expTime = expTime;
+            this.key = PreparedKeyCache.prepare(ticket.getAesKey());
+        }
+
+        public Ticket getTicket() {
+            return ticket;
+        }
+
+        PrincipalId getClientId() {
+            return clientId;
+        }
+
+        long getExpTime() {
+            return expTime;
+        }
+
+        /**
+         * Leases the session key for a single operation, the caller must {@link PreparedKeyCache.PreparedKey#release()} it
+         * once done. The key stays usable until released even if the session is evicted or replaced meanwhile.
+         *
+         * @return the leased key, null if the session was already evicted or replaced and its key zeroed.
+         */
+        public PreparedKeyCache.PreparedKey acquireKey() {
+            return key.acquire() ? key : null;
+        }
+    }
 }
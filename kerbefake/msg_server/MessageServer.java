@@ -1,17 +1,18 @@
 package kerbefake.msg_server;
 
 import kerbefake.common.Logger;
+import kerbefake.common.NetworkServer;
+import kerbefake.common.ServerConfig;
 
-import javax.net.ServerSocketFactory;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.util.Base64;
 
+import static kerbefake.common.Constants.SESSIONS_SNAPSHOT_FILE_NAME;
+
 /**
  * A class representing a print server.
  */
@@ -23,9 +24,11 @@ public class MessageServer {
     private final byte[] key;
 
     /**
-     * The socket used to serve incoming connections.
+     * The address used to serve incoming connections.
      */
-    private final ServerSocket socket;
+    private final InetSocketAddress address;
+
+    private volatile NetworkServer server;
 
     public static Logger msgLogger = Logger.getLogger(Logger.LoggerType.MESSAGE_SERVER_LOGGER);
 
@@ -64,35 +67,30 @@ public class MessageServer {
             throw new RuntimeException("Port is not a decimal number.");
         }
 
-        this.socket = ServerSocketFactory.getDefault().createServerSocket();
-        this.socket.setSoTimeout(1000); // 1 second timeout
-        this.socket.bind(new InetSocketAddress(ipComps[0], port));
+        this.address = new InetSocketAddress(ipComps[0], port);
         this.key = Base64.getDecoder().decode(keyBase64);
     }
 
+    /**
+     * Starts the message server, this blocks until the server is stopped or the calling thread is interrupted.
+     */
     public void start() {
-        while (!Thread.currentThread().isInterrupted()) {
-            Socket incoming;
-            try {
-                incoming = this.socket.accept();
-            } catch (SocketTimeoutException e) {
-                // We simply continue since we set a 1 second timeout to make sure we stop the server.
-                continue;
-            } catch (IOException e) {
-                msgLogger.error("Failed to accept connection due to: %s", e);
-                continue; // We hope this is fixed on its own.
-            }
-
-            new Thread(new MessageServerConnectionHandler(incoming, Thread.currentThread(), this.key)).start();
-        }
+        KnownSessions.getInstance().startSnapshots(new SessionSnapshot(Paths.get(SESSIONS_SNAPSHOT_FILE_NAME), key, msgLogger));
+        server = ServerConfig.createServer(msgLogger, new MessageServerRequestProcessor(this.key), address, "MessageServerConnection-");
+        server.run();
+    }
 
-        try {
-            socket.close();
-        } catch (IOException e) {
-            msgLogger.error("Failed to close socket due to: %s", e);
-            throw new RuntimeException(e);
+    /**
+     * Stops the message server, waiting for open connections to finish.
+     */
+    public void stop() {
+        NetworkServer currentServer = server;
+        if (currentServer != null) {
+            currentServer.stop();
+            KnownSessions sessions = KnownSessions.getInstance();
+            sessions.writeSnapshot();
+            msgLogger.info("Sessions: live=%d evicted=%d", sessions.getLiveCount(), sessions.getEvictedCount());
         }
-
     }
 
 }
@@ -0,0 +1,105 @@
+package kerbefake.msg_server;
+
+import kerbefake.auth_server.entities.responses.FailureResponse;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.RequestProcessor;
+import kerbefake.common.entities.*;
+import kerbefake.common.errors.InvalidMessageException;
+import kerbefake.msg_server.entities.SendMessageRequest;
+import kerbefake.msg_server.entities.SendMessageWithTicketRequest;
+import kerbefake.msg_server.entities.SubmitTicketRequest;
+
+import javax.crypto.SecretKey;
+import java.util.EnumSet;
+import static kerbefake.msg_server.MessageServer.msgLogger;
+
+/**
+ * A request processor that handles requests for the message server, it decrypts each request before it is executed.
+ */
+public class MessageServerRequestProcessor extends RequestProcessor {
+
+    private final SecretKey symKey;
+
+    private final FailureResponse unknownSession = FailureResponse.createUnknownSessionResponse();
+
+    /**
+     * The request the current thread rejected since its client has no live session, set right before the request is
+     * rejected and cleared by {@link #rejectionFor(ServerMessage)}, so other rejections aren't reported as a lost session.
+     */
+    private final ThreadLocal<ServerMessage> rejectedForNoSession = new ThreadLocal<>();
+
+    public MessageServerRequestProcessor(byte[] symKey) {
+        super(msgLogger, EnumSet.of(MessageCode.SEND_MESSAGE, MessageCode.SEND_MESSAGE_WITH_TICKET, MessageCode.SUBMIT_TICKET));
+        this.symKey = CryptoUtils.getKeySpec(symKey);
+    }
+
+    @Override
+    public <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message) {
+        SecretKey key = this.symKey;
+        PreparedKeyCache.PreparedKey sessionKey = null;
+        if (!(message instanceof SubmitTicketRequest)) {
+            sessionKey = acquireSessionKey(message);
+            if (sessionKey == null) {
+                msgLogger.error("Unknown client - no live ticket found in memory for %s", message.getHeader().getClientId());
+                rejectedForNoSession.set(message);
+                return null;
+            }
+            key = sessionKey;
+        }
+        try {
+            ((EncryptedServerMessage) message).decrypt(key);
+        } catch (InvalidMessageException e) {
+            msgLogger.error("Failed to decrypt server message due to: %s", e.getMessage());
+            msgLogger.error(e);
+            return null;
+        } finally {
+            if (sessionKey != null) {
+                sessionKey.release();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Leases the key of the client's session, the session is looked up again in case it was replaced or evicted (and its
+     * key zeroed) right after we found it.
+     *
+     * @return the leased key, null if the client has no live session.
+     */
+    private PreparedKeyCache.PreparedKey acquireSessionKey(ServerMessage message) {
+        ServerMessageHeader header = message.getHeader();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            KnownSessions.Session session;
+            if (message instanceof SendMessageWithTicketRequest) {
+                session = KnownSessions.getInstance().resumeSession(header.getClientId(),
+                        ((SendMessageWithTicketRequest) message).getTicket(), this.symKey);
+            } else {
+                session = KnownSessions.getInstance().getSession(header.getClientId());
+            }
+            if (session == null) {
+                return null;
+            }
+            PreparedKeyCache.PreparedKey key = session.acquireKey();
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A message sent without its ticket is rejected in case the client has no live session, e.g. the server restarted or the
+     * ticket expired, tell the client so it submits its ticket again. Any other rejection (e.g. the message failed to
+     * decrypt) is a generic failure, submitting the ticket again wouldn't help.
+     */
+    @Override
+    protected ServerMessage rejectionFor(ServerMessage message) {
+        boolean noSession = rejectedForNoSession.get() == message;
+        rejectedForNoSession.remove();
+        if (noSession && message instanceof SendMessageRequest && !(message instanceof SendMessageWithTicketRequest)) {
+            return unknownSession;
+        }
+        return super.rejectionFor(message);
+    }
+}
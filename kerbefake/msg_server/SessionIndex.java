@@ -0,0 +1,254 @@
+package kerbefake.msg_server;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * An open addressing hash table keyed by a 16 byte client ID held as two longs (see
+ * {@link kerbefake.common.entities.PrincipalId#getHigh()}), so looking a client up allocates nothing and doesn't go
+ * through {@link Object#hashCode()}.
+ * <p>
+ * Keys and values are kept in parallel arrays with linear probing, removals shift the following entries back so there
+ * are no tombstones. Lookups are optimistic: they read the table without locking and only take the read lock in case a
+ * write happened meanwhile, so lookups don't contend with each other and allocate nothing. Writes are serialized.
+ *
+ * @param <V> - the type of the values
+ */
+public final class SessionIndex<V> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Replaced as a whole when the table grows, so an optimistic lookup always sees arrays of the same table.
+     */
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    private int size = 0;
+
+    /**
+     * @param high - the first 8 bytes of the client ID
+     * @param low  - the last 8 bytes of the client ID
+     * @return the value of the client, null if there isn't one.
+     */
+    public V get(long high, long low) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object value = find(table, high, low);
+            if (lock.validate(stamp)) {
+                return cast(value);
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return cast(find(table, high, low));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sets the value of a client.
+     *
+     * @param high  - the first 8 bytes of the client ID
+     * @param low   - the last 8 bytes of the client ID
+     * @param value - the value, not null
+     * @return the previous value of the client, null if there wasn't one.
+     */
+    public V put(long high, long low, V value) {
+        if (value == null) {
+            throw new RuntimeException("Session index values can't be null.");
+        }
+        long stamp = lock.writeLock();
+        try {
+            Table current = table;
+            int slot = slotOf(current, high, low);
+            Object previous = current.values[slot];
+            if (previous == null) {
+                if ((size + 1) * 2 > current.values.length) {
+                    current = grow(current);
+                    slot = slotOf(current, high, low);
+                }
+                current.highs[slot] = high;
+                current.lows[slot] = low;
+                size++;
+            }
+            current.values[slot] = value;
+            return cast(previous);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the value of a client in case it is the given one.
+     *
+     * @param high  - the first 8 bytes of the client ID
+     * @param low   - the last 8 bytes of the client ID
+     * @param value - the value to remove
+     * @return true if the value was removed, false otherwise.
+     */
+    public boolean remove(long high, long low, V value) {
+        long stamp = lock.writeLock();
+        try {
+            Table current = table;
+            int slot = slotOf(current, high, low);
+            if (current.values[slot] != value) {
+                return false;
+            }
+            removeAt(current, slot);
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the value of a client.
+     *
+     * @param high - the first 8 bytes of the client ID
+     * @param low  - the last 8 bytes of the client ID
+     * @return the removed value, null if there wasn't one.
+     */
+    public V remove(long high, long low) {
+        long stamp = lock.writeLock();
+        try {
+            Table current = table;
+            int slot = slotOf(current, high, low);
+            Object value = current.values[slot];
+            if (value != null) {
+                removeAt(current, slot);
+                size--;
+            }
+            return cast(value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Passes every value to the given action while holding the read lock, the action must not change the index.
+     *
+     * @param action - the action to perform on every value
+     */
+    public void forEach(Consumer<V> action) {
+        long stamp = lock.readLock();
+        try {
+            Object[] values = table.values;
+            for (Object value : values) {
+                if (value != null) {
+                    action.accept(cast(value));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Finds the value of a client, might be called without holding a lock so it never probes more than the whole table.
+     */
+    private static Object find(Table table, long high, long low) {
+        int mask = table.values.length - 1;
+        int slot = hash(high, low) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            Object value = table.values[slot];
+            if (value == null) {
+                return null;
+            }
+            if (table.highs[slot] == high && table.lows[slot] == low) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return the slot holding the client, or the empty slot it should be placed in.
+     */
+    private static int slotOf(Table table, long high, long low) {
+        int mask = table.values.length - 1;
+        int slot = hash(high, low) & mask;
+        while (table.values[slot] != null && (table.highs[slot] != high || table.lows[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties a slot and moves back the entries after it which would otherwise no longer be found.
+     */
+    private static void removeAt(Table table, int slot) {
+        int mask = table.values.length - 1;
+        int empty = slot;
+        int next = (slot + 1) & mask;
+        while (table.values[next] != null) {
+            int home = hash(table.highs[next], table.lows[next]) & mask;
+            // Move the entry in case the empty slot is between its home slot and its current slot.
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                table.highs[empty] = table.highs[next];
+                table.lows[empty] = table.lows[next];
+                table.values[empty] = table.values[next];
+                empty = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table.values[empty] = null;
+    }
+
+    private Table grow(Table current) {
+        Table grown = new Table(current.values.length * 2);
+        for (int i = 0; i < current.values.length; i++) {
+            if (current.values[i] != null) {
+                int slot = slotOf(grown, current.highs[i], current.lows[i]);
+                grown.highs[slot] = current.highs[i];
+                grown.lows[slot] = current.lows[i];
+                grown.values[slot] = current.values[i];
+            }
+        }
+        table = grown;
+        return grown;
+    }
+
+    /**
+     * Client IDs are random, but mix the bits anyway so IDs which only differ in a few bits don't cluster.
+     */
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+
+    private static final class Table {
+
+        private final long[] highs;
+
+        private final long[] lows;
+
+        private final Object[] values;
+
+        Table(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            values = new Object[capacity];
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package kerbefake.msg_server;
+
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.Logger;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.Ticket;
+import kerbefake.common.errors.CryptographicException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the message server sessions on disk, so sessions whose ticket didn't expire survive a restart and their
+ * clients don't have to submit their ticket again.
+ * <p>
+ * The snapshot holds the session keys so it is encrypted under the symmetric key of the server (from msg.info), the
+ * same key the tickets themselves are encrypted with, i.e. the snapshot doesn't expose anything the server key doesn't
+ * already. The file is the IV (16 bytes) followed by the encrypted payload, the payload is the SHA-256 of the content
+ * followed by the content:
+ * <ul>
+ *     <li>Magic - 8 bytes, {@link #MAGIC}</li>
+ *     <li>Count - 4 bytes, the amount of sessions</li>
+ *     <li>Sessions - 64 bytes each: client ID (16), ticket creation time (8), ticket expiration time (8) and the session key (32)</li>
+ * </ul>
+ * Numbers are little endian. A snapshot which can't be decrypted or whose hash doesn't match (e.g. the server key was
+ * rotated) is ignored, as if there was none.
+ * <p>
+ * Snapshots are written to a temporary file which then replaces the snapshot, so a crash while writing leaves the
+ * previous snapshot in place.
+ */
+public final class SessionSnapshot {
+
+    private static final byte[] MAGIC = "KFSESS01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int HASH_SIZE = 32;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+
+    private static final int RECORD_SIZE = 64;
+
+    private static final int IV_SIZE = 16;
+
+    private final Path file;
+
+    private final byte[] serverKey;
+
+    private final Logger logger;
+
+    /**
+     * @param file      - the snapshot file
+     * @param serverKey - the symmetric key of the server
+     * @param logger    - the logger to use
+     */
+    public SessionSnapshot(Path file, byte[] serverKey, Logger logger) {
+        this.file = file;
+        this.serverKey = serverKey;
+        this.logger = logger;
+    }
+
+    /**
+     * Writes the given sessions, replacing the previous snapshot.
+     *
+     * @param sessions - the sessions to write
+     * @return true if the snapshot was written, false otherwise.
+     */
+    public boolean write(Collection<KnownSessions.Session> sessions) {
+        byte[] content = new byte[HASH_SIZE + HEADER_SIZE + sessions.size() * RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(HASH_SIZE);
+        buffer.put(MAGIC).putInt(sessions.size());
+        for (KnownSessions.Session session : sessions) {
+            session.getClientId().writeTo(buffer);
+            byte[] creationTime = session.getTicket().getCreationTime();
+            buffer.put(creationTime != null ? creationTime : new byte[8]);
+            buffer.putLong(session.getExpTime());
+            buffer.put(session.getTicket().getAesKey());
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            System.arraycopy(hashOf(content), 0, content, 0, HASH_SIZE);
+            byte[] iv = CryptoUtils.getIv();
+            byte[] encrypted = CryptoUtils.encrypt(serverKey, iv, content);
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer out = ByteBuffer.allocate(IV_SIZE + encrypted.length);
+                out.put(iv).put(encrypted).flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | NoSuchAlgorithmException | CryptographicException e) {
+            logger.error("Failed to write sessions snapshot to %s due to: %s", file, e.getMessage());
+            return false;
+        } finally {
+            // The content holds the session keys.
+            Arrays.fill(content, (byte) 0);
+        }
+    }
+
+    /**
+     * Reads the sessions of the snapshot whose ticket didn't expire yet.
+     *
+     * @return the sessions, empty if there is no snapshot or it is invalid.
+     */
+    public List<KnownSessions.Session> read() {
+        if (!Files.isRegularFile(file)) {
+            return Collections.emptyList();
+        }
+        byte[] content = null;
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < IV_SIZE + HASH_SIZE + HEADER_SIZE) {
+                logger.error("Sessions snapshot %s is too short, ignoring it.", file);
+                return Collections.emptyList();
+            }
+            content = CryptoUtils.decrypt(serverKey, Arrays.copyOfRange(bytes, 0, IV_SIZE), Arrays.copyOfRange(bytes, IV_SIZE, bytes.length));
+            if (content.length < HASH_SIZE + HEADER_SIZE
+                    || !MessageDigest.isEqual(hashOf(content), Arrays.copyOfRange(content, 0, HASH_SIZE))) {
+                logger.error("Sessions snapshot %s is corrupted or was written under another key, ignoring it.", file);
+                return Collections.emptyList();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(HASH_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            int count = buffer.getInt();
+            if (!Arrays.equals(magic, MAGIC) || count < 0 || buffer.remaining() != (long) count * RECORD_SIZE) {
+                logger.error("Sessions snapshot %s has an unknown format, ignoring it.", file);
+                return Collections.emptyList();
+            }
+
+            long now = System.currentTimeMillis();
+            List<KnownSessions.Session> sessions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                PrincipalId clientId = PrincipalId.read(buffer);
+                byte[] creationTime = new byte[8];
+                buffer.get(creationTime);
+                long expTime = buffer.getLong();
+                byte[] aesKey = new byte[32];
+                buffer.get(aesKey);
+                if (expTime <= now) {
+                    Arrays.fill(aesKey, (byte) 0);
+                    continue;
+                }
+                Ticket ticket = new Ticket()
+                        .setClientId(clientId)
+                        .setCreationTime(creationTime)
+                        .setExpTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(expTime).array())
+                        .setAesKey(aesKey);
+                sessions.add(new KnownSessions.Session(clientId, ticket, expTime));
+            }
+            return sessions;
+        } catch (IOException | NoSuchAlgorithmException | CryptographicException e) {
+            logger.error("Failed to read sessions snapshot %s, ignoring it, due to: %s", file, e.getMessage());
+            return Collections.emptyList();
+        } finally {
+            if (content != null) {
+                Arrays.fill(content, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the payload after its hash.
+     */
+    private static byte[] hashOf(byte[] payload) throws NoSuchAlgorithmException {
+        byte[] content = Arrays.copyOfRange(payload, HASH_SIZE, payload.length);
+        try {
+            return CryptoUtils.performSha256(content);
+        } finally {
+            Arrays.fill(content, (byte) 0);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package kerbefake.msg_server.entities;
 import kerbefake.common.entities.*;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
+
 import static kerbefake.msg_server.MessageServer.msgLogger;
 
 public class SendMessageRequest extends EncryptedServerMessage implements ServerRequest {
@@ -20,13 +22,13 @@ public class SendMessageRequest extends EncryptedServerMessage implements Server
         if (body.isEncrypted()) {
             throw new RuntimeException("Message was not decrypted before execution");
         }
-        msgLogger.info("Message from user (%s): %s", this.header.getClientID(), body.getMessage());
+        msgLogger.info("Message from user (%s): %s", this.header.getClientId(), body.getMessage());
 
-        return new EmptyResponse(this.header.toResponseHeader(MessageCode.SEND_MESSAGE_SUCCESS, 0));
+        return respond(MessageCode.SEND_MESSAGE_SUCCESS);
     }
 
     @Override
-    public void encrypt(byte[] key) {
+    public void encrypt(SecretKey key) {
         SendMessageRequestBody body = (SendMessageRequestBody) this.body;
         if (!body.encrypt(key)) {
             throw new RuntimeException("Failed to encrypt message.");
@@ -34,7 +36,7 @@ public class SendMessageRequest extends EncryptedServerMessage implements Server
     }
 
     @Override
-    public void decrypt(byte[] key) throws InvalidMessageException {
+    public void decrypt(SecretKey key) throws InvalidMessageException {
         SendMessageRequestBody body = (SendMessageRequestBody) this.body;
         if (!body.decrypt(key)) {
             throw new RuntimeException("Failed to decrypt message.");
@@ -5,12 +5,12 @@ import kerbefake.common.entities.EncryptedServerMessageBody;
 import kerbefake.common.entities.ServerMessageBody;
 import kerbefake.common.errors.InvalidMessageException;
 
+import javax.crypto.SecretKey;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 import static kerbefake.common.Utils.assertNonZeroedByteArrayOfLengthN;
-import static kerbefake.common.Utils.byteArrayToLEByteBuffer;
+import static kerbefake.common.Utils.readBytes;
 import static kerbefake.msg_server.MessageServer.msgLogger;
 
 public class SendMessageRequestBody extends EncryptedServerMessageBody {
@@ -36,7 +36,7 @@ public class SendMessageRequestBody extends EncryptedServerMessageBody {
     }
 
     @Override
-    public boolean encrypt(byte[] key) {
+    public boolean encrypt(SecretKey key) {
         if (!assertNonZeroedByteArrayOfLengthN(this.iv, 16)) {
             throw new RuntimeException("IV is not initialized or is 0.");
         }
@@ -54,7 +54,7 @@ public class SendMessageRequestBody extends EncryptedServerMessageBody {
     }
 
     @Override
-    public boolean decrypt(byte[] key) throws InvalidMessageException {
+    public boolean decrypt(SecretKey key) throws InvalidMessageException {
         if (!assertNonZeroedByteArrayOfLengthN(this.iv, 16)) {
             throw new RuntimeException("IV is not initialized or is 0.");
         }
@@ -70,23 +70,36 @@ public class SendMessageRequestBody extends EncryptedServerMessageBody {
     }
 
     @Override
-    public ServerMessageBody parse(byte[] bodyBytes) throws Exception {
-        this.messageSize = byteArrayToLEByteBuffer(bodyBytes, 0, 4).getInt();
-        this.iv = byteArrayToLEByteBuffer(bodyBytes, 4, 16).array();
-        this.encryptedData = byteArrayToLEByteBuffer(bodyBytes, 20, messageSize).array();
+    public ServerMessageBody parse(ByteBuffer body) throws Exception {
+        this.messageSize = body.getInt();
+        // The body may be parsed again for the next message (see MessagePool), in which case the previous message is done
+        // with its arrays and we read into them when they fit, otherwise the fields are copied since the frame buffer is
+        // reused for the next request while this one is decrypted on a worker.
+        this.iv = this.iv != null && this.iv.length == 16 ? this.iv : new byte[16];
+        body.get(this.iv);
+        if (messageSize < 0 || messageSize > body.remaining()) {
+            throw new InvalidMessageException(String.format("Message size %d does not match the %d bytes left in the body.", messageSize, body.remaining()));
+        }
+        this.encryptedData = this.encryptedData != null && this.encryptedData.length == messageSize ? this.encryptedData : new byte[messageSize];
+        body.get(this.encryptedData);
+        // Drop the previous decrypted message.
+        this.message = null;
         return this;
     }
 
     @Override
-    public byte[] toLEByteArray() {
+    public int getEncodedSize() {
+        return 4 + 16 + messageSize;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
         if (!assertNonZeroedByteArrayOfLengthN(encryptedData, messageSize)) {
             throw new RuntimeException("Object was not encrypted before conversion to byte array.");
         }
-        byte[] bytes = new byte[4 + 16 + messageSize];
-        System.arraycopy(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(messageSize).array(), 0, bytes, 0, 4);
-        System.arraycopy(iv, 0, bytes, 4, 16);
-        System.arraycopy(encryptedData, 0, bytes, 20, encryptedData.length);
-        return byteArrayToLEByteBuffer(bytes).array();
+        out.putInt(messageSize);
+        out.put(iv, 0, 16);
+        out.put(encryptedData);
     }
 
     public boolean isEncrypted() {
@@ -4,6 +4,7 @@ import kerbefake.common.CryptoUtils;
 import kerbefake.common.entities.MessageCode;
 import kerbefake.common.entities.MessageFactory;
 import kerbefake.common.entities.ServerMessageHeader;
+import kerbefake.common.entities.Ticket;
 import kerbefake.common.errors.InvalidMessageException;
 
 import java.nio.charset.StandardCharsets;
@@ -19,6 +20,7 @@ public final class SendMessageRequestFactory extends MessageFactory<SendMessageR
     private byte[] encryptedMessage;
     private String message;
     private boolean encrypted;
+    private Ticket ticket;
 
     private static SendMessageRequestFactory instance;
 
@@ -35,6 +37,17 @@ public final class SendMessageRequestFactory extends MessageFactory<SendMessageR
         return this;
     }
 
+    /**
+     * Sends the message along with the ticket, so any message server can handle it, see {@link SendMessageWithTicketRequest}.
+     *
+     * @param ticket - the encrypted ticket as received from the auth server, null to send the message alone
+     * @return this factory
+     */
+    public SendMessageRequestFactory setTicket(Ticket ticket) {
+        this.ticket = ticket;
+        return this;
+    }
+
     public SendMessageRequestFactory encrypt(byte[] key) throws InvalidMessageException {
         if (message == null || message.isEmpty()) {
             throw new InvalidMessageException("Missing message for request.");
@@ -55,11 +68,21 @@ public final class SendMessageRequestFactory extends MessageFactory<SendMessageR
 
     @Override
     protected SendMessageRequest internalBuild() throws InvalidMessageException {
-        if (iv == null || !encrypted)
-            throw new InvalidMessageException("Missing IV or not encrypted before building.");
-        if (encryptedMessage == null || encryptedMessage.length == 0 || !assertNonZeroedByteArrayOfLengthN(encryptedMessage, encryptedMessage.length))
-            throw new InvalidMessageException("Must encrypt before building.");
-        ServerMessageHeader header = new ServerMessageHeader(clientId, SERVER_VERSION, MessageCode.SEND_MESSAGE, payloadSize);
-        return new SendMessageRequest(header, new SendMessageRequestBody(messageSize, iv, encryptedMessage));
+        try {
+            if (iv == null || !encrypted)
+                throw new InvalidMessageException("Missing IV or not encrypted before building.");
+            if (encryptedMessage == null || encryptedMessage.length == 0 || !assertNonZeroedByteArrayOfLengthN(encryptedMessage, encryptedMessage.length))
+                throw new InvalidMessageException("Must encrypt before building.");
+            if (ticket == null) {
+                ServerMessageHeader header = new ServerMessageHeader(clientId, SERVER_VERSION, MessageCode.SEND_MESSAGE, payloadSize);
+                return new SendMessageRequest(header, new SendMessageRequestBody(messageSize, iv, encryptedMessage));
+            }
+            if (!ticket.isEncrypted())
+                throw new InvalidMessageException("Ticket is not encrypted but should be passed to the server as received.");
+            ServerMessageHeader header = new ServerMessageHeader(clientId, SERVER_VERSION, MessageCode.SEND_MESSAGE_WITH_TICKET, payloadSize + ticket.getEncodedSize());
+            return new SendMessageWithTicketRequest(header, new SendMessageWithTicketRequestBody(ticket, messageSize, iv, encryptedMessage));
+        } finally {
+            ticket = null;
+        }
     }
 }
\ No newline at end of file
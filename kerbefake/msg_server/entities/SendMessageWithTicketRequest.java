@@ -0,0 +1,20 @@
+package kerbefake.msg_server.entities;
+
+import kerbefake.common.entities.ServerMessageHeader;
+import kerbefake.common.entities.Ticket;
+
+/**
+ * A message sent along with the encrypted ticket of the client, so any message server sharing the server key can
+ * handle it even if the client never submitted its ticket to it. The session of the client is created from the ticket
+ * before the message is decrypted, see {@link kerbefake.msg_server.KnownSessions#resumeSession}.
+ */
+public class SendMessageWithTicketRequest extends SendMessageRequest {
+
+    public SendMessageWithTicketRequest(ServerMessageHeader header, SendMessageWithTicketRequestBody body) {
+        super(header, body);
+    }
+
+    public Ticket getTicket() {
+        return ((SendMessageWithTicketRequestBody) this.body).getTicket();
+    }
+}
@@ -0,0 +1,55 @@
+package kerbefake.msg_server.entities;
+
+import kerbefake.common.entities.ServerMessageBody;
+import kerbefake.common.entities.Ticket;
+import kerbefake.common.errors.InvalidMessageException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a message sent along with the ticket of the client, the ticket as received from the auth server followed
+ * by the message as in {@link SendMessageRequestBody}.
+ */
+public class SendMessageWithTicketRequestBody extends SendMessageRequestBody {
+
+    private Ticket ticket;
+
+    public SendMessageWithTicketRequestBody() {
+    }
+
+    public SendMessageWithTicketRequestBody(Ticket ticket, int messageSize, byte[] iv, byte[] encryptedData) {
+        super(messageSize, iv, encryptedData);
+        this.ticket = ticket;
+    }
+
+    public Ticket getTicket() {
+        return ticket;
+    }
+
+    @Override
+    public ServerMessageBody parse(ByteBuffer body) throws Exception {
+        int end = body.limit();
+        // 41 byte (1 version, 16 client ID, 16 server ID, 8 creation time) metadata + 16 byte ticket Iv + 48 byte encrypted data
+        body.limit(Math.min(end, body.position() + 41 + 16 + Ticket.DATA_ENCRYPTED_SIZE));
+        this.ticket = new Ticket().parse(body);
+        body.limit(end);
+        return super.parse(body);
+    }
+
+    @Override
+    public int getEncodedSize() {
+        if (ticket == null) {
+            throw new RuntimeException("Missing ticket data.");
+        }
+        return ticket.getEncodedSize() + super.getEncodedSize();
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        if (ticket == null) {
+            throw new RuntimeException("Missing ticket data.");
+        }
+        ticket.writeTo(out);
+        super.writeTo(out);
+    }
+}
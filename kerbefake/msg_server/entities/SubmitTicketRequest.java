@@ -1,10 +1,10 @@
 package kerbefake.msg_server.entities;
 
-import kerbefake.auth_server.entities.responses.FailureResponse;
 import kerbefake.common.entities.*;
 import kerbefake.common.errors.InvalidMessageException;
 import kerbefake.msg_server.KnownSessions;
 
+import javax.crypto.SecretKey;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -19,11 +19,9 @@ public class SubmitTicketRequest extends EncryptedServerMessage implements Serve
 
     @Override
     public ServerMessage execute() {
-        FailureResponse failedResponse = new FailureResponse(this.header.toResponseHeader(MessageCode.UNKNOWN_FAILURE, 0));
-
         if (this.body == null) {
             msgLogger.error("No body provided for submit ticket request.");
-            return failedResponse;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
 
         KnownSessions sessions = KnownSessions.getInstance();
@@ -32,22 +30,22 @@ public class SubmitTicketRequest extends EncryptedServerMessage implements Serve
         Ticket ticket = body.getTicket();
         if (ticket.isEncrypted()) {
             msgLogger.error("Ticket was not decrypted ahead of execution, ignoring.");
-            return failedResponse;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
 
         long expTime = ByteBuffer.wrap(ticket.getExpTime()).order(ByteOrder.LITTLE_ENDIAN).getLong();
         msgLogger.info("Ticket timestamp, current time: %d, exp time: %d", System.currentTimeMillis(), expTime);
         if (System.currentTimeMillis() >= expTime) {
             msgLogger.error("Ticket expired");
-            return failedResponse;
+            return respond(MessageCode.UNKNOWN_FAILURE);
         }
 
-        sessions.addSession(header.getClientID(), ticket);
-        return new EmptyResponse(this.header.toResponseHeader(MessageCode.SUBMIT_TICKET_SUCCESS, 0));
+        sessions.addSession(header.getClientId(), ticket);
+        return respond(MessageCode.SUBMIT_TICKET_SUCCESS);
     }
 
     @Override
-    public void encrypt(byte[] key) {
+    public void encrypt(SecretKey key) {
         if (this.body == null) {
             throw new RuntimeException("No body for the message, nothing to encrypt");
         }
@@ -63,7 +61,7 @@ public class SubmitTicketRequest extends EncryptedServerMessage implements Serve
     }
 
     @Override
-    public void decrypt(byte[] key) throws InvalidMessageException {
+    public void decrypt(SecretKey key) throws InvalidMessageException {
         if (this.body == null) {
             throw new RuntimeException("No body for the message, nothing to encrypt");
         }
@@ -5,7 +5,8 @@ import kerbefake.common.entities.ServerMessageBody;
 import kerbefake.common.entities.Ticket;
 import kerbefake.common.errors.InvalidMessageException;
 
-import static kerbefake.common.Utils.byteArrayToLEByteBuffer;
+import java.nio.ByteBuffer;
+
 
 public class SubmitTicketRequestBody extends ServerMessageBody {
 
@@ -30,29 +31,34 @@ public class SubmitTicketRequestBody extends ServerMessageBody {
     }
 
     @Override
-    public ServerMessageBody parse(byte[] bodyBytes) throws Exception {
+    public ServerMessageBody parse(ByteBuffer body) throws Exception {
+        int end = body.limit();
 
         // 16 + 48 which is the next multiple of the decrypted size after padding.
-        this.authenticator = new Authenticator().parse(byteArrayToLEByteBuffer(bodyBytes, 0, 16 + Authenticator.DATA_ENCRYPTED_SIZE).array());
+        body.limit(Math.min(end, body.position() + 16 + Authenticator.DATA_ENCRYPTED_SIZE));
+        this.authenticator = new Authenticator().parse(body);
         // 41 byte (1 version, 16 client ID, 16 server ID, 8 creation time) metadata + 16 byte ticket Iv + 48 byte encrypted data
-        this.ticket = new Ticket().parse(byteArrayToLEByteBuffer(bodyBytes, 16 + 48, 41 + 16 + Ticket.DATA_ENCRYPTED_SIZE).array());
+        body.limit(Math.min(end, body.position() + 41 + 16 + Ticket.DATA_ENCRYPTED_SIZE));
+        this.ticket = new Ticket().parse(body);
 
+        body.limit(end);
         return this;
     }
 
     @Override
-    public byte[] toLEByteArray() throws InvalidMessageException {
+    public int getEncodedSize() {
         if (authenticator == null || ticket == null) {
             throw new RuntimeException("Missing authenticator or ticket data.");
         }
-        byte[] authenticatorBytes = this.authenticator.toLEByteArray();
-        byte[] ticketBytes = this.ticket.toLEByteArray();
-
-        byte[] bytes = new byte[authenticatorBytes.length + ticketBytes.length];
-
-        System.arraycopy(authenticatorBytes, 0, bytes, 0, authenticatorBytes.length);
-        System.arraycopy(ticketBytes, 0, bytes, authenticatorBytes.length, ticketBytes.length);
+        return authenticator.getEncodedSize() + ticket.getEncodedSize();
+    }
 
-        return byteArrayToLEByteBuffer(bytes).array();
+    @Override
+    public void writeTo(ByteBuffer out) throws InvalidMessageException {
+        if (authenticator == null || ticket == null) {
+            throw new RuntimeException("Missing authenticator or ticket data.");
+        }
+        this.authenticator.writeTo(out);
+        this.ticket.writeTo(out);
     }
 }
@@ -30,11 +30,11 @@ public final class SubmitTicketRequestFactory extends MessageFactory<SubmitTicke
         }
         if (this.authenticator != null && payloadSize != 0)
             if (this.authenticator.isEncrypted())
-                payloadSize -= this.authenticator.toLEByteArray().length;
+                payloadSize -= this.authenticator.getEncodedSize();
 
         this.authenticator = authenticator;
         if (this.authenticator.isEncrypted())
-            payloadSize += this.authenticator.toLEByteArray().length;
+            payloadSize += this.authenticator.getEncodedSize();
         return this;
     }
 
@@ -45,11 +45,11 @@ public final class SubmitTicketRequestFactory extends MessageFactory<SubmitTicke
         }
         if (this.ticket != null && payloadSize != 0)
             if (this.ticket.isEncrypted())
-                payloadSize -= this.ticket.toLEByteArray().length;
+                payloadSize -= this.ticket.getEncodedSize();
 
         this.ticket = ticket;
         if (this.ticket.isEncrypted())
-            payloadSize += this.ticket.toLEByteArray().length;
+            payloadSize += this.ticket.getEncodedSize();
         return this;
     }
 
@@ -66,8 +66,8 @@ public final class SubmitTicketRequestFactory extends MessageFactory<SubmitTicke
 
         encrypted = true;
 
-        payloadSize = this.authenticator.toLEByteArray().length;
-        payloadSize += this.ticket.toLEByteArray().length;
+        payloadSize = this.authenticator.getEncodedSize();
+        payloadSize += this.ticket.getEncodedSize();
 
 
         return this;
@@ -0,0 +1,105 @@
+package kerbefake.tests;
+
+import kerbefake.common.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import static kerbefake.common.Logger.LoggerType;
+import static kerbefake.common.Logger.getLogger;
+
+/**
+ * Simple benchmarks for the hot paths of the servers, run with the name of the benchmark as the first argument.
+ * Results are printed and logged to benchmark.log.
+ * <p>
+ * The benchmarks are kept in a class per area ({@link NetworkBenchmarks}, {@link CodecBenchmarks},
+ * {@link CryptoBenchmarks}, {@link StoreBenchmarks} and {@link SessionBenchmarks}), this class only picks the one to run.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class Benchmarks {
+
+    public static final Logger benchLogger = getLogger(LoggerType.BENCHMARK_LOGGER, Logger.LogLevel.INFO, Logger.LogLevel.INFO);
+
+    /**
+     * Runs the benchmarks of a single area, e.g. {@link NetworkBenchmarks#run(String[])}.
+     */
+    @FunctionalInterface
+    private interface BenchmarkArea {
+        boolean run(String[] args) throws Exception;
+    }
+
+    private static final BenchmarkArea[] AREAS = {NetworkBenchmarks::run, CodecBenchmarks::run, CryptoBenchmarks::run,
+            StoreBenchmarks::run, SessionBenchmarks::run};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            benchLogger.print("Usage: Benchmarks <benchmark> [args...]\nAvailable benchmarks:\n" +
+                    "idle [connections] [seconds] - CPU used by idle connections for each MessageStream read mode\n" +
+                    "connections [connections] - threads used by the auth server to hold open connections for each server engine\n" +
+                    "codec [iterations] - decoding messages with reflection compared to the message code registry\n" +
+                    "frames [iterations] - time and garbage per decoded auth server frame, with fresh arrays compared to a reused buffer\n" +
+                    "encode [iterations] - time and garbage per encoded symmetric key response, concatenating arrays compared to writing into a reused buffer\n" +
+                    "pipeline [requests] [latencyMs] - requests per second on a single client connection with a given network latency, for a few pipeline windows\n" +
+                    "multiplex [requests] [clients] [workMs] - requests per second on a single connection carrying the requests of many clients, for each engine with and without multiplexing\n" +
+                    "crypto [iterations] - encryptions and decryptions per second for the sizes of the protocol's encrypted structures, with a new cipher each time compared to the cached ciphers\n" +
+                    "keys [iterations] [principals] - ticket encryptions per second when alternating between the keys of many principals, preparing the key each time compared to the prepared key cache\n" +
+                    "random [tickets] - tickets issued per second by a growing amount of threads, drawing randomness from a single shared SecureRandom compared to the striped pool\n" +
+                    "peers [maxClients] [lookups] - client lookup latency as the amount of registered clients grows, compared to scanning every client (overwrites ./clients)\n" +
+                    "journal [registrations] - client registrations per second by a growing amount of threads, opening the clients file for every registration compared to the group committed journal\n" +
+                    "store [clients] [lookups] - startup time and lookup latency of the text clients store compared to the memory mapped binary store\n" +
+                    "load [clients...] - time to load text clients files of the given sizes, reading and parsing line by line compared to the parallel loader\n" +
+                    "servers [servers] [seconds] - message server lookups per second and worst lookup latency while the servers directory keeps changing, reloading in place under a lock compared to the copy on write directory\n" +
+                    "lastseen [requests] [clients] - request path latency of recording when a client was last seen, persisting it on every request compared to the batched background writer\n" +
+                    "sessions [sessions] - time spent evicting expired sessions every second while the given amount of sessions stays live, scanning every session compared to the timing wheel\n" +
+                    "sessionlookup [lookups] [sessions] - latency and garbage of finding the session key of a request's client, by hex string in a synchronized map and the prepared key cache compared to the session index keyed by the two longs of the client ID\n" +
+                    "snapshot [sessions] - time to write and restore the sessions snapshot of the message server, compared to every client submitting its ticket again after a restart\n" +
+                    "resume [messages] [clients] - server time to find the session of messages sent along with their ticket, decrypting the ticket of every message compared to matching it to the session created by the first one\n" +
+                    "alloc [iterations] - time and garbage per request of the register, symmetric key, submit ticket and send message paths through a connection's request lifecycle, with new message objects compared to a per connection message pool (overwrites ./clients)");
+            return;
+        }
+
+        for (BenchmarkArea area : AREAS) {
+            if (area.run(args)) {
+                return;
+            }
+        }
+        benchLogger.error("Unknown benchmark %s", args[0]);
+    }
+
+    /**
+     * Runs a task a number of times on each of a number of threads, which start together.
+     *
+     * @return how long it took until all threads were done, in nanoseconds.
+     */
+    static long runConcurrently(int threads, int iterations, Consumer<Random> task) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < iterations; i++) {
+                    task.accept(random);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
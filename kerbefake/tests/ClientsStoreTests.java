@@ -0,0 +1,336 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.ClientsJournal;
+import kerbefake.auth_server.LastSeenTracker;
+import kerbefake.auth_server.MappedClientsStore;
+import kerbefake.auth_server.TextClientsStore;
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.entities.PrincipalId;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static kerbefake.common.Constants.CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS;
+import static kerbefake.common.Constants.CLIENTS_LOADER_CHUNK_SIZE;
+
+import static kerbefake.tests.TestUtils.TestCase;
+import static kerbefake.tests.TestUtils.check;
+import static kerbefake.tests.TestUtils.runTests;
+import static kerbefake.tests.Tests.testLogger;
+
+/**
+ * Tests for the clients stores of the auth server - {@link TextClientsStore}, {@link ClientsJournal},
+ * {@link MappedClientsStore} and {@link LastSeenTracker}.
+ */
+@SuppressWarnings({"unused", "JavadocDeclaration"})
+final class ClientsStoreTests {
+
+    public static void main(String[] args) {
+        Map<String, TestCase> tests = new LinkedHashMap<>();
+        tests.put("loading a text clients file larger than a chunk", ClientsStoreTests::testTextStoreLoad);
+        tests.put("keeping a corrupted text clients file", ClientsStoreTests::testTextStoreCorrupted);
+        tests.put("compacting the clients journal while clients are updated", ClientsStoreTests::testJournalCompaction);
+        tests.put("appending to the clients journal from an interrupted thread", ClientsStoreTests::testJournalInterrupt);
+        tests.put("adding and finding clients while the mapped store grows", ClientsStoreTests::testMappedStore);
+        tests.put("tracking the last seen time of clients looked up many times", ClientsStoreTests::testLastSeenDedupe);
+        tests.put("limiting the size of client names", ClientsStoreTests::testNameSizeLimit);
+        runTests(tests);
+    }
+
+    private static ClientEntry newClient(int id, String name) throws Exception {
+        return new ClientEntry(new PrincipalId(0, id), name, CryptoUtils.getSecureRandomBytes(32), new Date(0));
+    }
+
+    /**
+     * A file split into several chunks is read whole, records of a client which cross a chunk boundary keep their order.
+     */
+    private static void testTextStoreLoad() throws Exception {
+        Path file = Files.createTempDirectory("clients").resolve("clients");
+        List<String> lines = new ArrayList<>();
+        int clients = 0;
+        long size = 0;
+        while (size < 2L * CLIENTS_LOADER_CHUNK_SIZE + CLIENTS_LOADER_CHUNK_SIZE / 2) {
+            String line = newClient(clients, "client " + clients).toString();
+            lines.add(line);
+            size += line.length() + 1;
+            clients++;
+        }
+        // A later record of every tenth client, the last record of a client is the current one.
+        for (int i = 0; i < clients; i += 10) {
+            lines.add(new ClientEntry(new PrincipalId(0, i), "client " + i, CryptoUtils.getSecureRandomBytes(32), new Date(1_000_000_000_000L)).toString());
+        }
+        Files.write(file, lines);
+
+        try (TextClientsStore store = new TextClientsStore(file, testLogger)) {
+            check(store.size() == clients, String.format("%d clients to be read, %d were", clients, store.size()));
+            for (int i = 0; i < clients; i++) {
+                ClientEntry client = store.get(new PrincipalId(0, i));
+                check(client != null && client.getName().equals("client " + i), String.format("client %d to be read", i));
+                check((client.getLastSeen().getTime() == 1_000_000_000_000L) == (i % 10 == 0), String.format("the last record of client %d to be the current one", i));
+            }
+        }
+        check(Files.readAllLines(file).size() == lines.size(), "the clients file to be kept as it was");
+    }
+
+    /**
+     * A clients file which can't be parsed is moved aside rather than overwritten, and the store starts empty.
+     */
+    private static void testTextStoreCorrupted() throws Exception {
+        Path dir = Files.createTempDirectory("clients");
+        Path file = dir.resolve("clients");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add(newClient(i, "client " + i).toString());
+        }
+        lines.add("not a client");
+        Files.write(file, lines);
+        byte[] original = Files.readAllBytes(file);
+
+        try (TextClientsStore store = new TextClientsStore(file, testLogger)) {
+            check(store.size() == 0, "no clients to be read from a corrupted file");
+            check(store.add(newClient(1000, "new client")), "clients to be added after the file was moved aside");
+        }
+        List<Path> aside = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().startsWith("clients.corrupted.")).forEach(aside::add);
+        }
+        check(aside.size() == 1, "the corrupted file to be moved aside");
+        check(Arrays.equals(Files.readAllBytes(aside.get(0)), original), "the corrupted file to be kept as it was");
+        check(Files.readAllLines(file).size() == 1, "a new clients file to be started");
+
+        try (TextClientsStore store = new TextClientsStore(file, testLogger)) {
+            check(store.getByName("new client") != null, "the new clients file to be read");
+        }
+        Files.write(file, new byte[0], StandardOpenOption.TRUNCATE_EXISTING);
+        try (TextClientsStore store = new TextClientsStore(file, testLogger)) {
+            check(store.size() == 0, "an empty clients file to be read as no clients");
+        }
+    }
+
+    /**
+     * Clients keep being updated by a few threads while the journal is compacted in the background, the last record of
+     * every client must still be its latest state and no record may be lost or duplicated by the compaction.
+     */
+    private static void testJournalCompaction() throws Exception {
+        int threads = 4;
+        int clientsPerThread = 5;
+        int updatesPerThread = CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS;
+        Path file = Files.createTempDirectory("clients").resolve("clients");
+        Map<PrincipalId, ClientEntry> live = new ConcurrentHashMap<>();
+        // Taking the snapshot is slowed down so appends keep being committed while a compaction runs.
+        ClientsJournal journal = new ClientsJournal(file, 0, () -> {
+            if (Thread.currentThread().getName().startsWith("ClientsJournalCompactor")) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return live.values();
+        }, testLogger);
+
+        List<Thread> writers = new ArrayList<>();
+        boolean[] failed = new boolean[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < updatesPerThread; i++) {
+                        // Every thread owns its clients, so the order of its appends is the order of their updates.
+                        int id = thread * clientsPerThread + i % clientsPerThread;
+                        ClientEntry update = new ClientEntry(new PrincipalId(1, id), "client" + id,
+                                CryptoUtils.getSecureRandomBytes(32), new Date(1_000_000_000_000L + i * 1000L));
+                        live.put(update.getId(), update);
+                        if (!journal.append(update)) {
+                            failed[thread] = true;
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    testLogger.error(e);
+                    failed[thread] = true;
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        for (boolean threadFailed : failed) {
+            check(!threadFailed, "every append to succeed");
+        }
+
+        // Compactions run in the background, wait for the last one to catch up.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (journal.getRecords() > CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS && System.currentTimeMillis() < deadline) {
+            journal.append(Collections.emptyList());
+            Thread.sleep(50);
+        }
+        Thread.sleep(100);
+        journal.close();
+        int records = journal.getRecords();
+        check(records <= CLIENTS_JOURNAL_COMPACTION_MIN_RECORDS, String.format("the journal to be compacted, it holds %d records", records));
+
+        List<String> lines = Files.readAllLines(file);
+        check(lines.size() == records, String.format("the journal to hold %d records, it holds %d", records, lines.size()));
+        Map<PrincipalId, String> last = new HashMap<>();
+        for (String line : lines) {
+            last.put(ClientEntry.parseClient(line).getId(), line);
+        }
+        check(last.size() == live.size(), "every client to have a record");
+        for (ClientEntry client : live.values()) {
+            check(client.toString().equals(last.get(client.getId())), String.format("the last record of %s to be its latest state", client.getName()));
+        }
+        check(!Files.exists(file.resolveSibling(file.getFileName() + ".snapshot")), "the snapshot to replace the journal");
+    }
+
+    /**
+     * Interrupting a thread while it appends must not close the journal for the threads that append after it.
+     */
+    private static void testJournalInterrupt() throws Exception {
+        Path file = Files.createTempDirectory("clients").resolve("clients");
+        Map<PrincipalId, ClientEntry> live = new ConcurrentHashMap<>();
+        ClientsJournal journal = new ClientsJournal(file, 0, live::values, testLogger);
+
+        boolean[] interruptedResult = new boolean[2];
+        Thread interrupted = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                interruptedResult[0] = journal.append(newClient(1, "interrupted"));
+            } catch (Exception e) {
+                testLogger.error(e);
+            }
+            interruptedResult[1] = Thread.currentThread().isInterrupted();
+        });
+        interrupted.start();
+        interrupted.join();
+        check(interruptedResult[0], "the append of an interrupted thread to succeed");
+        check(interruptedResult[1], "the interrupt to be kept for the appending thread");
+
+        check(journal.append(newClient(2, "after")), "appends after the interrupt to succeed");
+        journal.close();
+        check(!journal.append(newClient(3, "closed")), "appends after closing to fail");
+
+        List<String> lines = Files.readAllLines(file);
+        check(lines.size() == 2, String.format("both records to be written, %d were", lines.size()));
+        check(ClientEntry.parseClient(lines.get(1)).getName().equals("after"), "the records to be written in order");
+    }
+
+    /**
+     * Clients are found by ID and by name after the store grew past its initial capacity and after it is opened again,
+     * names are unique.
+     */
+    private static void testMappedStore() throws Exception {
+        Path path = Files.createTempDirectory("clients").resolve("clients.db");
+        List<ClientEntry> clients = new ArrayList<>();
+        try (MappedClientsStore store = new MappedClientsStore(path, testLogger)) {
+            for (int i = 0; i < 3000; i++) {
+                ClientEntry client = newClient(i, "client " + i);
+                check(store.add(client), "the client to be added");
+                clients.add(client);
+            }
+            check(store.size() == clients.size(), "the store to hold every client");
+            check(!store.add(newClient(5000, "client 7")), "a taken name to be rejected");
+            check(store.get(new PrincipalId(0, 5000)) == null, "a rejected client not to be added");
+            check(store.getByName("client 3000") == null, "a missing name not to be found");
+            check(store.get(new PrincipalId(1, 0)) == null, "a missing ID not to be found");
+
+            ClientEntry seen = store.get(clients.get(42).getId());
+            seen.updateLastSeen(1_000_000_000_000L);
+            check(store.updateLastSeen(Collections.singletonList(seen)), "the last seen time to be updated");
+            ClientEntry older = store.get(clients.get(42).getId());
+            older.updateLastSeen(1);
+            check(store.updateLastSeen(Collections.singletonList(newClient(42, "client 42"))), "an older time to be accepted");
+            check(store.get(clients.get(42).getId()).getLastSeen().getTime() == 1_000_000_000_000L, "an older time not to replace a newer one");
+        }
+
+        try (MappedClientsStore store = new MappedClientsStore(path, testLogger)) {
+            check(store.size() == clients.size(), "every client to be kept after opening the store again");
+            for (ClientEntry client : clients) {
+                ClientEntry byId = store.get(client.getId());
+                ClientEntry byName = store.getByName(client.getName());
+                check(byId != null && byName != null, String.format("%s to be found by ID and by name", client.getName()));
+                check(byId.getName().equals(client.getName()) && byName.getId().equals(client.getId()), String.format("%s to be found as it was added", client.getName()));
+                check(Arrays.equals(byId.getPasswordHash(), client.getPasswordHash()), String.format("the password hash of %s to be kept", client.getName()));
+            }
+            check(store.get(clients.get(42).getId()).getLastSeen().getTime() == 1_000_000_000_000L, "the last seen time to be kept");
+        }
+    }
+
+    /**
+     * Every lookup in the mapped store returns a new entry, a client seen many times between flushes is still written once
+     * and with its latest time.
+     */
+    private static void testLastSeenDedupe() throws Exception {
+        Path dir = Files.createTempDirectory("clients");
+        try (MappedClientsStore store = new MappedClientsStore(dir.resolve("clients.db"), testLogger)) {
+            ClientEntry client = newClient(1, "alice");
+            check(store.add(client), "the client to be added");
+            LastSeenTracker tracker = new LastSeenTracker(store, testLogger);
+
+            long before = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                ClientEntry lookup = store.get(client.getId());
+                check(lookup != null, "the client to be found");
+                tracker.markSeen(lookup);
+            }
+            check(tracker.getQueuedCount() == 1, "the client to be queued once");
+            long written = tracker.getWritten();
+            tracker.flush();
+            check(tracker.getWritten() - written == 1, "the client to be written once");
+            check(tracker.getQueuedCount() == 0, "the queue to be drained");
+            check(!store.get(client.getId()).getLastSeen().before(new Date(before)), "the latest time to be persisted");
+
+            tracker.markSeen(store.get(client.getId()));
+            check(tracker.getQueuedCount() == 1, "the client to be queued again after a flush");
+        }
+    }
+
+    /**
+     * Names are limited in UTF-8 bytes rather than characters, a text store holding a longer name can't be converted.
+     */
+    private static void testNameSizeLimit() throws Exception {
+        StringBuilder ascii = new StringBuilder();
+        StringBuilder accented = new StringBuilder();
+        for (int i = 0; i < ClientEntry.MAX_NAME_SIZE; i++) {
+            ascii.append('a');
+            if (i < 128) {
+                accented.append('é');
+            }
+        }
+        check(ClientEntry.isNameSizeValid(ascii.toString()), "a name of 255 ASCII characters to be valid");
+        check(!ClientEntry.isNameSizeValid(accented.toString()), "a name of 128 characters taking 256 bytes to be invalid");
+
+        // The text store is read in the platform charset, a longer name only fits there in case it can hold accented characters.
+        Charset charset = Charset.defaultCharset();
+        if (!charset.newEncoder().canEncode(accented)) {
+            testLogger.info("Skipping the conversion of a long name, %s can't encode it.", charset);
+            return;
+        }
+        Path dir = Files.createTempDirectory("clients");
+        Path text = dir.resolve("clients");
+        Files.write(text, Collections.singletonList(newClient(2, accented.toString()).toString()), charset);
+        try {
+            MappedClientsStore.convert(text, dir.resolve("clients.db"), testLogger);
+            check(false, "converting a client with a long name to fail");
+        } catch (IOException e) {
+            check(e.getMessage().contains(new PrincipalId(0, 2).toString()), "the error to name the client");
+        }
+        check(!Files.exists(dir.resolve("clients.db")), "no binary store to be created");
+    }
+}
@@ -0,0 +1,383 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.AuthServer;
+import kerbefake.auth_server.AuthServerRequestProcessor;
+import kerbefake.auth_server.KnownPeers;
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.auth_server.entities.MessageServerEntry;
+import kerbefake.auth_server.entities.requests.get_sym_key.CreateSymmetricKeyRequestFactory;
+import kerbefake.auth_server.entities.requests.register_client.RegisterClientRequestBody;
+import kerbefake.auth_server.entities.requests.register_client.RegisterClientRequestFactory;
+import kerbefake.auth_server.entities.responses.FailureResponse;
+import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponse;
+import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponseBody;
+import kerbefake.common.Constants;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.FrameDecoder;
+import kerbefake.common.Logger;
+import kerbefake.common.RequestProcessor;
+import kerbefake.common.Utils;
+import kerbefake.common.entities.Authenticator;
+import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.MessagePool;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerMessageBody;
+import kerbefake.common.entities.ServerMessageHeader;
+import kerbefake.common.entities.Ticket;
+import kerbefake.msg_server.MessageServer;
+import kerbefake.msg_server.MessageServerRequestProcessor;
+import kerbefake.msg_server.entities.SendMessageRequestBody;
+import kerbefake.msg_server.entities.SendMessageRequestFactory;
+import kerbefake.msg_server.entities.SubmitTicketRequestFactory;
+
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static kerbefake.common.Constants.REQUEST_HEADER_SIZE;
+import static kerbefake.common.Constants.RESPONSE_HEADER_SIZE;
+import static kerbefake.tests.Benchmarks.benchLogger;
+
+/**
+ * Benchmarks of decoding and encoding messages and of the garbage each request leaves behind. See {@link Benchmarks} for how to run them.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class CodecBenchmarks {
+
+    /**
+     * Runs a benchmark of this area.
+     *
+     * @param args - the name of the benchmark followed by its arguments
+     * @return false in case the benchmark isn't one of this area.
+     */
+    static boolean run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "codec":
+                benchmarkCodec(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                return true;
+            case "frames":
+                benchmarkFrames(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                return true;
+            case "encode":
+                benchmarkEncode(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                return true;
+            case "alloc":
+                benchmarkAlloc(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decodes the same requests over and over, once the way messages used to be decoded (looking up the code by streaming
+     * over all codes and creating the body and message with reflection) and once with the {@link MessageCode} registry.
+     *
+     * @param iterations - how many times to decode each message
+     */
+    private static void benchmarkCodec(int iterations) throws Exception {
+        PrincipalId clientId = PrincipalId.fromHex("0123456789abcdef0123456789abcdef");
+        byte[] registerBody = new RegisterClientRequestBody("benchmark\0", "password\0".toCharArray()).toLEByteArray();
+        byte[] iv = new byte[16], encryptedData = new byte[64];
+        Arrays.fill(iv, (byte) 1);
+        Arrays.fill(encryptedData, (byte) 2);
+        byte[] sendMessageBody = new SendMessageRequestBody(encryptedData.length, iv, encryptedData).toLEByteArray();
+        ServerMessageHeader[] headers = {
+                new ServerMessageHeader(clientId, (byte) 24, MessageCode.REGISTER_CLIENT, registerBody.length),
+                new ServerMessageHeader(clientId, (byte) 24, MessageCode.SEND_MESSAGE, sendMessageBody.length)
+        };
+        byte[][] bodies = {registerBody, sendMessageBody};
+        short[] codes = {MessageCode.REGISTER_CLIENT.getCode(), MessageCode.SEND_MESSAGE.getCode()};
+
+        // Run both once to warm up before measuring.
+        for (int round = 0; round < 2; round++) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int m = i & 1;
+                MessageCode code = findCodeByStream(codes[m]);
+                sink += decodeReflectively(code, headers[m], bodies[m]).hashCode();
+            }
+            long reflective = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int m = i & 1;
+                MessageCode code = MessageCode.fromCode(codes[m]);
+                sink += code.createMessage(headers[m], code.parseBody(ByteBuffer.wrap(bodies[m]).order(ByteOrder.LITTLE_ENDIAN))).hashCode();
+            }
+            long registry = System.nanoTime() - start;
+
+            if (round == 1) {
+                benchLogger.info("codec iterations=%d reflective=%.1f ns/op registry=%.1f ns/op (sink %d)",
+                        iterations, (double) reflective / iterations, (double) registry / iterations, sink & 1);
+            }
+        }
+    }
+
+    /**
+     * Decodes auth server frames (header and body) the way a connection reads them, once with new arrays for every frame
+     * and once reusing a single buffer for all frames, measuring the time and the bytes allocated per frame.
+     *
+     * @param iterations - how many frames to decode
+     */
+    private static void benchmarkFrames(int iterations) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String clientId = "0123456789abcdef0123456789abcdef";
+        byte[] nonce = new byte[8];
+        Arrays.fill(nonce, (byte) 3);
+        byte[][] frames = {
+                RegisterClientRequestFactory.getInstance().setName("benchmark").setPassword("password".toCharArray()).build().toLEByteArray(),
+                CreateSymmetricKeyRequestFactory.getInstance().setServerId(clientId).setNonce(nonce).setClientId(clientId).build().toLEByteArray()
+        };
+        FrameDecoder decoder = new FrameDecoder(benchLogger, null);
+        ByteBuffer pooled = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        long threadId = Thread.currentThread().getId();
+
+        for (int round = 0; round < 2; round++) {
+            long sink = 0;
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] frame = frames[i & 1];
+                byte[] headerBytes = Arrays.copyOfRange(frame, 0, REQUEST_HEADER_SIZE);
+                ServerMessageHeader header = decoder.decodeHeader(ByteBuffer.wrap(headerBytes));
+                byte[] bodyBytes = Arrays.copyOfRange(frame, REQUEST_HEADER_SIZE, frame.length);
+                sink += decoder.decode(header, ByteBuffer.wrap(bodyBytes).order(ByteOrder.LITTLE_ENDIAN)).hashCode();
+            }
+            long arraysTime = System.nanoTime() - start;
+            long arraysAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] frame = frames[i & 1];
+                pooled.clear();
+                pooled.put(frame).flip();
+                pooled.limit(REQUEST_HEADER_SIZE);
+                ServerMessageHeader header = decoder.decodeHeader(pooled);
+                pooled.limit(frame.length);
+                sink += decoder.decode(header, pooled).hashCode();
+            }
+            long pooledTime = System.nanoTime() - start;
+            long pooledAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            if (round == 1) {
+                benchLogger.info("frames iterations=%d arrays=%.1f ns/op %d B/op pooled=%.1f ns/op %d B/op (sink %d)",
+                        iterations, (double) arraysTime / iterations, arraysAllocated / iterations,
+                        (double) pooledTime / iterations, pooledAllocated / iterations, sink & 1);
+            }
+        }
+    }
+
+    /**
+     * Encodes a symmetric key response (the largest response we send), once the way messages used to be encoded (every
+     * part to its own array, concatenated into the body and then into the message) and once writing the whole message
+     * into a single reused buffer, measuring the time and the bytes allocated per message.
+     *
+     * @param iterations - how many messages to encode
+     */
+    private static void benchmarkEncode(int iterations) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String clientId = "0123456789abcdef0123456789abcdef";
+        byte[] key = new byte[32], iv = new byte[16], nonce = new byte[8], expTime = new byte[8];
+        Arrays.fill(key, (byte) 1);
+        Arrays.fill(iv, (byte) 2);
+        Arrays.fill(nonce, (byte) 3);
+        Arrays.fill(expTime, (byte) 4);
+        PrincipalId id = PrincipalId.fromHex(clientId);
+        EncryptedKey encKey = new EncryptedKey().setIv(iv).setNonce(nonce).setAesKey(key);
+        Ticket ticket = new Ticket().setVersion((byte) 24).setClientId(id).setServerId(id)
+                .setCreationTime(expTime).setTicketIv(iv).setAesKey(key).setExpTime(expTime);
+        if (!encKey.encrypt(key) || !ticket.encrypt(key)) {
+            throw new RuntimeException("Failed to encrypt the benchmark response.");
+        }
+        GetSymmetricKeyResponseBody body = new GetSymmetricKeyResponseBody(id, encKey, ticket);
+        ServerMessage response = new GetSymmetricKeyResponse(new ServerMessageHeader((byte) 24, MessageCode.REQUEST_SYMMETRIC_KEY_SUCCESS, body.getEncodedSize()), body);
+        ByteBuffer pooled = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        long threadId = Thread.currentThread().getId();
+
+        for (int round = 0; round < 2; round++) {
+            long sink = 0;
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += encodeByConcatenation(response.getHeader(), clientId, encKey, ticket)[i & 127];
+            }
+            long concatTime = System.nanoTime() - start;
+            long concatAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                pooled.clear();
+                response.writeTo(pooled);
+                sink += pooled.get(i & 127);
+            }
+            long pooledTime = System.nanoTime() - start;
+            long pooledAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            if (round == 1) {
+                benchLogger.info("encode iterations=%d size=%d concatenated=%.1f ns/op %d B/op pooled=%.1f ns/op %d B/op (sink %d)",
+                        iterations, response.getEncodedSize(), (double) concatTime / iterations, concatAllocated / iterations,
+                        (double) pooledTime / iterations, pooledAllocated / iterations, sink & 1);
+            }
+        }
+    }
+
+    private static byte[] encodeByConcatenation(ServerMessageHeader header, String clientId, EncryptedKey encKey, Ticket ticket) throws Exception {
+        byte[] encKeyBytes = encKey.toLEByteArray();
+        byte[] ticketBytes = ticket.toLEByteArray();
+        byte[] clientIdBytes = Utils.hexStringToByteArray(clientId);
+        byte[] body = new byte[clientIdBytes.length + encKeyBytes.length + ticketBytes.length];
+        System.arraycopy(clientIdBytes, 0, body, 0, clientIdBytes.length);
+        System.arraycopy(encKeyBytes, 0, body, clientIdBytes.length, encKeyBytes.length);
+        System.arraycopy(ticketBytes, 0, body, clientIdBytes.length + encKeyBytes.length, ticketBytes.length);
+        body = Utils.byteArrayToLEByteBuffer(body).array();
+
+        byte[] headerBytes = header.toLEByteArray();
+        byte[] message = new byte[headerBytes.length + body.length];
+        System.arraycopy(headerBytes, 0, message, 0, headerBytes.length);
+        System.arraycopy(body, 0, message, headerBytes.length, body.length);
+        return ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).array();
+    }
+
+    /**
+     * Runs requests of the register, symmetric key, submit ticket and send message paths through the lifecycle of a
+     * connection's request (decode, process and encode the response into a reused buffer), once reading every request into
+     * new objects and once into a {@link MessagePool}, measuring the time and the bytes allocated per request.
+     * Registrations add new clients to an emptied clients file in the current directory, which is overwritten, and since
+     * every registration is synced to the disk only a hundredth of the iterations are registrations. Tickets are issued for
+     * the message server in msg.info in the current directory.
+     *
+     * @param iterations - how many requests of each path to run
+     */
+    private static void benchmarkAlloc(int iterations) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // The requests log every step, which would allocate more than the requests themselves.
+        AuthServer.authLogger.updateMinimalLogLevel(Logger.LogLevel.ERROR, Logger.LogLevel.ERROR);
+        MessageServer.msgLogger.updateMinimalLogLevel(Logger.LogLevel.ERROR, Logger.LogLevel.ERROR);
+        new FileWriter(Constants.CLIENTS_FILE_NAME, false).close();
+        KnownPeers peers = KnownPeers.getInstance();
+        String serverId = Files.readAllLines(Paths.get(Constants.SERVER_CONFIG_FILE_NAME)).get(2).trim();
+        MessageServerEntry server = peers.getSever(PrincipalId.fromHex(serverId));
+        if (server == null) {
+            throw new RuntimeException("No message server in msg.info.");
+        }
+
+        char[] password = "password".toCharArray();
+        byte[] passwordHash = CryptoUtils.performSha256(password);
+        PrincipalId clientId = CryptoUtils.generateClientId();
+        if (!peers.tryAddClientEntry(new ClientEntry(clientId, "alloc-client", passwordHash, new Date()))) {
+            throw new RuntimeException("Failed to register the benchmark client.");
+        }
+        RequestProcessor authProcessor = new AuthServerRequestProcessor();
+        RequestProcessor msgProcessor = new MessageServerRequestProcessor(server.getSymmetricKey());
+        FrameDecoder decoder = new FrameDecoder(benchLogger, null);
+
+        byte[] symKeyFrame = CreateSymmetricKeyRequestFactory.getInstance().setNonce(CryptoUtils.getSecureRandomBytes(8))
+                .setServerId(serverId).setClientId(clientId.toString()).build().toLEByteArray();
+        // Get the ticket and session key the way a client does, from the encoded response.
+        byte[] symKeyResponse = authProcessor.process(decodeFrame(decoder, symKeyFrame, REQUEST_HEADER_SIZE)).toLEByteArray();
+        ServerMessage parsed = decodeFrame(decoder, symKeyResponse, RESPONSE_HEADER_SIZE);
+        if (!(parsed instanceof GetSymmetricKeyResponse)) {
+            throw new RuntimeException("Failed to get a ticket for the benchmark client.");
+        }
+        GetSymmetricKeyResponseBody symKeyBody = (GetSymmetricKeyResponseBody) parsed.getBody();
+        EncryptedKey sessionKey = symKeyBody.getEncKey();
+        if (!sessionKey.decrypt(passwordHash)) {
+            throw new RuntimeException("Failed to decrypt the session key.");
+        }
+        Ticket ticket = symKeyBody.getTicket();
+        Authenticator authenticator = new Authenticator(CryptoUtils.getIv(), clientId, server.getId(), ticket.getCreationTime());
+
+        String[] paths = {"register", "symkey", "submit", "send"};
+        byte[][] frames = {
+                RegisterClientRequestFactory.getInstance().setName("alloc-00000000\0").setPassword("password\0".toCharArray()).build().toLEByteArray(),
+                symKeyFrame,
+                SubmitTicketRequestFactory.getInstance().setTicket(ticket).setAuthenticator(authenticator).encrypt(sessionKey.getAesKey())
+                        .setClientId(clientId.toString()).build().toLEByteArray(),
+                SendMessageRequestFactory.getInstance().setMessage("A message for the allocation benchmark")
+                        .encrypt(sessionKey.getAesKey()).setClientId(clientId.toString()).build().toLEByteArray()
+        };
+        RequestProcessor[] processors = {authProcessor, authProcessor, msgProcessor, msgProcessor};
+        ByteBuffer in = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        long threadId = Thread.currentThread().getId();
+        int registered = 0;
+
+        for (int round = 0; round < 2; round++) {
+            for (int path = 0; path < paths.length; path++) {
+                int requests = path == 0 ? Math.max(100, iterations / 100) : iterations;
+                long[] took = new long[2];
+                long[] allocated = new long[2];
+                for (int mode = 0; mode < 2; mode++) {
+                    MessagePool pool = mode == 1 ? new MessagePool() : null;
+                    long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < requests; i++) {
+                        byte[] frame = frames[path];
+                        in.clear();
+                        in.put(frame).flip();
+                        if (path == 0) {
+                            // Every registration needs a new name, write the counter over the zeros of the name.
+                            for (int d = 7, n = registered++; d >= 0; d--, n /= 10) {
+                                in.put(REQUEST_HEADER_SIZE + 6 + d, (byte) ('0' + n % 10));
+                            }
+                        }
+                        in.limit(REQUEST_HEADER_SIZE);
+                        ServerMessageHeader header = decoder.decodeHeader(in, pool);
+                        in.limit(frame.length);
+                        ServerMessage response = processors[path].process(decoder.decode(header, in, pool));
+                        if (response instanceof FailureResponse) {
+                            throw new RuntimeException(String.format("The %s request failed.", paths[path]));
+                        }
+                        out.clear();
+                        response.writeTo(out);
+                    }
+                    took[mode] = System.nanoTime() - start;
+                    allocated[mode] = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                }
+                if (round == 1) {
+                    benchLogger.info("alloc %-8s requests=%d new=%.0f ns/op %d B/op pooled=%.0f ns/op %d B/op",
+                            paths[path], requests, (double) took[0] / requests, allocated[0] / requests,
+                            (double) took[1] / requests, allocated[1] / requests);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a whole frame held in an array.
+     *
+     * @param headerSize - the size of the header, depending on whether the frame is a request or a response
+     */
+    private static ServerMessage decodeFrame(FrameDecoder decoder, byte[] frame, int headerSize) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(headerSize);
+        ServerMessageHeader header = decoder.decodeHeader(buffer);
+        buffer.limit(frame.length);
+        return decoder.decode(header, buffer);
+    }
+
+    private static MessageCode findCodeByStream(short code) {
+        List<MessageCode> matchingCodes = Arrays.stream(MessageCode.values()).filter(v -> v.getCode() == code).collect(Collectors.toList());
+        return matchingCodes.get(0);
+    }
+
+    private static ServerMessage decodeReflectively(MessageCode messageCode, ServerMessageHeader header, byte[] bodyBytes) throws Exception {
+        Class<? extends ServerMessageBody> bodyClass = messageCode.getBodyClass();
+        ServerMessageBody body = bodyClass.getConstructor().newInstance().parse(bodyBytes);
+        return messageCode.getMessageClass().getConstructor(ServerMessageHeader.class, bodyClass).newInstance(header, bodyClass.cast(body));
+    }
+}
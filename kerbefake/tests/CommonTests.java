@@ -0,0 +1,304 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.entities.requests.get_sym_key.CreateSymmetricKeyRequestFactory;
+import kerbefake.common.ClientLanes;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.RequestProcessor;
+import kerbefake.common.TimingWheel;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static kerbefake.tests.TestUtils.TestCase;
+import static kerbefake.tests.TestUtils.check;
+import static kerbefake.tests.TestUtils.runTests;
+import static kerbefake.tests.Tests.testLogger;
+
+/**
+ * Tests for the building blocks the servers share - {@link PreparedKeyCache}, {@link TimingWheel} and {@link ClientLanes}.
+ */
+@SuppressWarnings({"unused", "JavadocDeclaration"})
+final class CommonTests {
+
+    public static void main(String[] args) {
+        Map<String, TestCase> tests = new LinkedHashMap<>();
+        tests.put("evicting a prepared key while it is in use", CommonTests::testEvictKeyInUse);
+        tests.put("invalidating and rotating prepared keys", CommonTests::testInvalidateAndRotateKeys);
+        tests.put("invalidating prepared keys under concurrent requests", CommonTests::testInvalidateKeysUnderLoad);
+        tests.put("expiring values of the timing wheel on time", CommonTests::testTimingWheelExpiry);
+        tests.put("cancelling values of the timing wheel", CommonTests::testTimingWheelCancel);
+        tests.put("resequencing the responses of multiplexed clients", CommonTests::testClientLanesOrder);
+        runTests(tests);
+    }
+
+    /**
+     * A key evicted from the cache keeps working for the request which leased it, and is zeroed once released.
+     */
+    private static void testEvictKeyInUse() {
+        PreparedKeyCache cache = new PreparedKeyCache("test", 1);
+        byte[] firstBytes = CryptoUtils.getSecureRandomBytes(32);
+        byte[] iv = CryptoUtils.getIv();
+        byte[] plain = "a value encrypted while the key is evicted".getBytes();
+
+        PreparedKeyCache.PreparedKey first = cache.acquire(new PrincipalId(0, 1), firstBytes);
+        PreparedKeyCache.PreparedKey second = cache.acquire(new PrincipalId(0, 2), CryptoUtils.getSecureRandomBytes(32));
+        second.release();
+        check(cache.size() == 1 && cache.getEvictions() == 1, "the first key to be evicted");
+        check(first.isDestroyed(), "the evicted key to be destroyed");
+
+        byte[] encrypted = CryptoUtils.encrypt(first, iv, plain);
+        check(Arrays.equals(CryptoUtils.decrypt(firstBytes, iv, encrypted), plain), "the leased key to still encrypt with the original key");
+        first.release();
+
+        check(!first.acquire(), "a released evicted key can't be leased again");
+        try {
+            first.getEncoded();
+            check(false, "a released evicted key to be zeroed");
+        } catch (IllegalStateException e) {
+            // Expected, the key was zeroed.
+        }
+    }
+
+    /**
+     * Invalidated and rotated keys are replaced, the previous key stays usable until released.
+     */
+    private static void testInvalidateAndRotateKeys() {
+        PreparedKeyCache cache = new PreparedKeyCache("test", 16);
+        PrincipalId principal = new PrincipalId(7, 7);
+        byte[] original = CryptoUtils.getSecureRandomBytes(32);
+
+        PreparedKeyCache.PreparedKey leased = cache.acquire(principal, original);
+        PreparedKeyCache.PreparedKey again = cache.acquire(principal, original);
+        check(leased == again && cache.getHits() == 1, "the second lookup to hit the cache");
+        again.release();
+
+        cache.invalidate(principal);
+        check(leased.isDestroyed() && leased.getEncoded().length == 32, "an invalidated key to stay usable while leased");
+        leased.release();
+        check(!leased.acquire(), "an invalidated key to be zeroed once released");
+
+        byte[] rotated = CryptoUtils.getSecureRandomBytes(32);
+        PreparedKeyCache.PreparedKey before = cache.acquire(principal, original);
+        PreparedKeyCache.PreparedKey after = cache.acquire(principal, rotated);
+        check(before != after && Arrays.equals(after.getEncoded(), rotated), "a rotated key to replace the cached key");
+        check(Arrays.equals(before.getEncoded(), original), "the replaced key to stay usable while leased");
+        before.release();
+        after.release();
+        check(before.isDestroyed() && !after.isDestroyed(), "only the replaced key to be destroyed");
+    }
+
+    /**
+     * Requests keep encrypting with keys that are invalidated and evicted under them, none of them may fail.
+     */
+    private static void testInvalidateKeysUnderLoad() throws InterruptedException {
+        PreparedKeyCache cache = new PreparedKeyCache("test", 4);
+        int principals = 8;
+        byte[][] keys = new byte[principals][];
+        for (int p = 0; p < principals; p++) {
+            keys[p] = CryptoUtils.getSecureRandomBytes(32);
+        }
+        byte[] iv = CryptoUtils.getIv();
+        byte[] plain = new byte[64];
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger operations = new AtomicInteger();
+        Thread[] workers = new Thread[3];
+        for (int t = 0; t < workers.length; t++) {
+            int offset = t;
+            workers[t] = new Thread(() -> {
+                for (int i = offset; running.get(); i++) {
+                    int p = i % principals;
+                    PreparedKeyCache.PreparedKey key = null;
+                    try {
+                        key = cache.acquire(new PrincipalId(0, p), keys[p]);
+                        byte[] encrypted = CryptoUtils.encrypt(key, iv, plain);
+                        if (!Arrays.equals(CryptoUtils.decrypt(key, iv, encrypted), plain)) {
+                            failures.incrementAndGet();
+                        }
+                        operations.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        if (key != null) {
+                            key.release();
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        long end = System.currentTimeMillis() + 1000;
+        for (int i = 0; System.currentTimeMillis() < end; i++) {
+            cache.invalidate(new PrincipalId(0, i % principals));
+        }
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        check(operations.get() > 0, "requests to have run");
+        check(failures.get() == 0, String.format("no request to fail, %d of %d failed", failures.get(), operations.get()));
+        check(cache.size() <= cache.getCapacity(), "the cache to stay within its capacity");
+    }
+
+    /**
+     * Values expire on the first advance past their deadline, never before it, including deadlines beyond the range of
+     * the wheel's last level.
+     */
+    private static void testTimingWheelExpiry() {
+        long tickMs = 10;
+        long start = 1_000_000;
+        TimingWheel<Long> wheel = new TimingWheel<>(tickMs, start);
+        Random random = new Random(18);
+        Map<Long, Long> deadlines = new HashMap<>();
+        for (long value = 0; value < 5000; value++) {
+            // Up to 2^28 ms ahead, past the 64^4 ticks the levels of the wheel cover.
+            long deadline = start + (random.nextBoolean() ? random.nextInt(5000) : (long) random.nextInt(1 << 28));
+            deadlines.put(value, deadline);
+            wheel.schedule(value, deadline);
+        }
+        check(wheel.size() == deadlines.size(), "all the values to be scheduled");
+
+        long now = start;
+        long end = start + (1L << 28) + tickMs;
+        while (now < end) {
+            now += random.nextInt(4) == 0 ? random.nextInt(1 << 22) : random.nextInt(100);
+            long nowTick = now / tickMs;
+            long current = now;
+            int expired = wheel.advance(now, value -> {
+                long deadline = deadlines.remove(value);
+                check(deadline <= current, String.format("value %d to expire at or after its deadline %d, expired at %d", value, deadline, current));
+            });
+            check(expired >= 0 && wheel.size() == deadlines.size(), "the size of the wheel to match the remaining values");
+            for (Map.Entry<Long, Long> remaining : deadlines.entrySet()) {
+                long deadlineTick = (remaining.getValue() + tickMs - 1) / tickMs;
+                check(deadlineTick > nowTick, String.format("value %d with deadline %d to expire by %d", remaining.getKey(), remaining.getValue(), now));
+            }
+        }
+        check(deadlines.isEmpty() && wheel.size() == 0, "every value to expire");
+    }
+
+    /**
+     * Cancelled values never expire, and a value can only be cancelled while it is scheduled.
+     */
+    private static void testTimingWheelCancel() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(1, 0);
+        List<TimingWheel.Timer<Integer>> timers = new ArrayList<>();
+        for (int value = 0; value < 1000; value++) {
+            timers.add(wheel.schedule(value, 1 + value * 37L));
+        }
+        for (int value = 0; value < 1000; value += 2) {
+            check(wheel.cancel(timers.get(value)), "a scheduled value to be cancelled");
+            check(!wheel.cancel(timers.get(value)), "a value to be cancelled once");
+        }
+        check(wheel.size() == 500, "the cancelled values to be removed");
+
+        List<Integer> expired = new ArrayList<>();
+        wheel.advance(1000 * 37L, expired::add);
+        check(expired.size() == 500, "only the values which weren't cancelled to expire");
+        for (int value : expired) {
+            check(value % 2 == 1, String.format("cancelled value %d not to expire", value));
+        }
+        check(!wheel.cancel(timers.get(1)), "an expired value can't be cancelled");
+        check(wheel.size() == 0, "the wheel to be empty");
+    }
+
+    /**
+     * The requests of each client execute one at a time in order while the clients run concurrently, and responses are
+     * handed over in the order the requests arrived no matter when they completed.
+     */
+    private static void testClientLanesOrder() throws Exception {
+        int clients = 8;
+        int requests = 2000;
+        Map<PrincipalId, AtomicBoolean> executing = new ConcurrentHashMap<>();
+        Map<PrincipalId, List<ServerMessage>> executed = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        RequestProcessor processor = new RequestProcessor(testLogger, EnumSet.of(MessageCode.REQUEST_SYMMETRIC_KEY)) {
+            @Override
+            public <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message) {
+                return message;
+            }
+
+            @Override
+            public ServerMessage process(ServerMessage message) {
+                PrincipalId clientId = message.getHeader().getClientId();
+                if (!executing.get(clientId).compareAndSet(false, true)) {
+                    overlaps.incrementAndGet();
+                }
+                executed.get(clientId).add(message);
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(200_000));
+                executing.get(clientId).set(false);
+                // Hand the request itself back, so we can tell which request each response is for.
+                return message;
+            }
+        };
+
+        byte[] nonce = new byte[8];
+        Arrays.fill(nonce, (byte) 3);
+        List<ServerMessage> dispatched = new ArrayList<>();
+        Map<PrincipalId, List<ServerMessage>> dispatchedByClient = new HashMap<>();
+        for (int i = 0; i < requests; i++) {
+            if (i % 500 == 250) {
+                // A request that could not be read is answered in its place.
+                dispatched.add(processor.getUnknownFailure());
+                continue;
+            }
+            String clientId = String.format("%032x", i % clients + 1);
+            ServerMessage request = CreateSymmetricKeyRequestFactory.getInstance().setServerId(clientId).setNonce(nonce).setClientId(clientId).build();
+            dispatched.add(request);
+            dispatchedByClient.computeIfAbsent(request.getHeader().getClientId(), id -> new ArrayList<>()).add(request);
+            executing.putIfAbsent(request.getHeader().getClientId(), new AtomicBoolean(false));
+            executed.putIfAbsent(request.getHeader().getClientId(), Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        List<ServerMessage> responses = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            ClientLanes lanes = new ClientLanes(workers, processor, responses::add);
+            for (ServerMessage request : dispatched) {
+                lanes.dispatch(request);
+            }
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (responses.size() < dispatched.size() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            check(responses.size() == dispatched.size(), String.format("every request to be answered, %d of %d were", responses.size(), dispatched.size()));
+            for (int i = 0; i < dispatched.size(); i++) {
+                check(responses.get(i) == dispatched.get(i), String.format("response %d to be handed over in the order of its request", i));
+            }
+            check(overlaps.get() == 0, "the requests of a client not to execute concurrently");
+            for (Map.Entry<PrincipalId, List<ServerMessage>> client : dispatchedByClient.entrySet()) {
+                check(executed.get(client.getKey()).equals(client.getValue()), String.format("the requests of %s to execute in order", client.getKey()));
+            }
+            while (lanes.getActiveLanes() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            check(lanes.getActiveLanes() == 0, "the lanes to be removed once they are done");
+        } finally {
+            workers.shutdownNow();
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package kerbefake.tests;
+
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.entities.Authenticator;
+import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.Ticket;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static kerbefake.tests.Benchmarks.benchLogger;
+
+/**
+ * Benchmarks of encryption, prepared keys and randomness. See {@link Benchmarks} for how to run them.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class CryptoBenchmarks {
+
+    /**
+     * Runs a benchmark of this area.
+     *
+     * @param args - the name of the benchmark followed by its arguments
+     * @return false in case the benchmark isn't one of this area.
+     */
+    static boolean run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "crypto":
+                benchmarkCrypto(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+                return true;
+            case "keys":
+                benchmarkKeys(args.length > 1 ? Integer.parseInt(args[1]) : 500_000, args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+                return true;
+            case "random":
+                int tickets = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+                int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    benchmarkRandom(threads, tickets);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encrypts and decrypts values the size of the encrypted structures of the protocol (the ticket and encrypted key
+     * hold 40 bytes, the authenticator 41 bytes, and a couple of message sizes), once creating a cipher for every operation
+     * the way it used to be done, once with the cached cipher and once with the cached cipher writing into our buffers.
+     *
+     * @param iterations - how many operations of each size to perform
+     */
+    private static void benchmarkCrypto(int iterations) throws Exception {
+        byte[] key = new byte[32], iv = new byte[16];
+        Arrays.fill(key, (byte) 1);
+        Arrays.fill(iv, (byte) 2);
+        String[] names = {"ticket", "authenticator", "message-64", "message-1024"};
+        int[] sizes = {Ticket.DATA_DECRYPTED_SIZE, Authenticator.DATA_DECRYPTED_SIZE, 64, 1024};
+        byte[] output = new byte[CryptoUtils.getEncryptedSize(1024)];
+        byte[] decrypted = new byte[output.length];
+
+        for (int round = 0; round < 2; round++) {
+            for (int s = 0; s < sizes.length; s++) {
+                byte[] plain = new byte[sizes[s]];
+                Arrays.fill(plain, (byte) 3);
+                byte[] encrypted = CryptoUtils.encrypt(key, iv, plain);
+                long sink = 0;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+                    sink += cipher.doFinal(plain)[0];
+                    cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+                    sink += cipher.doFinal(encrypted)[0];
+                }
+                long uncached = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += CryptoUtils.encrypt(key, iv, plain)[0];
+                    sink += CryptoUtils.decrypt(key, iv, encrypted)[0];
+                }
+                long cached = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += CryptoUtils.encrypt(key, iv, plain, 0, plain.length, output, 0);
+                    sink += CryptoUtils.decrypt(key, iv, encrypted, 0, encrypted.length, decrypted, 0);
+                }
+                long buffers = System.nanoTime() - start;
+
+                if (round == 1) {
+                    // Each iteration is an encryption and a decryption.
+                    benchLogger.info("crypto %-13s size=%-4d uncached=%.0f ops/s cached=%.0f ops/s buffers=%.0f ops/s (sink %d)",
+                            names[s], sizes[s], 2 * iterations / (uncached / 1e9), 2 * iterations / (cached / 1e9),
+                            2 * iterations / (buffers / 1e9), sink & 1);
+                }
+            }
+
+            char[] password = "benchmark-password".toCharArray();
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] bytes = new byte[password.length];
+                for (int c = 0; c < password.length; c++) {
+                    bytes[c] = (byte) password[c];
+                }
+                sink += MessageDigest.getInstance("SHA-256").digest(bytes)[0];
+            }
+            long uncached = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += CryptoUtils.performSha256(password)[0];
+            }
+            long cached = System.nanoTime() - start;
+
+            if (round == 1) {
+                benchLogger.info("crypto %-13s size=%-4d uncached=%.0f ops/s cached=%.0f ops/s (sink %d)",
+                        "sha256", password.length, iterations / (uncached / 1e9), iterations / (cached / 1e9), sink & 1);
+            }
+        }
+    }
+
+    /**
+     * Encrypts a ticket sized value with the key of a different principal every time, the way the auth server alternates
+     * between clients, once preparing the key from its bytes and once getting it from a {@link PreparedKeyCache}.
+     *
+     * @param iterations - how many encryptions to perform in each mode
+     * @param principals - how many principals to alternate between
+     */
+    private static void benchmarkKeys(int iterations, int principals) {
+        byte[][] keys = new byte[principals][32];
+        PrincipalId[] ids = new PrincipalId[principals];
+        for (int p = 0; p < principals; p++) {
+            Arrays.fill(keys[p], (byte) p);
+            keys[p][0] = (byte) (p >> 8);
+            ids[p] = new PrincipalId(0, p);
+        }
+        byte[] iv = new byte[16];
+        byte[] plain = new byte[Ticket.DATA_DECRYPTED_SIZE];
+
+        for (int round = 0; round < 2; round++) {
+            PreparedKeyCache cache = new PreparedKeyCache("benchmark", principals);
+            long sink = 0;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += CryptoUtils.encrypt(keys[i % principals], iv, plain)[0];
+            }
+            long uncached = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int p = i % principals;
+                PreparedKeyCache.PreparedKey key = cache.acquire(ids[p], keys[p]);
+                sink += CryptoUtils.encrypt(key, iv, plain)[0];
+                key.release();
+            }
+            long cached = System.nanoTime() - start;
+
+            if (round == 1) {
+                benchLogger.info("keys principals=%d uncached=%.0f ops/s cached=%.0f ops/s hit rate=%.3f (sink %d)",
+                        principals, iterations / (uncached / 1e9), iterations / (cached / 1e9), cache.getHitRate(), sink & 1);
+            }
+        }
+    }
+
+    /**
+     * Issues tickets the way {@link kerbefake.auth_server.entities.requests.get_sym_key.GetSymmetricKeyRequest} does (a
+     * session key, two IVs and encrypting the ticket and the encrypted key) from a number of threads at once, once drawing
+     * the random bytes from a single shared {@link SecureRandom} the way it used to be done and once from the pool.
+     *
+     * @param threads - how many threads issue tickets at once
+     * @param tickets - how many tickets each thread issues in each mode
+     */
+    private static void benchmarkRandom(int threads, int tickets) throws Exception {
+        SecureRandom shared = new SecureRandom();
+        IntFunction<byte[]> sharedSource = size -> {
+            byte[] bytes = new byte[size];
+            shared.nextBytes(bytes);
+            return bytes;
+        };
+        IntFunction<byte[]> poolSource = CryptoUtils::getSecureRandomBytes;
+        byte[] clientKey = new byte[32], serverKey = new byte[32], nonce = new byte[8], time = new byte[8];
+        Arrays.fill(clientKey, (byte) 1);
+        Arrays.fill(serverKey, (byte) 2);
+        Arrays.fill(nonce, (byte) 3);
+        Arrays.fill(time, (byte) 4);
+
+        for (int round = 0; round < 2; round++) {
+            long[] elapsed = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                IntFunction<byte[]> source = mode == 0 ? sharedSource : poolSource;
+                List<Thread> issuers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    issuers.add(new Thread(() -> {
+                        for (int i = 0; i < tickets; i++) {
+                            byte[] aesKey = source.apply(32);
+                            EncryptedKey key = new EncryptedKey().setAesKey(aesKey).setNonce(nonce).setIv(source.apply(16));
+                            Ticket ticket = new Ticket().setTicketIv(source.apply(16)).setClientId(new PrincipalId(0, 1))
+                                    .setServerId(new PrincipalId(0, 2)).setCreationTime(time).setAesKey(aesKey).setExpTime(time);
+                            if (!key.encrypt(clientKey) || !ticket.encrypt(serverKey)) {
+                                throw new RuntimeException("Failed to encrypt ticket.");
+                            }
+                        }
+                    }));
+                }
+                long start = System.nanoTime();
+                for (Thread issuer : issuers) {
+                    issuer.start();
+                }
+                for (Thread issuer : issuers) {
+                    issuer.join();
+                }
+                elapsed[mode] = System.nanoTime() - start;
+            }
+
+            if (round == 1) {
+                long total = (long) threads * tickets;
+                benchLogger.info("random threads=%d shared=%.0f tickets/s pool=%.0f tickets/s",
+                        threads, total / (elapsed[0] / 1e9), total / (elapsed[1] / 1e9));
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.AuthServer;
+import kerbefake.auth_server.entities.requests.get_sym_key.CreateSymmetricKeyRequestFactory;
+import kerbefake.auth_server.entities.responses.FailureResponse;
+import kerbefake.client.ClientConnection;
+import kerbefake.common.MessageStream;
+import kerbefake.common.NetworkServer;
+import kerbefake.common.RequestProcessor;
+import kerbefake.common.ServerConfig;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.ServerRequest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static kerbefake.tests.Benchmarks.benchLogger;
+
+/**
+ * Benchmarks of the network layer - holding idle and open connections, pipelining and multiplexing requests. See {@link Benchmarks} for how to run them.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class NetworkBenchmarks {
+
+    /**
+     * Runs a benchmark of this area.
+     *
+     * @param args - the name of the benchmark followed by its arguments
+     * @return false in case the benchmark isn't one of this area.
+     */
+    static boolean run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "idle":
+                int connections = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+                int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+                for (MessageStream.ReadMode mode : MessageStream.ReadMode.values()) {
+                    benchmarkIdleConnections(mode, connections, seconds);
+                }
+                return true;
+            case "connections":
+                int openConnections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+                for (ServerConfig.Engine engine : ServerConfig.Engine.values()) {
+                    benchmarkOpenConnections(engine, openConnections);
+                }
+                return true;
+            case "pipeline":
+                int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+                int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+                for (int window : new int[]{1, 4, 16, 64}) {
+                    benchmarkPipeline(window, requests, latencyMs);
+                }
+                return true;
+            case "multiplex":
+                int multiplexRequests = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+                int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+                int workMs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+                for (ServerConfig.Engine engine : ServerConfig.Engine.values()) {
+                    for (boolean multiplexed : new boolean[]{false, true}) {
+                        benchmarkMultiplex(engine, multiplexed, multiplexRequests, clients, workMs);
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Opens a number of connections that never send anything and measures how much CPU the threads waiting on them use.
+     *
+     * @param mode        - the read mode to use for the server side streams
+     * @param connections - how many idle connections to open
+     * @param seconds     - for how long to measure
+     */
+    private static void benchmarkIdleConnections(MessageStream.ReadMode mode, int connections, int seconds) throws IOException, InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadCpuTimeSupported()) {
+            benchLogger.error("Thread CPU time is not supported on this JVM, can't run benchmark.");
+            return;
+        }
+        threadBean.setThreadCpuTimeEnabled(true);
+
+        // Stands in for the server thread, interrupting it stops all the readers.
+        // It must stay alive after the interrupt, otherwise the readers will not see the interrupted flag.
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Thread parentThread = new Thread(() -> {
+            while (!finished.get()) {
+                LockSupport.park();
+            }
+        });
+        parentThread.start();
+
+        List<Socket> clientSockets = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            for (int i = 0; i < connections; i++) {
+                clientSockets.add(new Socket("127.0.0.1", serverSocket.getLocalPort()));
+                Socket conn = serverSocket.accept();
+                MessageStream stream = new MessageStream(conn, true, parentThread, benchLogger, null, mode);
+                Thread reader = new Thread(() -> {
+                    try {
+                        stream.readNextMessage();
+                    } catch (InterruptedException | EOFException ignored) {
+                        // Expected when the benchmark is done.
+                    } catch (Exception e) {
+                        benchLogger.error("Reader failed due to: %s", e);
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            // Let all the readers settle before measuring.
+            Thread.sleep(1000);
+            long cpuBefore = totalCpuTime(threadBean, readers);
+            long start = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            long cpuAfter = totalCpuTime(threadBean, readers);
+            long elapsed = System.nanoTime() - start;
+
+            double cpuPerConnection = (double) (cpuAfter - cpuBefore) / elapsed / connections;
+            // Note: the logger formats the message twice, so we can't use a percent sign here.
+            benchLogger.info("idle %-8s connections=%d cpu per idle connection=%.5f cores, total=%.3f cores",
+                    mode, connections, cpuPerConnection, cpuPerConnection * connections);
+        } finally {
+            parentThread.interrupt();
+            for (Socket socket : clientSockets) {
+                socket.close();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            finished.set(true);
+            LockSupport.unpark(parentThread);
+        }
+    }
+
+    /**
+     * Starts the auth server with the given engine, opens a number of connections to it and counts the live threads.
+     *
+     * @param engine      - the engine the server uses
+     * @param connections - how many connections to open
+     */
+    private static void benchmarkOpenConnections(ServerConfig.Engine engine, int connections) throws IOException, InterruptedException {
+        System.setProperty(ServerConfig.ENGINE_PROPERTY, engine.name());
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threadBean.getThreadCount();
+
+        Thread serverThread = new Thread(new AuthServer()::start);
+        serverThread.start();
+        // Let the server bind before connecting.
+        Thread.sleep(2000);
+
+        List<Socket> clientSockets = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                clientSockets.add(new Socket("127.0.0.1", 1256));
+            }
+            long elapsed = System.nanoTime() - start;
+            // Let the server pick up all the connections before counting.
+            Thread.sleep(2000);
+            int threads = threadBean.getThreadCount() - threadsBefore;
+            benchLogger.info("connections %-8s connections=%d server threads=%d connect time=%d ms",
+                    engine, connections, threads, elapsed / 1_000_000);
+        } finally {
+            serverThread.interrupt();
+            for (Socket socket : clientSockets) {
+                socket.close();
+            }
+            serverThread.join();
+            // Let the connection threads of the server exit before the next engine is measured.
+            Thread.sleep(2000);
+        }
+    }
+
+    /**
+     * Sends requests over a single client connection to a server that answers every request after a fixed delay, which
+     * stands in for the network latency. With a window of 1 every request waits for the previous response.
+     *
+     * @param window    - how many requests the client may have in flight
+     * @param requests  - how many requests to send
+     * @param latencyMs - how long the server waits before answering each request
+     */
+    private static void benchmarkPipeline(int window, int requests, int latencyMs) throws Exception {
+        String clientId = "0123456789abcdef0123456789abcdef";
+        byte[] nonce = new byte[8];
+        Arrays.fill(nonce, (byte) 3);
+        ServerMessage request = CreateSymmetricKeyRequestFactory.getInstance().setServerId(clientId).setNonce(nonce).setClientId(clientId).build();
+        ScheduledExecutorService delayLine = Executors.newSingleThreadScheduledExecutor();
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            Thread server = new Thread(() -> {
+                try (Socket conn = serverSocket.accept()) {
+                    MessageStream stream = new MessageStream(conn, true, Thread.currentThread(), benchLogger);
+                    ServerMessage response = FailureResponse.createUnknownFailureResponse();
+                    while (true) {
+                        stream.readNextMessage();
+                        delayLine.schedule(() -> stream.sendMessage(response), latencyMs, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException | EOFException ignored) {
+                    // Expected when the benchmark is done.
+                } catch (Exception e) {
+                    benchLogger.error("Server failed due to: %s", e);
+                }
+            });
+            server.start();
+
+            ClientConnection connection = new ClientConnection("127.0.0.1", serverSocket.getLocalPort(), window);
+            if (!connection.open()) {
+                throw new RuntimeException("Failed to connect to the benchmark server.");
+            }
+            try {
+                CompletableFuture<?>[] responses = new CompletableFuture<?>[requests];
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    responses[i] = connection.sendAsync(request);
+                }
+                CompletableFuture.allOf(responses).get();
+                long elapsed = System.nanoTime() - start;
+                benchLogger.info("pipeline window=%-3d requests=%d latency=%d ms throughput=%.0f requests/s",
+                        window, requests, latencyMs, requests / (elapsed / 1e9));
+            } finally {
+                connection.close();
+                server.join();
+            }
+        } finally {
+            delayLine.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the requests of many clients over a single connection, as a gateway would, to a server whose requests take a
+     * fixed time to execute. Without multiplexing the requests are executed one after the other.
+     *
+     * @param engine      - the engine the server uses
+     * @param multiplexed - whether the server multiplexes connections
+     * @param requests    - how many requests to send
+     * @param clients     - how many clients the requests are spread over
+     * @param workMs      - how long each request takes to execute
+     */
+    private static void benchmarkMultiplex(ServerConfig.Engine engine, boolean multiplexed, int requests, int clients, int workMs) throws Exception {
+        System.setProperty(ServerConfig.ENGINE_PROPERTY, engine.name());
+        System.setProperty(ServerConfig.MULTIPLEX_PROPERTY, String.valueOf(multiplexed));
+        RequestProcessor processor = new RequestProcessor(benchLogger, EnumSet.of(MessageCode.REQUEST_SYMMETRIC_KEY)) {
+            @Override
+            public <T extends ServerMessage & ServerRequest> T processMessageBeforeExecution(T message) {
+                return message;
+            }
+
+            @Override
+            public ServerMessage process(ServerMessage message) {
+                LockSupport.parkNanos(workMs * 1_000_000L);
+                return getUnknownFailure();
+            }
+        };
+        NetworkServer server = ServerConfig.createServer(benchLogger, processor, new InetSocketAddress("127.0.0.1", 12560), "MultiplexBenchmark-");
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        // Let the server bind before connecting.
+        Thread.sleep(1000);
+
+        byte[] nonce = new byte[8];
+        Arrays.fill(nonce, (byte) 3);
+        ServerMessage[] clientRequests = new ServerMessage[clients];
+        for (int i = 0; i < clients; i++) {
+            String clientId = String.format("%032x", i + 1);
+            clientRequests[i] = CreateSymmetricKeyRequestFactory.getInstance().setServerId(clientId).setNonce(nonce).setClientId(clientId).build();
+        }
+
+        ClientConnection gateway = new ClientConnection("127.0.0.1", 12560, requests);
+        try {
+            if (!gateway.open()) {
+                throw new RuntimeException("Failed to connect to the benchmark server.");
+            }
+            CompletableFuture<?>[] responses = new CompletableFuture<?>[requests];
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                responses[i] = gateway.sendAsync(clientRequests[i % clients]);
+            }
+            CompletableFuture.allOf(responses).get();
+            long elapsed = System.nanoTime() - start;
+            benchLogger.info("multiplex %-8s multiplexed=%-5s requests=%d clients=%d work=%d ms throughput=%.0f requests/s",
+                    engine, multiplexed, requests, clients, workMs, requests / (elapsed / 1e9));
+        } finally {
+            gateway.close();
+            server.stop();
+            serverThread.join();
+            System.clearProperty(ServerConfig.MULTIPLEX_PROPERTY);
+        }
+    }
+
+    private static long totalCpuTime(ThreadMXBean threadBean, List<Thread> threads) {
+        long total = 0;
+        for (Thread t : threads) {
+            long cpu = threadBean.getThreadCpuTime(t.getId());
+            if (cpu > 0) total += cpu;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,304 @@
+package kerbefake.tests;
+
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.PreparedKeyCache;
+import kerbefake.common.TimingWheel;
+import kerbefake.common.Utils;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.Ticket;
+import kerbefake.msg_server.KnownSessions;
+import kerbefake.msg_server.SessionIndex;
+import kerbefake.msg_server.SessionSnapshot;
+
+import javax.crypto.SecretKey;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static kerbefake.tests.Benchmarks.benchLogger;
+import static kerbefake.tests.Benchmarks.runConcurrently;
+
+/**
+ * Benchmarks of the message server's sessions - expiring, looking up, snapshotting and resuming them. See {@link Benchmarks} for how to run them.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class SessionBenchmarks {
+
+    /**
+     * Runs a benchmark of this area.
+     *
+     * @param args - the name of the benchmark followed by its arguments
+     * @return false in case the benchmark isn't one of this area.
+     */
+    static boolean run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "sessions":
+                benchmarkSessions(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                return true;
+            case "sessionlookup":
+                benchmarkSessionLookup(args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000, args.length > 2 ? Integer.parseInt(args[2]) : 100_000);
+                return true;
+            case "snapshot":
+                benchmarkSnapshot(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+                return true;
+            case "resume":
+                benchmarkResume(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000, args.length > 2 ? Integer.parseInt(args[2]) : 10_000);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Simulates 10 minutes of a message server holding a steady amount of sessions, whose tickets are valid for 10
+     * minutes: every simulated second the sessions that expired are evicted and as many new ones are added. Eviction is
+     * done once by scanning every session, and once with a {@link TimingWheel} the way {@link KnownSessions} does.
+     *
+     * @param sessions - how many sessions are live at once
+     */
+    private static void benchmarkSessions(int sessions) {
+        long lifetime = 600_000;
+        int perSecond = (int) Math.max(1, sessions / (lifetime / 1000));
+        for (int mode = 0; mode < 2; mode++) {
+            Map<Long, long[]> live = new HashMap<>();
+            TimingWheel<long[]> wheel = new TimingWheel<>(1000, 0);
+            long nextId = 0;
+            // Start with sessions expiring evenly over the lifetime of a ticket.
+            for (int i = 0; i < sessions; i++) {
+                long[] session = {nextId++, (long) i * lifetime / sessions + 1};
+                live.put(session[0], session);
+                if (mode == 1) {
+                    wheel.schedule(session, session[1]);
+                }
+            }
+
+            System.gc();
+            long evicting = 0;
+            long evicted = 0;
+            long worst = 0;
+            for (long now = 1000; now <= lifetime; now += 1000) {
+                long start = System.nanoTime();
+                if (mode == 0) {
+                    Iterator<long[]> it = live.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next()[1] <= now) {
+                            it.remove();
+                            evicted++;
+                        }
+                    }
+                } else {
+                    evicted += wheel.advance(now, session -> live.remove(session[0]));
+                }
+                long took = System.nanoTime() - start;
+                evicting += took;
+                worst = Math.max(worst, took);
+
+                for (int i = 0; i < perSecond; i++) {
+                    long[] session = {nextId++, now + lifetime};
+                    live.put(session[0], session);
+                    if (mode == 1) {
+                        wheel.schedule(session, session[1]);
+                    }
+                }
+            }
+            benchLogger.info("sessions live=%d %s: %.3f ms evicting per second (worst %.3f ms), %.0f ns per evicted session, evicted=%d live at end=%d",
+                    sessions, mode == 0 ? "scan" : "timing wheel", evicting / 1e6 / (lifetime / 1000), worst / 1e6,
+                    (double) evicting / Math.max(1, evicted), evicted, live.size());
+        }
+    }
+
+    /**
+     * Finds the session key for the client ID of request headers, the way the message server used to (building the hex
+     * string of the client ID and looking its key up in a synchronized map) and the way it does now (reading the client ID as two longs and looking the session up in a {@link SessionIndex},
+     * which holds its prepared key). Timed on a single thread, measuring garbage, and on 4 threads at once.
+     *
+     * @param lookups  - how many lookups to time in each mode
+     * @param sessions - how many sessions are live
+     */
+    private static void benchmarkSessionLookup(int lookups, int sessions) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer[] headers = new ByteBuffer[sessions];
+        Map<String, SecretKey> keys = Collections.synchronizedMap(new HashMap<>());
+        SessionIndex<SecretKey> index = new SessionIndex<>();
+        for (int i = 0; i < sessions; i++) {
+            PrincipalId clientId = CryptoUtils.generateClientId();
+            SecretKey key = PreparedKeyCache.prepare(CryptoUtils.getSecureRandomBytes(32));
+            headers[i] = ByteBuffer.wrap(clientId.toByteArray());
+            keys.put(clientId.toString(), key);
+            index.put(clientId.getHigh(), clientId.getLow(), key);
+        }
+
+        IntFunction<SecretKey> byString = i -> {
+            ByteBuffer header = headers[i].duplicate();
+            return keys.get(Utils.bytesToHexString(Utils.readBytes(header, 16)));
+        };
+        IntFunction<SecretKey> byLongs = i -> index.get(headers[i].getLong(0), headers[i].getLong(8));
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < 2; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                IntFunction<SecretKey> lookup = mode == 0 ? byString : byLongs;
+                Random random = new Random(round);
+                long sink = 0;
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    sink += lookup.apply(random.nextInt(sessions)).getAlgorithm().length();
+                }
+                long single = System.nanoTime() - start;
+                long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+                int threads = 4;
+                long concurrent = runConcurrently(threads, lookups / threads, r -> lookup.apply(r.nextInt(sessions)));
+                if (round == 1) {
+                    benchLogger.info("sessionlookup sessions=%d %s: %.0f ns/lookup on 1 thread, %.0f bytes/lookup, %.0f ns/lookup on %d threads (sink %d)",
+                            sessions, mode == 0 ? "string + synchronized map" : "session index", (double) single / lookups,
+                            (double) allocated / lookups, (double) concurrent / lookups, threads, sink & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the sessions of the message server after a restart, either by every client submitting its ticket again
+     * (the server decrypting each ticket and adding its session) or by reading the sessions snapshot written before the
+     * restart. Network round trips of the resubmissions are not included.
+     *
+     * @param sessions - how many sessions are live when the server restarts
+     */
+    private static void benchmarkSnapshot(int sessions) throws Exception {
+        byte[] serverKey = CryptoUtils.getSecureRandomBytes(32);
+        SecretKey preparedServerKey = PreparedKeyCache.prepare(serverKey);
+        Path file = Files.createTempFile("sessions", ".snapshot");
+        Files.delete(file);
+        KnownSessions known = KnownSessions.getInstance();
+        known.startSnapshots(new SessionSnapshot(file, serverKey, benchLogger));
+
+        long expTime = System.currentTimeMillis() + 600_000;
+        PrincipalId[] clientIds = new PrincipalId[sessions];
+        Ticket[] tickets = new Ticket[sessions];
+        for (int i = 0; i < sessions; i++) {
+            clientIds[i] = CryptoUtils.generateClientId();
+            tickets[i] = new Ticket()
+                    .setVersion((byte) 24)
+                    .setClientId(clientIds[i])
+                    .setServerId(clientIds[i])
+                    .setCreationTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(System.currentTimeMillis()).array())
+                    .setTicketIv(CryptoUtils.getIv())
+                    .setAesKey(CryptoUtils.getSecureRandomBytes(32))
+                    .setExpTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(expTime).array());
+            if (!tickets[i].encrypt(preparedServerKey)) {
+                benchLogger.error("Failed to encrypt ticket %d", i);
+                return;
+            }
+        }
+
+        try {
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < sessions; i++) {
+                    if (!tickets[i].decrypt(preparedServerKey) || !known.addSession(clientIds[i], tickets[i])) {
+                        benchLogger.error("Failed to add session %d", i);
+                        return;
+                    }
+                }
+                long resubmit = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                if (!known.writeSnapshot()) {
+                    benchLogger.error("Failed to write snapshot");
+                    return;
+                }
+                long write = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int restored = new SessionSnapshot(file, serverKey, benchLogger).read().size();
+                long read = System.nanoTime() - start;
+                int wrongKey = new SessionSnapshot(file, CryptoUtils.getSecureRandomBytes(32), benchLogger).read().size();
+                if (round == 1) {
+                    benchLogger.info("snapshot sessions=%d: resubmitting tickets %.1f ms, writing snapshot %.1f ms (%d bytes), restoring snapshot %.1f ms (restored %d, under another key %d)",
+                            sessions, resubmit / 1e6, write / 1e6, Files.size(file), read / 1e6, restored, wrongKey);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Finds the session key of messages sent along with the ticket of their client (as a message server behind a load
+     * balancer does), either by decrypting the ticket of every message or with {@link KnownSessions#resumeSession}, which
+     * only decrypts the ticket of the first message of each client and matches the following ones to its session.
+     *
+     * @param messages - how many messages to time in each mode
+     * @param clients  - how many clients send the messages
+     */
+    private static void benchmarkResume(int messages, int clients) throws Exception {
+        byte[] serverKey = CryptoUtils.getSecureRandomBytes(32);
+        SecretKey preparedServerKey = PreparedKeyCache.prepare(serverKey);
+        long expTime = System.currentTimeMillis() + 600_000;
+        Ticket[] tickets = new Ticket[clients];
+        PrincipalId[] clientIds = new PrincipalId[clients];
+        for (int i = 0; i < clients; i++) {
+            PrincipalId clientId = CryptoUtils.generateClientId();
+            Ticket issued = new Ticket()
+                    .setVersion((byte) 24)
+                    .setClientId(clientId)
+                    .setServerId(clientId)
+                    .setCreationTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(System.currentTimeMillis()).array())
+                    .setTicketIv(CryptoUtils.getIv())
+                    .setAesKey(CryptoUtils.getSecureRandomBytes(32))
+                    .setExpTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(expTime).array());
+            if (!issued.encrypt(preparedServerKey)) {
+                benchLogger.error("Failed to encrypt ticket %d", i);
+                return;
+            }
+            // The server sees the ticket as parsed from the message.
+            ByteBuffer encoded = ByteBuffer.allocate(issued.getEncodedSize()).order(ByteOrder.LITTLE_ENDIAN);
+            issued.writeTo(encoded);
+            tickets[i] = new Ticket().parse(encoded.array());
+            clientIds[i] = clientId;
+        }
+
+        KnownSessions known = KnownSessions.getInstance();
+        for (int round = 0; round < 2; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                Random random = new Random(round);
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int m = 0; m < messages; m++) {
+                    int i = random.nextInt(clients);
+                    if (mode == 0) {
+                        if (!tickets[i].decrypt(preparedServerKey)) {
+                            benchLogger.error("Failed to decrypt ticket %d", i);
+                            return;
+                        }
+                        sink += tickets[i].getAesKey()[0];
+                    } else {
+                        KnownSessions.Session session = known.resumeSession(clientIds[i], tickets[i], preparedServerKey);
+                        if (session == null) {
+                            benchLogger.error("Failed to resume session %d", i);
+                            return;
+                        }
+                        PreparedKeyCache.PreparedKey key = session.acquireKey();
+                        sink += key.getAlgorithm().length();
+                        key.release();
+                    }
+                }
+                long took = System.nanoTime() - start;
+                if (round == 1) {
+                    benchLogger.info("resume messages=%d clients=%d %s: %.0f ns/message (sink %d)", messages, clients,
+                            mode == 0 ? "decrypting every ticket" : "session matched by ticket", (double) took / messages, sink & 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponse;
+import kerbefake.auth_server.entities.responses.get_sym_key.GetSymmetricKeyResponseBody;
+import kerbefake.client.ClientConnection;
+import kerbefake.client.MessageSender;
+import kerbefake.client.Session;
+import kerbefake.client.SessionManager;
+import kerbefake.client.operations.GetSymKeyOperation;
+import kerbefake.client.operations.RegisterOperation;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.MessageCode;
+import kerbefake.common.entities.PrincipalId;
+import kerbefake.common.entities.ServerMessage;
+import kerbefake.common.entities.Ticket;
+import kerbefake.common.errors.InvalidMessageException;
+import kerbefake.msg_server.KnownSessions;
+import kerbefake.msg_server.MessageServerRequestProcessor;
+import kerbefake.msg_server.SessionIndex;
+import kerbefake.msg_server.SessionSnapshot;
+import kerbefake.msg_server.entities.SendMessageRequest;
+import kerbefake.msg_server.entities.SendMessageRequestBody;
+import kerbefake.msg_server.entities.SendMessageRequestFactory;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static kerbefake.common.Constants.ClientConstants.SESSION_RENEW_BEFORE_MS;
+import static kerbefake.common.Constants.TICKET_LIFETIME_MS;
+import static kerbefake.common.CryptoUtils.performSha256;
+import static kerbefake.tests.TestUtils.TestCase;
+import static kerbefake.tests.TestUtils.check;
+import static kerbefake.tests.TestUtils.runTests;
+import static kerbefake.tests.TestUtils.startAuthServer;
+import static kerbefake.tests.TestUtils.startMessageServer;
+import static kerbefake.tests.Tests.PASSWORD;
+import static kerbefake.tests.Tests.SERVER_ID;
+import static kerbefake.tests.Tests.testLogger;
+
+/**
+ * Tests for the sessions of clients with the message server - how the message server keeps them ({@link SessionIndex},
+ * {@link SessionSnapshot}) and how the client renews them.
+ */
+@SuppressWarnings({"unused", "JavadocDeclaration"})
+final class SessionTests {
+
+    public static void main(String[] args) {
+        Map<String, TestCase> tests = new LinkedHashMap<>();
+        tests.put("adding and removing sessions of the session index while it grows", SessionTests::testSessionIndex);
+        tests.put("restoring sessions from a snapshot", SessionTests::testSnapshotRoundTrip);
+        tests.put("ignoring tampered sessions snapshots", SessionTests::testSnapshotTampering);
+        tests.put("telling a client its session is unknown only when it is", SessionTests::testRejectionReasons);
+        tests.put("sending messages while the session is renewed", SessionTests::testSendDuringRenewal);
+        runTests(tests);
+    }
+
+    /**
+     * Random puts and removes of an index checked against a map, as the index grows and removals shift colliding entries.
+     */
+    private static void testSessionIndex() {
+        SessionIndex<String> index = new SessionIndex<>();
+        Map<PrincipalId, String> expected = new HashMap<>();
+        List<PrincipalId> ids = new ArrayList<>();
+        Random random = new Random(19);
+        for (int i = 0; i < 4000; i++) {
+            // Few distinct high halves, so many IDs share most of their bits.
+            ids.add(new PrincipalId(random.nextInt(4), random.nextLong()));
+        }
+
+        for (int op = 0; op < 100_000; op++) {
+            PrincipalId id = ids.get(random.nextInt(ids.size()));
+            int action = random.nextInt(10);
+            if (action < 6) {
+                String value = "value " + op;
+                String previous = index.put(id.getHigh(), id.getLow(), value);
+                check(equal(previous, expected.put(id, value)), "put to return the previous value");
+            } else if (action < 8) {
+                check(equal(index.remove(id.getHigh(), id.getLow()), expected.remove(id)), "remove to return the removed value");
+            } else {
+                String current = expected.get(id);
+                boolean removed = index.remove(id.getHigh(), id.getLow(), "not " + current);
+                check(!removed, "a conditional remove of another value to fail");
+                if (current != null) {
+                    check(index.remove(id.getHigh(), id.getLow(), current), "a conditional remove of the current value to succeed");
+                    expected.remove(id);
+                }
+            }
+            if (op % 10_000 == 0) {
+                checkIndex(index, expected, ids);
+            }
+        }
+        checkIndex(index, expected, ids);
+
+        for (PrincipalId id : ids) {
+            index.remove(id.getHigh(), id.getLow());
+        }
+        check(index.size() == 0, "the index to be empty once everything was removed");
+        checkIndex(index, new HashMap<>(), ids);
+    }
+
+    private static void checkIndex(SessionIndex<String> index, Map<PrincipalId, String> expected, List<PrincipalId> ids) {
+        check(index.size() == expected.size(), String.format("the index to hold %d values, it holds %d", expected.size(), index.size()));
+        for (PrincipalId id : ids) {
+            check(equal(index.get(id.getHigh(), id.getLow()), expected.get(id)), String.format("the value of %s to match", id));
+        }
+        List<String> values = new ArrayList<>();
+        index.forEach(values::add);
+        check(values.size() == expected.size() && values.containsAll(expected.values()), "forEach to visit every value once");
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Adds a session for a new client to the message server's sessions, as if its ticket was submitted.
+     */
+    private static KnownSessions.Session addSession(long expTime) {
+        PrincipalId clientId = CryptoUtils.generateClientId();
+        Ticket ticket = new Ticket()
+                .setClientId(clientId)
+                .setCreationTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(System.currentTimeMillis()).array())
+                .setExpTime(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(expTime).array())
+                .setAesKey(CryptoUtils.getSecureRandomBytes(32));
+        KnownSessions.getInstance().addSession(clientId, ticket);
+        return KnownSessions.getInstance().getSession(clientId);
+    }
+
+    /**
+     * Sessions are restored with their client, key and creation time, sessions which expired since are dropped.
+     */
+    private static void testSnapshotRoundTrip() throws Exception {
+        long now = System.currentTimeMillis();
+        List<KnownSessions.Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sessions.add(addSession(now + 600_000 + i));
+        }
+        KnownSessions.Session expiring = addSession(now + 200);
+        sessions.add(expiring);
+        for (KnownSessions.Session session : sessions) {
+            check(session != null, "the sessions to be added");
+        }
+
+        Path file = Files.createTempDirectory("sessions").resolve("sessions.snapshot");
+        byte[] serverKey = CryptoUtils.getSecureRandomBytes(32);
+        SessionSnapshot snapshot = new SessionSnapshot(file, serverKey, testLogger);
+        check(snapshot.read().isEmpty(), "a missing snapshot to restore nothing");
+        check(snapshot.write(sessions), "the snapshot to be written");
+        check(!Files.exists(file.resolveSibling(file.getFileName() + ".tmp")), "the temporary file to replace the snapshot");
+        Thread.sleep(300);
+
+        Map<PrincipalId, Ticket> restored = new HashMap<>();
+        for (KnownSessions.Session session : new SessionSnapshot(file, serverKey, testLogger).read()) {
+            restored.put(session.getTicket().getClientId(), session.getTicket());
+        }
+        check(restored.size() == sessions.size() - 1, String.format("the live sessions to be restored, %d were", restored.size()));
+        check(!restored.containsKey(expiring.getTicket().getClientId()), "the expired session not to be restored");
+        for (KnownSessions.Session session : sessions) {
+            if (session == expiring) {
+                continue;
+            }
+            Ticket ticket = restored.get(session.getTicket().getClientId());
+            check(ticket != null, "every live session to be restored");
+            check(Arrays.equals(ticket.getAesKey(), session.getTicket().getAesKey()), "the session key to be restored");
+            check(Arrays.equals(ticket.getCreationTime(), session.getTicket().getCreationTime()), "the creation time to be restored");
+            check(Arrays.equals(ticket.getExpTime(), session.getTicket().getExpTime()), "the expiration time to be restored");
+        }
+
+        check(snapshot.write(new ArrayList<>()), "an empty snapshot to be written");
+        check(snapshot.read().isEmpty(), "an empty snapshot to replace the previous one");
+    }
+
+    /**
+     * A snapshot which was changed, cut short or written under another key is ignored as a whole.
+     */
+    private static void testSnapshotTampering() throws Exception {
+        List<KnownSessions.Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sessions.add(addSession(System.currentTimeMillis() + 600_000));
+        }
+        Path file = Files.createTempDirectory("sessions").resolve("sessions.snapshot");
+        byte[] serverKey = CryptoUtils.getSecureRandomBytes(32);
+        SessionSnapshot snapshot = new SessionSnapshot(file, serverKey, testLogger);
+        check(snapshot.write(sessions), "the snapshot to be written");
+        byte[] original = Files.readAllBytes(file);
+        check(snapshot.read().size() == sessions.size(), "the untouched snapshot to be restored");
+
+        check(new SessionSnapshot(file, CryptoUtils.getSecureRandomBytes(32), testLogger).read().isEmpty(), "a snapshot written under another key to be ignored");
+
+        // Flip a bit of the IV, of the first block and of the last block, each changes the decrypted content.
+        for (int position : new int[]{0, 16, original.length / 2, original.length - 1}) {
+            byte[] tampered = original.clone();
+            tampered[position] ^= 1;
+            Files.write(file, tampered);
+            check(snapshot.read().isEmpty(), String.format("a snapshot changed at byte %d to be ignored", position));
+        }
+
+        Files.write(file, Arrays.copyOf(original, original.length - 16));
+        check(snapshot.read().isEmpty(), "a snapshot cut short to be ignored");
+        Files.write(file, Arrays.copyOf(original, 20));
+        check(snapshot.read().isEmpty(), "a snapshot shorter than its header to be ignored");
+
+        Files.write(file, original);
+        check(snapshot.read().size() == sessions.size(), "the original snapshot to be restored again");
+    }
+
+    /**
+     * A message is only rejected as {@link MessageCode#UNKNOWN_SESSION} when its client has no session, a message of a
+     * client with a session which fails to decrypt is a generic failure so the client doesn't submit its ticket again.
+     */
+    private static void testRejectionReasons() throws Exception {
+        MessageServerRequestProcessor processor = new MessageServerRequestProcessor(CryptoUtils.getSecureRandomBytes(32));
+        KnownSessions.Session session = addSession(System.currentTimeMillis() + 600_000);
+        String clientId = session.getTicket().getClientId().toString();
+
+        SendMessageRequest valid = SendMessageRequestFactory.getInstance().setMessage("hello")
+                .encrypt(session.getTicket().getAesKey()).setClientId(clientId).build();
+        check(responseCode(processor.process(valid)) == MessageCode.SEND_MESSAGE_SUCCESS, "a valid message to be accepted");
+
+        SendMessageRequest undecryptable = SendMessageRequestFactory.getInstance().setMessage("hello")
+                .encrypt(session.getTicket().getAesKey()).setClientId(clientId).build();
+        undecryptable = new SendMessageRequest(undecryptable.getHeader(), (SendMessageRequestBody) undecryptable.getBody()) {
+            @Override
+            public void decrypt(SecretKey key) throws InvalidMessageException {
+                throw new InvalidMessageException("Tampered message");
+            }
+        };
+        check(responseCode(processor.process(undecryptable)) == MessageCode.UNKNOWN_FAILURE, "a message which fails to decrypt to be a generic failure");
+
+        SendMessageRequest noSession = SendMessageRequestFactory.getInstance().setMessage("hello")
+                .encrypt(session.getTicket().getAesKey()).setClientId(CryptoUtils.generateClientId().toString()).build();
+        check(responseCode(processor.process(noSession)) == MessageCode.UNKNOWN_SESSION, "a message of a client without a session to be an unknown session");
+
+        // The reason of the previous rejection must not carry over to the next request of the same thread.
+        check(responseCode(processor.process(undecryptable)) == MessageCode.UNKNOWN_FAILURE, "a failure after an unknown session to be a generic failure");
+    }
+
+    private static MessageCode responseCode(ServerMessage response) {
+        return response.getHeader().getMessageCode();
+    }
+
+    /**
+     * Gets a new session with the message server from the auth server, the way the client does.
+     */
+    private static Session requestSession(ClientConnection authConn, String clientId, long lifetimeMs) throws Exception {
+        long requestedAt = System.currentTimeMillis();
+        GetSymmetricKeyResponse response = new GetSymKeyOperation(authConn, SERVER_ID, clientId).perform();
+        check(response != null, "the auth server to hand out a ticket");
+        GetSymmetricKeyResponseBody body = (GetSymmetricKeyResponseBody) response.getBody();
+        EncryptedKey key = body.getEncKey();
+        check(key.decrypt(performSha256(PASSWORD)), "the session key to be decrypted");
+        return new Session(key, body.getTicket(), SERVER_ID, requestedAt + lifetimeMs);
+    }
+
+    /**
+     * A session is renewed in the background while messages are sent, every message must be accepted by the server and
+     * the messages after the renewal use the new session.
+     */
+    private static void testSendDuringRenewal() throws Exception {
+        Thread authServerThread = startAuthServer();
+        Thread msgServerThread = startMessageServer();
+        ClientConnection authConn = new ClientConnection("127.0.0.1", 1256);
+        ClientConnection msgConn = new ClientConnection("127.0.0.1", 1235);
+        SessionManager sessionManager = SessionManager.getInstance();
+        try {
+            check(authConn.open() && msgConn.open(), "the connections to the servers to open");
+            String clientId = new RegisterOperation(authConn, "Renewing Person\0", (PASSWORD + "\0").toCharArray(), null).perform();
+            check(clientId != null, "the client to register");
+
+            sessionManager.setRenewer(expiring -> {
+                try {
+                    return requestSession(authConn, clientId, TICKET_LIFETIME_MS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // Renewed shortly after it is created.
+            Session initial = requestSession(authConn, clientId, SESSION_RENEW_BEFORE_MS + 1000);
+            MessageSender sender = new MessageSender(sessionManager, clientId);
+            check(sender.submitTicket(msgConn, initial), "the initial ticket to be accepted");
+            check(sessionManager.createNewSession(initial), "the initial session to be stored");
+
+            int sent = 0, afterRenewal = 0;
+            long end = System.currentTimeMillis() + 3000;
+            while (System.currentTimeMillis() < end) {
+                boolean renewed = sessionManager.getSession(SERVER_ID) != initial;
+                check(sender.send(msgConn, SERVER_ID, "message " + sent), String.format("message %d to be accepted", sent));
+                sent++;
+                if (renewed) {
+                    afterRenewal++;
+                }
+                Thread.sleep(10);
+            }
+            Session current = sessionManager.getSession(SERVER_ID);
+            check(current != initial, "the session to be renewed");
+            check(afterRenewal > 0, "messages to be sent with the renewed session");
+            check(msgConn.hasAccepted(current), "the renewed ticket to be submitted over the connection");
+            testLogger.info("TEST - Sent %d messages, %d of them after the renewal.", sent, afterRenewal);
+        } finally {
+            sessionManager.setRenewer(null);
+            authConn.close();
+            msgConn.close();
+            authServerThread.interrupt();
+            msgServerThread.interrupt();
+            authServerThread.join();
+            msgServerThread.join();
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package kerbefake.tests;
+
+import kerbefake.auth_server.ClientsJournal;
+import kerbefake.auth_server.ClientsStore;
+import kerbefake.auth_server.KnownPeers;
+import kerbefake.auth_server.LastSeenTracker;
+import kerbefake.auth_server.MappedClientsStore;
+import kerbefake.auth_server.MessageServerDirectory;
+import kerbefake.auth_server.TextClientsStore;
+import kerbefake.auth_server.entities.ClientEntry;
+import kerbefake.auth_server.entities.MessageServerEntry;
+import kerbefake.common.Constants;
+import kerbefake.common.CryptoUtils;
+import kerbefake.common.entities.PrincipalId;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static kerbefake.tests.Benchmarks.benchLogger;
+import static kerbefake.tests.Benchmarks.runConcurrently;
+
+/**
+ * Benchmarks of the auth server's stores - clients, their registrations and last seen times, and the message servers directory. See {@link Benchmarks} for how to run them.
+ */
+@SuppressWarnings({"unused", "DuplicatedCode"})
+final class StoreBenchmarks {
+
+    /**
+     * Runs a benchmark of this area.
+     *
+     * @param args - the name of the benchmark followed by its arguments
+     * @return false in case the benchmark isn't one of this area.
+     */
+    static boolean run(String[] args) throws Exception {
+        switch (args[0]) {
+            case "peers":
+                benchmarkPeers(args.length > 1 ? Integer.parseInt(args[1]) : 100_000, args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000);
+                return true;
+            case "journal":
+                int registrations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+                for (int threads : new int[]{1, 2, 4, 8, 16}) {
+                    benchmarkJournal(threads, registrations);
+                }
+                return true;
+            case "store":
+                benchmarkStore(args.length > 1 ? Integer.parseInt(args[1]) : 200_000, args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000);
+                return true;
+            case "load":
+                if (args.length == 1) {
+                    benchmarkLoad(1_000_000);
+                }
+                for (int i = 1; i < args.length; i++) {
+                    benchmarkLoad(Integer.parseInt(args[i]));
+                }
+                return true;
+            case "servers":
+                benchmarkServers(args.length > 1 ? Integer.parseInt(args[1]) : 10_000, args.length > 2 ? Integer.parseInt(args[2]) : 5);
+                return true;
+            case "lastseen":
+                benchmarkLastSeen(args.length > 1 ? Integer.parseInt(args[1]) : 200_000, args.length > 2 ? Integer.parseInt(args[2]) : 10_000);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Registers clients with {@link KnownPeers} and measures the latency of looking them up by ID every time the amount of
+     * registered clients grows tenfold, starting from 1000. The same lookups are done by scanning every client under a
+     * lock the way it used to be done, though with fewer lookups as the scan gets slower.
+     * The clients are registered from an empty clients file in the current directory, which is overwritten.
+     *
+     * @param maxClients - up to how many clients to register
+     * @param lookups    - how many lookups to time at every size
+     */
+    private static void benchmarkPeers(int maxClients, int lookups) throws Exception {
+        new FileWriter(Constants.CLIENTS_FILE_NAME, false).close();
+        KnownPeers peers = KnownPeers.getInstance();
+        Map<PrincipalId, ClientEntry> scanned = Collections.synchronizedMap(new HashMap<>());
+        List<PrincipalId> ids = new ArrayList<>();
+        byte[] passwordHash = new byte[32];
+        Arrays.fill(passwordHash, (byte) 1);
+        Random random = new Random(1);
+
+        for (int size = 1000; size <= maxClients; size *= 10) {
+            long start = System.nanoTime();
+            while (ids.size() < size) {
+                ClientEntry entry = new ClientEntry(CryptoUtils.generateClientId(), "client-" + ids.size(), passwordHash, new Date());
+                if (!peers.tryAddClientEntry(entry)) {
+                    throw new RuntimeException("Failed to register client.");
+                }
+                scanned.put(entry.getId(), entry);
+                ids.add(entry.getId());
+            }
+            long registration = System.nanoTime() - start;
+
+            long sink = 0;
+            for (int round = 0; round < 2; round++) {
+                // Don't time the collection of the garbage left by registering and scanning.
+                System.gc();
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    sink += peers.getClient(ids.get(random.nextInt(size))).getName().length();
+                }
+                long indexed = System.nanoTime() - start;
+
+                int scans = (int) Math.max(10, Math.min(lookups, 100_000_000L / size));
+                start = System.nanoTime();
+                for (int i = 0; i < scans; i++) {
+                    PrincipalId id = ids.get(random.nextInt(size));
+                    synchronized (scanned) {
+                        List<ClientEntry> matching = scanned.values().stream().filter(v -> v.getId().equals(id)).collect(Collectors.toList());
+                        sink += matching.get(0).getName().length();
+                    }
+                }
+                long scan = System.nanoTime() - start;
+
+                if (round == 1) {
+                    benchLogger.info("peers clients=%d indexed=%.0f ns/lookup scan=%.0f ns/lookup registration=%.1f us/client (sink %d)",
+                            size, (double) indexed / lookups, (double) scan / scans, registration / 1e3 / (size - (size == 1000 ? 0 : size / 10)), sink & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes client records from a number of threads at once, once opening the file, writing and flushing for every
+     * record under a lock the way registrations used to, once doing the same but also syncing every record to the disk,
+     * and once appending to a {@link ClientsJournal}, which syncs every batch to the disk.
+     *
+     * @param threads       - how many threads register at once
+     * @param registrations - how many clients are registered in each mode
+     */
+    private static void benchmarkJournal(int threads, int registrations) throws Exception {
+        byte[] passwordHash = new byte[32];
+        Arrays.fill(passwordHash, (byte) 1);
+        List<ClientEntry> entries = new ArrayList<>();
+        for (int i = 0; i < registrations; i++) {
+            entries.add(new ClientEntry(CryptoUtils.generateClientId(), "client-" + i, passwordHash, new Date()));
+        }
+        Path file = Files.createTempFile("clients", ".journal");
+        Object fileLock = new Object();
+
+        try {
+            long[] elapsed = new long[3];
+            double averageBatch = 0;
+            for (int mode = 0; mode < 3; mode++) {
+                boolean sync = mode == 1;
+                Files.write(file, new byte[0]);
+                ClientsJournal journal = mode == 2 ? new ClientsJournal(file, 0, () -> entries, benchLogger) : null;
+                AtomicInteger next = new AtomicInteger();
+                List<Thread> registrars = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    registrars.add(new Thread(() -> {
+                        int i;
+                        while ((i = next.getAndIncrement()) < registrations) {
+                            ClientEntry entry = entries.get(i);
+                            if (journal != null) {
+                                if (!journal.append(entry)) {
+                                    throw new RuntimeException("Failed to append client.");
+                                }
+                                continue;
+                            }
+                            synchronized (fileLock) {
+                                try (FileOutputStream out = new FileOutputStream(file.toFile(), true);
+                                     BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out))) {
+                                    writer.write(entry + "\n");
+                                    writer.flush();
+                                    if (sync) {
+                                        out.getFD().sync();
+                                    }
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        }
+                    }));
+                }
+                long start = System.nanoTime();
+                for (Thread registrar : registrars) {
+                    registrar.start();
+                }
+                for (Thread registrar : registrars) {
+                    registrar.join();
+                }
+                elapsed[mode] = System.nanoTime() - start;
+                if (journal != null) {
+                    averageBatch = journal.getAverageBatchSize();
+                    journal.close();
+                }
+            }
+
+            benchLogger.info("journal threads=%d per-entry open=%.0f registrations/s per-entry open+sync=%.0f registrations/s journal=%.0f registrations/s (average batch %.1f)",
+                    threads, registrations / (elapsed[0] / 1e9), registrations / (elapsed[1] / 1e9), registrations / (elapsed[2] / 1e9), averageBatch);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Writes a text clients file, converts it to a binary store and measures how long it takes each store to open and
+     * serve its first lookup, and the latency of looking clients up afterward.
+     *
+     * @param clients - how many clients to store
+     * @param lookups - how many lookups to time in each store
+     */
+    private static void benchmarkStore(int clients, int lookups) throws Exception {
+        Path directory = Files.createTempDirectory("clients-store");
+        Path textPath = directory.resolve("clients");
+        Path binaryPath = directory.resolve("clients.db");
+        byte[] passwordHash = new byte[32];
+        Arrays.fill(passwordHash, (byte) 1);
+        PrincipalId[] ids = new PrincipalId[clients];
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(textPath)) {
+                for (int i = 0; i < clients; i++) {
+                    ids[i] = CryptoUtils.generateClientId();
+                    writer.write(new ClientEntry(ids[i], "client-" + i, passwordHash, new Date()) + "\n");
+                }
+            }
+            PrincipalId firstId = ids[clients / 2];
+
+            long start = System.nanoTime();
+            ClientsStore text = new TextClientsStore(textPath, benchLogger);
+            text.get(firstId);
+            long textStartup = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            MappedClientsStore.convert(textPath, binaryPath, benchLogger);
+            long conversion = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ClientsStore binary = new MappedClientsStore(binaryPath, benchLogger);
+            binary.get(firstId);
+            long binaryStartup = System.nanoTime() - start;
+
+            Random random = new Random(1);
+            long sink = 0;
+            long[] latency = new long[2];
+            for (int round = 0; round < 2; round++) {
+                for (int s = 0; s < 2; s++) {
+                    ClientsStore store = s == 0 ? text : binary;
+                    start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        sink += store.get(ids[random.nextInt(clients)]).getName().length();
+                    }
+                    latency[s] = System.nanoTime() - start;
+                }
+            }
+            text.close();
+            binary.close();
+
+            benchLogger.info("store clients=%d startup text=%.1f ms binary=%.1f ms (conversion %.1f ms) lookup text=%.0f ns binary=%.0f ns (sink %d)",
+                    clients, textStartup / 1e6, binaryStartup / 1e6, conversion / 1e6, (double) latency[0] / lookups,
+                    (double) latency[1] / lookups, sink & 1);
+        } finally {
+            for (Path file : new Path[]{textPath, binaryPath}) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Writes a text clients file and loads it, once reading and parsing it line by line with a new
+     * {@link SimpleDateFormat} and a regex match for every client the way it used to be done, and once with
+     * {@link TextClientsStore}, which loads it in parallel.
+     *
+     * @param clients - how many clients the file holds
+     */
+    private static void benchmarkLoad(int clients) throws Exception {
+        Path directory = Files.createTempDirectory("clients-load");
+        Path textPath = directory.resolve("clients");
+        byte[] passwordHash = new byte[32];
+        Arrays.fill(passwordHash, (byte) 1);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(textPath)) {
+                for (int i = 0; i < clients; i++) {
+                    writer.write(new ClientEntry(CryptoUtils.generateClientId(), "client-" + i, passwordHash, new Date()) + "\n");
+                }
+            }
+
+            System.gc();
+            long start = System.nanoTime();
+            Map<String, ClientEntry> sequential = new ConcurrentHashMap<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(textPath.toFile()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":");
+                    if (!parts[0].matches("^[0-9a-f]{32}$")) {
+                        throw new RuntimeException("Invalid client ID.");
+                    }
+                    Date lastSeen = new SimpleDateFormat("hh.mm.ss dd/MM/yyyy").parse(parts[3]);
+                    sequential.put(parts[0], new ClientEntry(PrincipalId.fromHex(parts[0]), parts[1], Base64.getDecoder().decode(parts[2]), lastSeen));
+                }
+            }
+            long sequentialLoad = System.nanoTime() - start;
+            int sequentialSize = sequential.size();
+            sequential = null;
+
+            System.gc();
+            start = System.nanoTime();
+            ClientsStore store = new TextClientsStore(textPath, benchLogger);
+            long parallelLoad = System.nanoTime() - start;
+            if (store.size() != sequentialSize) {
+                throw new RuntimeException(String.format("Loaded %d clients instead of %d.", store.size(), sequentialSize));
+            }
+            store.close();
+
+            benchLogger.info("load clients=%d line by line=%.0f ms parallel=%.0f ms (%d threads)",
+                    clients, sequentialLoad / 1e6, parallelLoad / 1e6, Runtime.getRuntime().availableProcessors());
+        } finally {
+            Files.deleteIfExists(textPath);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Looks up message servers from two threads while the main thread rotates the keys of the servers of one of the
+     * server files every 50 ms. Once the servers are reloaded in place under a write lock, which blocks lookups for the
+     * duration of the reload, and once by a {@link MessageServerDirectory} watching the directory.
+     *
+     * @param servers - how many servers are listed, split between 4 server files
+     * @param seconds - for how long to look up servers in each mode
+     */
+    private static void benchmarkServers(int servers, int seconds) throws Exception {
+        Path directory = Files.createTempDirectory("msg.d");
+        Path missingServerFile = directory.resolve("msg.info");
+        List<PrincipalId> ids = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            ids.add(CryptoUtils.generateClientId());
+        }
+        int files = 4;
+        for (int file = 0; file < files; file++) {
+            writeServerFile(directory, file, ids.subList(file * servers / files, (file + 1) * servers / files));
+        }
+
+        try {
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            Map<PrincipalId, MessageServerEntry> locked = new HashMap<>();
+            Runnable reloadLocked = () -> {
+                lock.writeLock().lock();
+                try {
+                    locked.clear();
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.info")) {
+                        for (Path file : stream) {
+                            List<String> lines = Files.readAllLines(file).stream().filter(line -> !line.isEmpty()).collect(Collectors.toList());
+                            for (int i = 0; i + 3 < lines.size(); i += 4) {
+                                MessageServerEntry entry = MessageServerEntry.parseMessageEntryData(lines.get(i), lines.get(i + 1), lines.get(i + 2), lines.get(i + 3));
+                                locked.put(entry.getId(), entry);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            };
+            reloadLocked.run();
+            long[] lockedResult = measureServerLookups(ids, directory, files, seconds, reloadLocked, id -> {
+                lock.readLock().lock();
+                try {
+                    return locked.get(id);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            });
+            benchLogger.info("servers servers=%d locked reload: %d lookups/s worst lookup=%.1f us reloads=%d",
+                    servers, lockedResult[0] / seconds, lockedResult[1] / 1e3, lockedResult[2]);
+
+            MessageServerDirectory copyOnWrite = new MessageServerDirectory(missingServerFile, directory, benchLogger);
+            long[] copyOnWriteResult = measureServerLookups(ids, directory, files, seconds, () -> {
+            }, copyOnWrite::get);
+            benchLogger.info("servers servers=%d copy on write: %d lookups/s worst lookup=%.1f us reloads=%d",
+                    servers, copyOnWriteResult[0] / seconds, copyOnWriteResult[1] / 1e3, copyOnWrite.getReloads());
+            copyOnWrite.close();
+        } finally {
+            for (int file = 0; file < files; file++) {
+                Files.deleteIfExists(directory.resolve("servers-" + file + ".info"));
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Writes a server file with new keys for the given servers, replacing the previous file at once so it is never
+     * read half written.
+     */
+    private static void writeServerFile(Path directory, int file, List<PrincipalId> ids) throws IOException {
+        byte[] key = new byte[32];
+        StringBuilder records = new StringBuilder();
+        for (PrincipalId id : ids) {
+            ThreadLocalRandom.current().nextBytes(key);
+            records.append("127.0.0.1:1235\nserver-").append(id).append('\n').append(id).append('\n')
+                    .append(Base64.getEncoder().encodeToString(key)).append("\n\n");
+        }
+        Path temp = directory.resolve("servers-" + file + ".tmp");
+        Files.write(temp, records.toString().getBytes());
+        Files.move(temp, directory.resolve("servers-" + file + ".info"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Looks up random servers from two threads while rewriting a server file every 50 ms.
+     *
+     * @return the amount of lookups, the worst lookup latency in nanoseconds and the amount of reloads.
+     */
+    private static long[] measureServerLookups(List<PrincipalId> ids, Path directory, int files, int seconds, Runnable reload,
+                                               Function<PrincipalId, MessageServerEntry> lookup) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong lookups = new AtomicLong();
+        AtomicLong worst = new AtomicLong();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            Thread reader = new Thread(() -> {
+                Random random = new Random();
+                long count = 0;
+                long max = 0;
+                while (running.get()) {
+                    PrincipalId id = ids.get(random.nextInt(ids.size()));
+                    long start = System.nanoTime();
+                    if (lookup.apply(id) == null) {
+                        throw new RuntimeException(String.format("Server %s is missing.", id));
+                    }
+                    max = Math.max(max, System.nanoTime() - start);
+                    count++;
+                }
+                lookups.addAndGet(count);
+                worst.accumulateAndGet(max, Math::max);
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        long reloads = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int file = 0; System.nanoTime() < end; file = (file + 1) % files) {
+            Thread.sleep(50);
+            writeServerFile(directory, file, ids.subList(file * ids.size() / files, (file + 1) * ids.size() / files));
+            reload.run();
+            reloads++;
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return new long[]{lookups.get(), worst.get(), reloads};
+    }
+
+    /**
+     * Looks up random clients of a text clients store from 4 threads and records that each was seen, once persisting
+     * the last seen time on every request (which fsyncs, along with concurrent requests) and once with a
+     * {@link LastSeenTracker}, which only updates it in memory and persists it in the background.
+     *
+     * @param requests - how many requests to time with the tracker, a hundredth of them are timed when persisting on
+     *                 every request
+     * @param clients  - how many clients are registered
+     */
+    private static void benchmarkLastSeen(int requests, int clients) throws Exception {
+        Path directory = Files.createTempDirectory("clients-last-seen");
+        Path textPath = directory.resolve("clients");
+        byte[] passwordHash = new byte[32];
+        Arrays.fill(passwordHash, (byte) 1);
+        PrincipalId[] ids = new PrincipalId[clients];
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(textPath)) {
+                for (int i = 0; i < clients; i++) {
+                    ids[i] = CryptoUtils.generateClientId();
+                    writer.write(new ClientEntry(ids[i], "client-" + i, passwordHash, new Date()) + "\n");
+                }
+            }
+            ClientsStore store = new TextClientsStore(textPath, benchLogger);
+            int threads = 4;
+
+            int syncRequests = Math.max(threads, requests / 100);
+            long sync = runConcurrently(threads, syncRequests / threads, random -> {
+                ClientEntry client = store.get(ids[random.nextInt(clients)]);
+                client.updateLastSeen(System.currentTimeMillis());
+                if (!store.updateLastSeen(Collections.singletonList(client))) {
+                    throw new RuntimeException("Failed to persist last seen.");
+                }
+            });
+
+            LastSeenTracker tracker = new LastSeenTracker(store, benchLogger);
+            long tracked = runConcurrently(threads, requests / threads, random -> tracker.markSeen(store.get(ids[random.nextInt(clients)])));
+            long start = System.nanoTime();
+            tracker.flush();
+            long flush = System.nanoTime() - start;
+
+            benchLogger.info("lastseen clients=%d threads=%d persisted per request=%.1f us/request background writer=%.3f us/request (final flush of %d clients took %.1f ms)",
+                    clients, threads, sync / 1e3 / syncRequests, tracked / 1e3 / requests, tracker.getWritten(), flush / 1e6);
+            store.close();
+        } finally {
+            Files.deleteIfExists(textPath);
+            Files.deleteIfExists(directory.resolve("clients.snapshot"));
+            Files.delete(directory);
+        }
+    }
+}
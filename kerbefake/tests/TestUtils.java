@@ -4,6 +4,7 @@ import kerbefake.auth_server.AuthServer;
 import kerbefake.msg_server.MessageServer;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Random;
 
 import static kerbefake.tests.Tests.testLogger;
@@ -39,6 +40,53 @@ final class TestUtils {
         return t;
     }
 
+    /**
+     * A single test, which fails by throwing.
+     */
+    @FunctionalInterface
+    interface TestCase {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs the given tests in order and logs how many of them passed.
+     *
+     * @param tests - the tests by their description
+     * @return true if all the tests passed, false otherwise.
+     */
+    public static boolean runTests(Map<String, TestCase> tests) {
+        int successfulTests = 0;
+        for (Map.Entry<String, TestCase> test : tests.entrySet()) {
+            testLogger.info("TEST - ================ \uD83E\uDDEA Testing %s \uD83E\uDDEA ===================", test.getKey());
+            try {
+                test.getValue().run();
+                successfulTests++;
+                testLogger.info("TEST - ================ ✅✅✅ Testing %s ✅✅✅ ===================", test.getKey());
+            } catch (Exception | AssertionError e) {
+                testLogger.error(e);
+                testLogger.error("TEST - ❌ Testing %s failed due to: %s", test.getKey(), e.getMessage());
+            }
+        }
+        if (successfulTests == tests.size()) {
+            testLogger.info("TEST - ✅✅✅ Finished ALL tests successfully (%d/%d)", successfulTests, tests.size());
+            return true;
+        }
+        testLogger.error("TEST - ❌❌❌ Some tests failed (%d/%d successful)", successfulTests, tests.size());
+        return false;
+    }
+
+    /**
+     * Fails the current test in case the condition doesn't hold.
+     *
+     * @param condition   - the condition to check
+     * @param description - what was expected, logged in case it doesn't hold
+     */
+    public static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new RuntimeException(String.format("TEST - ❌ Failed, expected %s", description));
+        }
+    }
+
     public static String generateRandomID() {
         String idChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz-_1234567890";
         StringBuilder idBuilder = new StringBuilder();
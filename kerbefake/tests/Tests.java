@@ -13,6 +13,7 @@ import kerbefake.common.Logger;
 import kerbefake.common.MessageStream;
 import kerbefake.common.entities.Authenticator;
 import kerbefake.common.entities.EncryptedKey;
+import kerbefake.common.entities.PrincipalId;
 import kerbefake.common.entities.ServerMessage;
 import kerbefake.common.entities.Ticket;
 import kerbefake.common.errors.InvalidMessageException;
@@ -30,7 +31,6 @@ import static kerbefake.common.CryptoUtils.*;
 import static kerbefake.common.Logger.LoggerType;
 import static kerbefake.common.Logger.getLogger;
 import static kerbefake.common.Utils.bytesToHexString;
-import static kerbefake.common.Utils.hexStringToByteArray;
 import static kerbefake.tests.TestUtils.startAuthServer;
 import static kerbefake.tests.TestUtils.startMessageServer;
 
@@ -190,9 +190,14 @@ final class Tests {
             EncryptedKey encryptedKey = getSessionKey(getSymKey, clientId);
             Ticket ticket = ((GetSymmetricKeyResponseBody) getSymKey.getBody()).getTicket();
 
+            // The message server doesn't know the client yet, the ticket sent along creates its session.
+            sendMessageToMsgServer(result.msgServerStream, encryptedKey, clientId, ticket);
+
             submitTicketToMsgServer(result.msgServerStream, ticket, clientId, encryptedKey);
 
-            sendMessageToMsgServer(result.msgServerStream, encryptedKey, clientId);
+            sendMessageToMsgServer(result.msgServerStream, encryptedKey, clientId, null);
+
+            sendMessageToMsgServer(result.msgServerStream, encryptedKey, clientId, ticket);
         } finally {
             if (!result.authServerSocket.isClosed())
                 endTest(result.authServerSocket);
@@ -223,7 +228,7 @@ final class Tests {
         testLogger.info("TEST - ✅ Successfully registered client with auth server");
 
         RegisterClientResponseBody responseBody = (RegisterClientResponseBody) response.getBody();
-        return responseBody.getId();
+        return responseBody.getId().toString();
 
     }
 
@@ -253,7 +258,7 @@ final class Tests {
         GetSymmetricKeyResponseBody getSymKeyBody = (GetSymmetricKeyResponseBody) getSymKeyResp.getBody();
         EncryptedKey encKey = getSymKeyBody.getEncKey();
 
-        assert clientId.equals(getSymKeyBody.getClientId());
+        assert PrincipalId.fromHex(clientId).equals(getSymKeyBody.getClientId());
 
         encKey.decrypt(performSha256(PASSWORD));
         return encKey;
@@ -271,16 +276,16 @@ final class Tests {
         testLogger.info("TEST - Submitting a ticket to the message server.");
 
         byte[] iv = getIv();
-        byte[] clientIdBytes = hexStringToByteArray(clientId);
-        byte[] serverIdBytes = hexStringToByteArray(SERVER_ID);
+        PrincipalId parsedClientId = PrincipalId.fromHex(clientId);
+        PrincipalId parsedServerId = PrincipalId.fromHex(SERVER_ID);
 
         // We control this, for sure they are not null.
-        assert clientIdBytes != null;
-        assert serverIdBytes != null;
+        assert parsedClientId != null;
+        assert parsedServerId != null;
         Authenticator authenticator = new Authenticator(
                 iv,
-                clientIdBytes,
-                serverIdBytes,
+                parsedClientId,
+                parsedServerId,
                 ticket.getCreationTime()
         );
         SubmitTicketRequest request = SubmitTicketRequestFactory.getInstance().setTicket(ticket).setAuthenticator(authenticator).encrypt(key.getAesKey()).setClientId(CLIENT_ID).build();
@@ -293,18 +298,20 @@ final class Tests {
     }
 
     /**
-     * Sends a message to the message server, must be done after establishing a session with the message server.
+     * Sends a message to the message server, must be done after establishing a session with the message server unless
+     * the ticket is sent along with the message.
      *
      * @param key      - the encrypted key containing the session key to use for encryption
      * @param clientId - the client ID to use
+     * @param ticket   - the ticket to send along with the message, null to send the message alone
      * @throws IOException in case of a failure to send the request or get the response
      */
-    private static void sendMessageToMsgServer(MessageStream stream, EncryptedKey key, String clientId) throws IOException, InvalidMessageException {
-        testLogger.info("TEST - =========== Send Message to Message Server ===========");
+    private static void sendMessageToMsgServer(MessageStream stream, EncryptedKey key, String clientId, Ticket ticket) throws IOException, InvalidMessageException {
+        testLogger.info("TEST - =========== Send Message to Message Server%s ===========", ticket == null ? "" : " (with ticket)");
         testLogger.info("TEST - Sending a message to the message server.");
         String message = "Hello this is some random message very long test 1231 123 123 40n3 to wef";
 
-        SendMessageRequest request = SendMessageRequestFactory.getInstance().setMessage(message).encrypt(key.getAesKey()).setClientId(CLIENT_ID).build();
+        SendMessageRequest request = SendMessageRequestFactory.getInstance().setMessage(message).setTicket(ticket).encrypt(key.getAesKey()).setClientId(CLIENT_ID).build();
         if (sendRequestAndGetResponse(stream, request) == null) {
             throw new RuntimeException("TEST - ❌ Failed to send message or get response");
         }